@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cyrilmottier.polaris.internal.AnnotationAnimator;
+import com.cyrilmottier.polaris.internal.AnnotationIndex;
+import com.cyrilmottier.polaris.internal.IntArray;
+
+/**
+ * Stepping the animations of moving annotations, i.e. the per-frame cost of
+ * interpolating the coordinates and keeping the spatial index up to date.
+ * 
+ * @author Cyril Mottier
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AnnotationAnimatorBenchmark {
+
+    /**
+     * The distance (about ten kilometers) each annotation moves back and
+     * forth
+     */
+    private static final int DISTANCE = 100000;
+
+    /**
+     * A frame at 60 fps
+     */
+    private static final int FRAME_DURATION = 16;
+
+    /**
+     * Annotations move by about 1 E6 per frame: all annotations are actually
+     * moved on each frame
+     */
+    private static final int DURATION = DISTANCE * FRAME_DURATION;
+
+    @Param({ "1000", "100000", "1000000" })
+    public int count;
+
+    private int[] mOriginLatitudes;
+    private int[] mLatitudes;
+    private int[] mLongitudes;
+    private AnnotationIndex mIndex;
+    private AnnotationAnimator mAnimator;
+    private final IntArray mFinished = new IntArray();
+    private long mTime;
+
+    @Setup
+    public void setUp() {
+        final Points points = new Points(count);
+        mLatitudes = points.latitudes;
+        mLongitudes = points.longitudes;
+        mOriginLatitudes = mLatitudes.clone();
+
+        mIndex = new AnnotationIndex();
+        for (int i = 0; i < count; i++) {
+            mIndex.insert(i, mLatitudes[i], mLongitudes[i]);
+        }
+
+        mAnimator = new AnnotationAnimator();
+        for (int i = 0; i < count; i++) {
+            restart(i);
+        }
+    }
+
+    @Benchmark
+    public int step() {
+        mTime += FRAME_DURATION;
+        mFinished.clear();
+        mAnimator.step(mTime, mLatitudes, mLongitudes, mIndex, mFinished);
+
+        // Annotations that arrived go back where they come from, just like
+        // vehicles receiving a new fix
+        final int[] finished = mFinished.values();
+        final int finishedCount = mFinished.size();
+        for (int i = 0; i < finishedCount; i++) {
+            restart(finished[i]);
+        }
+        return finishedCount;
+    }
+
+    private void restart(int position) {
+        final int latitude = mLatitudes[position];
+        final int target = latitude == mOriginLatitudes[position] ? latitude + DISTANCE : mOriginLatitudes[position];
+        mAnimator.start(position, latitude, mLongitudes[position], target, mLongitudes[position], mTime, DURATION);
+    }
+
+}
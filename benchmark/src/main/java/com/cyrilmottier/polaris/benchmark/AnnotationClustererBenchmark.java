@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cyrilmottier.polaris.internal.AnnotationClusterer;
+import com.cyrilmottier.polaris.internal.AnnotationClusterer.Clusters;
+import com.cyrilmottier.polaris.internal.IntArray;
+
+/**
+ * Clustering annotations: sorting the points once and computing the clusters
+ * of a zoom level, from scratch and after a few annotations moved.
+ * 
+ * @author Cyril Mottier
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AnnotationClustererBenchmark {
+
+    /**
+     * The number of annotations moved between two incremental updates
+     */
+    private static final int MOVED_COUNT = 100;
+
+    @Param({ "1000", "100000", "1000000" })
+    public int count;
+
+    @Param({ "3", "10" })
+    public int zoom;
+
+    private Points mPoints;
+    private AnnotationClusterer mClusterer;
+    private final IntArray mResult = new IntArray();
+    private int mNextMoved;
+    private int mDirection = 1;
+
+    @Setup
+    public void setUp() {
+        mPoints = new Points(count);
+        mClusterer = new AnnotationClusterer();
+        mClusterer.setPoints(mPoints.latitudes, mPoints.longitudes, count);
+        mClusterer.getClusters(zoom);
+    }
+
+    @Benchmark
+    public int setPointsAndCluster() {
+        final AnnotationClusterer clusterer = new AnnotationClusterer();
+        clusterer.setPoints(mPoints.latitudes, mPoints.longitudes, count);
+        return clusterer.getClusters(zoom).getCount();
+    }
+
+    @Benchmark
+    public int movePointsAndCluster() {
+        // Move annotations back and forth by about a kilometer
+        final AnnotationClusterer clusterer = mClusterer;
+        final int[] latitudes = mPoints.latitudes;
+        final int[] longitudes = mPoints.longitudes;
+        for (int i = 0; i < MOVED_COUNT; i++) {
+            final int index = mNextMoved;
+            latitudes[index] += mDirection * 10000;
+            clusterer.setPoint(index, latitudes[index], longitudes[index]);
+            if (++mNextMoved == count) {
+                mNextMoved = 0;
+                mDirection = -mDirection;
+            }
+        }
+        return clusterer.getClusters(zoom).getCount();
+    }
+
+    @Benchmark
+    public int queryVisibleClusters() {
+        final Clusters clusters = mClusterer.getClusters(zoom);
+        mResult.clear();
+        clusters.query(40000000, -5000000, 55000000, 10000000, mResult);
+        return mResult.size();
+    }
+
+}
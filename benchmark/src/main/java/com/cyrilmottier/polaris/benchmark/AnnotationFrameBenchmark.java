@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cyrilmottier.polaris.internal.AnnotationFrame;
+import com.cyrilmottier.polaris.internal.Mercator;
+import com.cyrilmottier.polaris.internal.MercatorProjector;
+
+/**
+ * Preparing a frame of annotations at city level (the background thread
+ * cost) and drawing it half a screen away from its center (the per-frame UI
+ * thread cost, markers excluded).
+ * 
+ * @author Cyril Mottier
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AnnotationFrameBenchmark {
+
+    /**
+     * Mercator zoom level at which a city is typically displayed
+     */
+    private static final int CITY_ZOOM = 10;
+
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+
+    /**
+     * The largest extent of a marker from its anchor
+     */
+    private static final int MARKER_EXTENT = 48;
+
+    @Param({ "1000", "100000", "1000000" })
+    public int count;
+
+    private Points mPoints;
+    private int[] mXs;
+    private int[] mYs;
+    private int[] mMarkerTypes;
+    private int mCenterX;
+    private int mCenterY;
+    private double mScale;
+    private final AnnotationFrame mFrame = new AnnotationFrame();
+    private final MercatorProjector mProjector = new MercatorProjector();
+
+    @Setup
+    public void setUp() {
+        mPoints = new Points(count);
+        mXs = new int[count];
+        mYs = new int[count];
+        mMarkerTypes = new int[count];
+        for (int i = 0; i < count; i++) {
+            mXs[i] = Mercator.longitudeToX(mPoints.longitudes[i]);
+            mYs[i] = Mercator.latitudeToY(mPoints.latitudes[i]);
+        }
+
+        // Center the frame on the first point of a city
+        mCenterX = mXs[1];
+        mCenterY = mYs[1];
+        mScale = 1.0 / (1 << (Mercator.MAX_ZOOM - CITY_ZOOM));
+        prepare();
+
+        // The map has been panned by half a screen
+        final int latitude = Mercator.yToLatitude(mCenterY + (int) (HEIGHT / 2 / mScale));
+        final int longitude = Mercator.xToLongitude(mCenterX + (int) (WIDTH / 2 / mScale));
+        mProjector.set(latitude, longitude, WIDTH / 2, HEIGHT / 2, mScale);
+    }
+
+    @Benchmark
+    public AnnotationFrame prepare() {
+        final AnnotationFrame frame = mFrame;
+        final long radiusX = (long) Math.ceil((WIDTH / 2 + WIDTH + MARKER_EXTENT) / mScale);
+        final long radiusY = (long) Math.ceil((HEIGHT / 2 + HEIGHT + MARKER_EXTENT) / mScale);
+        frame.set(0, CITY_ZOOM, mCenterX, mCenterY, mScale, radiusX, radiusY);
+        frame.prepare(mPoints.latitudes, mXs, mYs, mMarkerTypes, count);
+        return frame;
+    }
+
+    @Benchmark
+    public long draw() {
+        final AnnotationFrame frame = mFrame;
+        final MercatorProjector projector = mProjector;
+        final int originX = projector.projectX(frame.getCenterX(projector.unprojectX(WIDTH / 2)));
+        final int originY = projector.projectY(frame.getCenterY());
+        final int[] xs = frame.getXs();
+        final int[] ys = frame.getYs();
+        final int frameCount = frame.getCount();
+        long result = 0;
+        for (int i = 0; i < frameCount; i++) {
+            final int x = originX + xs[i];
+            final int y = originY + ys[i];
+            if (x + MARKER_EXTENT < 0 || x - MARKER_EXTENT > WIDTH || y + MARKER_EXTENT < 0 || y - MARKER_EXTENT > HEIGHT) {
+                continue;
+            }
+            result += x + y;
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cyrilmottier.polaris.CoordinateRegion;
+import com.cyrilmottier.polaris.internal.AnnotationIndex;
+import com.cyrilmottier.polaris.internal.IntArray;
+
+/**
+ * Building and querying the spatial index used to cull annotations.
+ * 
+ * @author Cyril Mottier
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AnnotationIndexBenchmark {
+
+    @Param({ "1000", "100000", "1000000" })
+    public int count;
+
+    private Points mPoints;
+    private AnnotationIndex mIndex;
+    private final IntArray mResult = new IntArray();
+
+    /**
+     * A city-sized region (about what is visible at zoom level 12)
+     */
+    private final CoordinateRegion mCityRegion = new CoordinateRegion(48856614, 2352222, 100000, 150000);
+
+    /**
+     * A country-sized region (about what is visible at zoom level 6)
+     */
+    private final CoordinateRegion mCountryRegion = new CoordinateRegion(48856614, 2352222, 6000000, 9000000);
+
+    @Setup
+    public void setUp() {
+        mPoints = new Points(count);
+        mIndex = build();
+    }
+
+    @Benchmark
+    public AnnotationIndex insert() {
+        return build();
+    }
+
+    @Benchmark
+    public int queryCity() {
+        mResult.clear();
+        mIndex.query(mCityRegion, mResult);
+        return mResult.size();
+    }
+
+    @Benchmark
+    public int queryCountry() {
+        mResult.clear();
+        mIndex.query(mCountryRegion, mResult);
+        return mResult.size();
+    }
+
+    @Benchmark
+    public int countCountry() {
+        return mIndex.count(mCountryRegion);
+    }
+
+    private AnnotationIndex build() {
+        final AnnotationIndex index = new AnnotationIndex();
+        final int[] latitudes = mPoints.latitudes;
+        final int[] longitudes = mPoints.longitudes;
+        for (int i = 0; i < count; i++) {
+            index.insert(i, latitudes[i], longitudes[i]);
+        }
+        return index;
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cyrilmottier.polaris.CoordinateRegion;
+
+/**
+ * Equality and containment tests of {@link CoordinateRegion}, as done on every
+ * layout pass and for every annotation when culling.
+ * 
+ * @author Cyril Mottier
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CoordinateRegionBenchmark {
+
+    @Param({ "1000", "100000", "1000000" })
+    public int count;
+
+    private Points mPoints;
+    private CoordinateRegion[] mRegions;
+    private CoordinateRegion mVisibleRegion;
+    private CoordinateRegion mAntimeridianRegion;
+
+    @Setup
+    public void setUp() {
+        mPoints = new Points(count);
+
+        // Regions centered on the points, with a span of a city
+        mRegions = new CoordinateRegion[count];
+        for (int i = 0; i < count; i++) {
+            mRegions[i] = new CoordinateRegion(mPoints.latitudes[i], mPoints.longitudes[i], 200000, 300000);
+        }
+
+        mVisibleRegion = new CoordinateRegion(48856614, 2352222, 20000000, 30000000);
+        mAntimeridianRegion = new CoordinateRegion(-17713371, 178065032, 20000000, 30000000);
+    }
+
+    @Benchmark
+    public int equalsConsecutive() {
+        final CoordinateRegion[] regions = mRegions;
+        int result = 0;
+        for (int i = 1; i < regions.length; i++) {
+            if (regions[i].equals(regions[i - 1])) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    @Benchmark
+    public int containsPoint() {
+        return countContained(mVisibleRegion);
+    }
+
+    @Benchmark
+    public int containsPointAcrossAntimeridian() {
+        return countContained(mAntimeridianRegion);
+    }
+
+    @Benchmark
+    public int containsRegion() {
+        final CoordinateRegion visibleRegion = mVisibleRegion;
+        final CoordinateRegion[] regions = mRegions;
+        int result = 0;
+        for (int i = 0; i < regions.length; i++) {
+            if (visibleRegion.contains(regions[i])) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    @Benchmark
+    public int intersects() {
+        final CoordinateRegion visibleRegion = mVisibleRegion;
+        final CoordinateRegion[] regions = mRegions;
+        int result = 0;
+        for (int i = 0; i < regions.length; i++) {
+            if (visibleRegion.intersects(regions[i])) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    private int countContained(CoordinateRegion region) {
+        final int[] latitudes = mPoints.latitudes;
+        final int[] longitudes = mPoints.longitudes;
+        int result = 0;
+        for (int i = 0; i < latitudes.length; i++) {
+            if (region.contains(latitudes[i], longitudes[i])) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cyrilmottier.polaris.internal.Geometry;
+
+/**
+ * The callout anchoring math (used by MapCalloutView.layoutVariable) and the
+ * marker gravity resolution (used by MapViewUtils.boundMarker).
+ * 
+ * @author Cyril Mottier
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GeometryBenchmark {
+
+    private static final int SCREEN_WIDTH = 720;
+    private static final int SCREEN_HEIGHT = 1280;
+
+    /*
+     * Values of android.view.Gravity. They are inlined by the compiler.
+     */
+    private static final int[] GRAVITIES = {
+            0x11, // CENTER
+            0x51, // CENTER_HORIZONTAL | BOTTOM
+            0x33, // LEFT | TOP
+            0x55, // RIGHT | BOTTOM
+            0x13, // LEFT | CENTER_VERTICAL
+    };
+
+    @Param({ "1000", "100000", "1000000" })
+    public int count;
+
+    private int[] mAnchors;
+    private int[] mWidths;
+    private int[] mGravities;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(0x5eed);
+        mAnchors = new int[count];
+        mWidths = new int[count];
+        mGravities = new int[count];
+        for (int i = 0; i < count; i++) {
+            mAnchors[i] = random.nextInt(SCREEN_WIDTH + 200) - 100;
+            mWidths[i] = 100 + random.nextInt(SCREEN_WIDTH);
+            mGravities[i] = GRAVITIES[random.nextInt(GRAVITIES.length)];
+        }
+    }
+
+    @Benchmark
+    public long calloutLeft() {
+        final int[] anchors = mAnchors;
+        final int[] widths = mWidths;
+        long result = 0;
+        for (int i = 0; i < anchors.length; i++) {
+            result += Geometry.getCalloutLeft(anchors[i], SCREEN_WIDTH, widths[i], 20, 20);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public long containOffset() {
+        final int[] anchors = mAnchors;
+        final int[] widths = mWidths;
+        long result = 0;
+        for (int i = 0; i < anchors.length; i++) {
+            final int left = anchors[i] - widths[i] / 2;
+            result += Geometry.getContainOffset(left, left + widths[i], 0, SCREEN_WIDTH);
+            result += Geometry.getContainOffset(anchors[i], anchors[i] + 100, 0, SCREEN_HEIGHT);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public long markerBounds() {
+        final int[] gravities = mGravities;
+        final int[] widths = mWidths;
+        long result = 0;
+        for (int i = 0; i < gravities.length; i++) {
+            result += Geometry.getMarkerLeft(gravities[i], widths[i]);
+            result += Geometry.getMarkerTop(gravities[i], widths[i]);
+        }
+        return result;
+    }
+
+}
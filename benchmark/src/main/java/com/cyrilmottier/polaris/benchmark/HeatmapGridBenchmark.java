@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cyrilmottier.polaris.internal.HeatmapGrid;
+import com.cyrilmottier.polaris.internal.Mercator;
+
+/**
+ * Computing the heatmap of the annotations at country level: rebuilding the
+ * grid from scratch (as done when the zoom level changes) and updating it
+ * incrementally (as done when annotations are added and removed).
+ * 
+ * @author Cyril Mottier
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HeatmapGridBenchmark {
+
+    /**
+     * Mercator zoom level at which a country is typically displayed
+     */
+    private static final int COUNTRY_ZOOM = 5;
+
+    /**
+     * The size of a cell and the radius of the kernel in pixels
+     */
+    private static final int CELL_SIZE = 8;
+    private static final int RADIUS = 32;
+
+    /*
+     * The grid covers three screens of 1080x1920 pixels in each direction
+     */
+    private static final int COLUMN_COUNT = 3 * 1080 / CELL_SIZE;
+    private static final int ROW_COUNT = 3 * 1920 / CELL_SIZE;
+
+    /**
+     * The number of annotations moved between two incremental updates
+     */
+    private static final int MOVED_COUNT = 100;
+
+    @Param({ "1000", "100000", "1000000" })
+    public int count;
+
+    private int[] mXs;
+    private int[] mYs;
+    private int mCellSize;
+    private int mFirstColumn;
+    private int mFirstRow;
+    private final HeatmapGrid mGrid = new HeatmapGrid(RADIUS / CELL_SIZE);
+    private final int[] mGradient = new int[256];
+    private final int[] mPixels = new int[COLUMN_COUNT * ROW_COUNT];
+    private int mNextMoved;
+    private int mDirection = 1;
+
+    @Setup
+    public void setUp() {
+        final Points points = new Points(count);
+        mXs = new int[count];
+        mYs = new int[count];
+        for (int i = 0; i < count; i++) {
+            mXs[i] = Mercator.longitudeToX(points.longitudes[i]);
+            mYs[i] = Mercator.latitudeToY(points.latitudes[i]);
+        }
+        for (int i = 0; i < mGradient.length; i++) {
+            mGradient[i] = i << 24;
+        }
+
+        // Center the grid on the first point of a city
+        mCellSize = CELL_SIZE << (Mercator.MAX_ZOOM - COUNTRY_ZOOM);
+        mFirstColumn = mXs[1] / mCellSize - COLUMN_COUNT / 2;
+        mFirstRow = Math.max(0, mYs[1] / mCellSize - ROW_COUNT / 2);
+        rebuild();
+    }
+
+    @Benchmark
+    public HeatmapGrid rebuild() {
+        final HeatmapGrid grid = mGrid;
+        grid.reset(mCellSize, mFirstColumn, mFirstRow, COLUMN_COUNT, ROW_COUNT);
+        final int[] xs = mXs;
+        final int[] ys = mYs;
+        for (int i = 0; i < count; i++) {
+            grid.add(xs[i], ys[i]);
+        }
+        grid.normalize();
+        grid.colorize(mGradient, mPixels);
+        return grid;
+    }
+
+    @Benchmark
+    public HeatmapGrid update() {
+        // Move annotations back and forth by a few cells (annotations are
+        // within the Mercator limits: they never leave the world)
+        final HeatmapGrid grid = mGrid;
+        for (int i = 0; i < MOVED_COUNT; i++) {
+            final int index = mNextMoved;
+            grid.remove(mXs[index], mYs[index]);
+            mYs[index] += mDirection * 4 * mCellSize;
+            grid.add(mXs[index], mYs[index]);
+            if (++mNextMoved == count) {
+                mNextMoved = 0;
+                mDirection = -mDirection;
+            }
+        }
+        grid.colorize(mGradient, mPixels);
+        return grid;
+    }
+
+}
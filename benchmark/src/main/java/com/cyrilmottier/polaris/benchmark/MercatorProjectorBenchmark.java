@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cyrilmottier.polaris.internal.Mercator;
+import com.cyrilmottier.polaris.internal.MercatorProjector;
+
+/**
+ * Projecting annotation coordinates to screen pixels, one point at a time
+ * and whole arrays at once.
+ * 
+ * @author Cyril Mottier
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MercatorProjectorBenchmark {
+
+    @Param({ "1000", "100000", "1000000" })
+    public int count;
+
+    private Points mPoints;
+    private final MercatorProjector mProjector = new MercatorProjector();
+    private int[] mXs;
+    private int[] mYs;
+
+    @Setup
+    public void setUp() {
+        mPoints = new Points(count);
+        mXs = new int[count];
+        mYs = new int[count];
+        // Zoom level 12 on a 720x1280 screen
+        mProjector.set(48856614, 2352222, 360, 640, 1.0 / (1 << (Mercator.MAX_ZOOM - 11)));
+    }
+
+    @Benchmark
+    public long project() {
+        final MercatorProjector projector = mProjector;
+        final int[] latitudes = mPoints.latitudes;
+        final int[] longitudes = mPoints.longitudes;
+        long result = 0;
+        for (int i = 0; i < latitudes.length; i++) {
+            result += projector.toPixelX(longitudes[i]);
+            result += projector.toPixelY(latitudes[i]);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public int[] projectArrays() {
+        final int[] latitudes = mPoints.latitudes;
+        mProjector.toPixels(latitudes, mPoints.longitudes, latitudes.length, mXs, mYs);
+        return mYs;
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cyrilmottier.polaris.internal.DispatchArray;
+
+/**
+ * Dispatching an event to all overlays of an OverlayContainer: the flattened
+ * {@link DispatchArray} versus the former List whose get(int) and size()
+ * remapped indices around the location and annotations overlays.
+ * 
+ * @author Cyril Mottier
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OverlayDispatchBenchmark {
+
+    /**
+     * Stands for an Overlay (which cannot be instantiated outside of Android)
+     */
+    static class Target {
+        private final int mValue;
+
+        Target(int value) {
+            mValue = value;
+        }
+
+        boolean onEvent(int event) {
+            return (mValue & event) != 0;
+        }
+    }
+
+    /**
+     * The dispatch list as implemented before the introduction of
+     * {@link DispatchArray}.
+     */
+    @SuppressWarnings("serial")
+    static class LegacyList extends ArrayList<Target> {
+        Target location;
+        Target annotations;
+
+        @Override
+        public Target get(int index) {
+            boolean hasLocationOverlay = location != null;
+            boolean hasAnnotationsOverlay = annotations != null;
+
+            switch (index) {
+                case 0:
+                    if (hasLocationOverlay) {
+                        return location;
+                    } else if (hasAnnotationsOverlay) {
+                        return annotations;
+                    }
+                    break;
+
+                case 1:
+                    if (hasLocationOverlay && hasAnnotationsOverlay) {
+                        return annotations;
+                    }
+                    break;
+            }
+
+            int reindex = index;
+            if (hasLocationOverlay) {
+                reindex--;
+            }
+            if (hasAnnotationsOverlay) {
+                reindex--;
+            }
+
+            return super.get(reindex);
+        }
+
+        @Override
+        public int size() {
+            int size = super.size();
+            if (location != null) {
+                size++;
+            }
+            if (annotations != null) {
+                size++;
+            }
+            return size;
+        }
+    }
+
+    /**
+     * The number of overlays added by the client, in addition to the location
+     * and annotations overlays
+     */
+    @Param({ "0", "4", "16" })
+    public int count;
+
+    private final LegacyList mLegacyList = new LegacyList();
+
+    private final DispatchArray<Target> mDispatchArray = new DispatchArray<Target>(2) {
+        @Override
+        protected Target[] newArray(int size) {
+            return new Target[size];
+        }
+    };
+
+    private int mEvent;
+
+    @Setup
+    public void setUp() {
+        final Target location = new Target(1);
+        final Target annotations = new Target(2);
+        mLegacyList.location = location;
+        mLegacyList.annotations = annotations;
+        mDispatchArray.setPinned(0, location);
+        mDispatchArray.setPinned(1, annotations);
+        for (int i = 0; i < count; i++) {
+            final Target target = new Target(i + 3);
+            mLegacyList.add(target);
+            mDispatchArray.add(target);
+        }
+    }
+
+    @Benchmark
+    public boolean legacyList() {
+        final int event = ++mEvent;
+        boolean result = false;
+        final List<Target> targets = mLegacyList;
+        final int size = targets.size();
+        for (int i = size - 1; i >= 0; i--) {
+            result |= targets.get(i).onEvent(event);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public boolean dispatchArray() {
+        final int event = ++mEvent;
+        boolean result = false;
+        final Target[] targets = mDispatchArray.getArray();
+        final int size = targets.length;
+        for (int i = size - 1; i >= 0; i--) {
+            result |= targets[i].onEvent(event);
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.benchmark;
+
+import java.util.Random;
+
+/**
+ * Generates reproducible sets of E6 coordinates. Half of the points are
+ * spread over the whole world while the other half are concentrated around a
+ * few "cities" so that both sparse and dense areas are exercised.
+ * 
+ * @author Cyril Mottier
+ */
+final class Points {
+
+    private static final long SEED = 0x5eed;
+    private static final int CITY_COUNT = 16;
+
+    /**
+     * Standard deviation of the distance to the city center (~0.5 degree)
+     */
+    private static final double CITY_SPREAD = 500000;
+
+    final int[] latitudes;
+    final int[] longitudes;
+
+    Points(int count) {
+        latitudes = new int[count];
+        longitudes = new int[count];
+
+        final Random random = new Random(SEED);
+        final int[] cityLatitudes = new int[CITY_COUNT];
+        final int[] cityLongitudes = new int[CITY_COUNT];
+        for (int i = 0; i < CITY_COUNT; i++) {
+            cityLatitudes[i] = randomLatitude(random);
+            cityLongitudes[i] = randomLongitude(random);
+        }
+
+        for (int i = 0; i < count; i++) {
+            if ((i & 1) == 0) {
+                latitudes[i] = randomLatitude(random);
+                longitudes[i] = randomLongitude(random);
+            } else {
+                final int city = random.nextInt(CITY_COUNT);
+                latitudes[i] = clamp(cityLatitudes[city] + (long) (random.nextGaussian() * CITY_SPREAD), -80000000, 80000000);
+                longitudes[i] = clamp(cityLongitudes[city] + (long) (random.nextGaussian() * CITY_SPREAD), -180000000, 179999999);
+            }
+        }
+    }
+
+    private static int randomLatitude(Random random) {
+        return random.nextInt(160000000) - 80000000;
+    }
+
+    private static int randomLongitude(Random random) {
+        return random.nextInt(360000000) - 180000000;
+    }
+
+    private static int clamp(long value, int min, int max) {
+        return (int) Math.max(min, Math.min(max, value));
+    }
+
+}
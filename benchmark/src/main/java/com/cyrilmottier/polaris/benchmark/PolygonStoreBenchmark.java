@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cyrilmottier.polaris.internal.IntArray;
+import com.cyrilmottier.polaris.internal.Mercator;
+import com.cyrilmottier.polaris.internal.PolygonStore;
+
+/**
+ * Rejecting the polygons (hexagonal zones, every other one with a hole) that
+ * are out of the screen, i.e. the per-frame cost of a polygon overlay before
+ * any Path is drawn.
+ * 
+ * @author Cyril Mottier
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PolygonStoreBenchmark {
+
+    /**
+     * The radius of the zones (about 5 kilometers at the equator)
+     */
+    private static final int RADIUS = 50000;
+
+    private static final int SIDE_COUNT = 6;
+
+    /**
+     * The size of the screen in pixels
+     */
+    private static final int SCREEN_SIZE = 1024;
+
+    /**
+     * Mercator zoom level at which a city is typically displayed
+     */
+    private static final int CITY_ZOOM = 10;
+
+    @Param({ "1000", "10000", "100000" })
+    public int count;
+
+    private Points mPoints;
+    private PolygonStore mStore;
+    private final IntArray mPolygons = new IntArray();
+
+    @Setup
+    public void setUp() {
+        mPoints = new Points(count);
+        mStore = new PolygonStore();
+        for (int i = 0; i < count; i++) {
+            mStore.add(getLatitudes(i), getLongitudes(i));
+        }
+    }
+
+    @Benchmark
+    public PolygonStore add() {
+        final PolygonStore store = new PolygonStore();
+        for (int i = 0; i < count; i++) {
+            store.add(getLatitudes(i), getLongitudes(i));
+        }
+        return store;
+    }
+
+    @Benchmark
+    public int queryCity() {
+        // Center the screen on the first point of a city
+        final long x = Mercator.longitudeToX(mPoints.longitudes[1]);
+        final long y = Mercator.latitudeToY(mPoints.latitudes[1]);
+        final long halfSize = (long) (SCREEN_SIZE / 2) << (Mercator.MAX_ZOOM - CITY_ZOOM);
+        mPolygons.clear();
+        mStore.query(x - halfSize, y - halfSize, x + halfSize, y + halfSize, mPolygons);
+        return mPolygons.size();
+    }
+
+    private static int getRingCount(int index) {
+        return index % 2 == 0 ? 1 : 2;
+    }
+
+    private int[][] getLatitudes(int index) {
+        final int ringCount = getRingCount(index);
+        final int[][] rings = new int[ringCount][SIDE_COUNT];
+        for (int ring = 0; ring < ringCount; ring++) {
+            // Holes are half as large as the outline
+            final int radius = RADIUS >> ring;
+            for (int i = 0; i < SIDE_COUNT; i++) {
+                final double angle = 2 * Math.PI * i / SIDE_COUNT;
+                rings[ring][i] = (int) Math.max(-80000000, Math.min(80000000, mPoints.latitudes[index] + radius * Math.sin(angle)));
+            }
+        }
+        return rings;
+    }
+
+    private int[][] getLongitudes(int index) {
+        final int ringCount = getRingCount(index);
+        final int[][] rings = new int[ringCount][SIDE_COUNT];
+        for (int ring = 0; ring < ringCount; ring++) {
+            final int radius = RADIUS >> ring;
+            for (int i = 0; i < SIDE_COUNT; i++) {
+                final double angle = 2 * Math.PI * i / SIDE_COUNT;
+                rings[ring][i] = (int) Math.max(-180000000, Math.min(179999999, mPoints.longitudes[index] + radius * Math.cos(angle)));
+            }
+        }
+        return rings;
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+import com.cyrilmottier.polaris.internal.IntArray;
+import com.cyrilmottier.polaris.internal.Mercator;
+import com.cyrilmottier.polaris.internal.PolylineSimplifier;
+
+/**
+ * Simplifying GPS tracks and clipping the simplified tracks to the area
+ * covered by the cached Path of a polyline overlay (about three screens wide).
+ * 
+ * @author Cyril Mottier
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PolylineSimplifierBenchmark {
+
+    private static final float TOLERANCE = 1.0f;
+
+    /**
+     * The size of the clipped area in pixels
+     */
+    private static final int AREA_SIZE = 3 * 1024;
+
+    /**
+     * Mercator zoom levels at which a street and the entire track are
+     * typically displayed
+     */
+    private static final int STREET_ZOOM = 16;
+    private static final int OVERVIEW_ZOOM = 8;
+
+    @Param({ "10000", "100000", "1000000" })
+    public int count;
+
+    private Track mTrack;
+    private PolylineSimplifier mSimplifier;
+    private final IntArray mRuns = new IntArray();
+
+    @Setup
+    public void setUp() {
+        mTrack = new Track(count);
+        mSimplifier = new PolylineSimplifier(mTrack.latitudes, mTrack.longitudes, count, TOLERANCE);
+        // Simplified polylines are extracted once per zoom level
+        mSimplifier.getVertices(STREET_ZOOM);
+        mSimplifier.getVertices(OVERVIEW_ZOOM);
+    }
+
+    @Benchmark
+    public PolylineSimplifier simplify() {
+        return new PolylineSimplifier(mTrack.latitudes, mTrack.longitudes, count, TOLERANCE);
+    }
+
+    @Benchmark
+    public int clipStreet() {
+        return clip(STREET_ZOOM);
+    }
+
+    @Benchmark
+    public int clipOverview() {
+        return clip(OVERVIEW_ZOOM);
+    }
+
+    /**
+     * Clip the simplified track to an area centered on the middle vertex of
+     * the track.
+     */
+    private int clip(int zoom) {
+        final int middle = count / 2;
+        final long x = mSimplifier.getXs()[middle];
+        final long y = mSimplifier.getYs()[middle];
+        final long halfSize = (long) (AREA_SIZE / 2) << (Mercator.MAX_ZOOM - zoom);
+        mRuns.clear();
+        mSimplifier.clip(zoom, x - halfSize, y - halfSize, x + halfSize, y + halfSize, mRuns);
+        return mRuns.size();
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.benchmark;
+
+import java.util.Random;
+
+/**
+ * Generates reproducible GPS-like tracks: a vehicle driving at a steady
+ * speed, sampled every second, whose heading slowly drifts. Consecutive
+ * vertices are close to each other and mostly aligned, just like a real
+ * recorded track.
+ * 
+ * @author Cyril Mottier
+ */
+final class Track {
+
+    private static final long SEED = 0x7aac;
+
+    /**
+     * Distance between two samples (~15 meters)
+     */
+    private static final double STEP = 135;
+
+    /**
+     * Standard deviation of the heading change between two samples (radians)
+     */
+    private static final double HEADING_DRIFT = 0.05;
+
+    /**
+     * Standard deviation of the GPS noise
+     */
+    private static final double NOISE = 20;
+
+    final int[] latitudes;
+    final int[] longitudes;
+
+    Track(int count) {
+        latitudes = new int[count];
+        longitudes = new int[count];
+
+        final Random random = new Random(SEED);
+        double latitude = 48856614;
+        double longitude = 2352222;
+        double heading = 0;
+        for (int i = 0; i < count; i++) {
+            heading += random.nextGaussian() * HEADING_DRIFT;
+            latitude = Math.max(-80000000, Math.min(80000000, latitude + Math.cos(heading) * STEP));
+            longitude += Math.sin(heading) * STEP;
+            if (longitude >= 180000000) {
+                longitude -= 360000000;
+            } else if (longitude < -180000000) {
+                longitude += 360000000;
+            }
+            latitudes[i] = (int) (latitude + random.nextGaussian() * NOISE);
+            longitudes[i] = (int) (longitude + random.nextGaussian() * NOISE);
+        }
+    }
+
+}
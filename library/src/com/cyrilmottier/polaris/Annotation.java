@@ -28,6 +28,8 @@ import com.google.android.maps.OverlayItem;
  */
 public class Annotation extends OverlayItem {
 
+    private GeoPoint mCurrentPoint;
+
     /**
      * Construct an {@link Annotation}.
      * 
@@ -62,9 +64,38 @@ public class Annotation extends OverlayItem {
      */
     public Annotation(GeoPoint point, String title, String snippet, Drawable marker) {
         super(point, title, snippet);
+        mCurrentPoint = point;
         mMarker = marker;
     }
 
+    /**
+     * Return the current position of this {@link Annotation}.
+     * 
+     * @return The position of this {@link Annotation}
+     */
+    @Override
+    public GeoPoint getPoint() {
+        return mCurrentPoint;
+    }
+
+    /**
+     * Move this {@link Annotation} to a new position.
+     * <p>
+     * <strong>Note</strong>: Do not call this method on an {@link Annotation}
+     * currently displayed by a {@link PolarisMapView}. Use
+     * {@link PolarisMapView#updateAnnotationPosition(int, GeoPoint)} instead
+     * so that the map is correctly updated.
+     * </p>
+     * 
+     * @param point The new position of this {@link Annotation}
+     */
+    public void setPoint(GeoPoint point) {
+        if (point == null) {
+            throw new IllegalArgumentException("The position of an " + Annotation.class.getSimpleName() + " cannot be null");
+        }
+        mCurrentPoint = point;
+    }
+
     /**
      * Return the Drawable use as this {@link Annotation}'s marker or null if
      * none have been set.
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris;
+
+/**
+ * A provider of annotations for a given region. An {@link AnnotationSource}
+ * lets a {@link PolarisMapView} load annotations lazily: only the annotations
+ * of the visible region (plus a prefetch margin) are loaded and they are
+ * loaded once a region change has been confirmed. This is particularly useful
+ * when annotations come from a large local database.
+ * <p>
+ * Annotations are identified by the identifier they are added with in the
+ * {@link AnnotationStore}. An annotation already displayed is not added again
+ * when it is part of the result of a new query. Annotations moving out of the
+ * queried region are removed (unless selected).
+ * </p>
+ * 
+ * @author Cyril Mottier
+ * @see PolarisMapView#setAnnotationSource(AnnotationSource, android.graphics.drawable.Drawable)
+ */
+public interface AnnotationSource {
+
+    /**
+     * A query for the annotations of a region.
+     * 
+     * @author Cyril Mottier
+     */
+    public interface Query {
+        /**
+         * Return the region to load annotations for. The returned region must
+         * not be modified.
+         * 
+         * @return The queried region
+         */
+        CoordinateRegion getRegion();
+
+        /**
+         * Indicates whether this query has been cancelled because its region
+         * is not visible anymore. Long running implementations of
+         * {@link AnnotationSource#loadAnnotations(Query, AnnotationStore)}
+         * should check this method regularly and return as soon as possible
+         * when it returns true.
+         * 
+         * @return true if the query has been cancelled
+         */
+        boolean isCancelled();
+    }
+
+    /**
+     * Load the annotations of the region of the given query.
+     * <p>
+     * <strong>Note</strong>: This method is called on a background thread.
+     * Markers registered with {@link AnnotationStore#addMarkerType(android.graphics.drawable.Drawable)}
+     * are matched by identity: prefer reusing the same {@link android.graphics.drawable.Drawable}
+     * instances from one query to the other. The {@link AnnotationStore.TextProvider}
+     * of the given store is called on the UI thread.
+     * </p>
+     * 
+     * @param query The query to run
+     * @param outAnnotations The store to fill with the annotations of the
+     *            queried region
+     */
+    void loadAnnotations(Query query, AnnotationStore outAnnotations);
+
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris;
+
+import java.util.ArrayList;
+
+import android.graphics.drawable.Drawable;
+
+import com.google.android.maps.GeoPoint;
+
+/**
+ * A compact set of annotations. Contrary to a list of {@link Annotation}s, an
+ * {@link AnnotationStore} doesn't create any object per annotation: positions,
+ * markers and identifiers are stored in arrays of primitives. Markers are
+ * referred to by a marker type (registered with
+ * {@link #addMarkerType(Drawable)}) and titles/snippets are only retrieved
+ * from a {@link TextProvider} when an annotation is actually selected.
+ * <p>
+ * An {@link AnnotationStore} is the preferred way to display large sets of
+ * annotations with {@link PolarisMapView#setAnnotations(AnnotationStore, Drawable)}.
+ * {@link Annotation} objects are only created on demand (when an annotation is
+ * selected for instance).
+ * </p>
+ * 
+ * @author Cyril Mottier
+ */
+public class AnnotationStore {
+
+    /**
+     * The marker type of annotations using the default marker of the
+     * {@link PolarisMapView}.
+     */
+    public static final int DEFAULT_MARKER = 0;
+
+    /**
+     * Provides the texts of the annotations of an {@link AnnotationStore}.
+     * Texts are retrieved lazily using the identifier given when adding the
+     * annotation to the {@link AnnotationStore}.
+     * 
+     * @author Cyril Mottier
+     */
+    public interface TextProvider {
+        /**
+         * Return the title of the annotation with the given identifier.
+         * 
+         * @param id The identifier of the annotation
+         * @return The title of the annotation
+         */
+        String getTitle(int id);
+
+        /**
+         * Return the snippet of the annotation with the given identifier.
+         * 
+         * @param id The identifier of the annotation
+         * @return The snippet of the annotation
+         */
+        String getSnippet(int id);
+    }
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private int[] mIds;
+    private int[] mLatitudes;
+    private int[] mLongitudes;
+    private int[] mMarkerTypes;
+    private int mSize;
+
+    private final ArrayList<Drawable> mMarkers = new ArrayList<Drawable>();
+    private TextProvider mTextProvider;
+
+    public AnnotationStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public AnnotationStore(int initialCapacity) {
+        initialCapacity = Math.max(1, initialCapacity);
+        mIds = new int[initialCapacity];
+        mLatitudes = new int[initialCapacity];
+        mLongitudes = new int[initialCapacity];
+        mMarkerTypes = new int[initialCapacity];
+        // The default marker is not known by the store
+        mMarkers.add(null);
+    }
+
+    /**
+     * Register a new marker and return its marker type.
+     * 
+     * @param marker Drawable used as a marker (please note this marker must
+     *            have its bounds already set. You can use the
+     *            {@link MapViewUtils#boundMarker(Drawable, int)} utility method
+     *            to prepare this {@link Drawable}'s bounds)
+     * @return The marker type to use when adding annotations with this marker
+     */
+    public int addMarkerType(Drawable marker) {
+        if (marker == null) {
+            throw new IllegalArgumentException("The given marker cannot be null");
+        }
+        mMarkers.add(marker);
+        return mMarkers.size() - 1;
+    }
+
+    /**
+     * Return the number of marker types in this store, including
+     * {@link #DEFAULT_MARKER}.
+     * 
+     * @return The number of marker types
+     */
+    public int getMarkerTypeCount() {
+        return mMarkers.size();
+    }
+
+    /**
+     * Return the marker associated to the given marker type.
+     * 
+     * @param markerType The marker type
+     * @return The marker or null for {@link #DEFAULT_MARKER}
+     */
+    public Drawable getMarker(int markerType) {
+        return mMarkers.get(markerType);
+    }
+
+    public TextProvider getTextProvider() {
+        return mTextProvider;
+    }
+
+    /**
+     * Set the {@link TextProvider} used to retrieve the title and snippet of
+     * the annotations in this store.
+     * 
+     * @param provider The new {@link TextProvider}
+     */
+    public void setTextProvider(TextProvider provider) {
+        mTextProvider = provider;
+    }
+
+    /**
+     * Add an annotation using the default marker.
+     * 
+     * @param id The identifier of the annotation. This value is given back to
+     *            the {@link TextProvider}
+     * @param latitudeE6 The latitude of the annotation (in microdegrees)
+     * @param longitudeE6 The longitude of the annotation (in microdegrees)
+     */
+    public void add(int id, int latitudeE6, int longitudeE6) {
+        add(id, latitudeE6, longitudeE6, DEFAULT_MARKER);
+    }
+
+    /**
+     * Add an annotation.
+     * 
+     * @param id The identifier of the annotation. This value is given back to
+     *            the {@link TextProvider}
+     * @param latitudeE6 The latitude of the annotation (in microdegrees)
+     * @param longitudeE6 The longitude of the annotation (in microdegrees)
+     * @param markerType The marker type of the annotation as returned by
+     *            {@link #addMarkerType(Drawable)} or {@link #DEFAULT_MARKER}
+     */
+    public void add(int id, int latitudeE6, int longitudeE6, int markerType) {
+        if (markerType < 0 || markerType >= mMarkers.size()) {
+            throw new IllegalArgumentException("Unknown marker type " + markerType);
+        }
+        ensureCapacity(mSize + 1);
+        mIds[mSize] = id;
+        mLatitudes[mSize] = latitudeE6;
+        mLongitudes[mSize] = longitudeE6;
+        mMarkerTypes[mSize] = markerType;
+        mSize++;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Remove all annotations from this store. Registered marker types are
+     * kept.
+     */
+    public void clear() {
+        mSize = 0;
+    }
+
+    public void ensureCapacity(int minCapacity) {
+        if (minCapacity > mIds.length) {
+            final int capacity = Math.max(minCapacity, mIds.length * 2);
+            mIds = grow(mIds, capacity);
+            mLatitudes = grow(mLatitudes, capacity);
+            mLongitudes = grow(mLongitudes, capacity);
+            mMarkerTypes = grow(mMarkerTypes, capacity);
+        }
+    }
+
+    public int getId(int index) {
+        checkIndex(index);
+        return mIds[index];
+    }
+
+    public int getLatitude(int index) {
+        checkIndex(index);
+        return mLatitudes[index];
+    }
+
+    public int getLongitude(int index) {
+        checkIndex(index);
+        return mLongitudes[index];
+    }
+
+    public int getMarkerType(int index) {
+        checkIndex(index);
+        return mMarkerTypes[index];
+    }
+
+    /**
+     * Create an {@link Annotation} representing the annotation at the given
+     * index. A new {@link Annotation} is created each time this method is
+     * called.
+     * 
+     * @param index The index of the annotation
+     * @return A new {@link Annotation}
+     */
+    public Annotation createAnnotation(int index) {
+        checkIndex(index);
+        final int id = mIds[index];
+        final TextProvider provider = mTextProvider;
+        //@formatter:off
+        return new Annotation(
+                new GeoPoint(mLatitudes[index], mLongitudes[index]),
+                provider != null ? provider.getTitle(id) : null,
+                provider != null ? provider.getSnippet(id) : null,
+                mMarkers.get(mMarkerTypes[index]));
+        //@formatter:on
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Invalid index " + index + ", size is " + mSize);
+        }
+    }
+
+    private static int[] grow(int[] array, int capacity) {
+        final int[] newArray = new int[capacity];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+
+}
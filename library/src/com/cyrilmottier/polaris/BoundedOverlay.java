@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris;
+
+import android.graphics.Rect;
+
+import com.google.android.maps.MapView;
+import com.google.android.maps.Overlay;
+
+/**
+ * An {@link Overlay} added to a {@link PolarisMapView} may implement this
+ * interface to tell the area of the map it draws in. When only part of the
+ * map is redrawn (because a single annotation changed for instance), the
+ * {@link Overlay} is not drawn at all if this area doesn't intersect the area
+ * being redrawn.
+ * 
+ * @author Cyril Mottier
+ */
+public interface BoundedOverlay {
+
+    /**
+     * Compute the area the {@link Overlay} is about to draw in. This method is
+     * called before each draw: it must be much cheaper than drawing the
+     * {@link Overlay}.
+     * 
+     * @param mapView The {@link MapView} the {@link Overlay} is drawn on
+     * @param shadow true if the shadow layer is about to be drawn
+     * @param outBounds The area (in pixels, relatively to the
+     *            {@link MapView}) the {@link Overlay} draws in
+     * @return false if the area cannot be determined. In this case the
+     *         {@link Overlay} is always drawn.
+     */
+    boolean getDrawingBounds(MapView mapView, boolean shadow, Rect outBounds);
+
+}
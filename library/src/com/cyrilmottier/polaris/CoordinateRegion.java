@@ -15,18 +15,21 @@
  */
 package com.cyrilmottier.polaris;
 
-import com.google.android.maps.MapView;
-
 /**
- * Representation of a {@link MapView} region in the coordinate space. A
- * {@link CoordinateRegion} is defined by a point - the center of the region -
- * and two spans for the latitude and longitude - the extend of the region
- * around the center.
+ * Representation of a {@link com.google.android.maps.MapView} region in the
+ * coordinate space. A {@link CoordinateRegion} is defined by a point - the
+ * center of the region - and two spans for the latitude and longitude - the
+ * extend of the region around the center.
  * 
  * @author Cyril Mottier
  */
 public class CoordinateRegion {
 
+    /**
+     * The span covering the entire Earth on the longitude axis (360 degrees).
+     */
+    private static final long FULL_LONGITUDE_SPAN = 360000000L;
+
     /**
      * The latitude of this region's center.
      */
@@ -166,4 +169,126 @@ public class CoordinateRegion {
         latitude = longitude = latitudeSpan = longitudeSpan = 0;
     }
 
+    /**
+     * Return the minimum latitude (i.e. the southern edge) of this region.
+     * 
+     * @return The minimum latitude of this region
+     */
+    public int getMinLatitude() {
+        return latitude - latitudeSpan / 2;
+    }
+
+    /**
+     * Return the maximum latitude (i.e. the northern edge) of this region.
+     * 
+     * @return The maximum latitude of this region
+     */
+    public int getMaxLatitude() {
+        return latitude + (latitudeSpan - latitudeSpan / 2);
+    }
+
+    /**
+     * Return the minimum longitude (i.e. the western edge) of this region.
+     * Please note the returned value may be less than -180 degrees when the
+     * region crosses the antimeridian.
+     * 
+     * @return The minimum longitude of this region
+     */
+    public int getMinLongitude() {
+        return longitude - longitudeSpan / 2;
+    }
+
+    /**
+     * Return the maximum longitude (i.e. the eastern edge) of this region.
+     * Please note the returned value may be greater than 180 degrees when the
+     * region crosses the antimeridian.
+     * 
+     * @return The maximum longitude of this region
+     */
+    public int getMaxLongitude() {
+        return longitude + (longitudeSpan - longitudeSpan / 2);
+    }
+
+    /**
+     * Inset the region by (dLatitude, dLongitude). If dLatitude is positive,
+     * then the northern and southern edges are moved towards the center. If
+     * dLatitude is negative, then the edges are moved outwards, making the
+     * region wider. The same holds true for dLongitude and the western and
+     * eastern edges.
+     * 
+     * @param dLatitude The amount to add to the southern edge and subtract
+     *            from the northern edge
+     * @param dLongitude The amount to add to the western edge and subtract
+     *            from the eastern edge
+     */
+    public void inset(int dLatitude, int dLongitude) {
+        latitudeSpan -= 2 * dLatitude;
+        longitudeSpan -= 2 * dLongitude;
+    }
+
+    /**
+     * Returns true if (latitude, longitude) is inside the region. The edges
+     * are considered inside. Regions crossing the antimeridian are correctly
+     * handled.
+     * 
+     * @param lat The latitude of the point being tested for containment
+     * @param lon The longitude of the point being tested for containment
+     * @return true if (latitude, longitude) is contained by the region
+     */
+    public boolean contains(int lat, int lon) {
+        if (isEmpty() || lat < getMinLatitude() || lat > getMaxLatitude()) {
+            return false;
+        }
+        if (longitudeSpan >= FULL_LONGITUDE_SPAN) {
+            return true;
+        }
+        // Work with longs to prevent overflows and let the point "wrap" so
+        // that it is as close as possible to the region's center.
+        long delta = (long) lon - longitude;
+        if (delta > FULL_LONGITUDE_SPAN / 2) {
+            delta -= FULL_LONGITUDE_SPAN;
+        } else if (delta < -FULL_LONGITUDE_SPAN / 2) {
+            delta += FULL_LONGITUDE_SPAN;
+        }
+        return delta >= -(longitudeSpan / 2) && delta <= longitudeSpan - longitudeSpan / 2;
+    }
+
+    /**
+     * Returns true if the given region is entirely inside this region. Empty
+     * regions are never contained.
+     * 
+     * @param region The region being tested for containment
+     * @return true if the given region is contained by this region
+     */
+    public boolean contains(CoordinateRegion region) {
+        if (region.isEmpty() || region.longitudeSpan > longitudeSpan) {
+            return false;
+        }
+        //@formatter:off
+        return contains(region.getMinLatitude(), region.getMinLongitude())
+                && contains(region.getMaxLatitude(), region.getMaxLongitude());
+        //@formatter:on
+    }
+
+    /**
+     * Returns true if this region intersects the specified region. In no
+     * event is this region modified. Empty regions never intersect.
+     * 
+     * @param region The region being tested for intersection
+     * @return true if the specified region and this region intersect
+     */
+    public boolean intersects(CoordinateRegion region) {
+        if (isEmpty() || region.isEmpty()) {
+            return false;
+        }
+        if (getMinLatitude() > region.getMaxLatitude() || region.getMinLatitude() > getMaxLatitude()) {
+            return false;
+        }
+        long delta = Math.abs((long) region.longitude - longitude) % FULL_LONGITUDE_SPAN;
+        if (delta > FULL_LONGITUDE_SPAN / 2) {
+            delta = FULL_LONGITUDE_SPAN - delta;
+        }
+        return 2 * delta <= (long) longitudeSpan + region.longitudeSpan;
+    }
+
 }
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris;
+
+/**
+ * A compact histogram of positive long values. Values are counted in buckets
+ * whose size grows exponentially: bucket 0 counts values lower than or equal
+ * to 0 and bucket i (i > 0) counts values in [2^(i-1), 2^i - 1]. Recording a
+ * value never allocates.
+ * <p>
+ * A {@link Histogram} can safely be read from a thread while values are
+ * recorded from another one.
+ * </p>
+ * 
+ * @author Cyril Mottier
+ */
+public class Histogram {
+
+    /**
+     * The number of buckets of a {@link Histogram}.
+     */
+    public static final int BUCKET_COUNT = 64;
+
+    private final long[] mBuckets = new long[BUCKET_COUNT];
+    private long mCount;
+    private long mSum;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = Long.MIN_VALUE;
+
+    /**
+     * Record a value.
+     * 
+     * @param value The value to record
+     */
+    public synchronized void record(long value) {
+        mBuckets[getBucket(value)]++;
+        mCount++;
+        mSum += value;
+        if (value < mMin) {
+            mMin = value;
+        }
+        if (value > mMax) {
+            mMax = value;
+        }
+    }
+
+    /**
+     * Remove all recorded values.
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets[i] = 0;
+        }
+        mCount = 0;
+        mSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = Long.MIN_VALUE;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getSum() {
+        return mSum;
+    }
+
+    /**
+     * @return The smallest recorded value or 0 if no value has been recorded
+     */
+    public synchronized long getMin() {
+        return mCount > 0 ? mMin : 0;
+    }
+
+    /**
+     * @return The largest recorded value or 0 if no value has been recorded
+     */
+    public synchronized long getMax() {
+        return mCount > 0 ? mMax : 0;
+    }
+
+    /**
+     * @return The mean of the recorded values or 0 if no value has been
+     *         recorded
+     */
+    public synchronized double getMean() {
+        return mCount > 0 ? (double) mSum / mCount : 0;
+    }
+
+    /**
+     * Return an upper bound of the given percentile. The returned value is
+     * the upper bound of the bucket containing the percentile.
+     * 
+     * @param percentile The percentile in the [0, 100] range
+     * @return An upper bound of the percentile or 0 if no value has been
+     *         recorded
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(Math.max(0, Math.min(100, percentile)) / 100 * mCount);
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += mBuckets[i];
+            if (count >= rank && count > 0) {
+                return Math.min(mMax, getBucketUpperBound(i));
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * Return the number of values recorded in the given bucket.
+     * 
+     * @param bucket The bucket in the [0, {@link #BUCKET_COUNT}) range
+     * @return The number of values in the bucket
+     */
+    public synchronized long getBucketCount(int bucket) {
+        return mBuckets[bucket];
+    }
+
+    /**
+     * Return the largest value counted in the given bucket.
+     * 
+     * @param bucket The bucket in the [0, {@link #BUCKET_COUNT}) range
+     * @return The upper bound (inclusive) of the bucket
+     */
+    public static long getBucketUpperBound(int bucket) {
+        if (bucket == 0) {
+            return 0;
+        }
+        if (bucket == BUCKET_COUNT - 1) {
+            return Long.MAX_VALUE;
+        }
+        return (1L << bucket) - 1;
+    }
+
+    private static int getBucket(long value) {
+        if (value <= 0) {
+            return 0;
+        }
+        return 64 - Long.numberOfLeadingZeros(value);
+    }
+
+}
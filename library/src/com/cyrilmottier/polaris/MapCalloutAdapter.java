@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris;
+
+/**
+ * A {@link MapCalloutAdapter} binds annotations to the {@link MapCalloutView}s
+ * of a {@link PolarisMapView}. It works similarly to the adapter of a list:
+ * callouts and their accessory and custom views are recycled so that they are
+ * not inflated again each time an annotation is selected.
+ * <p>
+ * Annotations are divided into view types. When an annotation is bound, the
+ * {@link MapCalloutView} already holds the left/right accessory and custom
+ * views last set on a callout for an annotation of the same view type (or
+ * none if no such annotation has been bound yet). Implementations must reuse
+ * these views, only updating their content, and create views only when they
+ * are missing.
+ * </p>
+ * 
+ * @see PolarisMapView#setMapCalloutAdapter(MapCalloutAdapter)
+ * @author Cyril Mottier
+ */
+public abstract class MapCalloutAdapter {
+
+    /**
+     * Return the number of view types returned by
+     * {@link #getViewType(int, Annotation)}. The default implementation
+     * returns 1.
+     * 
+     * @return The number of view types
+     */
+    public int getViewTypeCount() {
+        return 1;
+    }
+
+    /**
+     * Return the view type of the given annotation. Annotations sharing the
+     * same view type share the same accessory and custom views.
+     * 
+     * @param position The position of the annotation
+     * @param annotation The annotation
+     * @return The view type of the annotation in the range [0,
+     *         {@link #getViewTypeCount()})
+     */
+    public int getViewType(int position, Annotation annotation) {
+        return 0;
+    }
+
+    /**
+     * Bind an annotation to a {@link MapCalloutView}. The title and subtitle
+     * of the annotation have already been set. Accessory and custom views
+     * previously set for the same view type are returned by
+     * {@link MapCalloutView#getLeftAccessoryView()},
+     * {@link MapCalloutView#getRightAccessoryView()} and
+     * {@link MapCalloutView#getCustomView()}.
+     * 
+     * @param calloutView The recycled {@link MapCalloutView}
+     * @param position The position of the annotation
+     * @param annotation The annotation to bind
+     */
+    public abstract void bindMapCallout(MapCalloutView calloutView, int position, Annotation annotation);
+
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris;
+
+import java.util.ArrayList;
+
+import android.content.Context;
+import android.view.View;
+import android.view.ViewGroup;
+
+import com.cyrilmottier.polaris.internal.AnnotationsOverlay;
+import com.cyrilmottier.polaris.internal.MercatorProjector;
+import com.google.android.maps.MapView;
+
+/**
+ * A container laying out several {@link MapCalloutView}s at once. The
+ * container covers the entire {@link MapView} and positions its callouts
+ * itself: the {@link MapView} only lays out the container.
+ * <p>
+ * All callouts are positioned in a single pass (see
+ * {@link #layoutCallouts(MercatorProjector, AnnotationsOverlay)}) each time
+ * the {@link MapView} is laid out i.e. each time the region changes or the
+ * annotations move. Callouts always point at the current location of their
+ * annotation and are placed in the order they have been added. A callout
+ * overlapping an already placed callout is first moved horizontally (its
+ * arrow still pointing at its annotation thanks to the variable anchor of the
+ * {@link MapCalloutDrawable}) and hidden when no free space can be found. The collision pass is quadratic in the number of
+ * callouts which is perfectly fine for a few dozens of callouts.
+ * </p>
+ * 
+ * @author Cyril Mottier
+ */
+class MapCalloutLayout extends ViewGroup {
+
+    private final ArrayList<MapCalloutView> mCallouts = new ArrayList<MapCalloutView>();
+    private final ArrayList<MapCalloutView> mScrapCallouts = new ArrayList<MapCalloutView>();
+    private int[] mPositions = new int[0];
+
+    // Bounds of the callouts already placed during the current pass
+    private int[] mPlacedLefts = new int[0];
+    private int[] mPlacedTops = new int[0];
+    private int[] mPlacedRights = new int[0];
+    private int[] mPlacedBottoms = new int[0];
+
+    private int mLastWidth = -1;
+    private int mLastHeight = -1;
+
+    public MapCalloutLayout(Context context) {
+        super(context);
+    }
+
+    /**
+     * Return a previously removed {@link MapCalloutView}.
+     * 
+     * @return A {@link MapCalloutView} or null if no callout can be reused
+     */
+    public MapCalloutView obtainCallout() {
+        final int size = mScrapCallouts.size();
+        return size > 0 ? mScrapCallouts.remove(size - 1) : null;
+    }
+
+    /**
+     * Add a callout to this layout. Callouts added first are given precedence
+     * when resolving overlaps.
+     * 
+     * @param callout The callout to add
+     * @param position The position of the annotation the callout points at
+     */
+    public void addCallout(MapCalloutView callout, int position) {
+        final int count = mCallouts.size();
+        if (count == mPositions.length) {
+            final int capacity = Math.max(count * 2, 8);
+            mPositions = grow(mPositions, capacity);
+            mPlacedLefts = new int[capacity];
+            mPlacedTops = new int[capacity];
+            mPlacedRights = new int[capacity];
+            mPlacedBottoms = new int[capacity];
+        }
+        mPositions[count] = position;
+        mCallouts.add(callout);
+
+        callout.setManaged(true);
+        // The callout is only shown once it has been placed
+        callout.setVisibility(View.INVISIBLE);
+        addView(callout, new LayoutParams(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT));
+    }
+
+    /**
+     * Remove all callouts. Removed callouts can be reused with
+     * {@link #obtainCallout()}.
+     */
+    public void removeAllCallouts() {
+        if (mCallouts.isEmpty()) {
+            return;
+        }
+        mScrapCallouts.addAll(mCallouts);
+        mCallouts.clear();
+        removeAllViews();
+    }
+
+    /**
+     * Update the positions the callouts point at once the annotations have
+     * been renumbered. Callouts pointing at a removed annotation are removed
+     * and can be reused with {@link #obtainCallout()}.
+     * 
+     * @param mapping The new position of each annotation indexed by its
+     *            previous position or {@link PolarisMapView#INVALID_POSITION}
+     *            if the annotation has been removed
+     */
+    public void renumber(int[] mapping) {
+        final ArrayList<MapCalloutView> callouts = mCallouts;
+        final int count = callouts.size();
+        int newCount = 0;
+        for (int i = 0; i < count; i++) {
+            final MapCalloutView callout = callouts.get(i);
+            final int position = mapping[mPositions[i]];
+            if (position == PolarisMapView.INVALID_POSITION) {
+                mScrapCallouts.add(callout);
+                removeView(callout);
+            } else {
+                mPositions[newCount] = position;
+                callouts.set(newCount++, callout);
+            }
+        }
+        for (int i = count - 1; i >= newCount; i--) {
+            callouts.remove(i);
+        }
+    }
+
+    /**
+     * @return true if this layout contains at least one callout, false
+     *         otherwise.
+     */
+    public boolean hasCallouts() {
+        return !mCallouts.isEmpty();
+    }
+
+    /**
+     * Keep a callout that has not been added to this layout for later reuse.
+     * 
+     * @param callout The callout to reuse
+     */
+    public void scrapCallout(MapCalloutView callout) {
+        mScrapCallouts.add(callout);
+    }
+
+    public void setMetrics(PolarisMetrics metrics) {
+        setMetrics(mCallouts, metrics);
+        setMetrics(mScrapCallouts, metrics);
+    }
+
+    /**
+     * Make sure no view of the current or removed callouts is reused by the
+     * {@link MapCalloutRecycler}.
+     */
+    public void resetViewTypes() {
+        resetViewTypes(mCallouts);
+        resetViewTypes(mScrapCallouts);
+    }
+
+    /**
+     * Return the position of the annotation the given callout points at.
+     * 
+     * @param callout A callout of this layout
+     * @return The position of the annotation or
+     *         {@link PolarisMapView#INVALID_POSITION} if the callout doesn't
+     *         belong to this layout
+     */
+    public int getAnnotationPosition(View callout) {
+        final int index = mCallouts.indexOf(callout);
+        return index != -1 ? mPositions[index] : PolarisMapView.INVALID_POSITION;
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        final int width = MeasureSpec.getSize(widthMeasureSpec);
+        final int height = MeasureSpec.getSize(heightMeasureSpec);
+        setMeasuredDimension(width, height);
+
+        final boolean sizeChanged = width != mLastWidth || height != mLastHeight;
+        mLastWidth = width;
+        mLastHeight = height;
+
+        final int childWidthMeasureSpec = MeasureSpec.makeMeasureSpec(width, MeasureSpec.AT_MOST);
+        final int childHeightMeasureSpec = MeasureSpec.makeMeasureSpec(height, MeasureSpec.AT_MOST);
+
+        // Only callouts whose content changed are measured again
+        final ArrayList<MapCalloutView> callouts = mCallouts;
+        final int count = callouts.size();
+        for (int i = 0; i < count; i++) {
+            final MapCalloutView callout = callouts.get(i);
+            if (sizeChanged || callout.isLayoutRequested()) {
+                callout.measure(childWidthMeasureSpec, childHeightMeasureSpec);
+            }
+        }
+    }
+
+    @Override
+    protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        // Callouts are positioned in layoutCallouts(MercatorProjector,
+        // AnnotationsOverlay) once the MapView has been entirely laid out
+    }
+
+    /**
+     * Position all callouts according to the current location of their
+     * annotation. This layout is expected to be laid out at the top left
+     * corner of the {@link MapView}.
+     * 
+     * @param projector A projector matching the current rendering of the
+     *            {@link MapView}
+     * @param annotations The overlay containing the annotations the callouts
+     *            point at
+     */
+    public void layoutCallouts(MercatorProjector projector, AnnotationsOverlay annotations) {
+        final ArrayList<MapCalloutView> callouts = mCallouts;
+        final int count = callouts.size();
+        if (count == 0) {
+            return;
+        }
+
+        final int width = getWidth();
+        final int height = getHeight();
+        int placedCount = 0;
+
+        for (int i = 0; i < count; i++) {
+            final MapCalloutView callout = callouts.get(i);
+            final int position = mPositions[i];
+            final int x = projector.toPixelX(annotations.getLongitudeE6(position));
+            final int y = projector.toPixelY(annotations.getLatitudeE6(position));
+
+            final int calloutWidth = callout.getMeasuredWidth();
+            final int bottom = y - callout.getMarkerHeight();
+            final int top = y - callout.getMeasuredHeight();
+            final int preferredLeft = x - calloutWidth / 2;
+
+            int minLeft = preferredLeft;
+            int maxLeft = preferredLeft;
+            if (callout.getAnchorMode() == MapCalloutView.ANCHOR_MODE_VARIABLE) {
+                minLeft = Math.min(preferredLeft, x - calloutWidth + callout.getAnchorRightMargin());
+                maxLeft = Math.max(preferredLeft, x - callout.getAnchorLeftMargin());
+            }
+
+            int left = Integer.MIN_VALUE;
+            if (maxLeft + calloutWidth > 0 && minLeft < width && bottom > 0 && top < height) {
+                left = findFreeLeft(preferredLeft, minLeft, maxLeft, calloutWidth, top, bottom, placedCount);
+            }
+
+            if (left == Integer.MIN_VALUE) {
+                if (callout.getVisibility() == View.VISIBLE) {
+                    // INVISIBLE (rather than GONE) doesn't request a new layout
+                    callout.setVisibility(View.INVISIBLE);
+                }
+                continue;
+            }
+
+            mPlacedLefts[placedCount] = left;
+            mPlacedTops[placedCount] = top;
+            mPlacedRights[placedCount] = left + calloutWidth;
+            mPlacedBottoms[placedCount] = bottom;
+            placedCount++;
+
+            if (callout.getAnchorMode() == MapCalloutView.ANCHOR_MODE_VARIABLE) {
+                callout.setManagedAnchorOffset(x - left);
+            }
+            callout.layout(left, top, left + calloutWidth, y);
+            if (callout.getVisibility() != View.VISIBLE) {
+                callout.setVisibility(View.VISIBLE);
+            }
+        }
+    }
+
+    /**
+     * Find the left edge, between minLeft and maxLeft, the closest to
+     * preferredLeft at which a callout doesn't overlap any placed callout.
+     * Candidates are the preferred position and the positions touching the
+     * edges of the placed callouts.
+     * 
+     * @return The left edge or Integer.MIN_VALUE if no such position exists
+     */
+    private int findFreeLeft(int preferredLeft, int minLeft, int maxLeft, int calloutWidth, int top, int bottom, int placedCount) {
+        if (isFree(preferredLeft, calloutWidth, top, bottom, placedCount)) {
+            return preferredLeft;
+        }
+
+        int result = Integer.MIN_VALUE;
+        int resultDistance = Integer.MAX_VALUE;
+        for (int i = 0; i < placedCount; i++) {
+            if (mPlacedTops[i] >= bottom || mPlacedBottoms[i] <= top) {
+                continue;
+            }
+            for (int side = 0; side < 2; side++) {
+                final int candidate = side == 0 ? mPlacedRights[i] : mPlacedLefts[i] - calloutWidth;
+                final int distance = Math.abs(candidate - preferredLeft);
+                //@formatter:off
+                if (candidate >= minLeft
+                        && candidate <= maxLeft
+                        && distance < resultDistance
+                        && isFree(candidate, calloutWidth, top, bottom, placedCount)) {
+                    result = candidate;
+                    resultDistance = distance;
+                }
+                //@formatter:on
+            }
+        }
+        return result;
+    }
+
+    private boolean isFree(int left, int calloutWidth, int top, int bottom, int placedCount) {
+        final int right = left + calloutWidth;
+        for (int i = 0; i < placedCount; i++) {
+            //@formatter:off
+            if (mPlacedLefts[i] < right
+                    && mPlacedRights[i] > left
+                    && mPlacedTops[i] < bottom
+                    && mPlacedBottoms[i] > top) {
+                return false;
+            }
+            //@formatter:on
+        }
+        return true;
+    }
+
+    private static void setMetrics(ArrayList<MapCalloutView> callouts, PolarisMetrics metrics) {
+        final int count = callouts.size();
+        for (int i = 0; i < count; i++) {
+            callouts.get(i).setMetrics(metrics);
+        }
+    }
+
+    private static void resetViewTypes(ArrayList<MapCalloutView> callouts) {
+        final int count = callouts.size();
+        for (int i = 0; i < count; i++) {
+            callouts.get(i).setViewType(MapCalloutRecycler.INVALID_VIEW_TYPE);
+        }
+    }
+
+    private static int[] grow(int[] array, int capacity) {
+        final int[] result = new int[capacity];
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris;
+
+import android.view.View;
+
+/**
+ * Keeps the accessory and custom views of {@link MapCalloutView}s per view
+ * type (see {@link MapCalloutAdapter}). A {@link MapCalloutView} keeps its
+ * views as long as it is bound to annotations of the same view type. The
+ * views are moved to the scrap of their view type only when the view type of
+ * the {@link MapCalloutView} changes.
+ * 
+ * @author Cyril Mottier
+ */
+class MapCalloutRecycler {
+
+    static final int INVALID_VIEW_TYPE = -1;
+
+    private View[] mScrapLeftAccessories = new View[0];
+    private View[] mScrapRightAccessories = new View[0];
+    private View[] mScrapCustomViews = new View[0];
+
+    /**
+     * Discard all scrap views and make room for the given number of view
+     * types.
+     * 
+     * @param viewTypeCount The number of view types
+     */
+    public void setViewTypeCount(int viewTypeCount) {
+        if (viewTypeCount < 1) {
+            throw new IllegalArgumentException("Can't have a viewTypeCount < 1");
+        }
+        mScrapLeftAccessories = new View[viewTypeCount];
+        mScrapRightAccessories = new View[viewTypeCount];
+        mScrapCustomViews = new View[viewTypeCount];
+    }
+
+    /**
+     * Prepare a {@link MapCalloutView} to be bound to an annotation of the
+     * given view type.
+     * 
+     * @param calloutView The {@link MapCalloutView} to prepare
+     * @param viewType The view type of the annotation
+     */
+    public void recycle(MapCalloutView calloutView, int viewType) {
+        if (viewType < 0 || viewType >= mScrapCustomViews.length) {
+            throw new IllegalStateException("The view type " + viewType + " is not in the range [0, " + mScrapCustomViews.length + ")");
+        }
+
+        final int oldViewType = calloutView.getViewType();
+        if (oldViewType == viewType) {
+            // Nothing to do: the views are reused as is
+            return;
+        }
+
+        // Move the current views to the scrap of their view type
+        final View leftAccessory = calloutView.getLeftAccessoryView();
+        final View rightAccessory = calloutView.getRightAccessoryView();
+        final View customView = calloutView.getCustomView();
+        calloutView.setLeftAccessoryView(null);
+        calloutView.setRightAccessoryView(null);
+        calloutView.setCustomView(null);
+        if (oldViewType != INVALID_VIEW_TYPE && oldViewType < mScrapCustomViews.length) {
+            if (mScrapLeftAccessories[oldViewType] == null) {
+                mScrapLeftAccessories[oldViewType] = leftAccessory;
+            }
+            if (mScrapRightAccessories[oldViewType] == null) {
+                mScrapRightAccessories[oldViewType] = rightAccessory;
+            }
+            if (mScrapCustomViews[oldViewType] == null) {
+                mScrapCustomViews[oldViewType] = customView;
+            }
+        }
+
+        // Give the views of the new view type to the callout
+        calloutView.setLeftAccessoryView(mScrapLeftAccessories[viewType]);
+        calloutView.setRightAccessoryView(mScrapRightAccessories[viewType]);
+        calloutView.setCustomView(mScrapCustomViews[viewType]);
+        mScrapLeftAccessories[viewType] = null;
+        mScrapRightAccessories[viewType] = null;
+        mScrapCustomViews[viewType] = null;
+
+        calloutView.setViewType(viewType);
+    }
+
+}
@@ -15,10 +15,18 @@
  */
 package com.cyrilmottier.polaris;
 
+import android.animation.Animator;
+import android.animation.AnimatorListenerAdapter;
+import android.animation.AnimatorSet;
+import android.animation.ObjectAnimator;
+import android.animation.PropertyValuesHolder;
+import android.animation.TimeInterpolator;
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
+import android.os.Build;
 import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.view.GestureDetector;
@@ -34,6 +42,8 @@ import android.widget.FrameLayout;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
+import com.cyrilmottier.polaris.internal.Config;
+import com.cyrilmottier.polaris.internal.Geometry;
 import com.google.android.maps.GeoPoint;
 import com.google.android.maps.MapView;
 import com.google.android.maps.OverlayItem;
@@ -58,6 +68,18 @@ public class MapCalloutView extends ViewGroup {
     public static final int ANCHOR_MODE_FIXED = 1;
     public static final int ANCHOR_MODE_VARIABLE = 2;
 
+    /**
+     * Duration of the show/dismiss property animations. It matches the
+     * duration of the polaris__grow_fade_in_from_bottom and
+     * polaris__shrink_fade_out_to_bottom view animations.
+     */
+    private static final int ANIMATION_DURATION = 220;
+
+    /**
+     * Scale of the callout when hidden.
+     */
+    private static final float ANIMATION_HIDDEN_SCALE = 0.9f;
+
     private final Point mTempPoint = new Point();
     private final Rect mTempRect1 = new Rect();
     private final Rect mTempRect2 = new Rect();
@@ -89,6 +111,26 @@ public class MapCalloutView extends ViewGroup {
     private boolean mNeedRelayout;
     private MapCalloutDrawable mMapCalloutDrawable;
 
+    private PolarisMetrics mMetrics;
+
+    /**
+     * Created lazily on the first animated show/dismiss.
+     */
+    private CalloutAnimator mCalloutAnimator;
+
+    /**
+     * The view type of the annotation this callout has last been bound to by a
+     * {@link MapCalloutAdapter}.
+     */
+    private int mViewType = MapCalloutRecycler.INVALID_VIEW_TYPE;
+
+    /**
+     * Whether this callout is positioned by a {@link MapCalloutLayout} rather
+     * than by the {@link MapView} it is attached to.
+     */
+    private boolean mIsManaged;
+    private int mManagedAnchorOffset = -1;
+
     public MapCalloutView(Context context) {
         super(context);
         init(context);
@@ -169,7 +211,7 @@ public class MapCalloutView extends ViewGroup {
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
 
         final int extraPadding = mInset;
-        final int widthCoeff = mAnchorMode == ANCHOR_MODE_VARIABLE ? 2 : 1;
+        final int widthCoeff = mAnchorMode == ANCHOR_MODE_VARIABLE && !mIsManaged ? 2 : 1;
         final int widthSize = MeasureSpec.getSize(widthMeasureSpec) - 2 * extraPadding;
         final int heightSize = MeasureSpec.getSize(heightMeasureSpec) - 2 * extraPadding;
 
@@ -179,8 +221,29 @@ public class MapCalloutView extends ViewGroup {
         setMeasuredDimension(mCallout.getMeasuredWidth() * widthCoeff, mCallout.getMeasuredHeight() + mMarkerHeight);
     }
 
+    void setMetrics(PolarisMetrics metrics) {
+        mMetrics = metrics;
+    }
+
     @Override
     protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        if (Config.METRICS_ENABLED && mMetrics != null) {
+            final long start = System.nanoTime();
+            layoutCallout(changed, l, t, r, b);
+            mMetrics.onCalloutLayout(System.nanoTime() - start);
+        } else {
+            layoutCallout(changed, l, t, r, b);
+        }
+    }
+
+    private void layoutCallout(boolean changed, int l, int t, int r, int b) {
+        if (mIsManaged) {
+            // The position of the anchor has already been computed by the
+            // MapCalloutLayout
+            mCallout.layout(0, 0, mCallout.getMeasuredWidth(), mCallout.getMeasuredHeight());
+            return;
+        }
+
         switch (mAnchorMode) {
             case ANCHOR_MODE_VARIABLE:
                 layoutVariable(changed, l, t, r, b);
@@ -213,26 +276,15 @@ public class MapCalloutView extends ViewGroup {
             getDrawingRect(selfDrawingRect);
             mapView.offsetDescendantRectToMyCoords(this, selfDrawingRect);
 
-            int anchorX = selfDrawingRect.centerX();
-
-            int calloutX = (int) ((mapViewDrawingRect.right - mapViewDrawingRect.left - mCallout.getMeasuredWidth()) / 2.0f + 0.5f);
-
-            // What's the farthest to the left and right that we could point to,
-            // given our background image constraints?
-            int minX = calloutX + drawable.getLeftMargin();
-            int maxX = calloutX + mCallout.getMeasuredWidth() - drawable.getRightMargin();
-
-            // we may need to scoot over to the left or right to point at the
-            // correct spot
-            int adjustX = 0;
-            if (anchorX < minX) {
-                adjustX = anchorX - minX;
-            }
-            if (anchorX > maxX) {
-                adjustX = anchorX - maxX;
-            }
-
-            calloutX = calloutX + adjustX;
+            final int anchorX = selfDrawingRect.centerX();
+            //@formatter:off
+            final int calloutX = Geometry.getCalloutLeft(
+                    anchorX,
+                    mapViewDrawingRect.right - mapViewDrawingRect.left,
+                    mCallout.getMeasuredWidth(),
+                    drawable.getLeftMargin(),
+                    drawable.getRightMargin());
+            //@formatter:on
 
             //@formatter:off
             selfDrawingRect.set(
@@ -271,6 +323,9 @@ public class MapCalloutView extends ViewGroup {
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         super.onSizeChanged(w, h, oldw, oldh);
         mNeedRelayout = true;
+        if (mCalloutAnimator != null) {
+            mCalloutAnimator.onSizeChanged(w, h);
+        }
     }
 
     public void show(MapView mapView, GeoPoint point, boolean animated) {
@@ -290,21 +345,87 @@ public class MapCalloutView extends ViewGroup {
 
         mNeedRelayout = true;
         if (animated) {
-            final Animation animation = AnimationUtils.loadAnimation(getContext(), R.anim.polaris__grow_fade_in_from_bottom);
-            startAnimation(animation);
+            getCalloutAnimator().show();
+        } else {
+            if (mCalloutAnimator != null) {
+                mCalloutAnimator.cancel();
+            }
+            setVisibility(View.VISIBLE);
         }
+    }
 
-        setVisibility(View.VISIBLE);
+    /**
+     * Move this {@link MapCalloutView} to a new point. Contrary to
+     * {@link #show(MapView, GeoPoint, boolean)}, the anchor position is kept
+     * and the MapView is never scrolled to entirely show the callout. This is
+     * the method to use when the annotation the callout is pointing at moves.
+     * 
+     * @param point The new point the callout is pointing at
+     */
+    public void setPoint(GeoPoint point) {
+        final ViewGroup.LayoutParams params = getLayoutParams();
+        if (params instanceof MapView.LayoutParams) {
+            final MapView.LayoutParams mapParams = (MapView.LayoutParams) params;
+            mapParams.mode = MapView.LayoutParams.MODE_MAP;
+            mapParams.point = point;
+            requestLayout();
+        }
+    }
+
+    /**
+     * Move this {@link MapCalloutView} to a new position on screen. Contrary
+     * to {@link #setPoint(GeoPoint)}, the callout doesn't follow the map
+     * until it is given a point again. This is the method to use when the
+     * callout must follow an annotation on every frame (while the annotation
+     * is animated for instance) as no {@link GeoPoint} is required.
+     * 
+     * @param x The horizontal position on screen the callout is pointing at
+     * @param y The vertical position on screen the callout is pointing at
+     */
+    public void setScreenPoint(int x, int y) {
+        final ViewGroup.LayoutParams params = getLayoutParams();
+        if (params instanceof MapView.LayoutParams) {
+            final MapView.LayoutParams mapParams = (MapView.LayoutParams) params;
+            mapParams.mode = MapView.LayoutParams.MODE_VIEW;
+            mapParams.x = x;
+            mapParams.y = y;
+            requestLayout();
+        }
     }
 
     public void dismiss(boolean animated) {
-        setVisibility(View.GONE);
         if (animated) {
-            final Animation animation = AnimationUtils.loadAnimation(getContext(), R.anim.polaris__shrink_fade_out_to_bottom);
-            startAnimation(animation);
+            getCalloutAnimator().dismiss();
+        } else {
+            if (mCalloutAnimator != null) {
+                mCalloutAnimator.cancel();
+            }
+            setVisibility(View.GONE);
         }
     }
 
+    /**
+     * Return whether this {@link MapCalloutView} is currently shown. Contrary
+     * to {@link #getVisibility()}, a {@link MapCalloutView} being dismissed
+     * with an animation is considered not shown.
+     * 
+     * @return true if this {@link MapCalloutView} is shown
+     */
+    public boolean isShowing() {
+        return getVisibility() == View.VISIBLE && (mCalloutAnimator == null || !mCalloutAnimator.isDismissing());
+    }
+
+    private CalloutAnimator getCalloutAnimator() {
+        if (mCalloutAnimator == null) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                mCalloutAnimator = new PropertyCalloutAnimator();
+            } else {
+                mCalloutAnimator = new ViewCalloutAnimator();
+            }
+        }
+        return mCalloutAnimator;
+    }
+
     /**
      * Set a new listener to listen to double tap events.
      * 
@@ -532,6 +653,52 @@ public class MapCalloutView extends ViewGroup {
         }
     }
 
+    int getViewType() {
+        return mViewType;
+    }
+
+    void setViewType(int viewType) {
+        mViewType = viewType;
+    }
+
+    boolean isManaged() {
+        return mIsManaged;
+    }
+
+    /**
+     * Set whether this {@link MapCalloutView} is positioned by a
+     * {@link MapCalloutLayout}. A managed callout is exactly as large as its
+     * bubble, never scrolls the map and lets the {@link MapCalloutLayout}
+     * decide where the arrow points at.
+     */
+    void setManaged(boolean managed) {
+        if (mIsManaged != managed) {
+            mIsManaged = managed;
+            mManagedAnchorOffset = -1;
+            mNeedRelayout = true;
+            requestLayout();
+        }
+    }
+
+    /**
+     * Set the horizontal distance between the left edge of a managed
+     * {@link MapCalloutView} and the point its arrow points at.
+     */
+    void setManagedAnchorOffset(int offset) {
+        if (mManagedAnchorOffset != offset) {
+            mManagedAnchorOffset = offset;
+            mMapCalloutDrawable.setAnchorOffset(offset);
+        }
+    }
+
+    int getAnchorLeftMargin() {
+        return mMapCalloutDrawable.getLeftMargin();
+    }
+
+    int getAnchorRightMargin() {
+        return mMapCalloutDrawable.getRightMargin();
+    }
+
     /**
      * Indicates whether this {@link MapCalloutView} has some displayable
      * content. The result of this method is used as a hint to know whether or
@@ -614,16 +781,10 @@ public class MapCalloutView extends ViewGroup {
     }
 
     private void offsetToContainRect(Rect innerRect, Rect outerRect, Point outPoint) {
-
-        final int offsetLeft = Math.min(0, innerRect.left - outerRect.left);
-        final int offsetTop = Math.min(0, innerRect.top - outerRect.top);
-        final int offsetRight = Math.max(0, innerRect.right - outerRect.right);
-        final int offsetBottom = Math.max(0, innerRect.bottom - outerRect.bottom);
-
         //@formatter:off
         outPoint.set(
-                offsetLeft != 0 ? offsetLeft : offsetRight,
-                offsetTop != 0 ? offsetTop : offsetBottom);
+                Geometry.getContainOffset(innerRect.left, innerRect.right, outerRect.left, outerRect.right),
+                Geometry.getContainOffset(innerRect.top, innerRect.bottom, outerRect.top, outerRect.bottom));
         //@formatter:on
     }
 
@@ -655,6 +816,169 @@ public class MapCalloutView extends ViewGroup {
         }
     };
 
+    private interface CalloutAnimator {
+        void show();
+
+        void dismiss();
+
+        void cancel();
+
+        boolean isDismissing();
+
+        void onSizeChanged(int w, int h);
+    }
+
+    /**
+     * Animates the callout using view animations. The animations are loaded
+     * once and reused.
+     */
+    private class ViewCalloutAnimator implements CalloutAnimator {
+
+        private Animation mShowAnimation;
+        private Animation mDismissAnimation;
+
+        @Override
+        public void show() {
+            if (mShowAnimation == null) {
+                mShowAnimation = AnimationUtils.loadAnimation(getContext(), R.anim.polaris__grow_fade_in_from_bottom);
+            }
+            startAnimation(mShowAnimation);
+            setVisibility(View.VISIBLE);
+        }
+
+        @Override
+        public void dismiss() {
+            if (mDismissAnimation == null) {
+                mDismissAnimation = AnimationUtils.loadAnimation(getContext(), R.anim.polaris__shrink_fade_out_to_bottom);
+            }
+            setVisibility(View.GONE);
+            startAnimation(mDismissAnimation);
+        }
+
+        @Override
+        public void cancel() {
+            clearAnimation();
+        }
+
+        @Override
+        public boolean isDismissing() {
+            return false;
+        }
+
+        @Override
+        public void onSizeChanged(int w, int h) {
+        }
+    }
+
+    /**
+     * Animates the callout using property animators. The callout is rendered
+     * into a hardware layer during the animation so that only the layer is
+     * composited on each frame rather than the whole callout hierarchy being
+     * redrawn. The animators are created once and reused.
+     */
+    @TargetApi(11)
+    private class PropertyCalloutAnimator extends AnimatorListenerAdapter implements CalloutAnimator {
+
+        private final Animator mShowAnimator;
+        private final Animator mDismissAnimator;
+        private Animator mRunningAnimator;
+        private boolean mIsCanceled;
+        private int mLayerType;
+
+        public PropertyCalloutAnimator() {
+            final Context context = getContext();
+            final TimeInterpolator scaleInterpolator = AnimationUtils.loadInterpolator(context, R.interpolator.polaris__decelerate_quint);
+            final TimeInterpolator alphaInterpolator = AnimationUtils.loadInterpolator(context, R.interpolator.polaris__decelerate_cubic);
+            mShowAnimator = createAnimator(ANIMATION_HIDDEN_SCALE, 1.0f, 0.0f, 1.0f, scaleInterpolator, alphaInterpolator);
+            mDismissAnimator = createAnimator(1.0f, ANIMATION_HIDDEN_SCALE, 1.0f, 0.0f, scaleInterpolator, alphaInterpolator);
+            onSizeChanged(getWidth(), getHeight());
+        }
+
+        private Animator createAnimator(float fromScale, float toScale, float fromAlpha, float toAlpha, TimeInterpolator scaleInterpolator,
+                TimeInterpolator alphaInterpolator) {
+            //@formatter:off
+            final Animator scale = ObjectAnimator.ofPropertyValuesHolder(MapCalloutView.this,
+                    PropertyValuesHolder.ofFloat("scaleX", fromScale, toScale),
+                    PropertyValuesHolder.ofFloat("scaleY", fromScale, toScale));
+            //@formatter:on
+            scale.setInterpolator(scaleInterpolator);
+
+            final Animator alpha = ObjectAnimator.ofFloat(MapCalloutView.this, "alpha", fromAlpha, toAlpha);
+            alpha.setInterpolator(alphaInterpolator);
+
+            final AnimatorSet set = new AnimatorSet();
+            set.playTogether(scale, alpha);
+            set.setDuration(ANIMATION_DURATION);
+            set.addListener(this);
+            return set;
+        }
+
+        @Override
+        public void show() {
+            start(mShowAnimator);
+            setVisibility(View.VISIBLE);
+        }
+
+        @Override
+        public void dismiss() {
+            if (getVisibility() != View.VISIBLE) {
+                cancel();
+                return;
+            }
+            start(mDismissAnimator);
+        }
+
+        private void start(Animator animator) {
+            cancel();
+            mLayerType = getLayerType();
+            setLayerType(View.LAYER_TYPE_HARDWARE, null);
+            mRunningAnimator = animator;
+            mIsCanceled = false;
+            animator.start();
+        }
+
+        @Override
+        public void cancel() {
+            if (mRunningAnimator != null) {
+                mRunningAnimator.cancel();
+            }
+        }
+
+        @Override
+        public boolean isDismissing() {
+            return mRunningAnimator == mDismissAnimator;
+        }
+
+        @Override
+        public void onSizeChanged(int w, int h) {
+            // Grow from/shrink to the anchor
+            setPivotX(w / 2.0f);
+            setPivotY(h);
+        }
+
+        @Override
+        public void onAnimationCancel(Animator animation) {
+            mIsCanceled = true;
+        }
+
+        @Override
+        public void onAnimationEnd(Animator animation) {
+            if (animation != mRunningAnimator) {
+                return;
+            }
+            mRunningAnimator = null;
+            setLayerType(mLayerType, null);
+            if (animation == mDismissAnimator && !mIsCanceled) {
+                setVisibility(View.GONE);
+            }
+            // Leave the view in its shown state so that it can be shown
+            // without animation later
+            setScaleX(1.0f);
+            setScaleY(1.0f);
+            setAlpha(1.0f);
+        }
+    }
+
     private class GestureListener extends SimpleOnGestureListener {
 
         private final Rect mRect = new Rect();
@@ -20,6 +20,7 @@ import android.graphics.drawable.Drawable;
 import android.view.Gravity;
 import android.widget.Toast;
 
+import com.cyrilmottier.polaris.internal.Geometry;
 import com.google.android.maps.GeoPoint;
 import com.google.android.maps.MapController;
 import com.google.android.maps.MapView;
@@ -33,8 +34,6 @@ import com.google.android.maps.Projection;
  */
 public final class MapViewUtils {
 
-    private static final Point TEMP_POINT = new Point();
-
     private MapViewUtils() {
     }
 
@@ -52,11 +51,11 @@ public final class MapViewUtils {
      * @param dy The vertical scroll amount in pixels.
      */
     public static void smoothScrollBy(MapView mapView, int dx, int dy) {
+        // The Point is not shared so that MapViewUtils holds no mutable
+        // state
         final Projection projection = mapView.getProjection();
-        final Point tmpPoint = TEMP_POINT;
-        projection.toPixels(mapView.getMapCenter(), tmpPoint);
-        tmpPoint.offset(dx, dy);
-        mapView.getController().animateTo(projection.fromPixels(tmpPoint.x, tmpPoint.y));
+        final Point point = projection.toPixels(mapView.getMapCenter(), null);
+        mapView.getController().animateTo(projection.fromPixels(point.x + dx, point.y + dy));
     }
 
     /**
@@ -147,33 +146,8 @@ public final class MapViewUtils {
             throw new IllegalStateException("The given Drawable has no intrinsic width or height");
         }
 
-        int left, top;
-
-        switch (gravity & Gravity.HORIZONTAL_GRAVITY_MASK) {
-            case Gravity.LEFT:
-                left = 0;
-                break;
-            case Gravity.RIGHT:
-                left = -width;
-                break;
-            case Gravity.CENTER_HORIZONTAL:
-            default:
-                left = -width / 2;
-                break;
-        }
-
-        switch (gravity & Gravity.VERTICAL_GRAVITY_MASK) {
-            case Gravity.TOP:
-                top = 0;
-                break;
-            case Gravity.CENTER_VERTICAL:
-                top = -height / 2;
-                break;
-            case Gravity.BOTTOM:
-            default:
-                top = -height;
-                break;
-        }
+        final int left = Geometry.getMarkerLeft(gravity, width);
+        final int top = Geometry.getMarkerTop(gravity, height);
 
         //@formatter:off
         marker.setBounds(
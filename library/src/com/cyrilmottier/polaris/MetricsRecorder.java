@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris;
+
+import java.util.WeakHashMap;
+
+import com.google.android.maps.Overlay;
+
+/**
+ * A {@link PolarisMetrics} aggregating all reported values into
+ * {@link Histogram}s. Histograms can be read (and exported) at any time from
+ * any thread.
+ * <p>
+ * Draw times are recorded separately for the shadow and the regular layers.
+ * Draw times of an {@link Overlay} are weakly referenced: they are discarded
+ * once the {@link Overlay} is not used anymore.
+ * </p>
+ * 
+ * @author Cyril Mottier
+ */
+public class MetricsRecorder implements PolarisMetrics {
+
+    // Overlays don't override equals(): WeakHashMap behaves like an identity map
+    private final WeakHashMap<Overlay, Histogram> mOverlayShadowDrawTimes = new WeakHashMap<Overlay, Histogram>();
+    private final WeakHashMap<Overlay, Histogram> mOverlayDrawTimes = new WeakHashMap<Overlay, Histogram>();
+    private final Histogram mOverlaysShadowDrawTimes = new Histogram();
+    private final Histogram mOverlaysDrawTimes = new Histogram();
+    private final Histogram mDrawnAnnotations = new Histogram();
+    private final Histogram mCulledAnnotations = new Histogram();
+    private final Histogram mHitTestTimes = new Histogram();
+    private final Histogram mRegionChangeLatencies = new Histogram();
+    private final Histogram mRegionChangeDurations = new Histogram();
+    private final Histogram mRegionChangeConfirmedLatencies = new Histogram();
+    private final Histogram mRegionChangeConfirmedDurations = new Histogram();
+    private final Histogram mCalloutLayoutTimes = new Histogram();
+
+    @Override
+    public void onOverlayDrawn(Overlay overlay, boolean shadow, long durationNanos) {
+        final WeakHashMap<Overlay, Histogram> drawTimes = shadow ? mOverlayShadowDrawTimes : mOverlayDrawTimes;
+        Histogram histogram;
+        synchronized (this) {
+            histogram = drawTimes.get(overlay);
+            if (histogram == null) {
+                histogram = new Histogram();
+                drawTimes.put(overlay, histogram);
+            }
+        }
+        histogram.record(durationNanos);
+    }
+
+    @Override
+    public void onOverlaysDrawn(boolean shadow, long durationNanos) {
+        (shadow ? mOverlaysShadowDrawTimes : mOverlaysDrawTimes).record(durationNanos);
+    }
+
+    @Override
+    public void onAnnotationsDrawn(int drawnCount, int culledCount) {
+        mDrawnAnnotations.record(drawnCount);
+        mCulledAnnotations.record(culledCount);
+    }
+
+    @Override
+    public void onHitTest(long durationNanos, int hitCount) {
+        mHitTestTimes.record(durationNanos);
+    }
+
+    @Override
+    public void onRegionChangeDispatched(boolean confirmed, long latencyNanos, long durationNanos) {
+        if (confirmed) {
+            mRegionChangeConfirmedLatencies.record(latencyNanos);
+            mRegionChangeConfirmedDurations.record(durationNanos);
+        } else {
+            mRegionChangeLatencies.record(latencyNanos);
+            mRegionChangeDurations.record(durationNanos);
+        }
+    }
+
+    @Override
+    public void onCalloutLayout(long durationNanos) {
+        mCalloutLayoutTimes.record(durationNanos);
+    }
+
+    /**
+     * Return the draw times of the given {@link Overlay} for a given layer.
+     * 
+     * @param overlay The {@link Overlay}
+     * @param shadow true to get the draw times of the shadow layer, false to
+     *            get the draw times of the regular layer
+     * @return The draw times of the {@link Overlay} or null if it has never
+     *         been drawn
+     */
+    public Histogram getOverlayDrawTimes(Overlay overlay, boolean shadow) {
+        synchronized (this) {
+            return (shadow ? mOverlayShadowDrawTimes : mOverlayDrawTimes).get(overlay);
+        }
+    }
+
+    /**
+     * @param shadow true to get the draw times of the shadow layer, false to
+     *            get the draw times of the regular layer
+     * @return The time spent drawing all overlays of the given layer
+     */
+    public Histogram getOverlaysDrawTimes(boolean shadow) {
+        return shadow ? mOverlaysShadowDrawTimes : mOverlaysDrawTimes;
+    }
+
+    /**
+     * @return The number of annotations drawn per frame
+     */
+    public Histogram getDrawnAnnotations() {
+        return mDrawnAnnotations;
+    }
+
+    /**
+     * @return The number of annotations culled per frame
+     */
+    public Histogram getCulledAnnotations() {
+        return mCulledAnnotations;
+    }
+
+    public Histogram getHitTestTimes() {
+        return mHitTestTimes;
+    }
+
+    public Histogram getRegionChangeLatencies() {
+        return mRegionChangeLatencies;
+    }
+
+    public Histogram getRegionChangeDurations() {
+        return mRegionChangeDurations;
+    }
+
+    public Histogram getRegionChangeConfirmedLatencies() {
+        return mRegionChangeConfirmedLatencies;
+    }
+
+    public Histogram getRegionChangeConfirmedDurations() {
+        return mRegionChangeConfirmedDurations;
+    }
+
+    public Histogram getCalloutLayoutTimes() {
+        return mCalloutLayoutTimes;
+    }
+
+    /**
+     * Reset all histograms.
+     */
+    public void reset() {
+        synchronized (this) {
+            mOverlayShadowDrawTimes.clear();
+            mOverlayDrawTimes.clear();
+        }
+        mOverlaysShadowDrawTimes.reset();
+        mOverlaysDrawTimes.reset();
+        mDrawnAnnotations.reset();
+        mCulledAnnotations.reset();
+        mHitTestTimes.reset();
+        mRegionChangeLatencies.reset();
+        mRegionChangeDurations.reset();
+        mRegionChangeConfirmedLatencies.reset();
+        mRegionChangeConfirmedDurations.reset();
+        mCalloutLayoutTimes.reset();
+    }
+
+}
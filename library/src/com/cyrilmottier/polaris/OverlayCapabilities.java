@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris;
+
+import android.graphics.Canvas;
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+
+import com.google.android.maps.GeoPoint;
+import com.google.android.maps.MapView;
+import com.google.android.maps.Overlay;
+
+/**
+ * An {@link Overlay} added to a {@link PolarisMapView} may implement this
+ * interface to describe the drawing passes and events it is interested in.
+ * The {@link Overlay} is then only drawn and notified when necessary. An
+ * {@link Overlay} that doesn't implement this interface is considered to have
+ * all capabilities.
+ * <p>
+ * <strong>Note</strong>: The capabilities are read when the {@link Overlay}
+ * is added to the {@link PolarisMapView}. They must not change afterwards.
+ * </p>
+ * 
+ * @author Cyril Mottier
+ */
+public interface OverlayCapabilities {
+
+    /**
+     * The {@link Overlay} draws a shadow layer:
+     * {@link Overlay#draw(Canvas, MapView, boolean)} is called with
+     * <code>shadow</code> set to true.
+     */
+    int CAPABILITY_SHADOW = 1 << 0;
+
+    /**
+     * The {@link Overlay} handles taps:
+     * {@link Overlay#onTap(GeoPoint, MapView)} is called.
+     */
+    int CAPABILITY_TAP = 1 << 1;
+
+    /**
+     * The {@link Overlay} handles touch events:
+     * {@link Overlay#onTouchEvent(MotionEvent, MapView)} is called.
+     */
+    int CAPABILITY_TOUCH = 1 << 2;
+
+    /**
+     * The {@link Overlay} handles key events:
+     * {@link Overlay#onKeyDown(int, KeyEvent, MapView)} and
+     * {@link Overlay#onKeyUp(int, KeyEvent, MapView)} are called.
+     */
+    int CAPABILITY_KEYS = 1 << 3;
+
+    /**
+     * The {@link Overlay} handles trackball events:
+     * {@link Overlay#onTrackballEvent(MotionEvent, MapView)} is called.
+     */
+    int CAPABILITY_TRACKBALL = 1 << 4;
+
+    /**
+     * The {@link Overlay} is animated:
+     * {@link Overlay#draw(Canvas, MapView, boolean, long)} may return true to
+     * request a new frame.
+     */
+    int CAPABILITY_ANIMATION = 1 << 5;
+
+    /**
+     * All capabilities. This is the behavior of an {@link Overlay} that
+     * doesn't implement {@link OverlayCapabilities}.
+     */
+    //@formatter:off
+    int CAPABILITY_ALL = CAPABILITY_SHADOW
+            | CAPABILITY_TAP
+            | CAPABILITY_TOUCH
+            | CAPABILITY_KEYS
+            | CAPABILITY_TRACKBALL
+            | CAPABILITY_ANIMATION;
+    //@formatter:on
+
+    /**
+     * Return the capabilities of the {@link Overlay}.
+     * 
+     * @return A combination of the CAPABILITY_* flags
+     */
+    int getCapabilities();
+
+}
@@ -15,12 +15,13 @@
  */
 package com.cyrilmottier.polaris;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.util.AttributeSet;
@@ -31,10 +32,16 @@ import android.view.ViewGroup;
 import android.widget.ImageButton;
 
 import com.cyrilmottier.polaris.MapCalloutView.OnDoubleTapListener;
+import com.cyrilmottier.polaris.internal.AnnotationLoader;
+import com.cyrilmottier.polaris.internal.AnnotationLoader.RogueCallback;
 import com.cyrilmottier.polaris.internal.AnnotationsOverlay;
+import com.cyrilmottier.polaris.internal.IntArray;
+import com.cyrilmottier.polaris.internal.MapViewProjector;
 import com.cyrilmottier.polaris.internal.OverlayContainer;
+import com.cyrilmottier.polaris.internal.RegionChangeDispatcher;
 import com.cyrilmottier.polaris.internal.AnnotationsOverlay.MystiqueCallback;
 import com.cyrilmottier.polaris.internal.OverlayContainer.MagnetoCallback;
+import com.cyrilmottier.polaris.internal.RegionChangeDispatcher.StormCallback;
 import com.google.android.maps.GeoPoint;
 import com.google.android.maps.ItemizedOverlay;
 import com.google.android.maps.MapActivity;
@@ -182,6 +189,48 @@ public class PolarisMapView extends MapView {
         }
     }
 
+    /**
+     * Equivalent to {@link OnRegionChangedListener} but giving both the
+     * previously notified and the current {@link CoordinateRegion}. Changes
+     * are coalesced: when the region changes several times during a frame, a
+     * single change is notified.
+     * <p>
+     * <strong>Note</strong>: The given {@link CoordinateRegion}s are reused by
+     * the {@link PolarisMapView}. Do not keep a reference on them, copy them
+     * instead.
+     * </p>
+     * 
+     * @author Cyril Mottier
+     * @see PolarisMapView#setRegionChangeThrottle(long)
+     * @see PolarisMapView#setRegionChangeConfirmedDelay(long)
+     * @see PolarisMapView#setRegionChangeMinimumDelta(float)
+     */
+    public interface OnCoordinateRegionChangedListener {
+        /**
+         * Tells client that the region displayed by the {@link PolarisMapView}
+         * just changed.
+         * 
+         * @param mapView The {@link PolarisMapView} whose visible region
+         *            changed
+         * @param oldRegion The region at the time of the previous notification
+         *            (empty for the first notification)
+         * @param newRegion The current region
+         */
+        void onRegionChanged(PolarisMapView mapView, CoordinateRegion oldRegion, CoordinateRegion newRegion);
+
+        /**
+         * Tells client that a region change has been confirmed (i.e. once
+         * animations and gestures are over).
+         * 
+         * @param mapView The {@link PolarisMapView} whose visible region
+         *            changed
+         * @param oldRegion The region at the time of the previous confirmed
+         *            change (empty for the first notification)
+         * @param newRegion The current region
+         */
+        void onRegionChangeConfirmed(PolarisMapView mapView, CoordinateRegion oldRegion, CoordinateRegion newRegion);
+    }
+
     /**
      * Clients may use this interface to listen to annotation selection changes.
      * 
@@ -264,33 +313,45 @@ public class PolarisMapView extends MapView {
         void onLongClick(PolarisMapView mapView, GeoPoint geoPoint);
     }
 
-    /**
-     * Amount of time to display about 10 frames at 60Hz
-     */
-    private static final long REGION_CHANGE_CONFIRMED_DELAY = 1000L / 60L * 10L;
-
     private static final int INDEX_FIRST = 0;
     private static final int INDEX_SECOND = 1;
 
     private final CoordinateRegion mTempRegion = new CoordinateRegion();
-    private final CoordinateRegion mPreviousRegion = new CoordinateRegion();
-    private final CoordinateRegion mPreviousRegionConfirmed = new CoordinateRegion();
+    private final Rect mDirtyRect = new Rect();
+    private final Rect mTempRect = new Rect();
+    private final IntArray mTempPositions = new IntArray();
 
     private OnAnnotationSelectionChangedListener mOnAnnotationSelectionChangedListener;
     private OnRegionChangedListener mOnRegionChangedListener;
+    private OnCoordinateRegionChangedListener mOnCoordinateRegionChangedListener;
     private OnMapViewLongClickListener mOnMapViewLongClickListener;
 
     private OverlayContainer mOverlayContainer;
     private MyLocationOverlay mMyLocationOverlay;
     private AnnotationsOverlay mAnnotationsOverlay;
+    private PolygonOverlay mPolygonOverlay;
+    private AnnotationLoader mAnnotationLoader;
+    private float mAnnotationSourcePrefetchMargin = AnnotationLoader.DEFAULT_PREFETCH_MARGIN;
+    private RegionChangeDispatcher mRegionChangeDispatcher;
 
-    private boolean mIsInGesture;
+    private boolean mIsAnnotationsClusteringEnabled;
+    private boolean mIsAnnotationsTileCacheEnabled;
+    private boolean mIsAnnotationsLabelsEnabled;
+    private boolean mIsAnnotationsLevelOfDetailEnabled;
+    private boolean mIsAnnotationsHeatmapEnabled;
+    private boolean mIsAnnotationsFramePreparationEnabled;
+
+    private PolarisMetrics mMetrics;
 
     private boolean mIsUserTrackingButtonEnabled;
     private ImageButton mUserTrackingButton;
 
     private MapCalloutView mMapCallouts[] = new MapCalloutView[2];
     private int mMapCalloutIndex;
+    private MapCalloutAdapter mMapCalloutAdapter;
+    private final MapCalloutRecycler mMapCalloutRecycler = new MapCalloutRecycler();
+    private MapCalloutLayout mMapCalloutLayout;
+    private final MapViewProjector mMapCalloutProjector = new MapViewProjector();
 
     /**
      * Create a new {@link PolarisMapView}.
@@ -331,16 +392,19 @@ public class PolarisMapView extends MapView {
 
         mOverlayContainer = new OverlayContainer(getContext(), mMagnetoCallback);
         getOverlays().add(mOverlayContainer);
+
+        mRegionChangeDispatcher = new RegionChangeDispatcher(this, mStormCallback);
     }
 
     @Override
     protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
         super.onLayout(changed, left, top, right, bottom);
 
-        if (mOnRegionChangedListener != null && testRegionChange()) {
-            mOnRegionChangedListener.onRegionChanged(this);
-            scheduleRegionChangeConfirmed();
+        if (mMapCalloutLayout != null && mMapCalloutLayout.hasCallouts() && mMapCalloutProjector.update(this)) {
+            mMapCalloutLayout.layoutCallouts(mMapCalloutProjector, mAnnotationsOverlay);
         }
+
+        mRegionChangeDispatcher.sample();
     }
 
     @Override
@@ -363,19 +427,43 @@ public class PolarisMapView extends MapView {
     public boolean onTouchEvent(MotionEvent ev) {
         switch (ev.getAction()) {
             case MotionEvent.ACTION_DOWN:
-                mIsInGesture = true;
-                removeCallbacks(mRegionChangeConfirmedRunnable);
+                mRegionChangeDispatcher.onGestureStarted();
                 break;
 
             case MotionEvent.ACTION_CANCEL:
             case MotionEvent.ACTION_UP:
-                mIsInGesture = false;
-                scheduleRegionChangeConfirmed();
+                mRegionChangeDispatcher.onGestureEnded();
         }
 
         return super.onTouchEvent(ev);
     }
 
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (mAnnotationsOverlay != null) {
+            mAnnotationsOverlay.setHeatmapEnabled(mIsAnnotationsHeatmapEnabled);
+            mAnnotationsOverlay.setFramePreparationEnabled(mIsAnnotationsFramePreparationEnabled);
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        // Pending frame callbacks are not bound to the View and must be
+        // removed manually
+        mRegionChangeDispatcher.cancel();
+        if (mAnnotationLoader != null) {
+            mAnnotationLoader.quit();
+        }
+        if (mAnnotationsOverlay != null) {
+            // Stop the heatmap and frame preparation threads. They are
+            // started again once attached.
+            mAnnotationsOverlay.setHeatmapEnabled(false);
+            mAnnotationsOverlay.setFramePreparationEnabled(false);
+        }
+    }
+
     @Override
     public void addView(View child, int index, ViewGroup.LayoutParams params) {
         super.addView(child, index, params);
@@ -423,6 +511,11 @@ public class PolarisMapView extends MapView {
      * Add a new {@link Overlay} to the {@link Overlay}'s list. The
      * {@link Overlay} will be added at the end of the list. Hence, it will be
      * drawn on top of all other {@link Overlay}s.
+     * <p>
+     * The {@link Overlay} may implement {@link OverlayCapabilities} and/or
+     * {@link BoundedOverlay} in order to be drawn and notified only when
+     * necessary.
+     * </p>
      * 
      * @param overlay The {@link Overlay} to add
      */
@@ -478,6 +571,30 @@ public class PolarisMapView extends MapView {
         return mOverlayContainer.indexOfOverlay(overlay);
     }
 
+    /**
+     * Set the {@link PolygonOverlay} of this {@link PolarisMapView}. Contrary
+     * to overlays added with {@link #addOverlay(Overlay)}, polygons are
+     * always drawn below the user location and the annotations.
+     * 
+     * @param overlay The {@link PolygonOverlay} to draw (may be null to
+     *            remove the current one)
+     */
+    public void setPolygonOverlay(PolygonOverlay overlay) {
+        if (mPolygonOverlay != overlay) {
+            mPolygonOverlay = overlay;
+            mOverlayContainer.setPolygonOverlay(overlay);
+            invalidate();
+        }
+    }
+
+    /**
+     * @return The {@link PolygonOverlay} of this {@link PolarisMapView} or
+     *         null if none has been set
+     */
+    public PolygonOverlay getPolygonOverlay() {
+        return mPolygonOverlay;
+    }
+
     /**
      * Set a new {@link OnRegionChangedListener}.
      * 
@@ -487,6 +604,90 @@ public class PolarisMapView extends MapView {
         mOnRegionChangedListener = listener;
     }
 
+    /**
+     * Set a new {@link OnCoordinateRegionChangedListener}.
+     * 
+     * @param listener The new {@link OnCoordinateRegionChangedListener}
+     */
+    public void setOnCoordinateRegionChangedListener(OnCoordinateRegionChangedListener listener) {
+        mOnCoordinateRegionChangedListener = listener;
+    }
+
+    /**
+     * Set the minimum amount of time between two region change notifications.
+     * Region changes are always coalesced and notified at most once per frame.
+     * The default value is 0.
+     * 
+     * @param throttle The minimum amount of time in milliseconds
+     */
+    public void setRegionChangeThrottle(long throttle) {
+        mRegionChangeDispatcher.setThrottle(throttle);
+    }
+
+    public long getRegionChangeThrottle() {
+        return mRegionChangeDispatcher.getThrottle();
+    }
+
+    /**
+     * Set the amount of time the visible region must be stable (with no
+     * gesture in progress) before a region change is confirmed. The default
+     * value is about 10 frames.
+     * 
+     * @param delay The delay in milliseconds
+     */
+    public void setRegionChangeConfirmedDelay(long delay) {
+        mRegionChangeDispatcher.setConfirmedDelay(delay);
+    }
+
+    public long getRegionChangeConfirmedDelay() {
+        return mRegionChangeDispatcher.getConfirmedDelay();
+    }
+
+    /**
+     * Set the minimum change of the visible region required to notify a region
+     * change. Zoom changes are always notified. Pans are only notified when the
+     * center moved by at least the given fraction of the visible span. The
+     * default value is 0 i.e. all changes are notified.
+     * 
+     * @param minimumDelta The minimum change as a fraction of the visible span
+     */
+    public void setRegionChangeMinimumDelta(float minimumDelta) {
+        mRegionChangeDispatcher.setMinimumDelta(minimumDelta);
+    }
+
+    public float getRegionChangeMinimumDelta() {
+        return mRegionChangeDispatcher.getMinimumDelta();
+    }
+
+    /**
+     * Set the {@link PolarisMetrics} notified of the performance of this
+     * {@link PolarisMapView}.
+     * 
+     * @param metrics The new {@link PolarisMetrics} or null to stop
+     *            measuring
+     * @see MetricsRecorder
+     */
+    public void setMetrics(PolarisMetrics metrics) {
+        mMetrics = metrics;
+        mOverlayContainer.setMetrics(metrics);
+        mRegionChangeDispatcher.setMetrics(metrics);
+        if (mAnnotationsOverlay != null) {
+            mAnnotationsOverlay.setMetrics(metrics);
+        }
+        for (MapCalloutView callout : mMapCallouts) {
+            if (callout != null) {
+                callout.setMetrics(metrics);
+            }
+        }
+        if (mMapCalloutLayout != null) {
+            mMapCalloutLayout.setMetrics(metrics);
+        }
+    }
+
+    public PolarisMetrics getMetrics() {
+        return mMetrics;
+    }
+
     /**
      * Set a new {@link OnMapViewLongClickListener}.
      * 
@@ -583,6 +784,112 @@ public class PolarisMapView extends MapView {
     // return mAnnotationsOverlay;
     // }
 
+    /**
+     * Set the {@link MapCalloutAdapter} used to bind the selected annotation
+     * to a {@link MapCalloutView}. The adapter is called before the
+     * {@link OnAnnotationSelectionChangedListener} is notified of the
+     * selection.
+     * 
+     * @param adapter The new {@link MapCalloutAdapter} (may be null)
+     */
+    public void setMapCalloutAdapter(MapCalloutAdapter adapter) {
+        mMapCalloutAdapter = adapter;
+        if (adapter != null) {
+            mMapCalloutRecycler.setViewTypeCount(adapter.getViewTypeCount());
+        }
+        // Views created by the previous adapter must not be reused
+        for (MapCalloutView callout : mMapCallouts) {
+            if (callout != null) {
+                callout.setViewType(MapCalloutRecycler.INVALID_VIEW_TYPE);
+            }
+        }
+        if (mMapCalloutLayout != null) {
+            mMapCalloutLayout.resetViewTypes();
+        }
+    }
+
+    public MapCalloutAdapter getMapCalloutAdapter() {
+        return mMapCalloutAdapter;
+    }
+
+    /**
+     * Show a {@link MapCalloutView} for each of the given annotations. These
+     * callouts are displayed in addition to the callout of the selected
+     * annotation and replace the ones previously shown with this method. They
+     * are bound exactly like the callout of the selected annotation (the
+     * {@link MapCalloutAdapter}, if any, is used) and their clicks are
+     * reported to the {@link OnAnnotationSelectionChangedListener}.
+     * <p>
+     * All callouts are laid out at once each time the region changes or the
+     * annotations move. Callouts of removed annotations are dismissed.
+     * Callouts are moved horizontally to prevent them from overlapping and
+     * hidden when there is not enough room. Annotations given first have
+     * precedence. Contrary to the callout of the selected annotation, these
+     * callouts never scroll the map.
+     * </p>
+     * <p>
+     * <strong>Note</strong>: This method is designed to display a few dozens
+     * of callouts. The callouts are dismissed when the annotations are set
+     * again.
+     * </p>
+     * 
+     * @param positions The positions of the annotations to show a callout for
+     * @see #dismissMapCallouts()
+     */
+    public void showMapCallouts(int[] positions) {
+        if (positions == null) {
+            throw new IllegalArgumentException("The given positions cannot be null");
+        }
+
+        dismissMapCallouts();
+        if (mAnnotationsOverlay == null) {
+            return;
+        }
+
+        if (mMapCalloutLayout == null) {
+            mMapCalloutLayout = new MapCalloutLayout(getContext());
+            mMapCalloutLayout.setMetrics(mMetrics);
+            // Keep the callouts below the other children (selected callout,
+            // user tracking button, ...)
+            addView(mMapCalloutLayout, 0, new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT, 0, 0, LayoutParams.TOP_LEFT));
+        }
+
+        final MapCalloutLayout calloutLayout = mMapCalloutLayout;
+        for (int position : positions) {
+            final Annotation annotation = mAnnotationsOverlay.getAnnotation(position);
+            if (annotation == null) {
+                continue;
+            }
+
+            MapCalloutView mapCalloutView = calloutLayout.obtainCallout();
+            if (mapCalloutView == null) {
+                mapCalloutView = createMapCallout();
+            }
+            mapCalloutView.setData(annotation);
+            mapCalloutView.setMarkerHeight(mAnnotationsOverlay.getMarker(position).getBounds().height());
+
+            if (mMapCalloutAdapter != null) {
+                mMapCalloutRecycler.recycle(mapCalloutView, mMapCalloutAdapter.getViewType(position, annotation));
+                mMapCalloutAdapter.bindMapCallout(mapCalloutView, position, annotation);
+            }
+
+            if (mapCalloutView.hasDisplayableContent()) {
+                calloutLayout.addCallout(mapCalloutView, position);
+            } else {
+                calloutLayout.scrapCallout(mapCalloutView);
+            }
+        }
+    }
+
+    /**
+     * Dismiss all callouts shown with {@link #showMapCallouts(int[])}.
+     */
+    public void dismissMapCallouts() {
+        if (mMapCalloutLayout != null) {
+            mMapCalloutLayout.removeAllCallouts();
+        }
+    }
+
     /**
      * Set a new {@link OnAnnotationSelectionChangedListener}.
      * 
@@ -614,14 +921,534 @@ public class PolarisMapView extends MapView {
             mAnnotationsOverlay.setSelectedAnnotation(INVALID_POSITION);
         }
 
+        setAnnotationLoader(null);
+        if (annotations == null) {
+            setAnnotationsOverlay(null);
+        } else {
+            setAnnotationsOverlay(new AnnotationsOverlay(getContext(), mMystiqueCallback, annotations, annotationMarker));
+        }
+    }
+
+    /**
+     * Set the annotations to display in this {@link PolarisMapView}.
+     * 
+     * @param annotations The annotations
+     * @param annotationMarkerId The resource identifier to the default marker
+     *            i.e. the marker used for annotations of type
+     *            {@link AnnotationStore#DEFAULT_MARKER}.
+     */
+    public void setAnnotations(AnnotationStore annotations, int annotationMarkerId) {
+        setAnnotations(annotations, getResources().getDrawable(annotationMarkerId));
+    }
+
+    /**
+     * Set the annotations to display in this {@link PolarisMapView}. Contrary
+     * to {@link #setAnnotations(List, Drawable)}, no {@link Annotation} object
+     * is created per annotation. {@link Annotation}s are only created on demand
+     * (for instance when an annotation is selected). As a consequence, the
+     * {@link Annotation} returned for a given position may change over time.
+     * 
+     * @param annotations The annotations. The content of the store is copied:
+     *            modifying the store afterwards has no effect on this
+     *            {@link PolarisMapView}.
+     * @param annotationMarker The default marker i.e. the marker used for
+     *            annotations of type {@link AnnotationStore#DEFAULT_MARKER}.
+     */
+    public void setAnnotations(AnnotationStore annotations, Drawable annotationMarker) {
+        // Remove opened callouts before inserting annotations
+        if (mAnnotationsOverlay != null) {
+            mAnnotationsOverlay.setSelectedAnnotation(INVALID_POSITION);
+        }
+
+        setAnnotationLoader(null);
         if (annotations == null) {
-            mOverlayContainer.setAnnotationsOverlay(null);
+            setAnnotationsOverlay(null);
         } else {
-            mAnnotationsOverlay = new AnnotationsOverlay(mMystiqueCallback, new ArrayList<Annotation>(annotations), annotationMarker);
-            mOverlayContainer.setAnnotationsOverlay(mAnnotationsOverlay);
+            setAnnotationsOverlay(new AnnotationsOverlay(getContext(), mMystiqueCallback, annotations, annotationMarker));
+        }
+    }
+
+    /**
+     * Set the annotations to display in this {@link PolarisMapView}.
+     * 
+     * @param source The source of the annotations
+     * @param annotationMarkerId The resource identifier to the default marker
+     * @see #setAnnotationSource(AnnotationSource, Drawable)
+     */
+    public void setAnnotationSource(AnnotationSource source, int annotationMarkerId) {
+        setAnnotationSource(source, getResources().getDrawable(annotationMarkerId));
+    }
+
+    /**
+     * Set the annotations to display in this {@link PolarisMapView}.
+     * Contrary to {@link #setAnnotations(AnnotationStore, Drawable)},
+     * annotations are loaded lazily: each time a region change is confirmed,
+     * the given {@link AnnotationSource} is queried (on a background thread)
+     * for the visible region extended by a prefetch margin. Results are merged
+     * with the annotations currently displayed. A query is cancelled as soon
+     * as its region is not visible anymore.
+     * <p>
+     * <strong>Note</strong>: As annotations are added and removed over time,
+     * positions of the annotations are not stable. The incremental
+     * modification methods ({@link #addAnnotations(AnnotationStore)},
+     * {@link #removeAnnotations(List)}, ...) should not be used together with
+     * an {@link AnnotationSource}.
+     * </p>
+     * 
+     * @param source The source of the annotations
+     * @param annotationMarker The default marker i.e. the marker used for
+     *            annotations of type {@link AnnotationStore#DEFAULT_MARKER}.
+     * @see #setAnnotationSourcePrefetchMargin(float)
+     */
+    public void setAnnotationSource(AnnotationSource source, Drawable annotationMarker) {
+        // Remove opened callouts before inserting annotations
+        if (mAnnotationsOverlay != null) {
+            mAnnotationsOverlay.setSelectedAnnotation(INVALID_POSITION);
+        }
+
+        if (source == null) {
+            setAnnotationLoader(null);
+            setAnnotationsOverlay(null);
+        } else {
+            setAnnotationsOverlay(new AnnotationsOverlay(getContext(), mMystiqueCallback, new AnnotationStore(0), annotationMarker));
+            setAnnotationLoader(new AnnotationLoader(source, mRogueCallback));
+            if (getWidth() > 0 && getHeight() > 0) {
+                // The region may not change before a while. Let's load the
+                // annotations of the current region immediately.
+                reloadAnnotationSource();
+            }
+        }
+    }
+
+    /**
+     * Return the {@link AnnotationSource} set with
+     * {@link #setAnnotationSource(AnnotationSource, Drawable)}.
+     * 
+     * @return The current {@link AnnotationSource} or null
+     */
+    public AnnotationSource getAnnotationSource() {
+        return mAnnotationLoader != null ? mAnnotationLoader.getSource() : null;
+    }
+
+    /**
+     * Set the margin added around the visible region when querying the
+     * {@link AnnotationSource}. A larger margin reduces the number of queries
+     * when panning at the cost of larger results. The default value is 0.5
+     * i.e. half the visible span on each side.
+     * 
+     * @param margin The margin on each side as a fraction of the visible span
+     */
+    public void setAnnotationSourcePrefetchMargin(float margin) {
+        mAnnotationSourcePrefetchMargin = margin;
+        if (mAnnotationLoader != null) {
+            mAnnotationLoader.setPrefetchMargin(margin);
+        }
+    }
+
+    public float getAnnotationSourcePrefetchMargin() {
+        return mAnnotationSourcePrefetchMargin;
+    }
+
+    /**
+     * Query the {@link AnnotationSource} for the visible region again. This
+     * method should be called when the content of the source changed.
+     */
+    public void reloadAnnotationSource() {
+        if (mAnnotationLoader != null) {
+            mAnnotationLoader.invalidate();
+            getCoordinateRegion(mTempRegion);
+            mAnnotationLoader.load(mTempRegion);
+        }
+    }
+
+    private void setAnnotationLoader(AnnotationLoader loader) {
+        if (mAnnotationLoader != null) {
+            mAnnotationLoader.quit();
+        }
+        mAnnotationLoader = loader;
+        if (loader != null) {
+            loader.setPrefetchMargin(mAnnotationSourcePrefetchMargin);
+        }
+    }
+
+    private void setAnnotationsOverlay(AnnotationsOverlay overlay) {
+        // Positions of the annotations are not valid anymore
+        dismissMapCallouts();
+
+        // Only the areas covered by the previous and new annotations need to
+        // be redrawn
+        final Rect bounds = mTempRect;
+        if (mAnnotationsOverlay != null) {
+            mAnnotationsOverlay.computeDrawingBounds(this, bounds);
+            mDirtyRect.union(bounds);
+            // Release the memory held by the tiles, the heatmap and the
+            // prepared frames
+            mAnnotationsOverlay.setTileCacheEnabled(false);
+            mAnnotationsOverlay.setHeatmapEnabled(false);
+            mAnnotationsOverlay.setFramePreparationEnabled(false);
+        }
+        mAnnotationsOverlay = overlay;
+        if (overlay != null) {
+            overlay.setClusteringEnabled(mIsAnnotationsClusteringEnabled);
+            overlay.setTileCacheEnabled(mIsAnnotationsTileCacheEnabled);
+            overlay.setLabelsEnabled(mIsAnnotationsLabelsEnabled);
+            overlay.setLevelOfDetailEnabled(mIsAnnotationsLevelOfDetailEnabled);
+            overlay.setHeatmapEnabled(mIsAnnotationsHeatmapEnabled);
+            overlay.setFramePreparationEnabled(mIsAnnotationsFramePreparationEnabled);
+            overlay.setMetrics(mMetrics);
+            overlay.computeDrawingBounds(this, bounds);
+            mDirtyRect.union(bounds);
         }
+        mOverlayContainer.setAnnotationsOverlay(overlay);
         // Reflect the changes in the MapView
-        invalidate();
+        invalidateDirtyRect();
+    }
+
+    /**
+     * Add an annotation to the annotations currently displayed. The annotation
+     * is added at the end of the annotations list.
+     * <p>
+     * <strong>Note</strong>: Contrary to {@link #setAnnotations(List, Drawable)}
+     * , this method doesn't rebuild the entire set of annotations. It hence
+     * keeps the current selection and only invalidates the area of the map
+     * covered by the new marker.
+     * </p>
+     * 
+     * @param annotation The annotation to add
+     * @throws IllegalStateException If no annotations have been set with
+     *             {@link #setAnnotations(List, Drawable)} yet
+     */
+    public void addAnnotation(Annotation annotation) {
+        addAnnotations(Collections.singletonList(annotation));
+    }
+
+    /**
+     * Add a list of annotations to the annotations currently displayed. The
+     * annotations are added at the end of the annotations list.
+     * 
+     * @param annotations The annotations to add
+     * @throws IllegalStateException If no annotations have been set with
+     *             {@link #setAnnotations(List, Drawable)} yet
+     * @see #addAnnotation(Annotation)
+     */
+    public void addAnnotations(List<Annotation> annotations) {
+        ensureAnnotationsOverlay().addAnnotations(annotations);
+    }
+
+    /**
+     * Add the annotations of an {@link AnnotationStore} to the annotations
+     * currently displayed. The annotations are added at the end of the
+     * annotations list.
+     * 
+     * @param annotations The annotations to add
+     * @throws IllegalStateException If no annotations have been set yet
+     * @see #setAnnotations(AnnotationStore, Drawable)
+     */
+    public void addAnnotations(AnnotationStore annotations) {
+        ensureAnnotationsOverlay().addAnnotations(annotations);
+    }
+
+    /**
+     * Remove an annotation from the annotations currently displayed. The
+     * annotation is automatically deselected if it was selected. Positions of
+     * the annotations following the removed one are shifted by one once the
+     * current annotations transaction (if any) ends.
+     * 
+     * @param annotation The annotation to remove
+     * @see #beginAnnotationsTransaction()
+     */
+    public void removeAnnotation(Annotation annotation) {
+        if (mAnnotationsOverlay != null) {
+            mAnnotationsOverlay.removeAnnotation(mAnnotationsOverlay.indexOfAnnotation(annotation));
+        }
+    }
+
+    /**
+     * Remove a list of annotations from the annotations currently displayed.
+     * 
+     * @param annotations The annotations to remove
+     * @see #removeAnnotation(Annotation)
+     */
+    public void removeAnnotations(List<Annotation> annotations) {
+        if (mAnnotationsOverlay != null) {
+            mAnnotationsOverlay.removeAnnotations(annotations);
+        }
+    }
+
+    /**
+     * Move the annotation at the given position. When moving the selected
+     * annotation, its callout stays opened and follows the annotation.
+     * 
+     * @param position The position of the annotation to move
+     * @param point The new position of the annotation
+     */
+    public void updateAnnotationPosition(int position, GeoPoint point) {
+        if (mAnnotationsOverlay != null) {
+            mAnnotationsOverlay.setAnnotationPoint(position, point);
+        }
+    }
+
+    /**
+     * Move the annotation at the given position with an animation. The
+     * annotation smoothly moves from its current location to the given point.
+     * When moving the selected annotation, its callout stays opened and
+     * follows the annotation. Starting a new animation for an annotation that
+     * is already animated makes it move from its current (intermediate)
+     * location.
+     * <p>
+     * All animations are stepped at once when the map is drawn: thousands of
+     * annotations can be moved simultaneously. Frames are only requested
+     * while at least one annotation is moving.
+     * </p>
+     * <p>
+     * <strong>Note</strong>: The point of the moved {@link Annotation} (see
+     * {@link Annotation#getPoint()}) is only updated once the annotation
+     * reached its destination.
+     * </p>
+     * 
+     * @param position The position of the annotation to move
+     * @param point The new position of the annotation
+     * @param duration The duration of the animation in milliseconds
+     * @see #updateAnnotationPosition(int, GeoPoint)
+     */
+    public void animateAnnotationPosition(int position, GeoPoint point, int duration) {
+        if (mAnnotationsOverlay != null) {
+            mAnnotationsOverlay.animateAnnotationPoint(position, point, duration);
+        }
+    }
+
+    /**
+     * Start a batch of annotations modifications. All changes done via
+     * {@link #addAnnotations(List)}, {@link #removeAnnotations(List)},
+     * {@link #updateAnnotationPosition(int, GeoPoint)} and their equivalents
+     * until the matching call to {@link #endAnnotationsTransaction()} are
+     * reflected on screen at once. In addition, positions of the annotations
+     * are stable during a transaction: removed annotations are only
+     * effectively removed once the transaction ends. Transactions can be
+     * nested.
+     * 
+     * @throws IllegalStateException If no annotations have been set with
+     *             {@link #setAnnotations(List, Drawable)} yet
+     */
+    public void beginAnnotationsTransaction() {
+        ensureAnnotationsOverlay().beginTransaction();
+    }
+
+    /**
+     * End a batch of annotations modifications started with
+     * {@link #beginAnnotationsTransaction()}.
+     */
+    public void endAnnotationsTransaction() {
+        ensureAnnotationsOverlay().endTransaction();
+    }
+
+    /**
+     * Indicates whether annotations clustering is enabled or not.
+     * 
+     * @return true if annotations are clustered, false otherwise
+     * @see #setAnnotationsClusteringEnabled(boolean)
+     */
+    public boolean isAnnotationsClusteringEnabled() {
+        return mIsAnnotationsClusteringEnabled;
+    }
+
+    /**
+     * Enable/disable annotations clustering. When enabled, annotations that
+     * are close to each other at the current zoom level are collapsed into a
+     * single marker showing the number of annotations it contains. Tapping such
+     * a marker zooms in around it. Clusters are computed when the zoom level
+     * changes and once a region change has been confirmed.
+     * <p>
+     * <strong>Note</strong>: The selected annotation is never clustered.
+     * </p>
+     * 
+     * @param enabled true to enable clustering, false otherwise
+     */
+    public void setAnnotationsClusteringEnabled(boolean enabled) {
+        if (mIsAnnotationsClusteringEnabled != enabled) {
+            mIsAnnotationsClusteringEnabled = enabled;
+            if (mAnnotationsOverlay != null) {
+                mAnnotationsOverlay.setClusteringEnabled(enabled);
+            }
+        }
+    }
+
+    /**
+     * Indicates whether annotations are rendered using a tile cache.
+     * 
+     * @return true if the tile cache is enabled, false otherwise
+     * @see #setAnnotationsTileCacheEnabled(boolean)
+     */
+    public boolean isAnnotationsTileCacheEnabled() {
+        return mIsAnnotationsTileCacheEnabled;
+    }
+
+    /**
+     * Enable/disable the annotations tile cache. When enabled, annotations are
+     * pre-rendered into 256 pixels tiles kept in a memory cache. Panning the
+     * map then only consists in drawing the cached tiles. Only the selected
+     * annotation is drawn live. Tiles are re-rendered when the annotations
+     * they contain change. This mode is particularly efficient for large and
+     * mostly static sets of annotations.
+     * <p>
+     * <strong>Note</strong>: Each tile uses 256KB of memory. The cache keeps
+     * about twice as many tiles as required to cover the map.
+     * </p>
+     * 
+     * @param enabled true to enable the tile cache, false otherwise
+     */
+    public void setAnnotationsTileCacheEnabled(boolean enabled) {
+        if (mIsAnnotationsTileCacheEnabled != enabled) {
+            mIsAnnotationsTileCacheEnabled = enabled;
+            if (mAnnotationsOverlay != null) {
+                mAnnotationsOverlay.setTileCacheEnabled(enabled);
+            }
+        }
+    }
+
+    /**
+     * Indicates whether the title of the annotations is drawn beside their
+     * marker.
+     * 
+     * @return true if the labels are enabled, false otherwise
+     * @see #setAnnotationsLabelsEnabled(boolean)
+     */
+    public boolean isAnnotationsLabelsEnabled() {
+        return mIsAnnotationsLabelsEnabled;
+    }
+
+    /**
+     * Enable/disable the annotations labels. When enabled, the title of the
+     * annotations is drawn beside their marker, without opening any callout.
+     * Labels are placed so that they overlap neither the markers nor the
+     * other labels. Labels that cannot be placed are not drawn: the first
+     * annotations have precedence over the last ones.
+     * <p>
+     * <strong>Note</strong>: Labels are placed each time a region change is
+     * confirmed. While the map is being moved, labels keep their position
+     * relatively to their marker. Labels are not drawn when annotations are
+     * clustered.
+     * </p>
+     * 
+     * @param enabled true to enable the labels, false otherwise
+     */
+    public void setAnnotationsLabelsEnabled(boolean enabled) {
+        if (mIsAnnotationsLabelsEnabled != enabled) {
+            mIsAnnotationsLabelsEnabled = enabled;
+            if (mAnnotationsOverlay != null) {
+                mAnnotationsOverlay.setLabelsEnabled(enabled);
+            }
+        }
+    }
+
+    /**
+     * Indicates whether the way annotations are drawn depends on the zoom
+     * level.
+     * 
+     * @return true if the level of detail is enabled, false otherwise
+     * @see #setAnnotationsLevelOfDetailEnabled(boolean)
+     */
+    public boolean isAnnotationsLevelOfDetailEnabled() {
+        return mIsAnnotationsLevelOfDetailEnabled;
+    }
+
+    /**
+     * Enable/disable the annotations level of detail. When enabled, drawing
+     * thousands of markers at low zoom levels is avoided:
+     * <ul>
+     *   <li>From zoom level 12, annotations are drawn using their marker</li>
+     *   <li>From zoom level 7, annotations are drawn as small dots</li>
+     *   <li>Below zoom level 7, the map is divided into cells whose opacity
+     *   reflects the number of annotations they contain. Tapping a cell zooms
+     *   in around it.</li>
+     * </ul>
+     * Markers (respectively dots) are used whatever the zoom level when the
+     * visible region contains a few hundreds (respectively thousands) of
+     * annotations at most. The level of detail is chosen when the zoom level
+     * changes and each time a region change is confirmed.
+     * <p>
+     * <strong>Note</strong>: The selected annotation is always drawn using
+     * its marker. Labels are only drawn along with markers. Clusters, when
+     * enabled, take precedence over the level of detail.
+     * </p>
+     * 
+     * @param enabled true to enable the level of detail, false otherwise
+     */
+    public void setAnnotationsLevelOfDetailEnabled(boolean enabled) {
+        if (mIsAnnotationsLevelOfDetailEnabled != enabled) {
+            mIsAnnotationsLevelOfDetailEnabled = enabled;
+            if (mAnnotationsOverlay != null) {
+                mAnnotationsOverlay.setLevelOfDetailEnabled(enabled);
+            }
+        }
+    }
+
+    /**
+     * Indicates whether annotations are drawn as a heatmap at low zoom
+     * levels.
+     * 
+     * @return true if the heatmap is enabled, false otherwise
+     * @see #setAnnotationsHeatmapEnabled(boolean)
+     */
+    public boolean isAnnotationsHeatmapEnabled() {
+        return mIsAnnotationsHeatmapEnabled;
+    }
+
+    /**
+     * Enable/disable the heatmap. When enabled, annotations are drawn as a
+     * heatmap at the zoom levels at which a country or a region is visible.
+     * The density of the annotations is computed on a background thread and
+     * updated incrementally as annotations are added, removed or moved.
+     * <p>
+     * <strong>Note</strong>: The selected annotation is always drawn using
+     * its marker. Clusters, when enabled, take precedence over the heatmap
+     * while the heatmap takes precedence over the level of detail.
+     * </p>
+     * 
+     * @param enabled true to enable the heatmap, false otherwise
+     */
+    public void setAnnotationsHeatmapEnabled(boolean enabled) {
+        if (mIsAnnotationsHeatmapEnabled != enabled) {
+            mIsAnnotationsHeatmapEnabled = enabled;
+            if (mAnnotationsOverlay != null) {
+                mAnnotationsOverlay.setHeatmapEnabled(enabled);
+            }
+        }
+    }
+
+    /**
+     * Indicates whether the annotations are projected on a background thread.
+     * 
+     * @return true if the frame preparation is enabled, false otherwise
+     * @see #setAnnotationsFramePreparationEnabled(boolean)
+     */
+    public boolean isAnnotationsFramePreparationEnabled() {
+        return mIsAnnotationsFramePreparationEnabled;
+    }
+
+    /**
+     * Enable/disable the frame preparation. When enabled, the markers of the
+     * visible region (extended by one screen in every direction) are
+     * projected, culled and sorted on a background thread as soon as the
+     * region changes. Drawing the markers then consists in offsetting the
+     * coordinates of the last prepared frame: the UI thread never waits for
+     * the background thread. Markers are projected on the UI thread as long as
+     * no prepared frame matches the visible region and the annotations.
+     * <p>
+     * <strong>Note</strong>: The frame preparation only speeds up the drawing
+     * of markers (as opposed to clusters, dots, density cells or heatmap). It
+     * is only worth enabling on multi-core devices.
+     * </p>
+     * 
+     * @param enabled true to enable the frame preparation, false otherwise
+     */
+    public void setAnnotationsFramePreparationEnabled(boolean enabled) {
+        if (mIsAnnotationsFramePreparationEnabled != enabled) {
+            mIsAnnotationsFramePreparationEnabled = enabled;
+            if (mAnnotationsOverlay != null) {
+                mAnnotationsOverlay.setFramePreparationEnabled(enabled);
+            }
+        }
     }
 
     /**
@@ -661,6 +1488,30 @@ public class PolarisMapView extends MapView {
         }
     }
 
+    /**
+     * Find the annotations whose marker is drawn at the given location. Only
+     * annotations drawn individually are returned: annotations collapsed in a
+     * cluster are ignored.
+     * 
+     * @param x The horizontal position in pixels, relative to this view
+     * @param y The vertical position in pixels, relative to this view
+     * @param radius The tolerance in pixels. Markers at most at radius pixels
+     *            from the location are returned.
+     * @return The positions of the annotations at the given location, ordered
+     *         from the top-most marker to the bottom-most marker. The selected
+     *         annotation, always drawn on top, comes first.
+     */
+    public int[] findAnnotationsAt(int x, int y, int radius) {
+        if (mAnnotationsOverlay == null) {
+            return new int[0];
+        }
+        final IntArray positions = mTempPositions;
+        mAnnotationsOverlay.findAnnotationsAt(this, x, y, radius, positions);
+        final int[] result = new int[positions.size()];
+        System.arraycopy(positions.values(), 0, result, 0, result.length);
+        return result;
+    }
+
     /**
      * Return the visible region of your map. Fills in the output region with
      * the values from the center coordinates and the spans.
@@ -668,13 +1519,8 @@ public class PolarisMapView extends MapView {
      * @param region The visible region of the map
      */
     public void getCoordinateRegion(CoordinateRegion region) {
-        //@formatter:off
-        region.set(
-                getMapCenter().getLatitudeE6(),
-                getMapCenter().getLongitudeE6(),
-                getLatitudeSpan(),
-                getLongitudeSpan());
-        //@formatter:on
+        final GeoPoint center = getMapCenter();
+        region.set(center.getLatitudeE6(), center.getLongitudeE6(), getLatitudeSpan(), getLongitudeSpan());
     }
 
     /**
@@ -703,38 +1549,46 @@ public class PolarisMapView extends MapView {
         return false;
     }
 
-    private void scheduleRegionChangeConfirmed() {
-        if (!mIsInGesture) {
-            removeCallbacks(mRegionChangeConfirmedRunnable);
-            postDelayed(mRegionChangeConfirmedRunnable, REGION_CHANGE_CONFIRMED_DELAY);
+    private AnnotationsOverlay ensureAnnotationsOverlay() {
+        if (mAnnotationsOverlay == null) {
+            throw new IllegalStateException("No annotations have been set. Call setAnnotations(List, Drawable) first");
         }
+        return mAnnotationsOverlay;
     }
 
-    private boolean testRegionChange() {
-        return testRegionChange(mPreviousRegion);
-    }
-
-    private boolean testRegionChangeConfirmed() {
-        return testRegionChange(mPreviousRegionConfirmed);
+    private void invalidateDirtyRect() {
+        if (!mDirtyRect.isEmpty()) {
+            invalidate(mDirtyRect);
+            mDirtyRect.setEmpty();
+        }
     }
 
-    private boolean testRegionChange(CoordinateRegion region) {
-        getCoordinateRegion(mTempRegion);
-        boolean result = !mTempRegion.equals(region);
-        region.set(mTempRegion);
-        return result;
+    private MapCalloutView createMapCallout() {
+        final MapCalloutView mapCalloutView = new MapCalloutView(getContext());
+        mapCalloutView.setVisibility(View.GONE);
+        mapCalloutView.setOnClickListener(mOnClickListener);
+        mapCalloutView.setOnDoubleTapListener(mOnDoubleTapListener);
+        mapCalloutView.setMetrics(mMetrics);
+        return mapCalloutView;
     }
 
     private MapCalloutView getMapCallout(int index) {
         if (mMapCallouts[index] == null) {
-            mMapCallouts[index] = new MapCalloutView(getContext());
-            mMapCallouts[index].setVisibility(View.GONE);
-            mMapCallouts[index].setOnClickListener(mOnClickListener);
-            mMapCallouts[index].setOnDoubleTapListener(mOnDoubleTapListener);
+            mMapCallouts[index] = createMapCallout();
         }
         return mMapCallouts[index];
     }
 
+    /**
+     * Return the position of the annotation the given callout points at.
+     */
+    private int getMapCalloutPosition(View mapCalloutView) {
+        if (mMapCalloutLayout != null && mapCalloutView.getParent() == mMapCalloutLayout) {
+            return mMapCalloutLayout.getAnnotationPosition(mapCalloutView);
+        }
+        return getSelectedAnnotationPosition();
+    }
+
     private MapCalloutView getCurrentMapCallout() {
         return getMapCallout(mMapCalloutIndex);
     }
@@ -748,11 +1602,48 @@ public class PolarisMapView extends MapView {
         return getMapCallout(mMapCalloutIndex);
     }
 
-    private final Runnable mRegionChangeConfirmedRunnable = new Runnable() {
-        public void run() {
-            if (mOnRegionChangedListener != null && testRegionChangeConfirmed()) {
+    private final StormCallback mStormCallback = new StormCallback() {
+        @Override
+        public void getCoordinateRegion(CoordinateRegion outRegion) {
+            PolarisMapView.this.getCoordinateRegion(outRegion);
+        }
+
+        @Override
+        public void onRegionChanged(CoordinateRegion oldRegion, CoordinateRegion newRegion) {
+            if (mAnnotationsOverlay != null) {
+                mAnnotationsOverlay.onRegionChanged(PolarisMapView.this);
+            }
+            if (mOnRegionChangedListener != null) {
+                mOnRegionChangedListener.onRegionChanged(PolarisMapView.this);
+            }
+            if (mOnCoordinateRegionChangedListener != null) {
+                mOnCoordinateRegionChangedListener.onRegionChanged(PolarisMapView.this, oldRegion, newRegion);
+            }
+        }
+
+        @Override
+        public void onRegionChangeConfirmed(CoordinateRegion oldRegion, CoordinateRegion newRegion) {
+            if (mAnnotationsOverlay != null) {
+                mAnnotationsOverlay.onRegionChangeConfirmed(PolarisMapView.this);
+            }
+            if (mAnnotationLoader != null) {
+                mAnnotationLoader.load(newRegion);
+            }
+            if (mOnRegionChangedListener != null) {
                 mOnRegionChangedListener.onRegionChangeConfirmed(PolarisMapView.this);
             }
+            if (mOnCoordinateRegionChangedListener != null) {
+                mOnCoordinateRegionChangedListener.onRegionChangeConfirmed(PolarisMapView.this, oldRegion, newRegion);
+            }
+        }
+    };
+
+    private final RogueCallback mRogueCallback = new RogueCallback() {
+        @Override
+        public void onAnnotationsLoaded(CoordinateRegion region, AnnotationStore annotations) {
+            if (mAnnotationsOverlay != null) {
+                mAnnotationsOverlay.mergeAnnotations(annotations, region);
+            }
         }
     };
 
@@ -764,7 +1655,7 @@ public class PolarisMapView extends MapView {
                 return;
             }
             final MapCalloutView mapCalloutView = getCurrentMapCallout();
-            if (mapCalloutView != null && mapCalloutView.getVisibility() == View.VISIBLE) {
+            if (mapCalloutView != null && mapCalloutView.isShowing()) {
                 mapCalloutView.dismiss(true);
                 if (mOnAnnotationSelectionChangedListener != null) {
                     //@formatter:off
@@ -790,12 +1681,12 @@ public class PolarisMapView extends MapView {
             final MapCalloutView mapCalloutView = getNextMapCallout();
             mapCalloutView.setData(annotation);
 
-            int markerHeight = mAnnotationsOverlay.getDefaultMarker().getBounds().height();
-            final Drawable marker = annotation.getMarker();
-            if (marker != null) {
-                markerHeight = marker.getBounds().height();
+            mapCalloutView.setMarkerHeight(mAnnotationsOverlay.getMarker(position).getBounds().height());
+
+            if (mMapCalloutAdapter != null) {
+                mMapCalloutRecycler.recycle(mapCalloutView, mMapCalloutAdapter.getViewType(position, annotation));
+                mMapCalloutAdapter.bindMapCallout(mapCalloutView, position, annotation);
             }
-            mapCalloutView.setMarkerHeight(markerHeight);
 
             if (mOnAnnotationSelectionChangedListener != null) {
                 //@formatter:off
@@ -812,6 +1703,60 @@ public class PolarisMapView extends MapView {
             }
 
         }
+
+        @Override
+        public void moveCallout(int position, GeoPoint point) {
+            final MapCalloutView mapCalloutView = getCurrentMapCallout();
+            if (mapCalloutView.isShowing()) {
+                mapCalloutView.setPoint(point);
+            }
+        }
+
+        @Override
+        public void moveCallout(int position, int x, int y) {
+            final MapCalloutView mapCalloutView = getCurrentMapCallout();
+            if (mapCalloutView.isShowing()) {
+                mapCalloutView.setScreenPoint(x, y);
+            }
+        }
+
+        @Override
+        public void invalidateMarker(Rect dirty) {
+            mDirtyRect.union(dirty);
+
+            if (!mAnnotationsOverlay.isInTransaction()) {
+                invalidateDirtyRect();
+            }
+        }
+
+        @Override
+        public void onTransactionEnded() {
+            invalidateDirtyRect();
+        }
+
+        @Override
+        public void invalidateAnnotations() {
+            mDirtyRect.set(0, 0, getWidth(), getHeight());
+            if (!mAnnotationsOverlay.isInTransaction()) {
+                invalidateDirtyRect();
+            }
+        }
+
+        @Override
+        public void onAnnotationsRenumbered(int[] mapping) {
+            if (mMapCalloutLayout != null) {
+                mMapCalloutLayout.renumber(mapping);
+            }
+        }
+
+        @Override
+        public void onAnnotationsMoved() {
+            if (mMapCalloutLayout != null && mMapCalloutLayout.hasCallouts()) {
+                // Callouts are positioned in onLayout(boolean, int, int, int,
+                // int)
+                requestLayout();
+            }
+        }
     };
 
     private final MagnetoCallback mMagnetoCallback = new MagnetoCallback() {
@@ -836,9 +1781,9 @@ public class PolarisMapView extends MapView {
     private final OnClickListener mOnClickListener = new OnClickListener() {
         @Override
         public void onClick(View v) {
-            if (mOnAnnotationSelectionChangedListener != null) {
-                final int annotationPosition = getSelectedAnnotationPosition();
-                final Annotation annotation = getSelectedAnnotation();
+            if (mOnAnnotationSelectionChangedListener != null && mAnnotationsOverlay != null) {
+                final int annotationPosition = getMapCalloutPosition(v);
+                final Annotation annotation = mAnnotationsOverlay.getAnnotation(annotationPosition);
                 if (annotation != null && annotationPosition != INVALID_POSITION) {
                     //@formatter:off
                     mOnAnnotationSelectionChangedListener.onAnnotationClicked(
@@ -855,7 +1800,10 @@ public class PolarisMapView extends MapView {
     private final OnDoubleTapListener mOnDoubleTapListener = new OnDoubleTapListener() {
         @Override
         public void onDoubleTap(View v) {
-            final Annotation annotation = getSelectedAnnotation();
+            if (mAnnotationsOverlay == null) {
+                return;
+            }
+            final Annotation annotation = mAnnotationsOverlay.getAnnotation(getMapCalloutPosition(v));
             if (annotation != null) {
                 getController().zoomToSpan(1, 1);
                 getController().setCenter(annotation.getPoint());
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris;
+
+import com.google.android.maps.Overlay;
+
+/**
+ * Clients may use this interface to monitor the performance of a
+ * {@link PolarisMapView}. All durations are expressed in nanoseconds and all
+ * methods are called on the UI thread, in the middle of the measured code
+ * paths: implementations must be as lightweight as possible. Use
+ * {@link MetricsRecorder} to aggregate the reported values into histograms.
+ * <p>
+ * <strong>Note</strong>: Metrics are only reported once a
+ * {@link PolarisMetrics} has been set with
+ * {@link PolarisMapView#setMetrics(PolarisMetrics)}. Instrumentation can be
+ * entirely removed at compile time by turning off the METRICS_ENABLED flag of
+ * the library configuration.
+ * </p>
+ * 
+ * @author Cyril Mottier
+ */
+public interface PolarisMetrics {
+
+    /**
+     * Tells client an {@link Overlay} has been drawn.
+     * 
+     * @param overlay The {@link Overlay} that has been drawn
+     * @param shadow true if the shadow layer has been drawn
+     * @param durationNanos The time spent drawing the {@link Overlay}
+     */
+    void onOverlayDrawn(Overlay overlay, boolean shadow, long durationNanos);
+
+    /**
+     * Tells client all {@link Overlay}s of a {@link PolarisMapView} have been
+     * drawn for a given layer.
+     * 
+     * @param shadow true if the shadow layer has been drawn
+     * @param durationNanos The time spent drawing all {@link Overlay}s
+     */
+    void onOverlaysDrawn(boolean shadow, long durationNanos);
+
+    /**
+     * Tells client the annotations have been drawn.
+     * 
+     * @param drawnCount The number of annotations (or clusters) actually drawn
+     * @param culledCount The number of annotations skipped because they were
+     *            not visible
+     */
+    void onAnnotationsDrawn(int drawnCount, int culledCount);
+
+    /**
+     * Tells client the annotations under a point have been looked up (when the
+     * map is tapped for instance).
+     * 
+     * @param durationNanos The time spent looking up the annotations
+     * @param hitCount The number of annotations found
+     */
+    void onHitTest(long durationNanos, int hitCount);
+
+    /**
+     * Tells client a region change has been dispatched to the listeners.
+     * 
+     * @param confirmed true for a confirmed region change
+     * @param latencyNanos The time elapsed between the detection of the
+     *            change and its dispatch
+     * @param durationNanos The time spent in the listeners
+     */
+    void onRegionChangeDispatched(boolean confirmed, long latencyNanos, long durationNanos);
+
+    /**
+     * Tells client a {@link MapCalloutView} has been laid out.
+     * 
+     * @param durationNanos The time spent laying out the callout
+     */
+    void onCalloutLayout(long durationNanos);
+
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris;
+
+import java.util.List;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+
+import com.cyrilmottier.polaris.internal.IntArray;
+import com.cyrilmottier.polaris.internal.MapViewProjector;
+import com.cyrilmottier.polaris.internal.Mercator;
+import com.cyrilmottier.polaris.internal.PolygonStore;
+import com.google.android.maps.GeoPoint;
+import com.google.android.maps.MapView;
+import com.google.android.maps.Overlay;
+
+/**
+ * An {@link Overlay} drawing filled polygons (delivery zones, districts,
+ * etc.). A polygon is made of an outline and optional holes.
+ * <p>
+ * Polygons are meant to be set once and drawn many times. The bounding box of
+ * each polygon is computed when it is added so that polygons out of the
+ * screen are rejected with a few integer comparisons. The {@link Path} of a
+ * polygon is built the first time the polygon is drawn at a given zoom level
+ * and kept as long as the zoom level doesn't change: panning the map only
+ * translates the cached {@link Path}s. Drawing thousands of polygons hence
+ * requires no allocation.
+ * </p>
+ * <p>
+ * A {@link PolygonOverlay} is usually given to
+ * {@link PolarisMapView#setPolygonOverlay(PolygonOverlay)} so that it is drawn
+ * below the annotations and the user location.
+ * </p>
+ * 
+ * @author Cyril Mottier
+ */
+public class PolygonOverlay extends Overlay implements OverlayCapabilities, BoundedOverlay {
+
+    private final PolygonStore mStore = new PolygonStore();
+    private final Paint mFillPaint;
+    private final Paint mStrokePaint;
+    private float mStrokeWidth;
+
+    private final MapViewProjector mProjector = new MapViewProjector();
+    private final IntArray mVisiblePolygons = new IntArray();
+
+    /*
+     * The cached Path of each polygon and the zoom level it has been built
+     * for. Path coordinates are relative to the top left corner of the
+     * bounding box of the polygon.
+     */
+    private Path[] mPaths = new Path[0];
+    private int[] mPathZooms = new int[0];
+
+    /*
+     * The union of the bounding boxes of all polygons
+     */
+    private long mMinX = Long.MAX_VALUE;
+    private long mMinY = Long.MAX_VALUE;
+    private long mMaxX = Long.MIN_VALUE;
+    private long mMaxY = Long.MIN_VALUE;
+
+    /**
+     * Create a new empty {@link PolygonOverlay}.
+     * 
+     * @param context The Context the overlay is running in
+     */
+    public PolygonOverlay(Context context) {
+        final Resources res = context.getResources();
+        mStrokeWidth = res.getDimension(R.dimen.polaris__polygon_stroke_width);
+
+        mFillPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mFillPaint.setStyle(Paint.Style.FILL);
+        mFillPaint.setColor(res.getColor(R.color.polaris__polygon_fill));
+
+        mStrokePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mStrokePaint.setStyle(Paint.Style.STROKE);
+        mStrokePaint.setStrokeJoin(Paint.Join.ROUND);
+        mStrokePaint.setColor(res.getColor(R.color.polaris__polygon_stroke));
+    }
+
+    /**
+     * Add a polygon with no hole.
+     * 
+     * @param outline The vertices of the outline of the polygon
+     * @return The index of the polygon
+     */
+    public int addPolygon(List<GeoPoint> outline) {
+        return addPolygon(outline, null);
+    }
+
+    /**
+     * Add a polygon.
+     * 
+     * @param outline The vertices of the outline of the polygon
+     * @param holes The vertices of each hole of the polygon (may be null)
+     * @return The index of the polygon
+     */
+    public int addPolygon(List<GeoPoint> outline, List<List<GeoPoint>> holes) {
+        if (outline == null) {
+            throw new IllegalArgumentException("The given outline cannot be null");
+        }
+        final int ringCount = 1 + (holes != null ? holes.size() : 0);
+        final int[][] latitudes = new int[ringCount][];
+        final int[][] longitudes = new int[ringCount][];
+        for (int ring = 0; ring < ringCount; ring++) {
+            final List<GeoPoint> points = ring == 0 ? outline : holes.get(ring - 1);
+            if (points == null) {
+                throw new IllegalArgumentException("The given holes cannot be null");
+            }
+            final int count = points.size();
+            latitudes[ring] = new int[count];
+            longitudes[ring] = new int[count];
+            for (int i = 0; i < count; i++) {
+                final GeoPoint point = points.get(i);
+                latitudes[ring][i] = point.getLatitudeE6();
+                longitudes[ring][i] = point.getLongitudeE6();
+            }
+        }
+        return addPolygon(latitudes, longitudes);
+    }
+
+    /**
+     * Add a polygon. The given arrays are not retained.
+     * 
+     * @param latitudesE6 The latitudes of the vertices of each ring. The
+     *            first ring is the outline of the polygon, the other ones are
+     *            its holes.
+     * @param longitudesE6 The longitudes of the vertices of each ring
+     * @return The index of the polygon
+     */
+    public int addPolygon(int[][] latitudesE6, int[][] longitudesE6) {
+        final PolygonStore store = mStore;
+        final int polygon = store.add(latitudesE6, longitudesE6);
+
+        if (polygon >= mPaths.length) {
+            final int capacity = Math.max(polygon + 1, mPaths.length * 2);
+            final Path[] paths = new Path[capacity];
+            System.arraycopy(mPaths, 0, paths, 0, mPaths.length);
+            mPaths = paths;
+            final int[] pathZooms = new int[capacity];
+            System.arraycopy(mPathZooms, 0, pathZooms, 0, mPathZooms.length);
+            mPathZooms = pathZooms;
+        }
+        // Paths are created lazily, the first time a polygon is drawn
+        mPathZooms[polygon] = -1;
+
+        if (store.getMinX(polygon) <= store.getMaxX(polygon)) {
+            mMinX = Math.min(mMinX, store.getMinX(polygon));
+            mMinY = Math.min(mMinY, store.getMinY(polygon));
+            mMaxX = Math.max(mMaxX, store.getMaxX(polygon));
+            mMaxY = Math.max(mMaxY, store.getMaxY(polygon));
+        }
+        return polygon;
+    }
+
+    /**
+     * Remove all polygons.
+     */
+    public void removeAllPolygons() {
+        mStore.clear();
+        mPaths = new Path[0];
+        mPathZooms = new int[0];
+        mMinX = mMinY = Long.MAX_VALUE;
+        mMaxX = mMaxY = Long.MIN_VALUE;
+    }
+
+    /**
+     * @return The number of polygons
+     */
+    public int getPolygonCount() {
+        return mStore.size();
+    }
+
+    /**
+     * Set the color used to fill the polygons.
+     * 
+     * @param color The fill color
+     */
+    public void setFillColor(int color) {
+        mFillPaint.setColor(color);
+    }
+
+    /**
+     * Set the color of the outline of the polygons.
+     * 
+     * @param color The outline color
+     */
+    public void setStrokeColor(int color) {
+        mStrokePaint.setColor(color);
+    }
+
+    /**
+     * Set the width of the outline of the polygons.
+     * 
+     * @param width The width of the outline in pixels. A width of 0 disables
+     *            drawing the outlines.
+     */
+    public void setStrokeWidth(float width) {
+        mStrokeWidth = width;
+    }
+
+    @Override
+    public int getCapabilities() {
+        // Polygons are only drawn
+        return 0;
+    }
+
+    @Override
+    public boolean getDrawingBounds(MapView mapView, boolean shadow, Rect outBounds) {
+        outBounds.setEmpty();
+        if (shadow || mMinX > mMaxX || !mProjector.update(mapView)) {
+            return true;
+        }
+
+        final MapViewProjector projector = mProjector;
+        final long delta = (projector.unprojectX(0) + projector.unprojectX(mapView.getWidth())) / 2 - (mMinX + mMaxX) / 2;
+        final long worldOffset = Math.round((double) delta / Mercator.MAX_WORLD_SIZE) * Mercator.MAX_WORLD_SIZE;
+        final int margin = (int) Math.ceil(mStrokeWidth / 2) + 1;
+        //@formatter:off
+        outBounds.set(
+                projector.projectX(mMinX + worldOffset) - margin,
+                projector.projectY(mMinY) - margin,
+                projector.projectX(mMaxX + worldOffset) + margin,
+                projector.projectY(mMaxY) + margin);
+        //@formatter:on
+        if (!outBounds.intersect(0, 0, mapView.getWidth(), mapView.getHeight())) {
+            outBounds.setEmpty();
+        }
+        return true;
+    }
+
+    @Override
+    public void draw(Canvas canvas, MapView mapView, boolean shadow) {
+        if (shadow || mStore.size() == 0 || !mProjector.update(mapView)) {
+            return;
+        }
+
+        final MapViewProjector projector = mProjector;
+        final PolygonStore store = mStore;
+
+        // Reject the polygons whose bounding box is out of the screen. The
+        // stroke may slightly exceed the bounding box.
+        final long margin = (long) Math.ceil(mStrokeWidth / projector.getScale());
+        final long minX = projector.unprojectX(0) - margin;
+        final long minY = projector.unprojectY(0) - margin;
+        final long maxX = projector.unprojectX(mapView.getWidth()) + margin;
+        final long maxY = projector.unprojectY(mapView.getHeight()) + margin;
+        final IntArray visiblePolygons = mVisiblePolygons;
+        visiblePolygons.clear();
+        store.query(minX, minY, maxX, maxY, visiblePolygons);
+
+        // MapView zoom levels start at 1 while Mercator zoom levels start at 0
+        final int zoom = Math.max(0, Math.min(Mercator.MAX_ZOOM, mapView.getZoomLevel() - 1));
+        final double pathScale = 1.0 / (1 << (Mercator.MAX_ZOOM - zoom));
+
+        // Paths are only translated while panning. While zooming, they are
+        // scaled until the next zoom level is reached.
+        final float ratio = (float) (projector.getScale() / pathScale);
+        final boolean hasStroke = mStrokeWidth > 0;
+        mStrokePaint.setStrokeWidth(mStrokeWidth / ratio);
+
+        final long centerX = (minX + maxX) / 2;
+        final int[] polygons = visiblePolygons.values();
+        final int count = visiblePolygons.size();
+        for (int i = 0; i < count; i++) {
+            final int polygon = polygons[i];
+            if (mPathZooms[polygon] != zoom) {
+                buildPath(polygon, zoom, pathScale);
+            }
+            final long worldOffset = store.getWorldOffset(polygon, centerX);
+            final int saveCount = canvas.save();
+            canvas.translate(projector.projectX(store.getMinX(polygon) + worldOffset), projector.projectY(store.getMinY(polygon)));
+            if (ratio != 1.0f) {
+                canvas.scale(ratio, ratio);
+            }
+            final Path path = mPaths[polygon];
+            canvas.drawPath(path, mFillPaint);
+            if (hasStroke) {
+                canvas.drawPath(path, mStrokePaint);
+            }
+            canvas.restoreToCount(saveCount);
+        }
+    }
+
+    /**
+     * Build the Path of the given polygon at the given zoom level. The Path
+     * of a polygon is reused from one zoom level to another.
+     */
+    private void buildPath(int polygon, int zoom, double scale) {
+        Path path = mPaths[polygon];
+        if (path == null) {
+            path = new Path();
+            // Holes are drawn as such whatever the orientation of the rings
+            path.setFillType(Path.FillType.EVEN_ODD);
+            mPaths[polygon] = path;
+        } else {
+            path.rewind();
+        }
+        mPathZooms[polygon] = zoom;
+
+        final PolygonStore store = mStore;
+        final int[] xs = store.getXs();
+        final int[] ys = store.getYs();
+        final long originX = store.getMinX(polygon);
+        final long originY = store.getMinY(polygon);
+        final int ringEnd = store.getRingEnd(polygon);
+        for (int ring = store.getFirstRing(polygon); ring < ringEnd; ring++) {
+            final int start = store.getFirstVertex(ring);
+            final int end = store.getVertexEnd(ring);
+            if (end - start < 3) {
+                continue;
+            }
+            path.incReserve(end - start + 1);
+            path.moveTo((float) ((xs[start] - originX) * scale), (float) ((ys[start] - originY) * scale));
+            for (int i = start + 1; i < end; i++) {
+                path.lineTo((float) ((xs[i] - originX) * scale), (float) ((ys[i] - originY) * scale));
+            }
+            path.close();
+        }
+    }
+
+}
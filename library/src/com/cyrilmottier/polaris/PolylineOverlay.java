@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris;
+
+import java.util.List;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+
+import com.cyrilmottier.polaris.internal.IntArray;
+import com.cyrilmottier.polaris.internal.MapViewProjector;
+import com.cyrilmottier.polaris.internal.Mercator;
+import com.cyrilmottier.polaris.internal.PolylineSimplifier;
+import com.google.android.maps.GeoPoint;
+import com.google.android.maps.MapView;
+import com.google.android.maps.Overlay;
+
+/**
+ * An {@link Overlay} drawing a polyline (a GPS track or a route for instance)
+ * made of up to millions of vertices.
+ * <p>
+ * The polyline is simplified once for all zoom levels (see
+ * {@link PolylineSimplifier}): at a given zoom level, only the vertices that
+ * are visually significant are drawn. The simplified polyline is clipped to
+ * the visible region extended by one screen in every direction and stored in
+ * a {@link Path}. Panning the map only translates this {@link Path}. It is
+ * rebuilt when the zoom level changes or when the visible region leaves the
+ * area it covers.
+ * </p>
+ * <p>
+ * <strong>Note</strong>: Simplifying a polyline is done in the constructor.
+ * For very long polylines, you may want to create the {@link PolylineOverlay}
+ * on a background thread.
+ * </p>
+ * 
+ * @author Cyril Mottier
+ */
+public class PolylineOverlay extends Overlay implements OverlayCapabilities, BoundedOverlay {
+
+    /**
+     * The maximum distance (in pixels) between the drawn polyline and the
+     * original one
+     */
+    private static final float TOLERANCE = 1.0f;
+
+    private static final long WORLD_SIZE = Mercator.MAX_WORLD_SIZE;
+
+    private final PolylineSimplifier mSimplifier;
+    private final Paint mPaint;
+    private float mStrokeWidth;
+
+    private final MapViewProjector mProjector = new MapViewProjector();
+    private final IntArray mRuns = new IntArray();
+
+    /*
+     * The cached Path and the area it covers (in Mercator units at
+     * Mercator.MAX_ZOOM). The Path coordinates are relative to the top left
+     * corner of the area.
+     */
+    private final Path mPath = new Path();
+    private boolean mIsPathValid;
+    private int mPathZoom;
+    private double mPathScale;
+    private long mPathWorldOffset;
+    private long mPathMinX;
+    private long mPathMinY;
+    private long mPathMaxX;
+    private long mPathMaxY;
+
+    /**
+     * Create a new {@link PolylineOverlay}.
+     * 
+     * @param context The Context the overlay is running in
+     * @param points The vertices of the polyline
+     */
+    public PolylineOverlay(Context context, List<GeoPoint> points) {
+        this(context, toLatitudes(points), toLongitudes(points), points.size());
+    }
+
+    /**
+     * Create a new {@link PolylineOverlay}. The given arrays are not retained.
+     * 
+     * @param context The Context the overlay is running in
+     * @param latitudesE6 The latitudes of the vertices
+     * @param longitudesE6 The longitudes of the vertices
+     * @param count The number of vertices
+     */
+    public PolylineOverlay(Context context, int[] latitudesE6, int[] longitudesE6, int count) {
+        if (latitudesE6 == null || longitudesE6 == null) {
+            throw new IllegalArgumentException("The given coordinates cannot be null");
+        }
+        mSimplifier = new PolylineSimplifier(latitudesE6, longitudesE6, count, TOLERANCE);
+
+        final Resources res = context.getResources();
+        mStrokeWidth = res.getDimension(R.dimen.polaris__polyline_width);
+        mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mPaint.setStyle(Paint.Style.STROKE);
+        mPaint.setStrokeCap(Paint.Cap.ROUND);
+        mPaint.setStrokeJoin(Paint.Join.ROUND);
+        mPaint.setColor(res.getColor(R.color.polaris__polyline));
+    }
+
+    /**
+     * Set the color of the polyline.
+     * 
+     * @param color The color of the polyline
+     */
+    public void setColor(int color) {
+        mPaint.setColor(color);
+    }
+
+    /**
+     * Set the width of the polyline.
+     * 
+     * @param width The width of the polyline in pixels
+     */
+    public void setStrokeWidth(float width) {
+        mStrokeWidth = width;
+    }
+
+    @Override
+    public int getCapabilities() {
+        // A polyline is only drawn
+        return 0;
+    }
+
+    @Override
+    public boolean getDrawingBounds(MapView mapView, boolean shadow, Rect outBounds) {
+        outBounds.setEmpty();
+        if (shadow || mSimplifier.size() == 0 || !mProjector.update(mapView)) {
+            return true;
+        }
+
+        final MapViewProjector projector = mProjector;
+        final long worldOffset = getWorldOffset(projector.unprojectX(0), projector.unprojectX(mapView.getWidth()));
+        final int margin = (int) Math.ceil(mStrokeWidth / 2) + 1;
+        //@formatter:off
+        outBounds.set(
+                projector.projectX(mSimplifier.getMinX() + worldOffset) - margin,
+                projector.projectY(mSimplifier.getMinY()) - margin,
+                projector.projectX(mSimplifier.getMaxX() + worldOffset) + margin,
+                projector.projectY(mSimplifier.getMaxY()) + margin);
+        //@formatter:on
+        if (!outBounds.intersect(0, 0, mapView.getWidth(), mapView.getHeight())) {
+            outBounds.setEmpty();
+        }
+        return true;
+    }
+
+    @Override
+    public void draw(Canvas canvas, MapView mapView, boolean shadow) {
+        if (shadow || mSimplifier.size() < 2 || !mProjector.update(mapView)) {
+            return;
+        }
+
+        final MapViewProjector projector = mProjector;
+        final long minX = projector.unprojectX(0);
+        final long minY = projector.unprojectY(0);
+        final long maxX = projector.unprojectX(mapView.getWidth());
+        final long maxY = projector.unprojectY(mapView.getHeight());
+
+        // MapView zoom levels start at 1 while Mercator zoom levels start at 0
+        final int zoom = Math.max(0, Math.min(Mercator.MAX_ZOOM, mapView.getZoomLevel() - 1));
+        final long worldOffset = getWorldOffset(minX, maxX);
+        //@formatter:off
+        if (!mIsPathValid
+                || zoom != mPathZoom
+                || worldOffset != mPathWorldOffset
+                || minX < mPathMinX
+                || minY < mPathMinY
+                || maxX > mPathMaxX
+                || maxY > mPathMaxY) {
+            buildPath(zoom, worldOffset, minX, minY, maxX, maxY);
+        }
+        //@formatter:on
+
+        // The Path is only translated while panning. While zooming, it is
+        // scaled until the next zoom level is reached.
+        final float ratio = (float) (projector.getScale() / mPathScale);
+        final int saveCount = canvas.save();
+        canvas.translate(projector.projectX(mPathMinX), projector.projectY(mPathMinY));
+        if (ratio != 1.0f) {
+            canvas.scale(ratio, ratio);
+        }
+        mPaint.setStrokeWidth(mStrokeWidth / ratio);
+        canvas.drawPath(mPath, mPaint);
+        canvas.restoreToCount(saveCount);
+    }
+
+    /**
+     * Build the Path of the polyline simplified for the given zoom level,
+     * covering the given area extended by its size in every direction.
+     */
+    private void buildPath(int zoom, long worldOffset, long minX, long minY, long maxX, long maxY) {
+        final long width = maxX - minX;
+        final long height = maxY - minY;
+        mPathZoom = zoom;
+        mPathScale = mProjector.getScale();
+        mPathWorldOffset = worldOffset;
+        mPathMinX = minX - width;
+        mPathMinY = minY - height;
+        mPathMaxX = maxX + width;
+        mPathMaxY = maxY + height;
+        mIsPathValid = true;
+
+        final IntArray runs = mRuns;
+        runs.clear();
+        //@formatter:off
+        mSimplifier.clip(zoom,
+                mPathMinX - worldOffset,
+                mPathMinY,
+                mPathMaxX - worldOffset,
+                mPathMaxY,
+                runs);
+        //@formatter:on
+
+        final Path path = mPath;
+        path.rewind();
+        final int[] vertices = mSimplifier.getVertices(zoom);
+        final int[] xs = mSimplifier.getXs();
+        final int[] ys = mSimplifier.getYs();
+        final double scale = mPathScale;
+        final long originX = mPathMinX - worldOffset;
+        final long originY = mPathMinY;
+        final int[] values = runs.values();
+        final int runCount = runs.size();
+        for (int i = 0; i < runCount; i += 2) {
+            final int start = values[i];
+            final int end = values[i + 1];
+            path.incReserve(end - start + 1);
+            int vertex = vertices[start];
+            path.moveTo((float) ((xs[vertex] - originX) * scale), (float) ((ys[vertex] - originY) * scale));
+            for (int j = start + 1; j <= end; j++) {
+                vertex = vertices[j];
+                path.lineTo((float) ((xs[vertex] - originX) * scale), (float) ((ys[vertex] - originY) * scale));
+            }
+        }
+    }
+
+    /**
+     * Return the offset (a multiple of the world size) to apply to the
+     * polyline so that it is drawn in the copy of the world the closest to
+     * the visible area.
+     */
+    private long getWorldOffset(long minX, long maxX) {
+        final long delta = (minX + maxX) / 2 - ((long) mSimplifier.getMinX() + mSimplifier.getMaxX()) / 2;
+        return Math.round((double) delta / WORLD_SIZE) * WORLD_SIZE;
+    }
+
+    private static int[] toLatitudes(List<GeoPoint> points) {
+        if (points == null) {
+            throw new IllegalArgumentException("The given points cannot be null");
+        }
+        final int count = points.size();
+        final int[] latitudes = new int[count];
+        for (int i = 0; i < count; i++) {
+            latitudes[i] = points.get(i).getLatitudeE6();
+        }
+        return latitudes;
+    }
+
+    private static int[] toLongitudes(List<GeoPoint> points) {
+        final int count = points.size();
+        final int[] longitudes = new int[count];
+        for (int i = 0; i < count; i++) {
+            longitudes[i] = points.get(i).getLongitudeE6();
+        }
+        return longitudes;
+    }
+
+}
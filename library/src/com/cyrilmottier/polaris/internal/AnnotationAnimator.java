@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.internal;
+
+import java.util.Arrays;
+
+/**
+ * Linearly interpolates the coordinates of annotations moving from a point to
+ * another. All running animations are stored in parallel arrays and are
+ * stepped at once: moving thousands of annotations costs a single loop per
+ * frame and doesn't allocate anything.
+ * <p>
+ * This class has no dependency on the Android framework.
+ * </p>
+ * 
+ * @author Cyril Mottier
+ */
+public class AnnotationAnimator {
+
+    private static final long FULL_LONGITUDE_SPAN = 360000000L;
+
+    private int mCount;
+    private int[] mPositions = new int[0];
+    private int[] mFromLatitudes = new int[0];
+    private int[] mFromLongitudes = new int[0];
+    private int[] mToLatitudes = new int[0];
+    private int[] mToLongitudes = new int[0];
+    private long[] mStartTimes = new long[0];
+    private int[] mDurations = new int[0];
+
+    /**
+     * The index of the animation of each annotation (indexed by position) or
+     * -1 when the annotation is not animated
+     */
+    private int[] mAnimations = new int[0];
+
+    /**
+     * Indicates whether at least one animation is running.
+     * 
+     * @return true if an animation is running, false otherwise
+     */
+    public boolean isRunning() {
+        return mCount > 0;
+    }
+
+    /**
+     * Indicates whether the annotation at the given position is animated.
+     * 
+     * @param position The position of the annotation
+     * @return true if the annotation is animated, false otherwise
+     */
+    public boolean isAnimated(int position) {
+        return position < mAnimations.length && mAnimations[position] != -1;
+    }
+
+    /**
+     * @return The number of running animations
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Return the position of the annotation animated by the given animation.
+     * 
+     * @param index The index of the animation, between 0 and
+     *            {@link #getCount()} - 1
+     * @return The position of the annotation
+     */
+    public int getPosition(int index) {
+        return mPositions[index];
+    }
+
+    /**
+     * Return the latitude an animated annotation moves to.
+     * 
+     * @param position The position of an animated annotation
+     * @return The latitude at the end of the animation
+     */
+    public int getTargetLatitude(int position) {
+        return mToLatitudes[mAnimations[position]];
+    }
+
+    /**
+     * Return the longitude an animated annotation moves to.
+     * 
+     * @param position The position of an animated annotation
+     * @return The longitude at the end of the animation, in the [-180, 180]
+     *         degrees range
+     */
+    public int getTargetLongitude(int position) {
+        final long longitude = mToLongitudes[mAnimations[position]];
+        if (longitude > FULL_LONGITUDE_SPAN / 2) {
+            return (int) (longitude - FULL_LONGITUDE_SPAN);
+        } else if (longitude < -FULL_LONGITUDE_SPAN / 2) {
+            return (int) (longitude + FULL_LONGITUDE_SPAN);
+        }
+        return (int) longitude;
+    }
+
+    /**
+     * Start moving an annotation. An animation already running for the given
+     * annotation is replaced.
+     * 
+     * @param position The position of the annotation
+     * @param fromLatitude The current latitude of the annotation
+     * @param fromLongitude The current longitude of the annotation
+     * @param toLatitude The latitude the annotation moves to
+     * @param toLongitude The longitude the annotation moves to
+     * @param startTime The start time of the animation in milliseconds
+     * @param duration The duration of the animation in milliseconds
+     */
+    public void start(int position, int fromLatitude, int fromLongitude, int toLatitude, int toLongitude, long startTime, int duration) {
+        if (position >= mAnimations.length) {
+            final int length = mAnimations.length;
+            final int[] animations = new int[Math.max(position + 1, length * 2)];
+            System.arraycopy(mAnimations, 0, animations, 0, length);
+            Arrays.fill(animations, length, animations.length, -1);
+            mAnimations = animations;
+        }
+
+        int index = mAnimations[position];
+        if (index == -1) {
+            ensureCapacity(mCount + 1);
+            index = mCount++;
+            mAnimations[position] = index;
+            mPositions[index] = position;
+        }
+
+        // Always take the shortest way, even across the antimeridian
+        long toLon = toLongitude;
+        if (toLon - fromLongitude > FULL_LONGITUDE_SPAN / 2) {
+            toLon -= FULL_LONGITUDE_SPAN;
+        } else if (toLon - fromLongitude < -FULL_LONGITUDE_SPAN / 2) {
+            toLon += FULL_LONGITUDE_SPAN;
+        }
+
+        mFromLatitudes[index] = fromLatitude;
+        mFromLongitudes[index] = fromLongitude;
+        mToLatitudes[index] = toLatitude;
+        mToLongitudes[index] = (int) toLon;
+        mStartTimes[index] = startTime;
+        mDurations[index] = Math.max(0, duration);
+    }
+
+    /**
+     * Stop animating an annotation. The annotation keeps its current
+     * coordinates.
+     * 
+     * @param position The position of the annotation
+     */
+    public void cancel(int position) {
+        if (isAnimated(position)) {
+            removeAt(mAnimations[position]);
+        }
+    }
+
+    /**
+     * Stop all animations.
+     */
+    public void clear() {
+        for (int i = 0; i < mCount; i++) {
+            mAnimations[mPositions[i]] = -1;
+        }
+        mCount = 0;
+    }
+
+    /**
+     * Update the coordinates of all animated annotations. Annotations reaching
+     * their destination are not animated anymore once this method returns.
+     * 
+     * @param time The current time in milliseconds
+     * @param latitudes The latitudes of the annotations (indexed by position)
+     *            to update
+     * @param longitudes The longitudes of the annotations (indexed by
+     *            position) to update
+     * @param index The index in which the annotations are moved
+     * @param outFinished The array the positions of the annotations that
+     *            reached their destination are appended to
+     */
+    public void step(long time, int[] latitudes, int[] longitudes, AnnotationIndex index, IntArray outFinished) {
+        int i = 0;
+        while (i < mCount) {
+            final int position = mPositions[i];
+            final long elapsed = time - mStartTimes[i];
+            final int duration = mDurations[i];
+
+            final int latitude;
+            final int longitude;
+            final boolean finished = elapsed >= duration;
+            if (finished) {
+                latitude = mToLatitudes[i];
+                longitude = wrapLongitude(mToLongitudes[i]);
+            } else if (elapsed <= 0) {
+                latitude = mFromLatitudes[i];
+                longitude = mFromLongitudes[i];
+            } else {
+                final int fromLatitude = mFromLatitudes[i];
+                final int fromLongitude = mFromLongitudes[i];
+                latitude = fromLatitude + (int) ((long) (mToLatitudes[i] - fromLatitude) * elapsed / duration);
+                longitude = wrapLongitude(fromLongitude + (long) (mToLongitudes[i] - fromLongitude) * elapsed / duration);
+            }
+
+            if (latitude != latitudes[position] || longitude != longitudes[position]) {
+                index.update(position, latitudes[position], longitudes[position], latitude, longitude);
+                latitudes[position] = latitude;
+                longitudes[position] = longitude;
+            }
+
+            if (finished) {
+                outFinished.add(position);
+                // The last animation is moved at index i: don't increment
+                removeAt(i);
+            } else {
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Renumber the animated annotations. This is typically used when the
+     * annotations have been compacted.
+     * 
+     * @param mapping The mapping from the old positions to the new ones.
+     *            Animations of removed annotations must have been cancelled.
+     */
+    public void renumber(int[] mapping) {
+        if (mCount == 0) {
+            return;
+        }
+        Arrays.fill(mAnimations, -1);
+        for (int i = 0; i < mCount; i++) {
+            final int position = mapping[mPositions[i]];
+            mPositions[i] = position;
+            mAnimations[position] = i;
+        }
+    }
+
+    private void removeAt(int index) {
+        mAnimations[mPositions[index]] = -1;
+        final int last = --mCount;
+        if (index != last) {
+            mPositions[index] = mPositions[last];
+            mFromLatitudes[index] = mFromLatitudes[last];
+            mFromLongitudes[index] = mFromLongitudes[last];
+            mToLatitudes[index] = mToLatitudes[last];
+            mToLongitudes[index] = mToLongitudes[last];
+            mStartTimes[index] = mStartTimes[last];
+            mDurations[index] = mDurations[last];
+            mAnimations[mPositions[index]] = index;
+        }
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        if (minCapacity > mPositions.length) {
+            final int capacity = Math.max(minCapacity, Math.max(16, mPositions.length * 2));
+            mPositions = grow(mPositions, capacity);
+            mFromLatitudes = grow(mFromLatitudes, capacity);
+            mFromLongitudes = grow(mFromLongitudes, capacity);
+            mToLatitudes = grow(mToLatitudes, capacity);
+            mToLongitudes = grow(mToLongitudes, capacity);
+            mDurations = grow(mDurations, capacity);
+            final long[] startTimes = new long[capacity];
+            System.arraycopy(mStartTimes, 0, startTimes, 0, mCount);
+            mStartTimes = startTimes;
+        }
+    }
+
+    private int[] grow(int[] array, int capacity) {
+        final int[] result = new int[capacity];
+        System.arraycopy(array, 0, result, 0, mCount);
+        return result;
+    }
+
+    private static int wrapLongitude(long longitude) {
+        if (longitude > FULL_LONGITUDE_SPAN / 2) {
+            longitude -= FULL_LONGITUDE_SPAN;
+        } else if (longitude < -FULL_LONGITUDE_SPAN / 2) {
+            longitude += FULL_LONGITUDE_SPAN;
+        }
+        return (int) longitude;
+    }
+
+}
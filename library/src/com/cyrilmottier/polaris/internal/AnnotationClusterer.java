@@ -0,0 +1,546 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.internal;
+
+import java.util.Arrays;
+
+/**
+ * A grid-based clusterer collapsing points that are close to each other (in
+ * pixels) at a given zoom level.
+ * <p>
+ * Points are projected in the Mercator pixel space and sorted once along a
+ * Z-order (Morton) curve. Because grid cells at a zoom level are exactly the
+ * union of four cells at the next zoom level, all points belonging to the same
+ * cell are contiguous in this order, whatever the zoom level. Clustering a
+ * zoom level hence consists on a single linear scan over the sorted points.
+ * Levels are lazily computed and cached until the points change.
+ * </p>
+ * <p>
+ * Points can be added, moved and removed individually. Changes are queued and
+ * applied the next time clusters are requested: only the keys of the changed
+ * points are sorted and then merged with the already sorted keys in a single
+ * pass.
+ * </p>
+ * <p>
+ * This class has no dependency on the Android framework.
+ * </p>
+ * 
+ * @author Cyril Mottier
+ */
+public class AnnotationClusterer {
+
+    /**
+     * The default size of a cluster cell: 2^6 = 64 pixels.
+     */
+    public static final int DEFAULT_CELL_SIZE_SHIFT = 6;
+
+    /**
+     * Number of bits used to store the item in a sort key.
+     */
+    private static final int ITEM_BITS = 21;
+    private static final long ITEM_MASK = (1L << ITEM_BITS) - 1;
+
+    /**
+     * The maximum number of points this clusterer can handle.
+     */
+    public static final int MAX_POINTS = 1 << ITEM_BITS;
+
+    /**
+     * Pixel coordinates are reduced by this amount of bits so that a Morton
+     * code (2 * 21 bits) and an item (21 bits) fit in a single positive long.
+     */
+    private static final int GRID_SHIFT = 9;
+
+    private static final long NO_KEY = -1;
+
+    private final int mCellSizeShift;
+    private final int mMaxClusteringZoom;
+
+    /*
+     * The sort keys of the points, in Z-order, and a spare buffer used to
+     * merge changes
+     */
+    private long[] mKeys = new long[0];
+    private long[] mSpareKeys = new long[0];
+    private int mCount;
+
+    /*
+     * The state of each item: its location, whether it is a point of this
+     * clusterer once changes are applied and its key in mKeys (NO_KEY if
+     * none)
+     */
+    private int[] mLatitudes = new int[0];
+    private int[] mLongitudes = new int[0];
+    private boolean[] mIsPresent = new boolean[0];
+    private long[] mItemKeys = new long[0];
+    private int mItemCount;
+
+    /*
+     * The items changed since changes have been applied for the last time
+     */
+    private final IntArray mChangedItems = new IntArray();
+    private boolean[] mIsChanged = new boolean[0];
+    private long[] mRemovedKeys = new long[0];
+    private long[] mAddedKeys = new long[0];
+
+    private final Clusters[] mLevels = new Clusters[Mercator.MAX_ZOOM + 1];
+
+    public AnnotationClusterer() {
+        this(DEFAULT_CELL_SIZE_SHIFT);
+    }
+
+    /**
+     * Create a new {@link AnnotationClusterer}
+     * 
+     * @param cellSizeShift The size of a cluster cell in pixels expressed as
+     *            a power of 2.
+     */
+    public AnnotationClusterer(int cellSizeShift) {
+        if (cellSizeShift < 0 || cellSizeShift > GRID_SHIFT) {
+            throw new IllegalArgumentException("The cell size shift must be in the range [0, " + GRID_SHIFT + "]");
+        }
+        mCellSizeShift = cellSizeShift;
+        mMaxClusteringZoom = Mercator.MAX_ZOOM + cellSizeShift - GRID_SHIFT;
+    }
+
+    /**
+     * Return the maximum zoom level at which points are clustered. Past this
+     * zoom level, {@link #getClusters(int)} returns null.
+     * 
+     * @return The maximum zoom level points can be clustered at
+     */
+    public int getMaxClusteringZoom() {
+        return mMaxClusteringZoom;
+    }
+
+    /**
+     * Set the points to cluster. Point at index i is referred to as item i.
+     * All previously computed clusters are discarded.
+     * 
+     * @param latitudes The latitudes of the points (in microdegrees)
+     * @param longitudes The longitudes of the points (in microdegrees)
+     * @param count The number of points
+     */
+    public void setPoints(int[] latitudes, int[] longitudes, int count) {
+        if (count > MAX_POINTS) {
+            throw new IllegalArgumentException("Cannot cluster more than " + MAX_POINTS + " points");
+        }
+
+        clearChanges();
+        ensureItemCapacity(count);
+        if (mKeys.length < count) {
+            mKeys = new long[count];
+        }
+        System.arraycopy(latitudes, 0, mLatitudes, 0, count);
+        System.arraycopy(longitudes, 0, mLongitudes, 0, count);
+        final int itemCount = Math.max(count, mItemCount);
+        Arrays.fill(mIsPresent, 0, count, true);
+        Arrays.fill(mIsPresent, count, itemCount, false);
+        Arrays.fill(mItemKeys, count, itemCount, NO_KEY);
+
+        final long[] keys = mKeys;
+        for (int i = 0; i < count; i++) {
+            keys[i] = computeKey(i);
+            mItemKeys[i] = keys[i];
+        }
+        Arrays.sort(keys, 0, count);
+
+        mCount = count;
+        mItemCount = count;
+        Arrays.fill(mLevels, null);
+    }
+
+    /**
+     * Add a point or move an existing point. The change is applied the next
+     * time clusters are requested.
+     * 
+     * @param item The item referring to the point
+     * @param latitude The latitude of the point (in microdegrees)
+     * @param longitude The longitude of the point (in microdegrees)
+     */
+    public void setPoint(int item, int latitude, int longitude) {
+        if (item < 0 || item >= MAX_POINTS) {
+            throw new IllegalArgumentException("The item must be in the range [0, " + MAX_POINTS + "[");
+        }
+        ensureItemCapacity(item + 1);
+        if (item >= mItemCount) {
+            mItemCount = item + 1;
+        }
+        mLatitudes[item] = latitude;
+        mLongitudes[item] = longitude;
+        mIsPresent[item] = true;
+        onItemChanged(item);
+    }
+
+    /**
+     * Remove a point. The change is applied the next time clusters are
+     * requested.
+     * 
+     * @param item The item referring to the point
+     */
+    public void removePoint(int item) {
+        if (item < 0 || item >= mItemCount || !mIsPresent[item]) {
+            return;
+        }
+        mIsPresent[item] = false;
+        onItemChanged(item);
+    }
+
+    /**
+     * Renumber the items of this clusterer. The relative order of the items
+     * must be preserved (as when removing the "holes" of an array) so that
+     * the keys stay sorted and the cached clusters stay valid.
+     * 
+     * @param mapping The new item of each item. Removed items may be mapped
+     *            to a negative value.
+     */
+    public void renumber(int[] mapping) {
+        applyChanges();
+
+        final long[] keys = mKeys;
+        final int count = mCount;
+        for (int i = 0; i < count; i++) {
+            keys[i] = (keys[i] & ~ITEM_MASK) | mapping[(int) (keys[i] & ITEM_MASK)];
+        }
+
+        // Items only move towards the beginning of the arrays
+        int itemCount = 0;
+        for (int item = 0; item < mItemCount; item++) {
+            if (!mIsPresent[item]) {
+                continue;
+            }
+            final int newItem = mapping[item];
+            mLatitudes[newItem] = mLatitudes[item];
+            mLongitudes[newItem] = mLongitudes[item];
+            mItemKeys[newItem] = (mItemKeys[item] & ~ITEM_MASK) | newItem;
+            mIsPresent[newItem] = true;
+            itemCount = newItem + 1;
+        }
+        Arrays.fill(mIsPresent, itemCount, mItemCount, false);
+        Arrays.fill(mItemKeys, itemCount, mItemCount, NO_KEY);
+        mItemCount = itemCount;
+    }
+
+    /**
+     * Return the number of points in this clusterer. Pending changes are not
+     * taken into account.
+     * 
+     * @return The number of points
+     */
+    public int getPointCount() {
+        return mCount;
+    }
+
+    /**
+     * Return the item at the given rank in the Z-order. Members of a cluster
+     * are the items whose rank are in the range [start, start + size[.
+     * 
+     * @param rank The rank of the item
+     * @return The item at the given rank
+     */
+    public int getItem(int rank) {
+        return (int) (mKeys[rank] & ITEM_MASK);
+    }
+
+    /**
+     * Return the clusters at the given zoom level.
+     * 
+     * @param zoom The zoom level
+     * @return The clusters at the given zoom level or null if zoom is greater
+     *         than {@link #getMaxClusteringZoom()}.
+     */
+    public Clusters getClusters(int zoom) {
+        if (zoom < 0 || zoom > mMaxClusteringZoom) {
+            return null;
+        }
+        applyChanges();
+        Clusters clusters = mLevels[zoom];
+        if (clusters == null) {
+            clusters = computeClusters(zoom);
+            mLevels[zoom] = clusters;
+        }
+        return clusters;
+    }
+
+    private Clusters computeClusters(int zoom) {
+        final int cellShift = mCellSizeShift + Mercator.MAX_ZOOM - zoom - GRID_SHIFT;
+        final int keyShift = ITEM_BITS + 2 * cellShift;
+
+        final long[] keys = mKeys;
+        final int count = mCount;
+
+        // First pass: count the number of clusters
+        int clusterCount = 0;
+        long previousCell = -1;
+        for (int i = 0; i < count; i++) {
+            final long cell = keys[i] >>> keyShift;
+            if (cell != previousCell) {
+                clusterCount++;
+                previousCell = cell;
+            }
+        }
+
+        // Second pass: compute the clusters
+        final Clusters clusters = new Clusters(clusterCount);
+        int cluster = -1;
+        long latSum = 0;
+        long lonSum = 0;
+        previousCell = -1;
+        for (int i = 0; i < count; i++) {
+            final long cell = keys[i] >>> keyShift;
+            if (cell != previousCell) {
+                if (cluster >= 0) {
+                    clusters.finish(cluster, latSum, lonSum);
+                }
+                cluster++;
+                clusters.starts[cluster] = i;
+                latSum = lonSum = 0;
+                previousCell = cell;
+            }
+            final int item = (int) (keys[i] & ITEM_MASK);
+            latSum += mLatitudes[item];
+            lonSum += mLongitudes[item];
+            clusters.sizes[cluster]++;
+        }
+        if (cluster >= 0) {
+            clusters.finish(cluster, latSum, lonSum);
+        }
+
+        return clusters;
+    }
+
+    private void onItemChanged(int item) {
+        if (!mIsChanged[item]) {
+            mIsChanged[item] = true;
+            mChangedItems.add(item);
+        }
+    }
+
+    private void clearChanges() {
+        final int[] changed = mChangedItems.values();
+        final int changedCount = mChangedItems.size();
+        for (int i = 0; i < changedCount; i++) {
+            mIsChanged[changed[i]] = false;
+        }
+        mChangedItems.clear();
+    }
+
+    /**
+     * Merge the keys of the changed items with the sorted keys. Only the
+     * changed keys are sorted: the merge is a single linear pass.
+     */
+    private void applyChanges() {
+        final int changedCount = mChangedItems.size();
+        if (changedCount == 0) {
+            return;
+        }
+        if (mRemovedKeys.length < changedCount) {
+            mRemovedKeys = new long[changedCount];
+            mAddedKeys = new long[changedCount];
+        }
+        final long[] removed = mRemovedKeys;
+        final long[] added = mAddedKeys;
+        final int[] changed = mChangedItems.values();
+        int removedCount = 0;
+        int addedCount = 0;
+        for (int i = 0; i < changedCount; i++) {
+            final int item = changed[i];
+            mIsChanged[item] = false;
+            final long oldKey = mItemKeys[item];
+            final long newKey = mIsPresent[item] ? computeKey(item) : NO_KEY;
+            if (oldKey != newKey) {
+                if (oldKey != NO_KEY) {
+                    removed[removedCount++] = oldKey;
+                }
+                if (newKey != NO_KEY) {
+                    added[addedCount++] = newKey;
+                }
+                mItemKeys[item] = newKey;
+            }
+        }
+        mChangedItems.clear();
+        // Even a point staying in its cell moves the centroid of its cluster
+        Arrays.fill(mLevels, null);
+
+        if (removedCount == 0 && addedCount == 0) {
+            return;
+        }
+        Arrays.sort(removed, 0, removedCount);
+        Arrays.sort(added, 0, addedCount);
+
+        final int newCount = mCount - removedCount + addedCount;
+        if (mSpareKeys.length < newCount) {
+            mSpareKeys = new long[Math.max(newCount, mKeys.length)];
+        }
+        final long[] keys = mKeys;
+        final long[] newKeys = mSpareKeys;
+        final int count = mCount;
+        int r = 0;
+        int a = 0;
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            final long key = keys[i];
+            if (r < removedCount && key == removed[r]) {
+                r++;
+                continue;
+            }
+            while (a < addedCount && added[a] < key) {
+                newKeys[n++] = added[a++];
+            }
+            newKeys[n++] = key;
+        }
+        while (a < addedCount) {
+            newKeys[n++] = added[a++];
+        }
+
+        mSpareKeys = keys;
+        mKeys = newKeys;
+        mCount = n;
+    }
+
+    private long computeKey(int item) {
+        final int x = Mercator.longitudeToX(mLongitudes[item]) >>> GRID_SHIFT;
+        final int y = Mercator.latitudeToY(mLatitudes[item]) >>> GRID_SHIFT;
+        return (interleave(x, y) << ITEM_BITS) | item;
+    }
+
+    private void ensureItemCapacity(int minCapacity) {
+        final int oldCapacity = mLatitudes.length;
+        if (minCapacity > oldCapacity) {
+            final int capacity = Math.max(minCapacity, oldCapacity * 2);
+            mLatitudes = grow(mLatitudes, capacity);
+            mLongitudes = grow(mLongitudes, capacity);
+
+            final boolean[] isPresent = new boolean[capacity];
+            System.arraycopy(mIsPresent, 0, isPresent, 0, oldCapacity);
+            mIsPresent = isPresent;
+            final boolean[] isChanged = new boolean[capacity];
+            System.arraycopy(mIsChanged, 0, isChanged, 0, oldCapacity);
+            mIsChanged = isChanged;
+
+            final long[] itemKeys = new long[capacity];
+            System.arraycopy(mItemKeys, 0, itemKeys, 0, oldCapacity);
+            Arrays.fill(itemKeys, oldCapacity, capacity, NO_KEY);
+            mItemKeys = itemKeys;
+        }
+    }
+
+    private static int[] grow(int[] array, int capacity) {
+        final int[] newArray = new int[capacity];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+
+    /**
+     * Interleave the bits of two 21-bits values
+     */
+    private static long interleave(int x, int y) {
+        return spread(x) | (spread(y) << 1);
+    }
+
+    private static long spread(int value) {
+        long v = value & 0x1FFFFFL;
+        v = (v | (v << 16)) & 0x0000FFFF0000FFFFL;
+        v = (v | (v << 8)) & 0x00FF00FF00FF00FFL;
+        v = (v | (v << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        v = (v | (v << 2)) & 0x3333333333333333L;
+        v = (v | (v << 1)) & 0x5555555555555555L;
+        return v;
+    }
+
+    /**
+     * The set of clusters computed for a given zoom level. The position of a
+     * cluster is the centroid of its members.
+     * 
+     * @author Cyril Mottier
+     */
+    public static final class Clusters {
+
+        private static final long FULL_LONGITUDE_SPAN = 360000000L;
+
+        private final int mCount;
+        final int[] starts;
+        final int[] sizes;
+        final int[] latitudes;
+        final int[] longitudes;
+
+        Clusters(int count) {
+            mCount = count;
+            starts = new int[count];
+            sizes = new int[count];
+            latitudes = new int[count];
+            longitudes = new int[count];
+        }
+
+        void finish(int cluster, long latSum, long lonSum) {
+            latitudes[cluster] = (int) (latSum / sizes[cluster]);
+            longitudes[cluster] = (int) (lonSum / sizes[cluster]);
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * Return the rank of the first member of the given cluster.
+         * 
+         * @see AnnotationClusterer#getItem(int)
+         */
+        public int getStart(int cluster) {
+            return starts[cluster];
+        }
+
+        public int getSize(int cluster) {
+            return sizes[cluster];
+        }
+
+        public int getLatitude(int cluster) {
+            return latitudes[cluster];
+        }
+
+        public int getLongitude(int cluster) {
+            return longitudes[cluster];
+        }
+
+        /**
+         * Append to <code>out</code> the clusters whose position is in the
+         * given bounds. Longitudes may be outside of the [-180, 180] degrees
+         * range in which case the query wraps around the antimeridian.
+         */
+        public void query(int minLat, int minLon, int maxLat, int maxLon, IntArray out) {
+            final long lonSpan = (long) maxLon - minLon;
+            final boolean allLongitudes = lonSpan >= FULL_LONGITUDE_SPAN;
+            final int count = mCount;
+            for (int i = 0; i < count; i++) {
+                final int lat = latitudes[i];
+                if (lat < minLat || lat > maxLat) {
+                    continue;
+                }
+                if (!allLongitudes) {
+                    long delta = (longitudes[i] - (long) minLon) % FULL_LONGITUDE_SPAN;
+                    if (delta < 0) {
+                        delta += FULL_LONGITUDE_SPAN;
+                    }
+                    if (delta > lonSpan) {
+                        continue;
+                    }
+                }
+                out.add(i);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.internal;
+
+import java.util.Arrays;
+
+/**
+ * The annotations of an area of the map, projected and sorted in drawing
+ * order. A frame is prepared once for a given center and scale and can then
+ * be drawn at any position close to its center: drawing it only consists in
+ * translating (and scaling when the map is being zoomed) the projected
+ * coordinates.
+ * <p>
+ * The area covered by a frame is centered on the projection center and
+ * extends over a given horizontal and vertical radius. Annotations are
+ * stored in flat primitive arrays, from north to south (the annotation
+ * position being used as a tie-breaker), just like they are drawn by
+ * {@link AnnotationsOverlay}. Their coordinates are in pixels, relatively to
+ * the projection center.
+ * </p>
+ * <p>
+ * This class has no dependency on the Android framework.
+ * </p>
+ * 
+ * @author Cyril Mottier
+ */
+public class AnnotationFrame {
+
+    private static final long WORLD_SIZE = Mercator.MAX_WORLD_SIZE;
+
+    private int mGeneration = -1;
+    private int mZoom = -1;
+    private int mCenterX;
+    private int mCenterY;
+    private double mScale;
+    private long mRadiusX;
+    private long mRadiusY;
+
+    private int mCount;
+    private int[] mPositions = new int[0];
+    private int[] mXs = new int[0];
+    private int[] mYs = new int[0];
+    private long[] mDrawOrder = new long[0];
+
+    /**
+     * Set the projection of this frame. The annotations must be given again
+     * with {@link #prepare(int[], int[], int[], int[], int)} afterwards.
+     * 
+     * @param generation An arbitrary value identifying the version of the
+     *            annotations the frame is prepared from
+     * @param zoom The Mercator zoom level the frame is prepared for
+     * @param centerX The horizontal Mercator coordinate of the projection
+     *            center at {@link Mercator#MAX_ZOOM}
+     * @param centerY The vertical Mercator coordinate of the projection
+     *            center at {@link Mercator#MAX_ZOOM}
+     * @param scale The number of pixels per Mercator pixel at
+     *            {@link Mercator#MAX_ZOOM}
+     * @param radiusX The horizontal distance from the center, in Mercator
+     *            units at {@link Mercator#MAX_ZOOM}, up to which annotations
+     *            are kept
+     * @param radiusY The vertical distance from the center up to which
+     *            annotations are kept
+     */
+    public void set(int generation, int zoom, int centerX, int centerY, double scale, long radiusX, long radiusY) {
+        mGeneration = generation;
+        mZoom = zoom;
+        mCenterX = centerX;
+        mCenterY = centerY;
+        mScale = scale;
+        mRadiusX = radiusX;
+        mRadiusY = radiusY;
+        mCount = 0;
+    }
+
+    /**
+     * Keep the annotations located in the area covered by this frame, project
+     * and sort them.
+     * 
+     * @param latitudes The latitudes of the annotations. They are only used
+     *            to sort the annotations.
+     * @param xs The horizontal Mercator coordinates of the annotations at
+     *            {@link Mercator#MAX_ZOOM}
+     * @param ys The vertical Mercator coordinates of the annotations at
+     *            {@link Mercator#MAX_ZOOM}
+     * @param markerTypes The marker types of the annotations. Annotations
+     *            with a negative marker type are ignored.
+     * @param count The number of annotations. The position of an annotation
+     *            is its index in the given arrays.
+     */
+    public void prepare(int[] latitudes, int[] xs, int[] ys, int[] markerTypes, int count) {
+        if (mDrawOrder.length < count) {
+            mDrawOrder = new long[count];
+        }
+        final long[] drawOrder = mDrawOrder;
+        final long centerX = mCenterX;
+        final long centerY = mCenterY;
+        final long radiusX = mRadiusX;
+        final long radiusY = mRadiusY;
+
+        int keptCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (markerTypes[i] < 0) {
+                continue;
+            }
+            final long dy = ys[i] - centerY;
+            if (dy < -radiusY || dy > radiusY) {
+                continue;
+            }
+            if (Math.abs(wrap(xs[i] - centerX)) > radiusX) {
+                continue;
+            }
+            // Same key as the one used by AnnotationsOverlay
+            final long northToSouth = AnnotationIndex.MAX_LATITUDE - latitudes[i];
+            drawOrder[keptCount++] = (northToSouth << 32) | i;
+        }
+        Arrays.sort(drawOrder, 0, keptCount);
+
+        ensureCapacity(keptCount);
+        final int[] positions = mPositions;
+        final int[] keptXs = mXs;
+        final int[] keptYs = mYs;
+        final double scale = mScale;
+        for (int i = 0; i < keptCount; i++) {
+            final int position = (int) drawOrder[i];
+            positions[i] = position;
+            keptXs[i] = (int) Math.round(wrap(xs[position] - centerX) * scale);
+            keptYs[i] = (int) Math.round((ys[position] - centerY) * scale);
+        }
+        mCount = keptCount;
+    }
+
+    /**
+     * Check whether this frame contains all the annotations located in the
+     * given area.
+     * 
+     * @param centerX The horizontal Mercator coordinate of the center of the
+     *            area at {@link Mercator#MAX_ZOOM}. It may be outside of the
+     *            world.
+     * @param centerY The vertical Mercator coordinate of the center of the
+     *            area
+     * @param halfWidth Half of the width of the area in Mercator units at
+     *            {@link Mercator#MAX_ZOOM}
+     * @param halfHeight Half of the height of the area
+     * @return true if the area is covered by this frame, false otherwise
+     */
+    public boolean covers(long centerX, long centerY, long halfWidth, long halfHeight) {
+        if (mZoom == -1) {
+            return false;
+        }
+        final boolean coversX = mRadiusX >= WORLD_SIZE / 2 || Math.abs(wrap(centerX - mCenterX)) + halfWidth <= mRadiusX;
+        return coversX && Math.abs(centerY - mCenterY) + halfHeight <= mRadiusY;
+    }
+
+    /**
+     * Return the copy of the projection center the closest to the given
+     * horizontal coordinate. This is the point the horizontal coordinates of
+     * this frame are relative to when drawn around the given coordinate.
+     * 
+     * @param x An horizontal Mercator coordinate at {@link Mercator#MAX_ZOOM}
+     * @return The horizontal Mercator coordinate of the projection center. It
+     *         may be outside of the world.
+     */
+    public long getCenterX(long x) {
+        return x - wrap(x - mCenterX);
+    }
+
+    public int getCenterY() {
+        return mCenterY;
+    }
+
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    public int getZoom() {
+        return mZoom;
+    }
+
+    public double getScale() {
+        return mScale;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return The positions of the annotations in drawing order. The returned
+     *         array must not be modified.
+     */
+    public int[] getPositions() {
+        return mPositions;
+    }
+
+    /**
+     * @return The horizontal position (in pixels, relatively to the projection
+     *         center) of the annotations. The returned array must not be
+     *         modified.
+     */
+    public int[] getXs() {
+        return mXs;
+    }
+
+    /**
+     * @return The vertical position (in pixels, relatively to the projection
+     *         center) of the annotations. The returned array must not be
+     *         modified.
+     */
+    public int[] getYs() {
+        return mYs;
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        if (mPositions.length < minCapacity) {
+            final int capacity = Math.max(minCapacity, mPositions.length * 2);
+            mPositions = new int[capacity];
+            mXs = new int[capacity];
+            mYs = new int[capacity];
+        }
+    }
+
+    /**
+     * Wrap an horizontal distance in the [-WORLD_SIZE / 2, WORLD_SIZE / 2[
+     * range.
+     */
+    private static long wrap(long dx) {
+        if (dx >= WORLD_SIZE / 2) {
+            return dx - WORLD_SIZE * ((dx + WORLD_SIZE / 2) / WORLD_SIZE);
+        } else if (dx < -WORLD_SIZE / 2) {
+            return dx + WORLD_SIZE * ((WORLD_SIZE / 2 - 1 - dx) / WORLD_SIZE);
+        }
+        return dx;
+    }
+
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.internal;
+
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Prepares {@link AnnotationFrame}s on a background thread. A frame covers
+ * the visible region extended by one screen in every direction so that it
+ * can be drawn while the map is being panned. A new frame is requested when
+ * the visible region moves more than half a screen away from the center of
+ * the last requested frame, when the zoom level changes or when the
+ * annotations change.
+ * <p>
+ * The background thread works on its own snapshot of the annotations. A
+ * snapshot is only requested (see
+ * {@link #update(MercatorProjector, int, int, int, Rect, int)}) when the
+ * annotations changed since the previous one and frames are only prepared
+ * once the snapshot matching the requested generation has been given. Only
+ * one task is in flight at a time: a frame requested meanwhile is prepared
+ * once the current task is done.
+ * </p>
+ * <p>
+ * Snapshots are copied into buffers owned by this preparer. Just like the
+ * frames, two sets of buffers are used: the background thread reads the
+ * snapshot of the running task while the UI thread writes the next one. They
+ * are swapped when a new snapshot is handed over to the task so that no
+ * array is allocated once the buffers are large enough.
+ * </p>
+ * <p>
+ * Two frames are used: the background thread prepares the back frame while
+ * the UI thread draws the front one. They are swapped on the UI thread once a
+ * task is done. The UI thread hence never waits for the background thread: it
+ * draws the last completed frame (if it is still valid) or falls back to
+ * projecting the annotations itself.
+ * </p>
+ * <p>
+ * All methods must be called from the UI thread.
+ * </p>
+ * 
+ * @author Cyril Mottier
+ */
+public class AnnotationFramePreparer {
+
+    /**
+     * @author Cyril Mottier
+     */
+    public interface WolverineCallback {
+        void onFramePrepared();
+    }
+
+    private static final long WORLD_SIZE = Mercator.MAX_WORLD_SIZE;
+
+    private final WolverineCallback mCallback;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private HandlerThread mWorkerThread;
+    private Handler mWorkerHandler;
+    private boolean mIsQuit;
+
+    private final FrameTask mTask = new FrameTask();
+    private boolean mIsTaskRunning;
+
+    /*
+     * The frame requested by the last call to update(). A request is pending
+     * until it has been handed over to the task.
+     */
+    private boolean mIsRequestPending;
+    private int mGeneration = -1;
+    private int mZoom = -1;
+    private int mCenterX;
+    private int mCenterY;
+    private double mScale;
+    private long mRadiusX;
+    private long mRadiusY;
+    private long mRecenterDistanceX;
+    private long mRecenterDistanceY;
+
+    /*
+     * The snapshot waiting for the task to be available and the generation
+     * of the last given snapshot. The buffers are those of the snapshot
+     * previously handed over to the task when no snapshot is pending.
+     */
+    private int[] mSnapshotLatitudes = new int[0];
+    private int[] mSnapshotLongitudes = new int[0];
+    private int[] mSnapshotMarkerTypes = new int[0];
+    private int mSnapshotCount;
+    private boolean mIsSnapshotPending;
+    private int mSnapshotGeneration = -1;
+
+    /*
+     * Only accessed by the background thread while a task is running and by
+     * the UI thread when the task is done.
+     */
+    private AnnotationFrame mFrontFrame = new AnnotationFrame();
+    private AnnotationFrame mBackFrame = new AnnotationFrame();
+
+    public AnnotationFramePreparer(WolverineCallback callback) {
+        if (callback == null) {
+            throw new IllegalArgumentException("The given " + WolverineCallback.class.getSimpleName() + " cannot be null");
+        }
+        mCallback = callback;
+    }
+
+    /**
+     * Request a new frame if the last requested one doesn't match the visible
+     * region anymore. When the annotations changed since the last snapshot,
+     * the frame is only prepared once a new snapshot has been given with
+     * {@link #setAnnotations(int[], int[], int[], int, int)}.
+     * 
+     * @param projector A projector matching the MapView rendering
+     * @param zoom The Mercator zoom level
+     * @param width The width of the MapView
+     * @param height The height of the MapView
+     * @param drawingBounds The bounds of the markers relatively to their
+     *            anchor
+     * @param generation The current version of the annotations
+     * @return true if the snapshot of the annotations is outdated, false
+     *         otherwise
+     */
+    public boolean update(MercatorProjector projector, int zoom, int width, int height, Rect drawingBounds, int generation) {
+        final long centerX = projector.unprojectX(width / 2);
+        final long centerY = projector.unprojectY(height / 2);
+        //@formatter:off
+        if (generation == mGeneration
+                && zoom == mZoom
+                && Math.abs(centerX - getCenterX(centerX)) <= mRecenterDistanceX
+                && Math.abs(centerY - mCenterY) <= mRecenterDistanceY) {
+            return generation != mSnapshotGeneration;
+        }
+        //@formatter:on
+
+        // Cover the visible region extended by its size in every direction.
+        // Markers anchored outside of the region may still be visible.
+        final double scale = projector.getScale();
+        final int guardX = Math.max(Math.abs(drawingBounds.left), Math.abs(drawingBounds.right));
+        final int guardY = Math.max(Math.abs(drawingBounds.top), Math.abs(drawingBounds.bottom));
+        mIsRequestPending = true;
+        mGeneration = generation;
+        mZoom = zoom;
+        mCenterX = (int) (centerX - WORLD_SIZE * (long) Math.floor((double) centerX / WORLD_SIZE));
+        mCenterY = (int) Math.max(0, Math.min(WORLD_SIZE - 1, centerY));
+        mScale = scale;
+        mRadiusX = (long) Math.ceil((width / 2 + width + guardX) / scale);
+        mRadiusY = (long) Math.ceil((height / 2 + height + guardY) / scale);
+        mRecenterDistanceX = (long) ((width / 2) / scale);
+        mRecenterDistanceY = (long) ((height / 2) / scale);
+
+        if (generation != mSnapshotGeneration) {
+            // The frame waits for a snapshot of this generation
+            return true;
+        }
+        scheduleTask();
+        return false;
+    }
+
+    /**
+     * Give a new snapshot of the annotations. The given arrays are copied and
+     * can be modified afterwards.
+     * 
+     * @param latitudes The latitudes of the annotations
+     * @param longitudes The longitudes of the annotations
+     * @param markerTypes The marker types of the annotations (negative for
+     *            removed annotations)
+     * @param count The number of annotations
+     * @param generation The version of the annotations
+     */
+    public void setAnnotations(int[] latitudes, int[] longitudes, int[] markerTypes, int count, int generation) {
+        if (mSnapshotLatitudes.length < count) {
+            final int capacity = Math.max(count, mSnapshotLatitudes.length * 2);
+            mSnapshotLatitudes = new int[capacity];
+            mSnapshotLongitudes = new int[capacity];
+            mSnapshotMarkerTypes = new int[capacity];
+        }
+        System.arraycopy(latitudes, 0, mSnapshotLatitudes, 0, count);
+        System.arraycopy(longitudes, 0, mSnapshotLongitudes, 0, count);
+        System.arraycopy(markerTypes, 0, mSnapshotMarkerTypes, 0, count);
+        mSnapshotCount = count;
+        mSnapshotGeneration = generation;
+        mIsSnapshotPending = true;
+        scheduleTask();
+    }
+
+    /**
+     * @return The last prepared frame. It may not match the current
+     *         annotations or the visible region.
+     */
+    public AnnotationFrame getFrame() {
+        return mFrontFrame;
+    }
+
+    /**
+     * Stop the background thread and release the frames. This preparer can't
+     * be used afterwards.
+     */
+    public void quit() {
+        mIsQuit = true;
+        mFrontFrame = new AnnotationFrame();
+        mIsSnapshotPending = false;
+        mSnapshotLatitudes = null;
+        mSnapshotLongitudes = null;
+        mSnapshotMarkerTypes = null;
+        if (mWorkerThread != null) {
+            // The running task (if any) completes but is never delivered
+            mWorkerHandler.removeCallbacks(mTask);
+            mWorkerThread.quit();
+            mWorkerThread = null;
+            mWorkerHandler = null;
+        }
+    }
+
+    private long getCenterX(long x) {
+        // The copy of the frame center the closest to x
+        return x - Math.round((double) (x - mCenterX) / WORLD_SIZE) * WORLD_SIZE;
+    }
+
+    private void scheduleTask() {
+        if (mIsTaskRunning || mIsQuit || !mIsRequestPending || mGeneration != mSnapshotGeneration) {
+            return;
+        }
+        final FrameTask task = mTask;
+        task.mIsNewSnapshot = mIsSnapshotPending;
+        if (task.mIsNewSnapshot) {
+            // The task is not running: the buffers of its previous snapshot
+            // can safely be reused by the next snapshot
+            final int[] latitudes = task.mLatitudes;
+            final int[] longitudes = task.mLongitudes;
+            final int[] markerTypes = task.mMarkerTypes;
+            task.mLatitudes = mSnapshotLatitudes;
+            task.mLongitudes = mSnapshotLongitudes;
+            task.mMarkerTypes = mSnapshotMarkerTypes;
+            task.mCount = mSnapshotCount;
+            mSnapshotLatitudes = latitudes;
+            mSnapshotLongitudes = longitudes;
+            mSnapshotMarkerTypes = markerTypes;
+            mIsSnapshotPending = false;
+        }
+        task.mGeneration = mGeneration;
+        task.mZoom = mZoom;
+        task.mCenterX = mCenterX;
+        task.mCenterY = mCenterY;
+        task.mScale = mScale;
+        task.mRadiusX = mRadiusX;
+        task.mRadiusY = mRadiusY;
+
+        mIsRequestPending = false;
+        mIsTaskRunning = true;
+        ensureWorkerHandler().post(task);
+    }
+
+    private Handler ensureWorkerHandler() {
+        if (mWorkerHandler == null) {
+            // Contrary to the other background threads of the library, frames
+            // are expected to be drawn as soon as possible
+            mWorkerThread = new HandlerThread("Polaris-AnnotationFramePreparer", Process.THREAD_PRIORITY_DISPLAY);
+            mWorkerThread.start();
+            mWorkerHandler = new Handler(mWorkerThread.getLooper());
+        }
+        return mWorkerHandler;
+    }
+
+    private final Runnable mSwapRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mIsQuit) {
+                return;
+            }
+            final AnnotationFrame frame = mFrontFrame;
+            mFrontFrame = mBackFrame;
+            mBackFrame = frame;
+
+            mIsTaskRunning = false;
+            mCallback.onFramePrepared();
+            scheduleTask();
+        }
+    };
+
+    private class FrameTask implements Runnable {
+
+        private boolean mIsNewSnapshot;
+        private int[] mLatitudes = new int[0];
+        private int[] mLongitudes = new int[0];
+        private int[] mMarkerTypes = new int[0];
+        private int mCount;
+        private int mGeneration;
+        private int mZoom;
+        private int mCenterX;
+        private int mCenterY;
+        private double mScale;
+        private long mRadiusX;
+        private long mRadiusY;
+
+        /*
+         * The Mercator coordinates of the annotations of the snapshot. They
+         * are computed once per snapshot.
+         */
+        private int[] mXs = new int[0];
+        private int[] mYs = new int[0];
+
+        @Override
+        public void run() {
+            // Executed on the worker thread
+            final int count = mCount;
+            if (mIsNewSnapshot) {
+                if (mXs.length < count) {
+                    mXs = new int[count];
+                    mYs = new int[count];
+                }
+                final int[] latitudes = mLatitudes;
+                final int[] longitudes = mLongitudes;
+                for (int i = 0; i < count; i++) {
+                    mXs[i] = Mercator.longitudeToX(longitudes[i]);
+                    mYs[i] = Mercator.latitudeToY(latitudes[i]);
+                }
+            }
+
+            final AnnotationFrame frame = mBackFrame;
+            frame.set(mGeneration, mZoom, mCenterX, mCenterY, mScale, mRadiusX, mRadiusY);
+            frame.prepare(mLatitudes, mXs, mYs, mMarkerTypes, count);
+
+            mHandler.post(mSwapRunnable);
+        }
+    }
+
+}
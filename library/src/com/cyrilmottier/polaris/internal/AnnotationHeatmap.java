@@ -0,0 +1,530 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.internal;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import com.cyrilmottier.polaris.R;
+
+/**
+ * Draws annotations as a heatmap. The kernel density of the annotations is
+ * accumulated in a low resolution {@link HeatmapGrid} covering the visible
+ * region extended by one screen in every direction. The grid is colorized
+ * through a gradient into a {@link Bitmap} (a pixel per cell) which is
+ * stretched over the map when drawn.
+ * <p>
+ * All the computations are done on a background thread. Only one task is in
+ * flight at a time: changes requested meanwhile are queued and sent to the
+ * background thread once the current task is done. A task either rebuilds the
+ * grid from a snapshot of the annotations (when the zoom level changes or
+ * when the visible region leaves the covered area) or applies the annotations
+ * added and removed since the last task. In the latter case, only the
+ * affected cells are colorized again.
+ * </p>
+ * <p>
+ * Snapshots are written into buffers owned by the heatmap. Two sets of
+ * buffers are used: the background thread reads the snapshot of the running
+ * task while the UI thread writes the next one. They are swapped when a
+ * snapshot is handed over to the task so that no array is allocated once the
+ * buffers are large enough.
+ * </p>
+ * <p>
+ * Two Bitmaps are used: the background thread updates the back Bitmap while
+ * the UI thread draws the front one. They are swapped on the UI thread once a
+ * task is done. The back Bitmap is hence always one update late: the cells
+ * modified by the previous update are written again along with the ones of
+ * the current update.
+ * </p>
+ * <p>
+ * All methods must be called from the UI thread.
+ * </p>
+ * 
+ * @author Cyril Mottier
+ */
+public class AnnotationHeatmap {
+
+    /**
+     * @author Cyril Mottier
+     */
+    public interface CyclopsCallback {
+        void onHeatmapUpdated();
+    }
+
+    private static final int GRADIENT_SIZE = 256;
+
+    private final CyclopsCallback mCallback;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private HandlerThread mWorkerThread;
+    private Handler mWorkerHandler;
+    private boolean mIsQuit;
+
+    private final int mCellSize;
+    private final int[] mGradient;
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mTempRect = new Rect();
+
+    private final HeatmapTask mTask = new HeatmapTask();
+    private boolean mIsTaskRunning;
+
+    /*
+     * The changes waiting for the task to be available. Added and removed
+     * annotations are stored as (latitude, longitude) pairs. The rebuild
+     * buffers are those of the snapshot previously handed over to the task
+     * when no rebuild is pending.
+     */
+    private boolean mIsRebuildPending;
+    private int[] mRebuildLatitudes = new int[0];
+    private int[] mRebuildLongitudes = new int[0];
+    private int mRebuildCount;
+    private IntArray mAddedPoints = new IntArray();
+    private IntArray mRemovedPoints = new IntArray();
+
+    /*
+     * The grid requested by the last rebuild and the area (in Mercator units
+     * at Mercator.MAX_ZOOM) it covers
+     */
+    private int mZoom = -1;
+    private int mGridCellSize;
+    private int mGridFirstColumn;
+    private int mGridFirstRow;
+    private int mGridColumnCount;
+    private int mGridRowCount;
+    private long mCoveredMinX;
+    private long mCoveredMinY;
+    private long mCoveredMaxX;
+    private long mCoveredMaxY;
+
+    /*
+     * The Bitmap currently drawn and the grid it has been colorized from
+     */
+    private Bitmap mFrontBitmap;
+    private int mFrontCellSize;
+    private int mFrontFirstColumn;
+    private int mFrontFirstRow;
+
+    /*
+     * Only accessed by the background thread while a task is running and by
+     * the UI thread when the task is done.
+     */
+    private final HeatmapGrid mGrid;
+    private Bitmap mBackBitmap;
+    private int[] mPixels = new int[0];
+    private int mPreviousDirtyLeft = Integer.MAX_VALUE;
+    private int mPreviousDirtyTop = Integer.MAX_VALUE;
+    private int mPreviousDirtyRight = Integer.MIN_VALUE;
+    private int mPreviousDirtyBottom = Integer.MIN_VALUE;
+
+    public AnnotationHeatmap(Context context, CyclopsCallback callback) {
+        if (callback == null) {
+            throw new IllegalArgumentException("The given " + CyclopsCallback.class.getSimpleName() + " cannot be null");
+        }
+        mCallback = callback;
+
+        final Resources res = context.getResources();
+        mCellSize = Math.max(1, res.getDimensionPixelSize(R.dimen.polaris__heatmap_cell_size));
+        mGrid = new HeatmapGrid(Math.round(res.getDimension(R.dimen.polaris__heatmap_radius) / mCellSize));
+        //@formatter:off
+        mGradient = createGradient(new int[] {
+                res.getColor(R.color.polaris__heatmap_cold),
+                res.getColor(R.color.polaris__heatmap_warm),
+                res.getColor(R.color.polaris__heatmap_hot)
+        });
+        //@formatter:on
+    }
+
+    /**
+     * Check whether the heatmap covers the visible region at the given zoom
+     * level. If it doesn't, a new grid is set up and the caller must provide
+     * a snapshot of the annotations with {@link #rebuild(int)}.
+     * 
+     * @param projector A projector matching the MapView rendering
+     * @param zoom The Mercator zoom level
+     * @param width The width of the MapView
+     * @param height The height of the MapView
+     * @return true if the annotations must be given again, false otherwise
+     */
+    public boolean update(MercatorProjector projector, int zoom, int width, int height) {
+        final long minX = projector.unprojectX(0);
+        final long minY = projector.unprojectY(0);
+        final long maxX = projector.unprojectX(width);
+        final long maxY = projector.unprojectY(height);
+        //@formatter:off
+        if (zoom == mZoom
+                && minX >= mCoveredMinX
+                && minY >= mCoveredMinY
+                && maxX <= mCoveredMaxX
+                && maxY <= mCoveredMaxY) {
+            return false;
+        }
+        //@formatter:on
+
+        // Cover the visible region extended by its size in every direction
+        final long cellSize = (long) mCellSize << (Mercator.MAX_ZOOM - zoom);
+        final long worldCellCount = (Mercator.MAX_WORLD_SIZE + cellSize - 1) / cellSize;
+        final long firstColumn = floorDiv(minX - (maxX - minX), cellSize);
+        final long lastColumn = floorDiv(maxX + (maxX - minX), cellSize);
+        final long firstRow = Math.max(0, floorDiv(minY - (maxY - minY), cellSize));
+        final long lastRow = Math.min(worldCellCount - 1, floorDiv(maxY + (maxY - minY), cellSize));
+
+        mZoom = zoom;
+        mGridCellSize = (int) cellSize;
+        mGridFirstColumn = (int) firstColumn;
+        mGridFirstRow = (int) firstRow;
+        mGridColumnCount = (int) Math.min(worldCellCount, lastColumn - firstColumn + 1);
+        mGridRowCount = (int) Math.max(0, lastRow - firstRow + 1);
+
+        // The edges of the world are always covered
+        final boolean isWorldWide = lastColumn - firstColumn + 1 >= worldCellCount;
+        mCoveredMinX = isWorldWide ? Long.MIN_VALUE : firstColumn * cellSize;
+        mCoveredMaxX = isWorldWide ? Long.MAX_VALUE : (lastColumn + 1) * cellSize;
+        mCoveredMinY = firstRow == 0 ? Long.MIN_VALUE : firstRow * cellSize;
+        mCoveredMaxY = lastRow == worldCellCount - 1 ? Long.MAX_VALUE : (lastRow + 1) * cellSize;
+        return true;
+    }
+
+    /**
+     * Return the buffer the latitudes of the next snapshot must be written to
+     * before calling {@link #rebuild(int)}.
+     * 
+     * @param count The number of annotations of the snapshot
+     * @return An array containing at least count elements
+     */
+    public int[] getSnapshotLatitudes(int count) {
+        if (mRebuildLatitudes.length < count) {
+            mRebuildLatitudes = new int[Math.max(count, mRebuildLatitudes.length * 2)];
+        }
+        return mRebuildLatitudes;
+    }
+
+    /**
+     * Return the buffer the longitudes of the next snapshot must be written
+     * to before calling {@link #rebuild(int)}.
+     * 
+     * @param count The number of annotations of the snapshot
+     * @return An array containing at least count elements
+     */
+    public int[] getSnapshotLongitudes(int count) {
+        if (mRebuildLongitudes.length < count) {
+            mRebuildLongitudes = new int[Math.max(count, mRebuildLongitudes.length * 2)];
+        }
+        return mRebuildLongitudes;
+    }
+
+    /**
+     * Rebuild the heatmap from scratch using the snapshot written to the
+     * buffers returned by {@link #getSnapshotLatitudes(int)} and
+     * {@link #getSnapshotLongitudes(int)}. The changes previously notified
+     * are discarded as they are expected to be part of the snapshot.
+     * 
+     * @param count The number of annotations
+     */
+    public void rebuild(int count) {
+        mIsRebuildPending = true;
+        mRebuildCount = count;
+        mAddedPoints.clear();
+        mRemovedPoints.clear();
+        scheduleTask();
+    }
+
+    /**
+     * Notify the heatmap an annotation has been added.
+     */
+    public void add(int latitudeE6, int longitudeE6) {
+        if (mZoom == -1) {
+            // The annotation will be part of the first rebuild
+            return;
+        }
+        mAddedPoints.add(latitudeE6);
+        mAddedPoints.add(longitudeE6);
+        scheduleTask();
+    }
+
+    /**
+     * Notify the heatmap an annotation has been removed.
+     */
+    public void remove(int latitudeE6, int longitudeE6) {
+        if (mZoom == -1) {
+            return;
+        }
+        mRemovedPoints.add(latitudeE6);
+        mRemovedPoints.add(longitudeE6);
+        scheduleTask();
+    }
+
+    /**
+     * Draw the last computed heatmap.
+     * 
+     * @param canvas The Canvas to draw on
+     * @param projector A projector matching the MapView rendering
+     * @param width The width of the MapView
+     * @param height The height of the MapView
+     */
+    public void draw(Canvas canvas, MercatorProjector projector, int width, int height) {
+        final Bitmap bitmap = mFrontBitmap;
+        if (bitmap == null) {
+            return;
+        }
+        final long cellSize = mFrontCellSize;
+        final long minX = mFrontFirstColumn * cellSize;
+        final long minY = mFrontFirstRow * cellSize;
+        final long maxX = minX + bitmap.getWidth() * cellSize;
+        final long maxY = minY + bitmap.getHeight() * cellSize;
+        final Rect bounds = mTempRect;
+
+        // A grid covering the whole world may have to be drawn twice when the
+        // antimeridian is visible
+        for (long offset = -Mercator.MAX_WORLD_SIZE; offset <= Mercator.MAX_WORLD_SIZE; offset += Mercator.MAX_WORLD_SIZE) {
+            //@formatter:off
+            bounds.set(
+                    projector.projectX(minX + offset),
+                    projector.projectY(minY),
+                    projector.projectX(maxX + offset),
+                    projector.projectY(maxY));
+            //@formatter:on
+            if (bounds.intersects(0, 0, width, height)) {
+                canvas.drawBitmap(bitmap, null, bounds, mPaint);
+            }
+        }
+    }
+
+    /**
+     * Stop the background thread and release the Bitmaps. This heatmap can't
+     * be used afterwards.
+     */
+    public void quit() {
+        mIsQuit = true;
+        mFrontBitmap = null;
+        mIsRebuildPending = false;
+        mRebuildLatitudes = null;
+        mRebuildLongitudes = null;
+        if (mWorkerThread != null) {
+            // The running task (if any) completes but is never delivered
+            mWorkerHandler.removeCallbacks(mTask);
+            mWorkerThread.quit();
+            mWorkerThread = null;
+            mWorkerHandler = null;
+        }
+    }
+
+    private void scheduleTask() {
+        if (mIsTaskRunning || mIsQuit) {
+            return;
+        }
+        final HeatmapTask task = mTask;
+        task.mIsRebuild = mIsRebuildPending;
+        if (!task.mIsRebuild && mAddedPoints.size() == 0 && mRemovedPoints.size() == 0) {
+            return;
+        }
+        if (task.mIsRebuild) {
+            // The task is not running: the buffers of its previous snapshot
+            // can safely be reused by the next snapshot
+            final int[] latitudes = task.mLatitudes;
+            final int[] longitudes = task.mLongitudes;
+            task.mLatitudes = mRebuildLatitudes;
+            task.mLongitudes = mRebuildLongitudes;
+            task.mCount = mRebuildCount;
+            task.mCellSize = mGridCellSize;
+            task.mFirstColumn = mGridFirstColumn;
+            task.mFirstRow = mGridFirstRow;
+            task.mColumnCount = mGridColumnCount;
+            task.mRowCount = mGridRowCount;
+            mRebuildLatitudes = latitudes;
+            mRebuildLongitudes = longitudes;
+            mIsRebuildPending = false;
+        }
+
+        // The pending changes are handed over to the task
+        IntArray points = task.mAddedPoints;
+        points.clear();
+        task.mAddedPoints = mAddedPoints;
+        mAddedPoints = points;
+        points = task.mRemovedPoints;
+        points.clear();
+        task.mRemovedPoints = mRemovedPoints;
+        mRemovedPoints = points;
+
+        mIsTaskRunning = true;
+        ensureWorkerHandler().post(task);
+    }
+
+    private Handler ensureWorkerHandler() {
+        if (mWorkerHandler == null) {
+            mWorkerThread = new HandlerThread("Polaris-AnnotationHeatmap", Process.THREAD_PRIORITY_BACKGROUND);
+            mWorkerThread.start();
+            mWorkerHandler = new Handler(mWorkerThread.getLooper());
+        }
+        return mWorkerHandler;
+    }
+
+    private final Runnable mSwapRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mIsQuit) {
+                return;
+            }
+            final Bitmap bitmap = mFrontBitmap;
+            mFrontBitmap = mBackBitmap;
+            mBackBitmap = bitmap;
+            mFrontCellSize = mGrid.getCellSize();
+            mFrontFirstColumn = mGrid.getFirstColumn();
+            mFrontFirstRow = mGrid.getFirstRow();
+
+            mIsTaskRunning = false;
+            mCallback.onHeatmapUpdated();
+            scheduleTask();
+        }
+    };
+
+    private class HeatmapTask implements Runnable {
+
+        private boolean mIsRebuild;
+        private int[] mLatitudes = new int[0];
+        private int[] mLongitudes = new int[0];
+        private int mCount;
+        private int mCellSize;
+        private int mFirstColumn;
+        private int mFirstRow;
+        private int mColumnCount;
+        private int mRowCount;
+        private IntArray mAddedPoints = new IntArray();
+        private IntArray mRemovedPoints = new IntArray();
+
+        @Override
+        public void run() {
+            // Executed on the worker thread
+            final HeatmapGrid grid = mGrid;
+            if (mIsRebuild) {
+                grid.reset(mCellSize, mFirstColumn, mFirstRow, mColumnCount, mRowCount);
+                final int[] latitudes = mLatitudes;
+                final int[] longitudes = mLongitudes;
+                final int count = mCount;
+                for (int i = 0; i < count; i++) {
+                    grid.add(Mercator.longitudeToX(longitudes[i]), Mercator.latitudeToY(latitudes[i]));
+                }
+                grid.normalize();
+            }
+
+            int[] points = mRemovedPoints.values();
+            int count = mRemovedPoints.size();
+            for (int i = 0; i < count; i += 2) {
+                grid.remove(Mercator.longitudeToX(points[i + 1]), Mercator.latitudeToY(points[i]));
+            }
+            points = mAddedPoints.values();
+            count = mAddedPoints.size();
+            for (int i = 0; i < count; i += 2) {
+                grid.add(Mercator.longitudeToX(points[i + 1]), Mercator.latitudeToY(points[i]));
+            }
+
+            updateBackBitmap();
+            mHandler.post(mSwapRunnable);
+        }
+
+        private void updateBackBitmap() {
+            final HeatmapGrid grid = mGrid;
+            final int columnCount = grid.getColumnCount();
+            final int rowCount = grid.getRowCount();
+            if (columnCount == 0 || rowCount == 0) {
+                mBackBitmap = null;
+                return;
+            }
+            if (mPixels.length < columnCount * rowCount) {
+                mPixels = new int[columnCount * rowCount];
+            }
+
+            final boolean isDirty = grid.isDirty();
+            final int dirtyLeft = grid.getDirtyLeft();
+            final int dirtyTop = grid.getDirtyTop();
+            final int dirtyRight = grid.getDirtyRight();
+            final int dirtyBottom = grid.getDirtyBottom();
+            grid.colorize(mGradient, mPixels);
+
+            int left = Math.min(dirtyLeft, mPreviousDirtyLeft);
+            int top = Math.min(dirtyTop, mPreviousDirtyTop);
+            int right = Math.max(dirtyRight, mPreviousDirtyRight);
+            int bottom = Math.max(dirtyBottom, mPreviousDirtyBottom);
+            if (mBackBitmap == null || mBackBitmap.getWidth() != columnCount || mBackBitmap.getHeight() != rowCount) {
+                // The Bitmap on screen may still have the previous size: it
+                // can't be reused
+                mBackBitmap = Bitmap.createBitmap(columnCount, rowCount, Bitmap.Config.ARGB_8888);
+                left = 0;
+                top = 0;
+                right = columnCount - 1;
+                bottom = rowCount - 1;
+            }
+            if (left <= right && top <= bottom) {
+                mBackBitmap.setPixels(mPixels, top * columnCount + left, columnCount, left, top, right - left + 1, bottom - top + 1);
+            }
+
+            // The other Bitmap lacks the cells modified by this update
+            if (isDirty) {
+                mPreviousDirtyLeft = dirtyLeft;
+                mPreviousDirtyTop = dirtyTop;
+                mPreviousDirtyRight = dirtyRight;
+                mPreviousDirtyBottom = dirtyBottom;
+            } else {
+                mPreviousDirtyLeft = Integer.MAX_VALUE;
+                mPreviousDirtyTop = Integer.MAX_VALUE;
+                mPreviousDirtyRight = Integer.MIN_VALUE;
+                mPreviousDirtyBottom = Integer.MIN_VALUE;
+            }
+        }
+    }
+
+    /**
+     * Create a lookup table of {@link #GRADIENT_SIZE} colors linearly
+     * interpolated between the given colors. The first entry (used for empty
+     * cells) is transparent.
+     */
+    private static int[] createGradient(int[] colors) {
+        final int[] gradient = new int[GRADIENT_SIZE];
+        final int segmentCount = colors.length - 1;
+        for (int i = 1; i < GRADIENT_SIZE; i++) {
+            final float position = (float) (i - 1) / (GRADIENT_SIZE - 2) * segmentCount;
+            final int segment = Math.min(segmentCount - 1, (int) position);
+            final float t = position - segment;
+            final int from = colors[segment];
+            final int to = colors[segment + 1];
+            //@formatter:off
+            gradient[i] = Color.argb(
+                    interpolate(Color.alpha(from), Color.alpha(to), t),
+                    interpolate(Color.red(from), Color.red(to), t),
+                    interpolate(Color.green(from), Color.green(to), t),
+                    interpolate(Color.blue(from), Color.blue(to), t));
+            //@formatter:on
+        }
+        return gradient;
+    }
+
+    private static int interpolate(int from, int to, float t) {
+        return Math.round(from + (to - from) * t);
+    }
+
+    private static long floorDiv(long value, long divisor) {
+        final long quotient = value / divisor;
+        return (value % divisor != 0 && (value < 0) != (divisor < 0)) ? quotient - 1 : quotient;
+    }
+
+}
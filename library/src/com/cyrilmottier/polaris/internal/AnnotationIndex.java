@@ -0,0 +1,533 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.internal;
+
+import com.cyrilmottier.polaris.CoordinateRegion;
+
+/**
+ * A point-region quadtree indexing items (usually the position of an
+ * annotation) by their E6 coordinates. The index is used to quickly retrieve
+ * the items contained in a given {@link CoordinateRegion} without having to
+ * iterate over the entire set of items.
+ * <p>
+ * Leaves store a copy of the coordinates of their items in contiguous arrays.
+ * Querying a region hence never needs to access the indexed objects and
+ * doesn't allocate anything once the output {@link IntArray} is large enough.
+ * </p>
+ * 
+ * @author Cyril Mottier
+ */
+public class AnnotationIndex {
+
+    static final int MIN_LATITUDE = -90000000;
+    static final int MAX_LATITUDE = 90000000;
+    static final int MIN_LONGITUDE = -180000000;
+    static final int MAX_LONGITUDE = 180000000;
+
+    private static final long FULL_LONGITUDE_SPAN = 360000000L;
+
+    /**
+     * The maximum number of items a leaf can contain before being split.
+     */
+    private static final int MAX_ITEMS_PER_NODE = 32;
+
+    /**
+     * Past this depth, leaves are never split. At this depth, a node is about
+     * 20 E6 (a couple of meters) wide which makes further splitting useless.
+     */
+    private static final int MAX_DEPTH = 24;
+
+    private final Node mRoot = new Node(MIN_LATITUDE, MIN_LONGITUDE, MAX_LATITUDE, MAX_LONGITUDE, 0);
+
+    /**
+     * Return the number of items in this index.
+     * 
+     * @return The number of items in this index
+     */
+    public int size() {
+        return mRoot.size;
+    }
+
+    /**
+     * Remove all items from this index.
+     */
+    public void clear() {
+        mRoot.children = null;
+        mRoot.count = 0;
+        mRoot.size = 0;
+    }
+
+    /**
+     * Insert an item in this index.
+     * 
+     * @param item The item to insert
+     * @param lat The latitude of the item
+     * @param lon The longitude of the item
+     */
+    public void insert(int item, int lat, int lon) {
+        lat = clampLatitude(lat);
+        lon = wrapLongitude(lon);
+
+        Node node = mRoot;
+        while (true) {
+            node.size++;
+            if (node.children == null) {
+                node.add(item, lat, lon);
+                if (node.count > MAX_ITEMS_PER_NODE && node.depth < MAX_DEPTH) {
+                    node.split();
+                }
+                return;
+            }
+            node = node.childFor(lat, lon);
+        }
+    }
+
+    /**
+     * Remove an item from this index. The given coordinates must be the ones
+     * the item has been inserted with.
+     * 
+     * @param item The item to remove
+     * @param lat The latitude of the item
+     * @param lon The longitude of the item
+     * @return true if the item has been found and removed, false otherwise
+     */
+    public boolean remove(int item, int lat, int lon) {
+        lat = clampLatitude(lat);
+        lon = wrapLongitude(lon);
+
+        Node node = mRoot;
+        while (node.children != null) {
+            node = node.childFor(lat, lon);
+        }
+        if (!node.remove(item)) {
+            return false;
+        }
+
+        // The item has been found. Update the subtree sizes along the path
+        // and merge nodes that don't deserve to be split anymore.
+        node = mRoot;
+        while (node != null) {
+            node.size--;
+            if (node.children != null && node.size <= MAX_ITEMS_PER_NODE / 2) {
+                node.merge();
+                break;
+            }
+            node = node.children != null ? node.childFor(lat, lon) : null;
+        }
+        return true;
+    }
+
+    /**
+     * Move an item from a position to another. Items moving by small steps
+     * (animated annotations for instance) usually stay in the same leaf: they
+     * are then updated in place.
+     * 
+     * @param item The item to move
+     * @param oldLat The latitude the item has been inserted with
+     * @param oldLon The longitude the item has been inserted with
+     * @param newLat The new latitude of the item
+     * @param newLon The new longitude of the item
+     */
+    public void update(int item, int oldLat, int oldLon, int newLat, int newLon) {
+        final int lat = clampLatitude(newLat);
+        final int lon = wrapLongitude(newLon);
+
+        Node node = mRoot;
+        final int clampedOldLat = clampLatitude(oldLat);
+        final int wrappedOldLon = wrapLongitude(oldLon);
+        while (node.children != null) {
+            node = node.childFor(clampedOldLat, wrappedOldLon);
+        }
+        if (node.contains(lat, lon) && node.move(item, lat, lon)) {
+            return;
+        }
+
+        if (remove(item, oldLat, oldLon)) {
+            insert(item, newLat, newLon);
+        }
+    }
+
+    /**
+     * Renumber all items of this index. This is typically used when items are
+     * positions in a list which has been compacted.
+     * 
+     * @param mapping The mapping from the old item values to the new ones.
+     *            All items of this index must be valid indexes in this array.
+     */
+    public void renumber(int[] mapping) {
+        renumber(mRoot, mapping);
+    }
+
+    private static void renumber(Node node, int[] mapping) {
+        if (node.children != null) {
+            final Node[] children = node.children;
+            for (int i = 0; i < children.length; i++) {
+                renumber(children[i], mapping);
+            }
+        } else {
+            final int[] items = node.items;
+            final int count = node.count;
+            for (int i = 0; i < count; i++) {
+                items[i] = mapping[items[i]];
+            }
+        }
+    }
+
+    /**
+     * Append to <code>out</code> all items contained in the given region.
+     * Regions crossing the antimeridian are correctly handled. Please note the
+     * order of the returned items is unspecified.
+     * 
+     * @param region The region to query
+     * @param out The array the items will be appended to
+     */
+    public void query(CoordinateRegion region, IntArray out) {
+        if (region.isEmpty()) {
+            return;
+        }
+        query(region.getMinLatitude(), region.getMinLongitude(), region.getMaxLatitude(), region.getMaxLongitude(), out);
+    }
+
+    /**
+     * Append to <code>out</code> all items in the given bounds (edges are
+     * inclusive). Longitudes may be outside of the [-180, 180] degrees range
+     * in which case the query wraps around the antimeridian.
+     * 
+     * @param minLat The southern edge
+     * @param minLon The western edge
+     * @param maxLat The northern edge
+     * @param maxLon The eastern edge
+     * @param out The array the items will be appended to
+     */
+    public void query(int minLat, int minLon, int maxLat, int maxLon, IntArray out) {
+        minLat = clampLatitude(minLat);
+        maxLat = clampLatitude(maxLat);
+        if (minLat > maxLat || minLon > maxLon) {
+            return;
+        }
+
+        if ((long) maxLon - minLon >= FULL_LONGITUDE_SPAN) {
+            query(mRoot, minLat, MIN_LONGITUDE, maxLat, MAX_LONGITUDE, out);
+        } else if (minLon < MIN_LONGITUDE) {
+            query(mRoot, minLat, (int) (minLon + FULL_LONGITUDE_SPAN), maxLat, MAX_LONGITUDE, out);
+            query(mRoot, minLat, MIN_LONGITUDE, maxLat, maxLon, out);
+        } else if (maxLon > MAX_LONGITUDE) {
+            query(mRoot, minLat, minLon, maxLat, MAX_LONGITUDE, out);
+            query(mRoot, minLat, MIN_LONGITUDE, maxLat, (int) (maxLon - FULL_LONGITUDE_SPAN), out);
+        } else {
+            query(mRoot, minLat, minLon, maxLat, maxLon, out);
+        }
+    }
+
+    private static void query(Node node, int minLat, int minLon, int maxLat, int maxLon, IntArray out) {
+        if (node.size == 0 || node.minLat > maxLat || node.maxLat < minLat || node.minLon > maxLon || node.maxLon < minLon) {
+            return;
+        }
+
+        if (node.minLat >= minLat && node.maxLat <= maxLat && node.minLon >= minLon && node.maxLon <= maxLon) {
+            // The node is entirely contained in the queried area. There is no
+            // need to test each item individually.
+            collect(node, out);
+            return;
+        }
+
+        if (node.children != null) {
+            final Node[] children = node.children;
+            for (int i = 0; i < children.length; i++) {
+                query(children[i], minLat, minLon, maxLat, maxLon, out);
+            }
+        } else {
+            final int[] items = node.items;
+            final int[] lats = node.lats;
+            final int[] lons = node.lons;
+            final int count = node.count;
+            for (int i = 0; i < count; i++) {
+                final int lat = lats[i];
+                final int lon = lons[i];
+                if (lat >= minLat && lat <= maxLat && lon >= minLon && lon <= maxLon) {
+                    out.add(items[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the number of items contained in the given region. Nodes
+     * entirely contained in the region are counted without being traversed:
+     * counting is much cheaper than querying.
+     * 
+     * @param region The region to query
+     * @return The number of items in the region
+     */
+    public int count(CoordinateRegion region) {
+        if (region.isEmpty()) {
+            return 0;
+        }
+        return count(region.getMinLatitude(), region.getMinLongitude(), region.getMaxLatitude(), region.getMaxLongitude());
+    }
+
+    /**
+     * Return the number of items in the given bounds (edges are inclusive).
+     * Longitudes may be outside of the [-180, 180] degrees range in which case
+     * the bounds wrap around the antimeridian.
+     * 
+     * @param minLat The southern edge
+     * @param minLon The western edge
+     * @param maxLat The northern edge
+     * @param maxLon The eastern edge
+     * @return The number of items in the bounds
+     */
+    public int count(int minLat, int minLon, int maxLat, int maxLon) {
+        minLat = clampLatitude(minLat);
+        maxLat = clampLatitude(maxLat);
+        if (minLat > maxLat || minLon > maxLon) {
+            return 0;
+        }
+
+        if ((long) maxLon - minLon >= FULL_LONGITUDE_SPAN) {
+            return count(mRoot, minLat, MIN_LONGITUDE, maxLat, MAX_LONGITUDE);
+        } else if (minLon < MIN_LONGITUDE) {
+            //@formatter:off
+            return count(mRoot, minLat, (int) (minLon + FULL_LONGITUDE_SPAN), maxLat, MAX_LONGITUDE)
+                    + count(mRoot, minLat, MIN_LONGITUDE, maxLat, maxLon);
+            //@formatter:on
+        } else if (maxLon > MAX_LONGITUDE) {
+            //@formatter:off
+            return count(mRoot, minLat, minLon, maxLat, MAX_LONGITUDE)
+                    + count(mRoot, minLat, MIN_LONGITUDE, maxLat, (int) (maxLon - FULL_LONGITUDE_SPAN));
+            //@formatter:on
+        } else {
+            return count(mRoot, minLat, minLon, maxLat, maxLon);
+        }
+    }
+
+    private static int count(Node node, int minLat, int minLon, int maxLat, int maxLon) {
+        if (node.size == 0 || node.minLat > maxLat || node.maxLat < minLat || node.minLon > maxLon || node.maxLon < minLon) {
+            return 0;
+        }
+
+        if (node.minLat >= minLat && node.maxLat <= maxLat && node.minLon >= minLon && node.maxLon <= maxLon) {
+            return node.size;
+        }
+
+        int result = 0;
+        if (node.children != null) {
+            final Node[] children = node.children;
+            for (int i = 0; i < children.length; i++) {
+                result += count(children[i], minLat, minLon, maxLat, maxLon);
+            }
+        } else {
+            final int[] lats = node.lats;
+            final int[] lons = node.lons;
+            final int count = node.count;
+            for (int i = 0; i < count; i++) {
+                final int lat = lats[i];
+                final int lon = lons[i];
+                if (lat >= minLat && lat <= maxLat && lon >= minLon && lon <= maxLon) {
+                    result++;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void collect(Node node, IntArray out) {
+        if (node.children != null) {
+            final Node[] children = node.children;
+            for (int i = 0; i < children.length; i++) {
+                collect(children[i], out);
+            }
+        } else {
+            final int[] items = node.items;
+            final int count = node.count;
+            out.ensureCapacity(out.size() + count);
+            for (int i = 0; i < count; i++) {
+                out.add(items[i]);
+            }
+        }
+    }
+
+    static int clampLatitude(int lat) {
+        return Math.max(MIN_LATITUDE, Math.min(MAX_LATITUDE, lat));
+    }
+
+    static int wrapLongitude(int lon) {
+        long l = lon;
+        while (l < MIN_LONGITUDE) {
+            l += FULL_LONGITUDE_SPAN;
+        }
+        while (l > MAX_LONGITUDE) {
+            l -= FULL_LONGITUDE_SPAN;
+        }
+        return (int) l;
+    }
+
+    private static final class Node {
+
+        final int minLat;
+        final int minLon;
+        final int maxLat;
+        final int maxLon;
+        final int midLat;
+        final int midLon;
+        final int depth;
+
+        /**
+         * Number of items in this subtree
+         */
+        int size;
+
+        /**
+         * Leaf-only storage. Arrays are lazily allocated.
+         */
+        int count;
+        int[] items;
+        int[] lats;
+        int[] lons;
+
+        /**
+         * Children ordered as follow: SW, SE, NW, NE. null if this node is a
+         * leaf.
+         */
+        Node[] children;
+
+        Node(int minLat, int minLon, int maxLat, int maxLon, int depth) {
+            this.minLat = minLat;
+            this.minLon = minLon;
+            this.maxLat = maxLat;
+            this.maxLon = maxLon;
+            this.midLat = (int) (((long) minLat + maxLat) >> 1);
+            this.midLon = (int) (((long) minLon + maxLon) >> 1);
+            this.depth = depth;
+        }
+
+        Node childFor(int lat, int lon) {
+            int index = 0;
+            if (lon > midLon) {
+                index |= 1;
+            }
+            if (lat > midLat) {
+                index |= 2;
+            }
+            return children[index];
+        }
+
+        void add(int item, int lat, int lon) {
+            if (items == null) {
+                items = new int[MAX_ITEMS_PER_NODE + 1];
+                lats = new int[MAX_ITEMS_PER_NODE + 1];
+                lons = new int[MAX_ITEMS_PER_NODE + 1];
+            } else if (count == items.length) {
+                final int newLength = count * 2;
+                items = copyOf(items, count, newLength);
+                lats = copyOf(lats, count, newLength);
+                lons = copyOf(lons, count, newLength);
+            }
+            items[count] = item;
+            lats[count] = lat;
+            lons[count] = lon;
+            count++;
+        }
+
+        boolean contains(int lat, int lon) {
+            return lat >= minLat && lat <= maxLat && lon >= minLon && lon <= maxLon;
+        }
+
+        boolean move(int item, int lat, int lon) {
+            for (int i = 0; i < count; i++) {
+                if (items[i] == item) {
+                    lats[i] = lat;
+                    lons[i] = lon;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean remove(int item) {
+            for (int i = 0; i < count; i++) {
+                if (items[i] == item) {
+                    // Order doesn't matter in a leaf: simply move the last
+                    // item at the removed item position.
+                    count--;
+                    items[i] = items[count];
+                    lats[i] = lats[count];
+                    lons[i] = lons[count];
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void split() {
+            final int childDepth = depth + 1;
+            //@formatter:off
+            children = new Node[] {
+                    new Node(minLat, minLon, midLat, midLon, childDepth),
+                    new Node(minLat, midLon + 1, midLat, maxLon, childDepth),
+                    new Node(midLat + 1, minLon, maxLat, midLon, childDepth),
+                    new Node(midLat + 1, midLon + 1, maxLat, maxLon, childDepth)
+            };
+            //@formatter:on
+
+            for (int i = 0; i < count; i++) {
+                final Node child = childFor(lats[i], lons[i]);
+                child.add(items[i], lats[i], lons[i]);
+                child.size++;
+            }
+
+            count = 0;
+            items = lats = lons = null;
+
+            // Items may all have been pushed to the same child. Let it split
+            // too if necessary.
+            for (int i = 0; i < children.length; i++) {
+                final Node child = children[i];
+                if (child.count > MAX_ITEMS_PER_NODE && child.depth < MAX_DEPTH) {
+                    child.split();
+                }
+            }
+        }
+
+        void merge() {
+            final Node[] oldChildren = children;
+            children = null;
+            count = 0;
+            for (int i = 0; i < oldChildren.length; i++) {
+                moveItemsTo(oldChildren[i], this);
+            }
+        }
+
+        private static void moveItemsTo(Node from, Node to) {
+            if (from.children != null) {
+                for (int i = 0; i < from.children.length; i++) {
+                    moveItemsTo(from.children[i], to);
+                }
+            } else {
+                for (int i = 0; i < from.count; i++) {
+                    to.add(from.items[i], from.lats[i], from.lons[i]);
+                }
+            }
+        }
+
+        private static int[] copyOf(int[] array, int count, int newLength) {
+            final int[] newArray = new int[newLength];
+            System.arraycopy(array, 0, newArray, 0, count);
+            return newArray;
+        }
+    }
+
+}
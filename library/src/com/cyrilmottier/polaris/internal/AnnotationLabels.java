@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.internal;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.text.TextUtils;
+
+import com.cyrilmottier.polaris.R;
+
+/**
+ * Places and draws the title of the annotations beside their markers.
+ * <p>
+ * Labels are placed greedily: each label is tried at a few candidate
+ * locations around its marker (right, left, above and below) and the first
+ * one overlapping neither a marker nor an already placed label is kept.
+ * Labels with no free location are not drawn. Overlaps are detected using a
+ * uniform grid of the screen so that each test only looks at the rectangles
+ * of the cells covered by the candidate.
+ * </p>
+ * <p>
+ * Placing the labels is expensive compared to drawing them. A placement is
+ * hence kept (as offsets relatively to the marker anchors) and re-used until
+ * the next call to {@link #beginPlacement(int, int)}. Labels are single
+ * lines, ellipsized when too long. The {@link StaticLayout} of each title is
+ * cached.
+ * </p>
+ * 
+ * @author Cyril Mottier
+ */
+class AnnotationLabels {
+
+    /**
+     * Size (in pixels) of the cells of the collision grid
+     */
+    private static final int CELL_SIZE = 64;
+
+    /**
+     * Maximum number of {@link StaticLayout}s kept in the cache
+     */
+    private static final int MAX_CACHED_LAYOUTS = 256;
+
+    private final TextPaint mPaint;
+    private final int mMaxWidth;
+    private final int mLineHeight;
+    private final int mSpacing;
+
+    private final LinkedHashMap<String, StaticLayout> mLayouts = new LinkedHashMap<String, StaticLayout>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, StaticLayout> eldest) {
+            return size() > MAX_CACHED_LAYOUTS;
+        }
+    };
+
+    // The placed labels
+    private int mLabelCount;
+    private int[] mLabelPositions = new int[0];
+    private int[] mLabelOffsetsX = new int[0];
+    private int[] mLabelOffsetsY = new int[0];
+    private StaticLayout[] mLabelLayouts = new StaticLayout[0];
+
+    private int mWidth;
+    private int mHeight;
+
+    // The collision grid. Each cell is a linked list of nodes, each node
+    // references a rectangle.
+    private int mColumnCount;
+    private int mRowCount;
+    private int[] mCellHeads = new int[0];
+    private int mNodeCount;
+    private int[] mNodeRects = new int[0];
+    private int[] mNodeNexts = new int[0];
+    private int mRectCount;
+    private int[] mRects = new int[0];
+
+    public AnnotationLabels(Context context) {
+        final Resources res = context.getResources();
+
+        mPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+        mPaint.setTextSize(res.getDimension(R.dimen.polaris__font_size_small));
+        mPaint.setColor(res.getColor(R.color.polaris__label_text));
+        // A halo keeps the labels readable on any kind of map tiles
+        mPaint.setShadowLayer(res.getDimension(R.dimen.polaris__label_halo_radius), 0, 0, res.getColor(R.color.polaris__label_halo));
+
+        mMaxWidth = res.getDimensionPixelSize(R.dimen.polaris__label_max_width);
+        mSpacing = res.getDimensionPixelSize(R.dimen.polaris__spacing_small);
+
+        final Paint.FontMetricsInt metrics = mPaint.getFontMetricsInt();
+        mLineHeight = metrics.bottom - metrics.top;
+    }
+
+    /**
+     * Return the area, relatively to a marker anchor, in which the label of
+     * the marker may be drawn.
+     * 
+     * @param markerBounds The bounds of the marker
+     * @param outBounds The area covered by the label
+     */
+    public void getLabelBounds(Rect markerBounds, Rect outBounds) {
+        //@formatter:off
+        outBounds.set(
+                Math.min(markerBounds.left - mSpacing - mMaxWidth, -mMaxWidth / 2),
+                Math.min(markerBounds.top - mSpacing - mLineHeight, markerBounds.centerY() - mLineHeight / 2),
+                Math.max(markerBounds.right + mSpacing + mMaxWidth, mMaxWidth / 2),
+                Math.max(markerBounds.bottom + mSpacing + mLineHeight, markerBounds.centerY() + mLineHeight / 2));
+        //@formatter:on
+    }
+
+    /**
+     * Forget the current placement and prepare a new one for a screen of the
+     * given size.
+     */
+    public void beginPlacement(int width, int height) {
+        mLabelCount = 0;
+        mNodeCount = 0;
+        mRectCount = 0;
+        mWidth = width;
+        mHeight = height;
+        mColumnCount = Math.max(1, (width + CELL_SIZE - 1) / CELL_SIZE);
+        mRowCount = Math.max(1, (height + CELL_SIZE - 1) / CELL_SIZE);
+        final int cellCount = mColumnCount * mRowCount;
+        if (mCellHeads.length < cellCount) {
+            mCellHeads = new int[cellCount];
+        }
+        Arrays.fill(mCellHeads, 0, cellCount, -1);
+    }
+
+    /**
+     * Register an area labels must not overlap (typically a marker).
+     */
+    public void addObstacle(int left, int top, int right, int bottom) {
+        addRect(left, top, right, bottom);
+    }
+
+    /**
+     * Try to place the label of an annotation.
+     * 
+     * @param position The position of the annotation
+     * @param title The title of the annotation
+     * @param anchorX The horizontal position of the marker anchor on screen
+     * @param anchorY The vertical position of the marker anchor on screen
+     * @param markerBounds The bounds of the marker relatively to its anchor
+     * @return true if the label has been placed, false otherwise
+     */
+    public boolean place(int position, String title, int anchorX, int anchorY, Rect markerBounds) {
+        if (TextUtils.isEmpty(title)) {
+            return false;
+        }
+
+        final StaticLayout layout = getLayout(title);
+        final int width = layout.getWidth();
+        final int height = layout.getHeight();
+        final int centerY = markerBounds.centerY() - height / 2;
+
+        for (int candidate = 0; candidate < 4; candidate++) {
+            final int dx;
+            final int dy;
+            switch (candidate) {
+                case 0:
+                    // Right of the marker
+                    dx = markerBounds.right + mSpacing;
+                    dy = centerY;
+                    break;
+                case 1:
+                    // Left of the marker
+                    dx = markerBounds.left - mSpacing - width;
+                    dy = centerY;
+                    break;
+                case 2:
+                    // Above the marker
+                    dx = -width / 2;
+                    dy = markerBounds.top - mSpacing - height;
+                    break;
+                default:
+                    // Below the marker
+                    dx = -width / 2;
+                    dy = markerBounds.bottom + mSpacing;
+                    break;
+            }
+
+            final int left = anchorX + dx;
+            final int top = anchorY + dy;
+            if (left < 0 || top < 0 || left + width > mWidth || top + height > mHeight) {
+                continue;
+            }
+            if (intersects(left, top, left + width, top + height)) {
+                continue;
+            }
+
+            addRect(left, top, left + width, top + height);
+            addLabel(position, dx, dy, layout);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Draw the placed labels.
+     * 
+     * @param canvas The Canvas to draw on
+     * @param projector The projector used to locate the marker anchors
+     * @param latitudes The latitudes of the annotations (indexed by position)
+     * @param longitudes The longitudes of the annotations (indexed by
+     *            position)
+     */
+    public void draw(Canvas canvas, MercatorProjector projector, int[] latitudes, int[] longitudes) {
+        final int count = mLabelCount;
+        for (int i = 0; i < count; i++) {
+            final int position = mLabelPositions[i];
+            final int x = projector.toPixelX(longitudes[position]) + mLabelOffsetsX[i];
+            final int y = projector.toPixelY(latitudes[position]) + mLabelOffsetsY[i];
+
+            canvas.save();
+            canvas.translate(x, y);
+            mLabelLayouts[i].draw(canvas);
+            canvas.restore();
+        }
+    }
+
+    /**
+     * Update the positions of the placed labels once the annotations have
+     * been renumbered. The labels of the removed annotations are dropped,
+     * the other ones are kept in place.
+     * 
+     * @param mapping The new position of each annotation indexed by its
+     *            previous position or a negative value if the annotation has
+     *            been removed
+     */
+    public void renumber(int[] mapping) {
+        final int count = mLabelCount;
+        int newCount = 0;
+        for (int i = 0; i < count; i++) {
+            final int position = mapping[mLabelPositions[i]];
+            if (position < 0) {
+                continue;
+            }
+            mLabelPositions[newCount] = position;
+            mLabelOffsetsX[newCount] = mLabelOffsetsX[i];
+            mLabelOffsetsY[newCount] = mLabelOffsetsY[i];
+            mLabelLayouts[newCount] = mLabelLayouts[i];
+            newCount++;
+        }
+        Arrays.fill(mLabelLayouts, newCount, count, null);
+        mLabelCount = newCount;
+    }
+
+    private StaticLayout getLayout(String title) {
+        StaticLayout layout = mLayouts.get(title);
+        if (layout == null) {
+            final CharSequence text = TextUtils.ellipsize(title, mPaint, mMaxWidth, TextUtils.TruncateAt.END);
+            final int width = (int) Math.ceil(Layout.getDesiredWidth(text, mPaint));
+            layout = new StaticLayout(text, mPaint, Math.max(1, width), Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
+            mLayouts.put(title, layout);
+        }
+        return layout;
+    }
+
+    private void addLabel(int position, int dx, int dy, StaticLayout layout) {
+        if (mLabelCount == mLabelPositions.length) {
+            final int capacity = Math.max(16, mLabelCount * 2);
+            mLabelPositions = grow(mLabelPositions, capacity);
+            mLabelOffsetsX = grow(mLabelOffsetsX, capacity);
+            mLabelOffsetsY = grow(mLabelOffsetsY, capacity);
+            final StaticLayout[] layouts = new StaticLayout[capacity];
+            System.arraycopy(mLabelLayouts, 0, layouts, 0, mLabelCount);
+            mLabelLayouts = layouts;
+        }
+        final int index = mLabelCount++;
+        mLabelPositions[index] = position;
+        mLabelOffsetsX[index] = dx;
+        mLabelOffsetsY[index] = dy;
+        mLabelLayouts[index] = layout;
+    }
+
+    private void addRect(int left, int top, int right, int bottom) {
+        if (right <= 0 || bottom <= 0 || left >= mWidth || top >= mHeight) {
+            // Off screen rectangles can't overlap any label
+            return;
+        }
+        final int minColumn = getColumn(left);
+        final int maxColumn = getColumn(right - 1);
+        final int minRow = getRow(top);
+        final int maxRow = getRow(bottom - 1);
+
+        if (mRectCount * 4 == mRects.length) {
+            mRects = grow(mRects, Math.max(64, mRects.length * 2));
+        }
+        final int rect = mRectCount++;
+        final int offset = rect * 4;
+        mRects[offset] = left;
+        mRects[offset + 1] = top;
+        mRects[offset + 2] = right;
+        mRects[offset + 3] = bottom;
+
+        for (int row = minRow; row <= maxRow; row++) {
+            for (int column = minColumn; column <= maxColumn; column++) {
+                if (mNodeCount == mNodeRects.length) {
+                    final int capacity = Math.max(64, mNodeCount * 2);
+                    mNodeRects = grow(mNodeRects, capacity);
+                    mNodeNexts = grow(mNodeNexts, capacity);
+                }
+                final int cell = row * mColumnCount + column;
+                final int node = mNodeCount++;
+                mNodeRects[node] = rect;
+                mNodeNexts[node] = mCellHeads[cell];
+                mCellHeads[cell] = node;
+            }
+        }
+    }
+
+    private boolean intersects(int left, int top, int right, int bottom) {
+        final int minColumn = getColumn(left);
+        final int maxColumn = getColumn(right - 1);
+        final int minRow = getRow(top);
+        final int maxRow = getRow(bottom - 1);
+        final int[] rects = mRects;
+        for (int row = minRow; row <= maxRow; row++) {
+            for (int column = minColumn; column <= maxColumn; column++) {
+                for (int node = mCellHeads[row * mColumnCount + column]; node != -1; node = mNodeNexts[node]) {
+                    final int offset = mNodeRects[node] * 4;
+                    //@formatter:off
+                    if (rects[offset] < right
+                            && rects[offset + 2] > left
+                            && rects[offset + 1] < bottom
+                            && rects[offset + 3] > top) {
+                        return true;
+                    }
+                    //@formatter:on
+                }
+            }
+        }
+        return false;
+    }
+
+    private int getColumn(int x) {
+        return Math.max(0, Math.min(mColumnCount - 1, x / CELL_SIZE));
+    }
+
+    private int getRow(int y) {
+        return Math.max(0, Math.min(mRowCount - 1, y / CELL_SIZE));
+    }
+
+    private static int[] grow(int[] array, int capacity) {
+        final int[] result = new int[capacity];
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.internal;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import com.cyrilmottier.polaris.AnnotationSource;
+import com.cyrilmottier.polaris.AnnotationSource.Query;
+import com.cyrilmottier.polaris.AnnotationStore;
+import com.cyrilmottier.polaris.CoordinateRegion;
+
+/**
+ * Runs the queries of an {@link AnnotationSource} on a background thread.
+ * Only one query is in flight at a time: requesting a region not covered by
+ * the current query cancels it. Results are delivered on the UI thread.
+ * 
+ * @author Cyril Mottier
+ */
+public class AnnotationLoader {
+
+    /**
+     * @author Cyril Mottier
+     */
+    public interface RogueCallback {
+        void onAnnotationsLoaded(CoordinateRegion region, AnnotationStore annotations);
+    }
+
+    /**
+     * The default prefetch margin: half the visible span on each side.
+     */
+    public static final float DEFAULT_PREFETCH_MARGIN = 0.5f;
+
+    private static final int MAX_SPAN = 360000000;
+
+    private final AnnotationSource mSource;
+    private final RogueCallback mCallback;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private HandlerThread mWorkerThread;
+    private Handler mWorkerHandler;
+
+    /**
+     * The query currently running or waiting for its results to be delivered
+     */
+    private QueryTask mPendingQuery;
+
+    /**
+     * The region of the last delivered query
+     */
+    private final CoordinateRegion mLoadedRegion = new CoordinateRegion();
+
+    private float mPrefetchMargin = DEFAULT_PREFETCH_MARGIN;
+
+    public AnnotationLoader(AnnotationSource source, RogueCallback callback) {
+        if (source == null) {
+            throw new IllegalArgumentException("The given " + AnnotationSource.class.getSimpleName() + " cannot be null");
+        }
+        if (callback == null) {
+            throw new IllegalArgumentException("The given " + RogueCallback.class.getSimpleName() + " cannot be null");
+        }
+        mSource = source;
+        mCallback = callback;
+    }
+
+    public AnnotationSource getSource() {
+        return mSource;
+    }
+
+    /**
+     * Set the margin added around the visible region when querying the
+     * source.
+     * 
+     * @param margin The margin on each side as a fraction of the visible span
+     */
+    public void setPrefetchMargin(float margin) {
+        mPrefetchMargin = Math.max(0, margin);
+    }
+
+    public float getPrefetchMargin() {
+        return mPrefetchMargin;
+    }
+
+    /**
+     * Make sure the annotations of the given visible region are loaded. No
+     * query is started when the region is covered by the last loaded region or
+     * by the pending query.
+     * 
+     * @param visibleRegion The visible region
+     */
+    public void load(CoordinateRegion visibleRegion) {
+        if (visibleRegion.isEmpty()) {
+            return;
+        }
+        if (mPendingQuery != null) {
+            if (mPendingQuery.mRegion.contains(visibleRegion)) {
+                return;
+            }
+            mPendingQuery.cancel();
+            mPendingQuery = null;
+        } else if (mLoadedRegion.contains(visibleRegion)) {
+            return;
+        }
+
+        final CoordinateRegion region = new CoordinateRegion(visibleRegion);
+        //@formatter:off
+        region.set(
+                region.latitude,
+                region.longitude,
+                (int) Math.min(MAX_SPAN, (long) (region.latitudeSpan * (1 + 2 * mPrefetchMargin))),
+                (int) Math.min(MAX_SPAN, (long) (region.longitudeSpan * (1 + 2 * mPrefetchMargin))));
+        //@formatter:on
+
+        mPendingQuery = new QueryTask(region);
+        ensureWorkerHandler().post(mPendingQuery);
+    }
+
+    /**
+     * Forget about the loaded region so that the next call to
+     * {@link #load(CoordinateRegion)} queries the source again.
+     */
+    public void invalidate() {
+        cancel();
+        mLoadedRegion.setEmpty();
+    }
+
+    /**
+     * Cancel the pending query (if any).
+     */
+    public void cancel() {
+        if (mPendingQuery != null) {
+            mPendingQuery.cancel();
+            mPendingQuery = null;
+        }
+    }
+
+    /**
+     * Cancel the pending query and stop the background thread. The thread is
+     * automatically restarted by {@link #load(CoordinateRegion)}.
+     */
+    public void quit() {
+        cancel();
+        if (mWorkerThread != null) {
+            mWorkerThread.quit();
+            mWorkerThread = null;
+            mWorkerHandler = null;
+        }
+    }
+
+    private Handler ensureWorkerHandler() {
+        if (mWorkerHandler == null) {
+            mWorkerThread = new HandlerThread("Polaris-AnnotationLoader", Process.THREAD_PRIORITY_BACKGROUND);
+            mWorkerThread.start();
+            mWorkerHandler = new Handler(mWorkerThread.getLooper());
+        }
+        return mWorkerHandler;
+    }
+
+    private void deliver(QueryTask query) {
+        if (query != mPendingQuery || query.isCancelled()) {
+            return;
+        }
+        mPendingQuery = null;
+        mLoadedRegion.set(query.mRegion);
+        mCallback.onAnnotationsLoaded(query.mRegion, query.mAnnotations);
+    }
+
+    private class QueryTask implements Query, Runnable {
+
+        private final CoordinateRegion mRegion;
+        private final AnnotationStore mAnnotations = new AnnotationStore();
+        private volatile boolean mIsCancelled;
+
+        public QueryTask(CoordinateRegion region) {
+            mRegion = region;
+        }
+
+        @Override
+        public CoordinateRegion getRegion() {
+            return mRegion;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mIsCancelled;
+        }
+
+        public void cancel() {
+            mIsCancelled = true;
+            if (mWorkerHandler != null) {
+                mWorkerHandler.removeCallbacks(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            // Executed on the worker thread
+            if (mIsCancelled) {
+                return;
+            }
+            mSource.loadAnnotations(this, mAnnotations);
+            if (!mIsCancelled) {
+                mHandler.post(mDeliverRunnable);
+            }
+        }
+
+        private final Runnable mDeliverRunnable = new Runnable() {
+            @Override
+            public void run() {
+                deliver(QueryTask.this);
+            }
+        };
+    }
+
+}
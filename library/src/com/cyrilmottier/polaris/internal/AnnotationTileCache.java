@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.internal;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+/**
+ * A least-recently-used memory cache of pre-rendered annotation tiles. A tile
+ * is a {@link Mercator#TILE_SIZE} pixels square identified by a zoom level
+ * and its (x, y) coordinates in the tile grid of that zoom level.
+ * <p>
+ * The cache holds a fixed number of slots. When all slots are used, the
+ * bitmap of the least recently used tile is reused for the new tile: once the
+ * cache is full, no bitmap is allocated anymore. Lookups are linear but the
+ * number of slots is always small (a few dozens).
+ * </p>
+ * 
+ * @author Cyril Mottier
+ */
+class AnnotationTileCache {
+
+    private static final int TILE_SIZE = Mercator.TILE_SIZE;
+    private static final long WORLD_SIZE = Mercator.MAX_WORLD_SIZE;
+
+    private static class Tile {
+        int zoom;
+        int x;
+        int y;
+        Bitmap bitmap;
+        boolean valid;
+        long lastUse;
+    }
+
+    private Tile[] mTiles = new Tile[0];
+    private int mTileCount;
+    private long mUseCounter;
+
+    /**
+     * Make sure the cache can hold at least the given number of tiles. All
+     * tiles drawn during a single frame must fit in the cache.
+     * 
+     * @param capacity The minimum number of tiles
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity > mTiles.length) {
+            final Tile[] tiles = new Tile[capacity];
+            System.arraycopy(mTiles, 0, tiles, 0, mTileCount);
+            mTiles = tiles;
+        }
+    }
+
+    /**
+     * Return the bitmap of a tile.
+     * 
+     * @return The bitmap of the tile or null if the tile is not in the cache
+     *         or has been invalidated
+     */
+    public Bitmap get(int zoom, int x, int y) {
+        final Tile tile = find(zoom, x, y);
+        if (tile == null || !tile.valid) {
+            return null;
+        }
+        tile.lastUse = ++mUseCounter;
+        return tile.bitmap;
+    }
+
+    /**
+     * Return a transparent bitmap to render the given tile into. The tile is
+     * considered valid as soon as this method returns.
+     */
+    public Bitmap obtain(int zoom, int x, int y) {
+        Tile tile = find(zoom, x, y);
+        if (tile == null) {
+            if (mTileCount < mTiles.length) {
+                tile = new Tile();
+                tile.bitmap = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+                mTiles[mTileCount++] = tile;
+            } else {
+                tile = findLeastRecentlyUsed();
+            }
+            tile.zoom = zoom;
+            tile.x = x;
+            tile.y = y;
+        }
+        tile.bitmap.eraseColor(0);
+        tile.valid = true;
+        tile.lastUse = ++mUseCounter;
+        return tile.bitmap;
+    }
+
+    /**
+     * Invalidate all tiles intersecting the given area. The area is given
+     * relatively to an anchor point and in screen pixels so that it can be
+     * scaled to the zoom level of each tile.
+     * 
+     * @param x The horizontal Mercator coordinate of the anchor at
+     *            {@link Mercator#MAX_ZOOM}
+     * @param y The vertical Mercator coordinate of the anchor at
+     *            {@link Mercator#MAX_ZOOM}
+     * @param bounds The area to invalidate in pixels, relatively to the anchor
+     */
+    public void invalidate(int x, int y, Rect bounds) {
+        final int count = mTileCount;
+        for (int i = 0; i < count; i++) {
+            final Tile tile = mTiles[i];
+            if (!tile.valid) {
+                continue;
+            }
+            final int shift = Mercator.MAX_ZOOM - tile.zoom;
+            final long tileSize = (long) TILE_SIZE << shift;
+
+            // Compute the horizontal position of the anchor relatively to the
+            // center of the tile, taking the closest copy of the world
+            long dx = x - (tile.x * tileSize + tileSize / 2);
+            if (dx >= WORLD_SIZE / 2) {
+                dx -= WORLD_SIZE;
+            } else if (dx < -WORLD_SIZE / 2) {
+                dx += WORLD_SIZE;
+            }
+            final long dy = y - (tile.y * tileSize + tileSize / 2);
+
+            //@formatter:off
+            if (dx + ((long) bounds.right << shift) >= -tileSize / 2
+                    && dx + ((long) bounds.left << shift) <= tileSize / 2
+                    && dy + ((long) bounds.bottom << shift) >= -tileSize / 2
+                    && dy + ((long) bounds.top << shift) <= tileSize / 2) {
+                tile.valid = false;
+            }
+            //@formatter:on
+        }
+    }
+
+    /**
+     * Release all bitmaps held by this cache.
+     */
+    public void clear() {
+        final int count = mTileCount;
+        for (int i = 0; i < count; i++) {
+            mTiles[i].bitmap.recycle();
+            mTiles[i] = null;
+        }
+        mTileCount = 0;
+    }
+
+    private Tile find(int zoom, int x, int y) {
+        final int count = mTileCount;
+        for (int i = 0; i < count; i++) {
+            final Tile tile = mTiles[i];
+            if (tile.x == x && tile.y == y && tile.zoom == zoom) {
+                return tile;
+            }
+        }
+        return null;
+    }
+
+    private Tile findLeastRecentlyUsed() {
+        Tile result = mTiles[0];
+        final int count = mTileCount;
+        for (int i = 1; i < count; i++) {
+            final Tile tile = mTiles[i];
+            // Invalid tiles are reused first
+            if (tile.valid == result.valid ? tile.lastUse < result.lastUse : !tile.valid) {
+                result = tile;
+            }
+        }
+        return result;
+    }
+
+}
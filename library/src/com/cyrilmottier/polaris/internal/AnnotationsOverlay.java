@@ -15,18 +15,90 @@
  */
 package com.cyrilmottier.polaris.internal;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
 
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
 
 import com.cyrilmottier.polaris.Annotation;
+import com.cyrilmottier.polaris.AnnotationStore;
+import com.cyrilmottier.polaris.AnnotationStore.TextProvider;
+import com.cyrilmottier.polaris.CoordinateRegion;
+import com.cyrilmottier.polaris.MapViewUtils;
+import com.cyrilmottier.polaris.OverlayCapabilities;
 import com.cyrilmottier.polaris.PolarisMapView;
-import com.google.android.maps.ItemizedOverlay;
+import com.cyrilmottier.polaris.PolarisMetrics;
+import com.cyrilmottier.polaris.R;
+import com.cyrilmottier.polaris.internal.AnnotationClusterer.Clusters;
+import com.cyrilmottier.polaris.internal.AnnotationFramePreparer.WolverineCallback;
+import com.cyrilmottier.polaris.internal.AnnotationHeatmap.CyclopsCallback;
+import com.google.android.maps.GeoPoint;
+import com.google.android.maps.MapView;
+import com.google.android.maps.Overlay;
+import com.google.android.maps.OverlayItem;
 
 /**
+ * An {@link Overlay} drawing a set of annotations. Contrary to an
+ * ItemizedOverlay, an {@link AnnotationsOverlay} can be modified in place:
+ * annotations can be added, removed and moved without having to rebuild (and
+ * re-sort) the entire set of annotations.
+ * <p>
+ * Annotations are stored in arrays of primitives (one array per property).
+ * Annotations given as {@link Annotation} objects are kept so that they can be
+ * given back to the client but rendering never relies on them. Annotations
+ * coming from an {@link AnnotationStore} have no associated object: an
+ * {@link Annotation} is only created on demand (for the selected annotation
+ * for instance).
+ * </p>
+ * <p>
+ * Modifications can be grouped in a transaction using
+ * {@link #beginTransaction()} and {@link #endTransaction()}. Inside a
+ * transaction, positions of annotations are stable: removed annotations are
+ * only compacted once the outermost transaction ends.
+ * </p>
+ * <p>
+ * When clustering is enabled, annotations close to each other at the current
+ * zoom level are collapsed into a single cluster marker showing the number of
+ * annotations it contains. Tapping a cluster zooms in around it.
+ * </p>
+ * <p>
+ * Markers (and their shadows) are drawn from a {@link MarkerAtlas} rather than
+ * by drawing each Drawable. Only the selected annotation is drawn using its
+ * Drawable so that its focused state is honored.
+ * </p>
+ * <p>
+ * When the level of detail is enabled, the way annotations are rendered
+ * depends on the zoom level and on the number of annotations in the visible
+ * region: full markers when zoomed in (or when only a few annotations are
+ * visible), small dots batched in a single draw call at middle zoom levels
+ * and a density grid at the lowest zoom levels.
+ * </p>
+ * <p>
+ * When the heatmap is enabled, annotations are drawn as a heatmap computed on
+ * a background thread (see {@link AnnotationHeatmap}) at the lowest zoom
+ * levels.
+ * </p>
+ * <p>
+ * When the frame preparation is enabled, the visible markers are projected,
+ * culled and sorted on a background thread (see
+ * {@link AnnotationFramePreparer}). Drawing the markers then only consists in
+ * offsetting the coordinates of the last prepared frame. Annotations are
+ * projected on the UI thread while no valid frame is available (while
+ * annotations are animated for instance).
+ * </p>
+ * 
  * @author Cyril Mottier
  */
-public class AnnotationsOverlay extends ItemizedOverlay<Annotation> {
+public class AnnotationsOverlay extends Overlay implements OverlayCapabilities {
 
     private static final int INVALID_POSITION = PolarisMapView.INVALID_POSITION;
 
@@ -37,75 +109,2372 @@ public class AnnotationsOverlay extends ItemizedOverlay<Annotation> {
         void dismissCallout(int position);
 
         void showCallout(int position);
+
+        void moveCallout(int position, GeoPoint point);
+
+        /**
+         * Move the callout to a position on screen. This is used on every
+         * frame while the selected annotation is animated.
+         */
+        void moveCallout(int position, int x, int y);
+
+        /**
+         * @param dirty The area of the marker on screen, shadow included
+         */
+        void invalidateMarker(Rect dirty);
+
+        void onTransactionEnded();
+
+        void invalidateAnnotations();
+
+        /**
+         * Called once removed annotations have been discarded and the
+         * remaining ones renumbered.
+         * 
+         * @param mapping The new position of each annotation indexed by its
+         *            previous position or
+         *            {@link PolarisMapView#INVALID_POSITION} if the annotation
+         *            has been removed
+         */
+        void onAnnotationsRenumbered(int[] mapping);
+
+        /**
+         * Called when at least one annotation moved. This is also called on
+         * every frame while annotations are animated.
+         */
+        void onAnnotationsMoved();
     }
 
-    private final List<Annotation> mAnnotations;
+    /**
+     * Factor applied to the guard band to take into account the Mercator
+     * projection is not linear on the latitude axis. Converting pixels to
+     * latitudes using the average ratio of the visible region may slightly
+     * underestimate the guard band close to the edges.
+     */
+    private static final int GUARD_BAND_FACTOR = 2;
+
+    /**
+     * Marker type of the annotations using the default marker.
+     */
+    private static final int DEFAULT_MARKER = 0;
+
+    /**
+     * Marker type of removed annotations.
+     */
+    private static final int REMOVED = -1;
+
+    /**
+     * Draw order key prefix of the selected annotation. It is greater than
+     * any other draw order key.
+     */
+    private static final long SELECTED_DRAW_ORDER_KEY = (long) Integer.MAX_VALUE << 32;
+
+    /*
+     * Levels of detail
+     */
+    private static final int LOD_MARKERS = 0;
+    private static final int LOD_DOTS = 1;
+    private static final int LOD_DENSITY = 2;
+
+    /**
+     * MapView zoom level from which annotations are always drawn using their
+     * marker.
+     */
+    private static final int LOD_MARKERS_MIN_ZOOM = 12;
+
+    /**
+     * MapView zoom level from which annotations are drawn at least as dots.
+     */
+    private static final int LOD_DOTS_MIN_ZOOM = 7;
+
+    /**
+     * Markers are drawn, whatever the zoom level, when the visible region
+     * contains at most this number of annotations.
+     */
+    private static final int LOD_MAX_MARKERS = 250;
+
+    /**
+     * Dots are drawn, whatever the zoom level, when the visible region
+     * contains at most this number of annotations.
+     */
+    private static final int LOD_MAX_DOTS = 10000;
+
+    /**
+     * MapView zoom level from which annotations are not drawn as a heatmap
+     * anymore (when the heatmap is enabled).
+     */
+    private static final int HEATMAP_MAX_ZOOM = 10;
+
+    /*
+     * Alpha range of the density cells. The alpha of a cell grows with the
+     * square root of its count so that sparse cells remain visible.
+     */
+    private static final int DENSITY_MIN_ALPHA = 0x40;
+    private static final int DENSITY_MAX_ALPHA = 0xd0;
+
+    /**
+     * Duration, in milliseconds, during which the annotations must not change
+     * before a snapshot of the annotations is given to the
+     * {@link AnnotationFramePreparer}. Annotations changing on every frame are
+     * hence drawn live rather than copied on every frame.
+     */
+    private static final long FRAME_SNAPSHOT_DELAY = 250;
+
     private final Drawable mDefaultMarker;
     private final MystiqueCallback mCallback;
     private int mSelectedAnnotation = INVALID_POSITION;
 
-    public AnnotationsOverlay(MystiqueCallback callback, List<Annotation> annotations, Drawable defaultMarker) {
-        super(boundCenterBottom(defaultMarker));
+    /*
+     * Annotations properties. The annotation at a given position is described
+     * by the values at this position in each of these arrays.
+     */
+    private int mCount;
+    private int[] mLatitudes = new int[0];
+    private int[] mLongitudes = new int[0];
+    private int[] mMarkerTypes = new int[0];
+    private int[] mIds = new int[0];
+    private Annotation[] mObjects = new Annotation[0];
+    private TextProvider[] mTextProviders = new TextProvider[0];
+
+    /**
+     * Markers indexed by marker type.
+     */
+    private final ArrayList<Drawable> mMarkers = new ArrayList<Drawable>();
+    private final IdentityHashMap<Drawable, Integer> mMarkerTypesByMarker = new IdentityHashMap<Drawable, Integer>();
+
+    /**
+     * The last {@link Annotation} created on demand for an annotation that has
+     * no associated object.
+     */
+    private Annotation mMaterializedAnnotation;
+    private int mMaterializedPosition = INVALID_POSITION;
+
+    private final AnnotationIndex mIndex = new AnnotationIndex();
+
+    /**
+     * The union of the bounds of all markers used in this overlay. It is used
+     * to extend the visible region so that markers whose point is off-screen
+     * but whose Drawable is partially visible are still drawn.
+     */
+    private final Rect mMarkersBounds = new Rect();
+
+    /**
+     * The union of {@link #mMarkersBounds} and the bounds of the associated
+     * shadows (and labels). See {@link #getDrawingBounds()}.
+     */
+    private final Rect mDrawingBounds = new Rect();
+
+    private final MarkerAtlas mMarkerAtlas = new MarkerAtlas(SHADOW_X_SKEW, SHADOW_Y_SCALE);
+    private final Rect mTempRect = new Rect();
+    private final Rect mClipBounds = new Rect();
+
+    private int mTransactionDepth;
+    private int mRemovedCount;
+
+    private final CoordinateRegion mVisibleRegion = new CoordinateRegion();
+    private final CoordinateRegion mTempRegion = new CoordinateRegion();
+    private int mGuardLatitude;
+    private int mGuardLongitude;
+    private final IntArray mVisibleAnnotations = new IntArray();
+    private long[] mDrawOrder = new long[0];
+    private final IntArray mHits = new IntArray();
+    private final IntArray mHitCandidates = new IntArray();
+    private long[] mHitOrder = new long[0];
+    private final MapViewProjector mProjector = new MapViewProjector();
+
+    /**
+     * The screen positions of the annotations projected at once
+     */
+    private int[] mProjectedXs = new int[0];
+    private int[] mProjectedYs = new int[0];
+
+    private final Context mContext;
+
+    private AnnotationClusterer mClusterer;
+    private boolean mClustersDirty;
+    private int mClustersZoom = -1;
+
+    /**
+     * The clusters at the current zoom level or null if annotations are not
+     * clustered at this zoom level.
+     */
+    private Clusters mClusters;
+    private final IntArray mVisibleClusters = new IntArray();
+
+    private Paint mClusterPaint;
+    private Paint mClusterStrokePaint;
+    private Paint mClusterTextPaint;
+    private float mClusterRadius;
+    private float mClusterTextOffset;
+    private final char[] mClusterText = new char[10];
+
+    /**
+     * The cache of pre-rendered tiles or null if annotations are drawn live.
+     */
+    private AnnotationTileCache mTileCache;
+    private final IntArray mTileAnnotations = new IntArray();
+    private final Canvas mTileCanvas = new Canvas();
+
+    /**
+     * Maximum number of annotations whose label is placed. Annotations are
+     * considered in order: the last ones are never labeled when too many
+     * annotations are visible.
+     */
+    private static final int MAX_LABELED_ANNOTATIONS = 500;
+
+    private final AnnotationAnimator mAnimator = new AnnotationAnimator();
+    private final IntArray mFinishedAnimations = new IntArray();
+    private long mLastAnimationTime = -1;
+
+    /**
+     * Whether the selected annotation has been moved by the last animation
+     * step. The callout is moved once the projector is up to date.
+     */
+    private boolean mIsCalloutMoved;
+
+    private AnnotationLabels mLabels;
+    private boolean mLabelsDirty;
+    private final IntArray mLabelCandidates = new IntArray();
+
+    private boolean mIsLevelOfDetailEnabled;
+    private boolean mLevelOfDetailDirty;
+    private int mLevelOfDetail = LOD_MARKERS;
+    private int mLevelOfDetailZoom = -1;
+
+    private Paint mDotPaint;
+    private float mDotHitRadius;
+    private float[] mDotPoints = new float[0];
+
+    private DensityGrid mDensityGrid;
+    private boolean mDensityDirty;
+    private int mDensityZoom = -1;
+    private Paint mDensityPaint;
+    private int mDensityCellSize;
+
+    private AnnotationHeatmap mHeatmap;
+
+    private AnnotationFramePreparer mFramePreparer;
+
+    /**
+     * Incremented each time the location, the marker or the position of an
+     * annotation changes. A frame prepared from an older generation is not
+     * drawn.
+     */
+    private int mGeneration;
+
+    /*
+     * The generation last seen by updateFrame(MapView) and the time it has
+     * first been seen at
+     */
+    private int mFrameGeneration = -1;
+    private long mFrameGenerationTime;
+
+    private PolarisMetrics mMetrics;
+
+    public AnnotationsOverlay(Context context, MystiqueCallback callback, List<Annotation> annotations, Drawable defaultMarker) {
+        this(context, callback, defaultMarker);
+
+        final int count = annotations.size();
+        ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            insert(annotations.get(i));
+        }
+    }
+
+    public AnnotationsOverlay(Context context, MystiqueCallback callback, AnnotationStore annotations, Drawable defaultMarker) {
+        this(context, callback, defaultMarker);
+        insert(annotations, null, 0, false);
+    }
+
+    private AnnotationsOverlay(Context context, MystiqueCallback callback, Drawable defaultMarker) {
         if (callback == null) {
             throw new IllegalArgumentException("The given " + MystiqueCallback.class.getSimpleName() + " cannot be null");
         }
+        mContext = context;
         mCallback = callback;
-        mDefaultMarker = defaultMarker;
-        mAnnotations = annotations;
-        populate();
+        mDefaultMarker = MapViewUtils.boundMarkerCenterBottom(defaultMarker);
+
+        mMarkers.add(mDefaultMarker);
+        mMarkersBounds.set(mDefaultMarker.getBounds());
     }
 
     public Drawable getDefaultMarker() {
         return mDefaultMarker;
     }
 
+    public int size() {
+        return mCount;
+    }
+
+    public boolean isClusteringEnabled() {
+        return mClusterer != null;
+    }
+
+    public void setClusteringEnabled(boolean enabled) {
+        if (enabled == isClusteringEnabled()) {
+            return;
+        }
+        if (enabled) {
+            // Clustered points are indexed by position. The clusterer is then
+            // updated each time an annotation is added, moved or removed.
+            mClusterer = new AnnotationClusterer();
+            mClusterer.setPoints(mLatitudes, mLongitudes, mCount);
+            for (int i = 0; i < mCount; i++) {
+                if (mMarkerTypes[i] == REMOVED) {
+                    mClusterer.removePoint(i);
+                }
+            }
+            mClustersDirty = true;
+            if (mClusterPaint == null) {
+                initClusterPaints();
+            }
+        } else {
+            mClusterer = null;
+            mClusters = null;
+            mVisibleClusters.clear();
+        }
+        mClustersZoom = -1;
+        mCallback.invalidateAnnotations();
+    }
+
+    public void setMetrics(PolarisMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    public boolean isTileCacheEnabled() {
+        return mTileCache != null;
+    }
+
+    /**
+     * Enable/disable the tile cache. When enabled, annotations are rasterized
+     * into {@link Mercator#TILE_SIZE} pixels tiles that are cached in memory.
+     * Drawing the annotations then consists in drawing the visible tiles. Only
+     * the selected annotation is drawn live. Tiles are invalidated when the
+     * annotations they contain change.
+     * <p>
+     * Shadows are rendered in the tiles together with the markers. As a
+     * result, cached annotations are drawn in a single pass (when the
+     * non-shadow layer is drawn). The tile cache is not used while clusters
+     * are displayed.
+     * </p>
+     * 
+     * @param enabled true to enable the tile cache, false otherwise
+     */
+    public void setTileCacheEnabled(boolean enabled) {
+        if (enabled == isTileCacheEnabled()) {
+            return;
+        }
+        if (enabled) {
+            mTileCache = new AnnotationTileCache();
+        } else {
+            mTileCache.clear();
+            mTileCache = null;
+        }
+        mCallback.invalidateAnnotations();
+    }
+
+    public boolean isLabelsEnabled() {
+        return mLabels != null;
+    }
+
+    /**
+     * Enable/disable the labels. When enabled, the title of the annotations
+     * is drawn beside their marker. Labels are placed so that they overlap
+     * neither the markers nor the other labels: labels that cannot be placed
+     * are not drawn. The placement is computed when the region change is
+     * confirmed and kept while the map is being moved. Labels are not drawn
+     * while clusters are displayed.
+     * 
+     * @param enabled true to enable the labels, false otherwise
+     */
+    public void setLabelsEnabled(boolean enabled) {
+        if (enabled == isLabelsEnabled()) {
+            return;
+        }
+        mLabels = enabled ? new AnnotationLabels(mContext) : null;
+        mLabelsDirty = enabled;
+        mCallback.invalidateAnnotations();
+    }
+
+    public boolean isLevelOfDetailEnabled() {
+        return mIsLevelOfDetailEnabled;
+    }
+
+    /**
+     * Enable/disable the level of detail. When enabled, annotations are drawn
+     * using their marker only when zoomed in enough (or when a few of them are
+     * visible). At middle zoom levels, annotations are drawn as dots and at
+     * the lowest zoom levels, the visible region is split into cells whose
+     * opacity reflects the number of annotations they contain. The level of
+     * detail is chosen when the zoom level changes and when the region change
+     * is confirmed. Clusters, when displayed, take precedence over the level
+     * of detail.
+     * 
+     * @param enabled true to enable the level of detail, false otherwise
+     */
+    public void setLevelOfDetailEnabled(boolean enabled) {
+        if (enabled == mIsLevelOfDetailEnabled) {
+            return;
+        }
+        mIsLevelOfDetailEnabled = enabled;
+        if (enabled) {
+            mLevelOfDetailDirty = true;
+            mDensityDirty = true;
+            if (mDotPaint == null) {
+                initLevelOfDetailPaints();
+            }
+        } else {
+            mLevelOfDetail = LOD_MARKERS;
+            mDensityGrid = null;
+        }
+        mCallback.invalidateAnnotations();
+    }
+
+    public boolean isHeatmapEnabled() {
+        return mHeatmap != null;
+    }
+
+    /**
+     * Enable/disable the heatmap. When enabled, annotations are drawn as a
+     * heatmap below {@link #HEATMAP_MAX_ZOOM}. Clusters, when displayed, take
+     * precedence over the heatmap while the heatmap takes precedence over the
+     * level of detail. Disabling the heatmap stops its background thread and
+     * releases its Bitmaps.
+     * 
+     * @param enabled true to enable the heatmap, false otherwise
+     */
+    public void setHeatmapEnabled(boolean enabled) {
+        if (enabled == isHeatmapEnabled()) {
+            return;
+        }
+        if (enabled) {
+            mHeatmap = new AnnotationHeatmap(mContext, mCyclopsCallback);
+        } else {
+            mHeatmap.quit();
+            mHeatmap = null;
+        }
+        mCallback.invalidateAnnotations();
+    }
+
+    private final CyclopsCallback mCyclopsCallback = new CyclopsCallback() {
+        @Override
+        public void onHeatmapUpdated() {
+            mCallback.invalidateAnnotations();
+        }
+    };
+
+    public boolean isFramePreparationEnabled() {
+        return mFramePreparer != null;
+    }
+
+    /**
+     * Enable/disable the frame preparation. When enabled, the visible markers
+     * are projected, culled and sorted on a background thread whenever the
+     * visible region changes. This is only worth it on multi-core devices.
+     * Disabling the frame preparation stops its background thread.
+     * 
+     * @param enabled true to enable the frame preparation, false otherwise
+     */
+    public void setFramePreparationEnabled(boolean enabled) {
+        if (enabled == isFramePreparationEnabled()) {
+            return;
+        }
+        if (enabled) {
+            mFramePreparer = new AnnotationFramePreparer(mWolverineCallback);
+        } else {
+            mFramePreparer.quit();
+            mFramePreparer = null;
+        }
+    }
+
+    private final WolverineCallback mWolverineCallback = new WolverineCallback() {
+        @Override
+        public void onFramePrepared() {
+            mCallback.invalidateAnnotations();
+        }
+    };
+
+    /**
+     * Notify this overlay the region displayed by the MapView has changed.
+     * This is when a new frame is requested (if the frame preparation is
+     * enabled) so that it is ready by the time the map is drawn.
+     * 
+     * @param mapView The MapView whose region changed
+     */
+    public void onRegionChanged(MapView mapView) {
+        if (mFramePreparer != null && mProjector.update(mapView)) {
+            updateFrame(mapView);
+        }
+    }
+
+    /**
+     * Notify this overlay the region displayed by the MapView has been
+     * confirmed. This is when the visible clusters, the labels and the level
+     * of detail are re-computed.
+     * 
+     * @param mapView The MapView whose region changed
+     */
+    public void onRegionChangeConfirmed(MapView mapView) {
+        onRegionChanged(mapView);
+        if (mClusterer != null) {
+            updateClusters(mapView);
+        }
+        if (mLabels != null) {
+            // The labels are placed during the next draw, once the projector
+            // is up to date
+            mLabelsDirty = true;
+        }
+        if (mIsLevelOfDetailEnabled) {
+            // The density cells follow the visible region
+            mLevelOfDetailDirty = true;
+            mDensityDirty = true;
+        }
+        if (mClusterer != null || mLabels != null || mIsLevelOfDetailEnabled) {
+            mCallback.invalidateAnnotations();
+        }
+    }
+
     @Override
-    protected Annotation createItem(int index) {
-        return mAnnotations.get(index);
+    public int getCapabilities() {
+        // Annotations are only interacted with through taps. Moving
+        // annotations are animated.
+        return CAPABILITY_SHADOW | CAPABILITY_TAP | CAPABILITY_ANIMATION;
     }
 
     @Override
-    public int size() {
-        return mAnnotations.size();
+    public boolean draw(Canvas canvas, MapView mapView, boolean shadow, long when) {
+        // Both layers are drawn with the same time: animations are only
+        // stepped once per frame
+        if (mAnimator.isRunning() && when != mLastAnimationTime) {
+            mLastAnimationTime = when;
+            stepAnimations(when);
+        }
+        draw(canvas, mapView, shadow);
+        return mAnimator.isRunning();
     }
 
     @Override
-    protected boolean onTap(int index) {
-        if (index >= 0 && index < size()) {
-            setSelectedAnnotation(index);
-            return true;
+    public void draw(Canvas canvas, MapView mapView, boolean shadow) {
+        if (!mProjector.update(mapView)) {
+            return;
+        }
+        if (mIsCalloutMoved) {
+            mIsCalloutMoved = false;
+            if (mSelectedAnnotation != INVALID_POSITION && mAnimator.isAnimated(mSelectedAnnotation)) {
+                final int x = mProjector.toPixelX(mLongitudes[mSelectedAnnotation]);
+                final int y = mProjector.toPixelY(mLatitudes[mSelectedAnnotation]);
+                mCallback.moveCallout(mSelectedAnnotation, x, y);
+            }
+        }
+        mMarkerAtlas.update(mMarkers);
+
+        if (mClusterer != null) {
+            ensureClusters(mapView);
+            if (mClusters != null) {
+                drawClusters(canvas, shadow);
+                return;
+            }
+        }
+
+        if (isHeatmapVisible(mapView)) {
+            drawHeatmap(canvas, mapView, shadow);
+            return;
+        }
+
+        switch (ensureLevelOfDetail(mapView)) {
+            case LOD_DOTS:
+                drawDots(canvas, mapView, shadow);
+                return;
+            case LOD_DENSITY:
+                drawDensity(canvas, mapView, shadow);
+                return;
+        }
+
+        if (mTileCache == null || !drawTiles(canvas, mapView, shadow)) {
+            drawAnnotations(canvas, mapView, shadow);
+        }
+
+        // Labels are drawn on top of all markers
+        if (mLabels != null && !shadow) {
+            if (mLabelsDirty) {
+                updateLabels(mapView);
+            }
+            mLabels.draw(canvas, mProjector, mLatitudes, mLongitudes);
         }
-        return super.onTap(index);
     }
 
-    public Annotation getAnnotation(int index) {
-        if (index < 0 || index >= size()) {
-            return null;
+    /**
+     * Draw the visible annotations one by one. The projector must be up to
+     * date.
+     */
+    private void drawAnnotations(Canvas canvas, MapView mapView, boolean shadow) {
+        // Only the annotations intersecting the visible region are projected
+        // and drawn.
+        final IntArray visible = mVisibleAnnotations;
+        visible.clear();
+        if (!computeVisibleRegion(mapView, mVisibleRegion)) {
+            return;
+        }
+        final Rect clipBounds = mClipBounds;
+        if (!canvas.getClipBounds(clipBounds)) {
+            return;
+        }
+        final boolean isFullRedraw = clipBounds.contains(0, 0, mapView.getWidth(), mapView.getHeight());
+        if (isFullRedraw && mFramePreparer != null) {
+            updateFrame(mapView);
+            if (drawFrame(canvas, mapView, shadow)) {
+                return;
+            }
+        }
+        if (isFullRedraw) {
+            mIndex.query(mVisibleRegion, visible);
+        } else {
+            // Only part of the map is redrawn (because a single annotation
+            // has been invalidated for instance). Skip the annotations that
+            // cannot intersect the redrawn area.
+            queryScreenArea(clipBounds, visible);
+        }
+
+        final int count = visible.size();
+        if (Config.METRICS_ENABLED && mMetrics != null && !shadow) {
+            mMetrics.onAnnotationsDrawn(count, mCount - mRemovedCount - count);
+        }
+        if (count == 0) {
+            return;
+        }
+
+        // Mimic the ItemizedOverlay behavior: annotations are drawn from north
+        // to south so that the southern ones overlap the northern ones. The
+        // annotation position is used as a tie-breaker to keep the order
+        // deterministic. Both values are packed in a long in order to use a
+        // primitive (allocation-free) sort.
+        if (mDrawOrder.length < count) {
+            mDrawOrder = new long[Math.max(count, mDrawOrder.length * 2)];
+        }
+        final long[] drawOrder = mDrawOrder;
+        final int[] indexes = visible.values();
+        for (int i = 0; i < count; i++) {
+            drawOrder[i] = getDrawOrderKey(indexes[i]);
+        }
+        Arrays.sort(drawOrder, 0, count);
+
+        boolean isSelectedVisible = false;
+        for (int i = 0; i < count; i++) {
+            final int index = (int) drawOrder[i];
+            if (index != mSelectedAnnotation) {
+                drawAnnotation(canvas, index, shadow, 0);
+            } else {
+                isSelectedVisible = true;
+            }
+        }
+
+        // The selected annotation is always drawn on top of the other ones
+        if (isSelectedVisible) {
+            drawAnnotation(canvas, mSelectedAnnotation, shadow, OverlayItem.ITEM_STATE_FOCUSED_MASK);
         }
-        return mAnnotations.get(index);
     }
 
-    public int getSelectedAnnotation() {
-        return mSelectedAnnotation;
+    /**
+     * Request a new frame if the last requested one doesn't match the visible
+     * region or the annotations anymore. The projector must be up to date.
+     */
+    private void updateFrame(MapView mapView) {
+        if (mAnimator.isRunning()) {
+            // Animated annotations are drawn live: frames would be outdated
+            // as soon as prepared
+            return;
+        }
+        final int zoom = Math.max(0, Math.min(Mercator.MAX_ZOOM, mapView.getZoomLevel() - 1));
+        final Rect bounds = getMarkersDrawingBounds();
+        if (mFramePreparer.update(mProjector, zoom, mapView.getWidth(), mapView.getHeight(), bounds, mGeneration)) {
+            // The frame is prepared on a background thread from a copy of the
+            // annotations. The copy is only made once the annotations stopped
+            // changing for a while: until then, annotations are drawn live.
+            final long now = SystemClock.uptimeMillis();
+            if (mGeneration != mFrameGeneration) {
+                mFrameGeneration = mGeneration;
+                mFrameGenerationTime = now;
+            } else if (now - mFrameGenerationTime >= FRAME_SNAPSHOT_DELAY) {
+                mFramePreparer.setAnnotations(mLatitudes, mLongitudes, mMarkerTypes, mCount, mGeneration);
+            }
+        }
     }
 
-    public void setSelectedAnnotation(int position) {
-        if (position != INVALID_POSITION) {
-            if (position < 0 || position >= size()) {
-                position = INVALID_POSITION;
+    /**
+     * Draw the visible annotations from the last prepared frame. The projector
+     * must be up to date.
+     * 
+     * @return false if the frame cannot be used (because it doesn't match the
+     *         annotations or doesn't cover the visible region), true
+     *         otherwise.
+     */
+    private boolean drawFrame(Canvas canvas, MapView mapView, boolean shadow) {
+        final AnnotationFrame frame = mFramePreparer.getFrame();
+        if (frame.getGeneration() != mGeneration || mAnimator.isRunning()) {
+            return false;
+        }
+        final int width = mapView.getWidth();
+        final int height = mapView.getHeight();
+        final MapViewProjector projector = mProjector;
+        final double scale = projector.getScale();
+        final Rect bounds = getMarkersDrawingBounds();
+        final long centerX = projector.unprojectX(width / 2);
+        final long centerY = projector.unprojectY(height / 2);
+        final long halfWidth = (long) Math.ceil((width / 2 + Math.max(Math.abs(bounds.left), Math.abs(bounds.right))) / scale);
+        final long halfHeight = (long) Math.ceil((height / 2 + Math.max(Math.abs(bounds.top), Math.abs(bounds.bottom))) / scale);
+        if (!frame.covers(centerX, centerY, halfWidth, halfHeight)) {
+            return false;
+        }
+
+        // The frame is offset to the current position of its center and
+        // scaled when the map is being zoomed
+        final int originX = projector.projectX(frame.getCenterX(centerX));
+        final int originY = projector.projectY(frame.getCenterY());
+        final double ratio = scale / frame.getScale();
+        final boolean isScaled = Math.abs(ratio - 1) > 1e-6;
+        final int[] positions = frame.getPositions();
+        final int[] xs = frame.getXs();
+        final int[] ys = frame.getYs();
+        final int count = frame.getCount();
+
+        int drawnCount = 0;
+        boolean isSelectedVisible = false;
+        for (int i = 0; i < count; i++) {
+            final int x = originX + (isScaled ? (int) Math.round(xs[i] * ratio) : xs[i]);
+            final int y = originY + (isScaled ? (int) Math.round(ys[i] * ratio) : ys[i]);
+            if (x + bounds.right < 0 || x + bounds.left > width || y + bounds.bottom < 0 || y + bounds.top > height) {
+                continue;
+            }
+            drawnCount++;
+            final int position = positions[i];
+            if (position != mSelectedAnnotation) {
+                drawAnnotation(canvas, position, x, y, shadow, 0);
+            } else {
+                isSelectedVisible = true;
             }
         }
 
-        if (position != mSelectedAnnotation) {
-            setFocus(getAnnotation(position));
-            if (mSelectedAnnotation != INVALID_POSITION) {
-                mCallback.dismissCallout(mSelectedAnnotation);
+        if (Config.METRICS_ENABLED && mMetrics != null && !shadow) {
+            mMetrics.onAnnotationsDrawn(drawnCount, mCount - mRemovedCount - drawnCount);
+        }
+
+        // The selected annotation is always drawn on top of the other ones
+        if (isSelectedVisible) {
+            drawAnnotation(canvas, mSelectedAnnotation, shadow, OverlayItem.ITEM_STATE_FOCUSED_MASK);
+        }
+        return true;
+    }
+
+    private void drawAnnotation(Canvas canvas, int position, boolean shadow, int state) {
+        final int x = mProjector.toPixelX(mLongitudes[position]);
+        final int y = mProjector.toPixelY(mLatitudes[position]);
+        drawAnnotation(canvas, position, x, y, shadow, state);
+    }
+
+    private void drawAnnotation(Canvas canvas, int position, int x, int y, boolean shadow, int state) {
+        if (state == 0 && mMarkerAtlas.draw(canvas, mMarkerTypes[position], x, y, shadow)) {
+            return;
+        }
+
+        final Drawable marker = getMarker(position);
+        OverlayItem.setState(marker, state);
+        drawAt(canvas, marker, x, y, shadow);
+    }
+
+    /**
+     * Draw the annotations using the tile cache. Shadows are baked in the
+     * tiles: everything is drawn during the regular pass, the uncached
+     * annotations (shadows first) on top of the tiles.
+     * 
+     * @return false if the tiles cannot be used (while the map is being zoomed
+     *         for instance), true otherwise
+     */
+    private boolean drawTiles(Canvas canvas, MapView mapView, boolean shadow) {
+        // MapView zoom levels start at 1 while Mercator zoom levels start at 0
+        final int zoom = mapView.getZoomLevel() - 1;
+        if (zoom < 0 || zoom > Mercator.MAX_ZOOM) {
+            return false;
+        }
+        // Tiles can only be used when one tile pixel is one screen pixel
+        final int shift = Mercator.MAX_ZOOM - zoom;
+        final double expectedScale = 1.0 / (1 << shift);
+        if (Math.abs(mProjector.getScale() - expectedScale) > expectedScale * 1e-3) {
+            return false;
+        }
+
+        if (shadow) {
+            // Drawing the uncached shadows now would have them painted over
+            // by the tiles
+            return true;
+        }
+
+        final int tileSize = Mercator.TILE_SIZE;
+        final long mercatorTileSize = (long) tileSize << shift;
+        final int tileCount = 1 << zoom;
+
+        final int firstX = (int) floorDiv(mProjector.unprojectX(0), mercatorTileSize);
+        final int lastX = (int) floorDiv(mProjector.unprojectX(mapView.getWidth() - 1), mercatorTileSize);
+        final int firstY = (int) Math.max(0, floorDiv(mProjector.unprojectY(0), mercatorTileSize));
+        final int lastY = (int) Math.min(tileCount - 1, floorDiv(mProjector.unprojectY(mapView.getHeight() - 1), mercatorTileSize));
+
+        // Keep enough tiles to pan by a tile in any direction without
+        // re-rendering the visible tiles
+        mTileCache.ensureCapacity((lastX - firstX + 2) * (lastY - firstY + 2));
+
+        // All tiles are positioned relatively to the first one so that
+        // rounding can't create gaps between tiles
+        final int originX = mProjector.projectX(firstX * mercatorTileSize);
+        final int originY = mProjector.projectY(firstY * mercatorTileSize);
+        for (int tileY = firstY; tileY <= lastY; tileY++) {
+            for (int tileX = firstX; tileX <= lastX; tileX++) {
+                // Tiles repeat horizontally
+                final int wrappedTileX = ((tileX % tileCount) + tileCount) % tileCount;
+                Bitmap bitmap = mTileCache.get(zoom, wrappedTileX, tileY);
+                if (bitmap == null) {
+                    bitmap = mTileCache.obtain(zoom, wrappedTileX, tileY);
+                    renderTile(bitmap, zoom, wrappedTileX, tileY);
+                }
+                //@formatter:off
+                canvas.drawBitmap(bitmap,
+                        originX + (tileX - firstX) * tileSize,
+                        originY + (tileY - firstY) * tileSize,
+                        null);
+                //@formatter:on
             }
-            mSelectedAnnotation = position;
-            if (position != INVALID_POSITION) {
-                mCallback.showCallout(position);
+        }
+
+        drawUncachedAnnotations(canvas, mapView, true);
+        drawUncachedAnnotations(canvas, mapView, false);
+        return true;
+    }
+
+    /**
+     * Draw the annotations that are not cached in the tiles: the animated
+     * annotations and the selected annotation.
+     */
+    private void drawUncachedAnnotations(Canvas canvas, MapView mapView, boolean shadow) {
+        final Rect bounds = getMarkersDrawingBounds();
+        final int width = mapView.getWidth();
+        final int height = mapView.getHeight();
+        final int animatedCount = mAnimator.getCount();
+        for (int i = 0; i < animatedCount; i++) {
+            final int position = mAnimator.getPosition(i);
+            if (position == mSelectedAnnotation) {
+                continue;
+            }
+            final int x = mProjector.toPixelX(mLongitudes[position]);
+            final int y = mProjector.toPixelY(mLatitudes[position]);
+            if (x + bounds.right >= 0 && x + bounds.left < width && y + bounds.bottom >= 0 && y + bounds.top < height) {
+                drawAnnotation(canvas, position, shadow, 0);
             }
         }
+        if (mSelectedAnnotation != INVALID_POSITION) {
+            drawAnnotation(canvas, mSelectedAnnotation, shadow, OverlayItem.ITEM_STATE_FOCUSED_MASK);
+        }
+    }
+
+    /**
+     * Render all non-selected annotations intersecting the given tile.
+     */
+    private void renderTile(Bitmap bitmap, int zoom, int tileX, int tileY) {
+        final int shift = Mercator.MAX_ZOOM - zoom;
+        final int tileSize = Mercator.TILE_SIZE;
+        final long mercatorTileSize = (long) tileSize << shift;
+        final long worldSize = Mercator.MAX_WORLD_SIZE;
+        final long centerX = tileX * mercatorTileSize + mercatorTileSize / 2;
+        final long centerY = tileY * mercatorTileSize + mercatorTileSize / 2;
+
+        // Extend the tile by the largest marker (and shadow) extent so that
+        // markers anchored in the neighboring tiles are drawn too
+        final Rect guardBounds = getMarkersDrawingBounds();
+        final long guardX = (long) Math.max(Math.abs(guardBounds.left), Math.abs(guardBounds.right)) << shift;
+        final long guardY = (long) Math.max(Math.abs(guardBounds.top), Math.abs(guardBounds.bottom)) << shift;
+
+        final int minLatitude = Mercator.yToLatitude((int) Math.min(worldSize - 1, centerY + mercatorTileSize / 2 + guardY));
+        final int maxLatitude = Mercator.yToLatitude((int) Math.max(0, centerY - mercatorTileSize / 2 - guardY));
+        final long longitudeSpan = (mercatorTileSize + 2 * guardX) * 360000000L / worldSize + 1;
+        final CoordinateRegion region = mTempRegion;
+        //@formatter:off
+        region.set(
+                (int) (((long) minLatitude + maxLatitude) / 2),
+                Mercator.xToLongitude((int) centerX),
+                maxLatitude - minLatitude + 2,
+                (int) Math.min(360000000L, longitudeSpan));
+        //@formatter:on
+
+        final IntArray annotations = mTileAnnotations;
+        annotations.clear();
+        mIndex.query(region, annotations);
+        final int count = annotations.size();
+        if (count == 0) {
+            return;
+        }
+
+        if (mDrawOrder.length < count) {
+            mDrawOrder = new long[Math.max(count, mDrawOrder.length * 2)];
+        }
+        final long[] drawOrder = mDrawOrder;
+        final int[] positions = annotations.values();
+        for (int i = 0; i < count; i++) {
+            drawOrder[i] = getDrawOrderKey(positions[i]);
+        }
+        Arrays.sort(drawOrder, 0, count);
+
+        // Tiles are rendered continuously while panning: the Canvas is reused
+        final Canvas canvas = mTileCanvas;
+        canvas.setBitmap(bitmap);
+        final long half = shift > 0 ? 1L << (shift - 1) : 0;
+        for (int pass = 0; pass < 2; pass++) {
+            final boolean shadow = pass == 0;
+            for (int i = 0; i < count; i++) {
+                final int position = (int) drawOrder[i];
+                if (position == mSelectedAnnotation || mAnimator.isAnimated(position)) {
+                    continue;
+                }
+                // Position of the annotation relatively to the center of the
+                // tile, taking the closest copy of the world
+                long dx = Mercator.longitudeToX(mLongitudes[position]) - centerX;
+                if (dx >= worldSize / 2) {
+                    dx -= worldSize;
+                } else if (dx < -worldSize / 2) {
+                    dx += worldSize;
+                }
+                final long dy = Mercator.latitudeToY(mLatitudes[position]) - centerY;
+                final int x = tileSize / 2 + (int) ((dx + half) >> shift);
+                final int y = tileSize / 2 + (int) ((dy + half) >> shift);
+
+                if (!mMarkerAtlas.draw(canvas, mMarkerTypes[position], x, y, shadow)) {
+                    final Drawable marker = getMarker(position);
+                    OverlayItem.setState(marker, 0);
+                    drawAt(canvas, marker, x, y, shadow);
+                }
+            }
+        }
+    }
+
+    private static long floorDiv(long a, long b) {
+        final long q = a / b;
+        return (a % b != 0 && (a < 0) != (b < 0)) ? q - 1 : q;
+    }
+
+    private void drawClusters(Canvas canvas, boolean shadow) {
+        final Clusters clusters = mClusters;
+        final int count = mVisibleClusters.size();
+        if (mDrawOrder.length < count) {
+            mDrawOrder = new long[Math.max(count, mDrawOrder.length * 2)];
+        }
+
+        // Clusters are drawn from north to south just like annotations
+        final long[] drawOrder = mDrawOrder;
+        final int[] visible = mVisibleClusters.values();
+        for (int i = 0; i < count; i++) {
+            drawOrder[i] = getClusterDrawOrderKey(visible[i]);
+        }
+        Arrays.sort(drawOrder, 0, count);
+
+        int clusteredCount = 0;
+        for (int i = 0; i < count; i++) {
+            final int cluster = (int) drawOrder[i];
+            final int size = clusters.getSize(cluster);
+            clusteredCount += size;
+            if (size == 1) {
+                final int position = getClusterPosition(cluster);
+                if (position != mSelectedAnnotation) {
+                    drawAnnotation(canvas, position, shadow, 0);
+                }
+            } else if (!shadow) {
+                drawCluster(canvas, cluster);
+            }
+        }
+
+        if (Config.METRICS_ENABLED && mMetrics != null && !shadow) {
+            mMetrics.onAnnotationsDrawn(count, mCount - mRemovedCount - clusteredCount);
+        }
+
+        // The selected annotation is never clustered and is always drawn on
+        // top of everything else.
+        if (mSelectedAnnotation != INVALID_POSITION) {
+            drawAnnotation(canvas, mSelectedAnnotation, shadow, OverlayItem.ITEM_STATE_FOCUSED_MASK);
+        }
+    }
+
+    private void drawCluster(Canvas canvas, int cluster) {
+        final int x = mProjector.toPixelX(mClusters.getLongitude(cluster));
+        final int y = mProjector.toPixelY(mClusters.getLatitude(cluster));
+
+        // Format the count without allocating a String
+        final char[] text = mClusterText;
+        int start = text.length;
+        int size = mClusters.getSize(cluster);
+        do {
+            text[--start] = (char) ('0' + size % 10);
+            size /= 10;
+        } while (size > 0);
+        final int length = text.length - start;
+
+        final float radius = getClusterRadius(length);
+        canvas.drawCircle(x, y, radius, mClusterPaint);
+        canvas.drawCircle(x, y, radius, mClusterStrokePaint);
+        canvas.drawText(text, start, length, x, y + mClusterTextOffset, mClusterTextPaint);
+    }
+
+    /**
+     * Draw the visible annotations as dots. All dots are drawn in a single
+     * call. The projector must be up to date.
+     */
+    private void drawDots(Canvas canvas, MapView mapView, boolean shadow) {
+        // Dots have no shadow
+        if (!shadow) {
+            final IntArray visible = mVisibleAnnotations;
+            visible.clear();
+            if (computeVisibleRegion(mapView, mVisibleRegion)) {
+                mIndex.query(mVisibleRegion, visible);
+            }
+
+            final int count = visible.size();
+            if (mDotPoints.length < count * 2) {
+                mDotPoints = new float[Math.max(count * 2, mDotPoints.length * 2)];
+            }
+            final float[] points = mDotPoints;
+            final int[] positions = visible.values();
+            projectAnnotations(positions, count);
+            final int[] xs = mProjectedXs;
+            final int[] ys = mProjectedYs;
+            int pointCount = 0;
+            for (int i = 0; i < count; i++) {
+                if (positions[i] != mSelectedAnnotation) {
+                    points[pointCount++] = xs[i];
+                    points[pointCount++] = ys[i];
+                }
+            }
+            if (pointCount > 0) {
+                canvas.drawPoints(points, 0, pointCount, mDotPaint);
+            }
+
+            if (Config.METRICS_ENABLED && mMetrics != null) {
+                mMetrics.onAnnotationsDrawn(count, mCount - mRemovedCount - count);
+            }
+        }
+
+        // The selected annotation is always drawn using its marker
+        if (mSelectedAnnotation != INVALID_POSITION) {
+            drawAnnotation(canvas, mSelectedAnnotation, shadow, OverlayItem.ITEM_STATE_FOCUSED_MASK);
+        }
+    }
+
+    /**
+     * Draw the density cells covering the screen. The projector must be up to
+     * date.
+     */
+    private void drawDensity(Canvas canvas, MapView mapView, boolean shadow) {
+        if (!shadow) {
+            ensureDensity(mapView);
+
+            final DensityGrid grid = mDensityGrid;
+            final int maxCount = grid.getMaxCount();
+            if (maxCount > 0) {
+                final long cellSize = grid.getCellSize();
+                final int firstColumn = (int) floorDiv(mProjector.unprojectX(0), cellSize);
+                final int lastColumn = (int) floorDiv(mProjector.unprojectX(mapView.getWidth() - 1), cellSize);
+                final int firstRow = (int) floorDiv(mProjector.unprojectY(0), cellSize);
+                final int lastRow = (int) floorDiv(mProjector.unprojectY(mapView.getHeight() - 1), cellSize);
+
+                final Paint paint = mDensityPaint;
+                final double alphaRange = DENSITY_MAX_ALPHA - DENSITY_MIN_ALPHA;
+                for (int row = firstRow; row <= lastRow; row++) {
+                    final int top = mProjector.projectY(row * cellSize);
+                    final int bottom = mProjector.projectY((row + 1) * cellSize);
+                    for (int column = firstColumn; column <= lastColumn; column++) {
+                        final int count = grid.getCount(column, row);
+                        if (count == 0) {
+                            continue;
+                        }
+                        paint.setAlpha(DENSITY_MIN_ALPHA + (int) (alphaRange * Math.sqrt((double) count / maxCount)));
+                        //@formatter:off
+                        canvas.drawRect(
+                                mProjector.projectX(column * cellSize),
+                                top,
+                                mProjector.projectX((column + 1) * cellSize),
+                                bottom,
+                                paint);
+                        //@formatter:on
+                    }
+                }
+            }
+        }
+
+        if (mSelectedAnnotation != INVALID_POSITION) {
+            drawAnnotation(canvas, mSelectedAnnotation, shadow, OverlayItem.ITEM_STATE_FOCUSED_MASK);
+        }
+    }
+
+    private boolean isHeatmapVisible(MapView mapView) {
+        return mHeatmap != null && mapView.getZoomLevel() < HEATMAP_MAX_ZOOM;
+    }
+
+    private void drawHeatmap(Canvas canvas, MapView mapView, boolean shadow) {
+        if (!shadow) {
+            final int width = mapView.getWidth();
+            final int height = mapView.getHeight();
+            // MapView zoom levels start at 1 while Mercator zoom levels start
+            // at 0
+            final int zoom = Math.max(0, Math.min(Mercator.MAX_ZOOM, mapView.getZoomLevel() - 1));
+            if (mHeatmap.update(mProjector, zoom, width, height)) {
+                rebuildHeatmap();
+            }
+            mHeatmap.draw(canvas, mProjector, width, height);
+        }
+
+        if (mSelectedAnnotation != INVALID_POSITION) {
+            drawAnnotation(canvas, mSelectedAnnotation, shadow, OverlayItem.ITEM_STATE_FOCUSED_MASK);
+        }
+    }
+
+    /**
+     * Give the heatmap a snapshot of the annotations. The heatmap is computed
+     * on a background thread: the annotations are copied into buffers reused
+     * from one snapshot to another.
+     */
+    private void rebuildHeatmap() {
+        final int count = mCount - mRemovedCount;
+        final int[] latitudes = mHeatmap.getSnapshotLatitudes(count);
+        final int[] longitudes = mHeatmap.getSnapshotLongitudes(count);
+        int index = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (mMarkerTypes[i] != REMOVED) {
+                latitudes[index] = getFinalLatitude(i);
+                longitudes[index] = getFinalLongitude(i);
+                index++;
+            }
+        }
+        mHeatmap.rebuild(count);
+    }
+
+    /*
+     * The heatmap is not animated: animated annotations are known to the
+     * heatmap by the location they move to.
+     */
+
+    private int getFinalLatitude(int position) {
+        return mAnimator.isAnimated(position) ? mAnimator.getTargetLatitude(position) : mLatitudes[position];
+    }
+
+    private int getFinalLongitude(int position) {
+        return mAnimator.isAnimated(position) ? mAnimator.getTargetLongitude(position) : mLongitudes[position];
+    }
+
+    @Override
+    public boolean onTap(GeoPoint p, MapView mapView) {
+        if (!mProjector.update(mapView)) {
+            return false;
+        }
+        final MercatorProjector projector = mProjector;
+        final int tapX = projector.toPixelX(p.getLongitudeE6());
+        final int tapY = projector.toPixelY(p.getLatitudeE6());
+
+        if (mClusterer != null) {
+            ensureClusters(mapView);
+            if (mClusters != null) {
+                return onTapClusters(mapView, tapX, tapY);
+            }
+        }
+        if (!isHeatmapVisible(mapView) && ensureLevelOfDetail(mapView) == LOD_DENSITY) {
+            return onTapDensity(mapView, tapX, tapY);
+        }
+
+        final IntArray hits = mHits;
+        findAnnotationsAt(mapView, tapX, tapY, 0, hits);
+        if (hits.size() > 0) {
+            setSelectedAnnotation(hits.get(0));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Find the annotations whose marker contains the given point (or is at
+     * most at radius pixels from it). Only annotations drawn individually are
+     * considered: when clustering is enabled, annotations inside a cluster
+     * can't be found.
+     * <p>
+     * Candidates are retrieved from the spatial index so that only the
+     * annotations close to the given point are tested.
+     * </p>
+     * 
+     * @param mapView The MapView this overlay is drawn on
+     * @param x The horizontal position of the point (in pixels)
+     * @param y The vertical position of the point (in pixels)
+     * @param radius The tolerance in pixels
+     * @param outPositions The positions of the found annotations, ordered
+     *            from the top-most (i.e. the last drawn) to the bottom-most.
+     */
+    public void findAnnotationsAt(MapView mapView, int x, int y, int radius, IntArray outPositions) {
+        if (Config.METRICS_ENABLED && mMetrics != null) {
+            final long start = System.nanoTime();
+            findAnnotationsAtInternal(mapView, x, y, radius, outPositions);
+            mMetrics.onHitTest(System.nanoTime() - start, outPositions.size());
+        } else {
+            findAnnotationsAtInternal(mapView, x, y, radius, outPositions);
+        }
+    }
+
+    private void findAnnotationsAtInternal(MapView mapView, int x, int y, int radius, IntArray outPositions) {
+        outPositions.clear();
+        final CoordinateRegion region = mTempRegion;
+        if (!mProjector.update(mapView) || !computeVisibleRegion(mapView, region)) {
+            return;
+        }
+
+        final IntArray candidates = mHitCandidates;
+        candidates.clear();
+        if (mClusterer != null) {
+            ensureClusters(mapView);
+        }
+        if (mClusters != null) {
+            final int count = mVisibleClusters.size();
+            final int[] visible = mVisibleClusters.values();
+            for (int i = 0; i < count; i++) {
+                final int cluster = visible[i];
+                if (mClusters.getSize(cluster) == 1) {
+                    final int position = getClusterPosition(cluster);
+                    if (position != mSelectedAnnotation) {
+                        candidates.add(position);
+                    }
+                }
+            }
+            if (mSelectedAnnotation != INVALID_POSITION) {
+                candidates.add(mSelectedAnnotation);
+            }
+        } else if (isHeatmapVisible(mapView) || ensureLevelOfDetail(mapView) == LOD_DENSITY) {
+            // The heatmap and the density cells can't be hit. Only the
+            // selected annotation is drawn individually.
+            if (mSelectedAnnotation != INVALID_POSITION) {
+                candidates.add(mSelectedAnnotation);
+            }
+        } else {
+            // Only consider the annotations that are close enough from the
+            // point to be hit.
+            final int radiusLatitude = (int) ((long) radius * region.latitudeSpan / mapView.getHeight()) + 1;
+            final int radiusLongitude = (int) ((long) radius * region.longitudeSpan / mapView.getWidth()) + 1;
+            final GeoPoint point = mapView.getProjection().fromPixels(x, y);
+            //@formatter:off
+            region.set(
+                    point.getLatitudeE6(),
+                    point.getLongitudeE6(),
+                    2 * (mGuardLatitude + radiusLatitude),
+                    2 * (mGuardLongitude + radiusLongitude));
+            //@formatter:on
+            mIndex.query(region, candidates);
+        }
+
+        // Order the hits using the drawing order. The selected annotation is
+        // always on top.
+        final int count = candidates.size();
+        if (mHitOrder.length < count) {
+            mHitOrder = new long[Math.max(count, mHitOrder.length * 2)];
+        }
+        final long[] hitOrder = mHitOrder;
+        final int[] positions = candidates.values();
+        int hitCount = 0;
+        for (int i = 0; i < count; i++) {
+            final int position = positions[i];
+            if (hitTest(position, x, y, radius)) {
+                hitOrder[hitCount++] = position == mSelectedAnnotation ? SELECTED_DRAW_ORDER_KEY | position : getDrawOrderKey(position);
+            }
+        }
+        Arrays.sort(hitOrder, 0, hitCount);
+
+        outPositions.ensureCapacity(hitCount);
+        for (int i = hitCount - 1; i >= 0; i--) {
+            outPositions.add((int) hitOrder[i]);
+        }
+    }
+
+    private boolean onTapClusters(MapView mapView, int tapX, int tapY) {
+        final MercatorProjector projector = mProjector;
+        final Clusters clusters = mClusters;
+
+        // The selected annotation is drawn on top of everything else
+        if (mSelectedAnnotation != INVALID_POSITION && hitTest(mSelectedAnnotation, tapX, tapY, 0)) {
+            return true;
+        }
+
+        int hitCluster = -1;
+        long hitKey = Long.MIN_VALUE;
+        final int count = mVisibleClusters.size();
+        final int[] visible = mVisibleClusters.values();
+        for (int i = 0; i < count; i++) {
+            final int cluster = visible[i];
+            final boolean hit;
+            if (clusters.getSize(cluster) == 1) {
+                hit = hitTest(getClusterPosition(cluster), tapX, tapY, 0);
+            } else {
+                final float radius = getClusterRadius(getDigitCount(clusters.getSize(cluster)));
+                final int dx = tapX - projector.toPixelX(clusters.getLongitude(cluster));
+                final int dy = tapY - projector.toPixelY(clusters.getLatitude(cluster));
+                hit = dx * dx + dy * dy <= radius * radius;
+            }
+            if (hit) {
+                final long key = getClusterDrawOrderKey(cluster);
+                if (key > hitKey) {
+                    hitKey = key;
+                    hitCluster = cluster;
+                }
+            }
+        }
+
+        if (hitCluster == -1) {
+            return false;
+        }
+
+        if (clusters.getSize(hitCluster) == 1) {
+            setSelectedAnnotation(getClusterPosition(hitCluster));
+        } else {
+            //@formatter:off
+            mapView.getController().zoomInFixing(
+                    projector.toPixelX(clusters.getLongitude(hitCluster)),
+                    projector.toPixelY(clusters.getLatitude(hitCluster)));
+            //@formatter:on
+        }
+        return true;
+    }
+
+    /**
+     * Zoom in around the tapped density cell, if it isn't empty.
+     */
+    private boolean onTapDensity(MapView mapView, int tapX, int tapY) {
+        if (mSelectedAnnotation != INVALID_POSITION && hitTest(mSelectedAnnotation, tapX, tapY, 0)) {
+            return true;
+        }
+
+        ensureDensity(mapView);
+        final long cellSize = mDensityGrid.getCellSize();
+        final int column = (int) floorDiv(mProjector.unprojectX(tapX), cellSize);
+        final int row = (int) floorDiv(mProjector.unprojectY(tapY), cellSize);
+        if (mDensityGrid.getCount(column, row) == 0) {
+            return false;
+        }
+        mapView.getController().zoomInFixing(tapX, tapY);
+        return true;
+    }
+
+    private boolean hitTest(int position, int x, int y, int radius) {
+        final MercatorProjector projector = mProjector;
+        final int dx = x - projector.toPixelX(mLongitudes[position]);
+        final int dy = y - projector.toPixelY(mLatitudes[position]);
+        if (mLevelOfDetail == LOD_DOTS && mClusters == null && position != mSelectedAnnotation) {
+            // Dots are too small to be hit precisely
+            final float hitRadius = mDotHitRadius + radius;
+            return dx * dx + dy * dy <= hitRadius * hitRadius;
+        }
+        final Rect bounds = getMarker(position).getBounds();
+        return dx >= bounds.left - radius && dx < bounds.right + radius && dy >= bounds.top - radius && dy < bounds.bottom + radius;
+    }
+
+    /**
+     * Return the {@link Annotation} at the given position. For annotations
+     * that have been added via an {@link AnnotationStore}, the
+     * {@link Annotation} is created on demand.
+     * 
+     * @param position The position of the annotation
+     * @return The {@link Annotation} at the given position or null if there
+     *         is no such annotation
+     */
+    public Annotation getAnnotation(int position) {
+        if (!isValidPosition(position)) {
+            return null;
+        }
+        final Annotation annotation = mObjects[position];
+        if (annotation != null) {
+            return annotation;
+        }
+        if (position != mMaterializedPosition) {
+            mMaterializedAnnotation = createAnnotation(position);
+            mMaterializedPosition = position;
+        }
+        return mMaterializedAnnotation;
+    }
+
+    /**
+     * Return the marker used by the annotation at the given position.
+     * 
+     * @param position The position of the annotation
+     * @return The marker of the annotation
+     */
+    public Drawable getMarker(int position) {
+        return mMarkers.get(mMarkerTypes[position]);
+    }
+
+    /**
+     * Return the current latitude of the annotation at the given position.
+     * Contrary to the {@link Annotation} returned by {@link #getAnnotation(int)}
+     * the latitude of an animated annotation follows its animation.
+     * 
+     * @param position The position of the annotation
+     * @return The latitude of the annotation in microdegrees
+     */
+    public int getLatitudeE6(int position) {
+        return mLatitudes[position];
+    }
+
+    /**
+     * Return the current longitude of the annotation at the given position.
+     * 
+     * @param position The position of the annotation
+     * @return The longitude of the annotation in microdegrees
+     * @see #getLatitudeE6(int)
+     */
+    public int getLongitudeE6(int position) {
+        return mLongitudes[position];
+    }
+
+    public int getSelectedAnnotation() {
+        return mSelectedAnnotation;
+    }
+
+    public void setSelectedAnnotation(int position) {
+        if (!isValidPosition(position)) {
+            position = INVALID_POSITION;
+        }
+
+        if (position != mSelectedAnnotation) {
+            if (mSelectedAnnotation != INVALID_POSITION) {
+                invalidateAnnotation(mSelectedAnnotation);
+                mCallback.dismissCallout(mSelectedAnnotation);
+            }
+            mSelectedAnnotation = position;
+            if (position != INVALID_POSITION) {
+                invalidateAnnotation(position);
+                mCallback.showCallout(position);
+            }
+        }
+    }
+
+    /**
+     * Start a new transaction. Transactions can be nested. Changes are
+     * notified once the outermost transaction has ended.
+     */
+    public void beginTransaction() {
+        mTransactionDepth++;
+    }
+
+    /**
+     * End the current transaction.
+     */
+    public void endTransaction() {
+        if (mTransactionDepth == 0) {
+            throw new IllegalStateException("No transaction has been started");
+        }
+        mTransactionDepth--;
+        if (mTransactionDepth == 0) {
+            if (mRemovedCount > 0) {
+                compact();
+            }
+            mCallback.onTransactionEnded();
+        }
+    }
+
+    public boolean isInTransaction() {
+        return mTransactionDepth > 0;
+    }
+
+    public void addAnnotations(List<Annotation> annotations) {
+        beginTransaction();
+        try {
+            final int count = annotations.size();
+            ensureCapacity(mCount + count);
+            for (int i = 0; i < count; i++) {
+                final int position = insert(annotations.get(i));
+                invalidateAnnotation(position);
+            }
+        } finally {
+            endTransaction();
+        }
+    }
+
+    public void addAnnotations(AnnotationStore annotations) {
+        beginTransaction();
+        try {
+            insert(annotations, null, 0, true);
+        } finally {
+            endTransaction();
+        }
+    }
+
+    /**
+     * Merge the annotations of the given store with the current annotations.
+     * Annotations are identified by the identifier they have been added with
+     * in their {@link AnnotationStore}. Current annotations outside of the
+     * given region are removed (except the selected one) and annotations of
+     * the store that are not displayed yet are added. Annotations both
+     * currently displayed and in the store are left untouched.
+     * 
+     * @param annotations The annotations to merge
+     * @param region The region covered by the given annotations
+     */
+    public void mergeAnnotations(AnnotationStore annotations, CoordinateRegion region) {
+        beginTransaction();
+        try {
+            final int count = mCount;
+            final int[] keptIds = new int[count];
+            int keptCount = 0;
+            for (int i = 0; i < count; i++) {
+                if (mMarkerTypes[i] == REMOVED) {
+                    continue;
+                }
+                if (i != mSelectedAnnotation && !region.contains(mLatitudes[i], mLongitudes[i])) {
+                    removeAnnotation(i);
+                } else {
+                    keptIds[keptCount++] = mIds[i];
+                }
+            }
+            Arrays.sort(keptIds, 0, keptCount);
+            insert(annotations, keptIds, keptCount, true);
+        } finally {
+            endTransaction();
+        }
+    }
+
+    public void removeAnnotation(int position) {
+        if (!isValidPosition(position)) {
+            return;
+        }
+
+        beginTransaction();
+        try {
+            if (position == mSelectedAnnotation) {
+                setSelectedAnnotation(INVALID_POSITION);
+            }
+            invalidateAnnotation(position);
+
+            if (mHeatmap != null) {
+                mHeatmap.remove(getFinalLatitude(position), getFinalLongitude(position));
+            }
+            mAnimator.cancel(position);
+            mIndex.remove(position, mLatitudes[position], mLongitudes[position]);
+            if (mClusterer != null) {
+                mClusterer.removePoint(position);
+            }
+
+            // Removed annotations are simply flagged. This ensures positions
+            // stay stable until the end of the transaction.
+            mMarkerTypes[position] = REMOVED;
+            mObjects[position] = null;
+            mTextProviders[position] = null;
+            if (position == mMaterializedPosition) {
+                mMaterializedAnnotation = null;
+                mMaterializedPosition = INVALID_POSITION;
+            }
+            mRemovedCount++;
+            onAnnotationsChanged();
+        } finally {
+            endTransaction();
+        }
+    }
+
+    public void removeAnnotations(List<Annotation> annotations) {
+        final IdentityHashMap<Annotation, Annotation> toRemove = new IdentityHashMap<Annotation, Annotation>(annotations.size());
+        for (Annotation annotation : annotations) {
+            toRemove.put(annotation, annotation);
+        }
+
+        beginTransaction();
+        try {
+            if (mMaterializedAnnotation != null && toRemove.remove(mMaterializedAnnotation) != null) {
+                removeAnnotation(mMaterializedPosition);
+            }
+            final int count = mCount;
+            for (int i = 0; i < count && !toRemove.isEmpty(); i++) {
+                final Annotation annotation = mObjects[i];
+                if (annotation != null && toRemove.remove(annotation) != null) {
+                    removeAnnotation(i);
+                }
+            }
+        } finally {
+            endTransaction();
+        }
+    }
+
+    public int indexOfAnnotation(Annotation annotation) {
+        if (annotation == null) {
+            return INVALID_POSITION;
+        }
+        if (annotation == mMaterializedAnnotation) {
+            return mMaterializedPosition;
+        }
+        final int count = mCount;
+        for (int i = 0; i < count; i++) {
+            if (mObjects[i] == annotation) {
+                return i;
+            }
+        }
+        return INVALID_POSITION;
+    }
+
+    public void setAnnotationPoint(int position, GeoPoint point) {
+        if (!isValidPosition(position) || point == null) {
+            return;
+        }
+
+        beginTransaction();
+        try {
+            if (mHeatmap != null) {
+                mHeatmap.remove(getFinalLatitude(position), getFinalLongitude(position));
+                mHeatmap.add(point.getLatitudeE6(), point.getLongitudeE6());
+            }
+            mAnimator.cancel(position);
+
+            // Invalidate both the old and the new location of the marker
+            invalidateAnnotation(position);
+
+            final int latitude = point.getLatitudeE6();
+            final int longitude = point.getLongitudeE6();
+            mIndex.update(position, mLatitudes[position], mLongitudes[position], latitude, longitude);
+            if (mClusterer != null) {
+                mClusterer.setPoint(position, latitude, longitude);
+            }
+            mLatitudes[position] = latitude;
+            mLongitudes[position] = longitude;
+            if (mObjects[position] != null) {
+                mObjects[position].setPoint(point);
+            } else if (position == mMaterializedPosition) {
+                mMaterializedAnnotation.setPoint(point);
+            }
+            mClustersDirty = true;
+            mDensityDirty = true;
+            mGeneration++;
+
+            invalidateAnnotation(position);
+            if (position == mSelectedAnnotation) {
+                mCallback.moveCallout(position, point);
+            }
+            mCallback.onAnnotationsMoved();
+        } finally {
+            endTransaction();
+        }
+    }
+
+    /**
+     * Move an annotation to a new point with an animation. The annotation is
+     * linearly interpolated from its current location to the given point. The
+     * {@link Annotation} returned by {@link #getAnnotation(int)} is only
+     * updated once the animation ends.
+     * 
+     * @param position The position of the annotation to move
+     * @param point The new point of the annotation
+     * @param duration The duration of the animation in milliseconds
+     */
+    public void animateAnnotationPoint(int position, GeoPoint point, int duration) {
+        if (!isValidPosition(position) || point == null) {
+            return;
+        }
+        if (duration <= 0) {
+            setAnnotationPoint(position, point);
+            return;
+        }
+
+        if (!mAnimator.isAnimated(position)) {
+            // Animated annotations are drawn live rather than in the tiles
+            invalidateTiles(position);
+        }
+        if (mHeatmap != null) {
+            // The heatmap is not animated: the annotation directly moves to
+            // its final location
+            mHeatmap.remove(getFinalLatitude(position), getFinalLongitude(position));
+            mHeatmap.add(point.getLatitudeE6(), point.getLongitudeE6());
+        }
+        //@formatter:off
+        mAnimator.start(position,
+                mLatitudes[position],
+                mLongitudes[position],
+                point.getLatitudeE6(),
+                point.getLongitudeE6(),
+                SystemClock.uptimeMillis(),
+                duration);
+        //@formatter:on
+
+        // Request the first frame. The following frames are requested from
+        // draw(Canvas, MapView, boolean, long)
+        mCallback.invalidateAnnotations();
+    }
+
+    /**
+     * Move all animated annotations to their location at the given time.
+     */
+    private void stepAnimations(long time) {
+        final boolean isSelectedAnimated = mSelectedAnnotation != INVALID_POSITION && mAnimator.isAnimated(mSelectedAnnotation);
+
+        final IntArray finished = mFinishedAnimations;
+        finished.clear();
+        mAnimator.step(time, mLatitudes, mLongitudes, mIndex, finished);
+        mGeneration++;
+        mCallback.onAnnotationsMoved();
+
+        final int[] positions = finished.values();
+        final int count = finished.size();
+        for (int i = 0; i < count; i++) {
+            final int position = positions[i];
+            // A GeoPoint is only built for the Annotations that exist
+            Annotation annotation = mObjects[position];
+            if (annotation == null && position == mMaterializedPosition) {
+                annotation = mMaterializedAnnotation;
+            }
+            if (annotation != null) {
+                annotation.setPoint(new GeoPoint(mLatitudes[position], mLongitudes[position]));
+            }
+            if (mClusterer != null) {
+                mClusterer.setPoint(position, mLatitudes[position], mLongitudes[position]);
+            }
+            // The annotation is cached again
+            invalidateTiles(position);
+        }
+        if (count > 0) {
+            mClustersDirty = true;
+            mDensityDirty = true;
+        }
+
+        if (isSelectedAnimated) {
+            if (mAnimator.isAnimated(mSelectedAnnotation)) {
+                mIsCalloutMoved = true;
+            } else {
+                // The animation ended: the callout follows the map again
+                mIsCalloutMoved = false;
+                mCallback.moveCallout(mSelectedAnnotation, getAnnotation(mSelectedAnnotation).getPoint());
+            }
+        }
+    }
+
+    private boolean isValidPosition(int position) {
+        return position >= 0 && position < mCount && mMarkerTypes[position] != REMOVED;
+    }
+
+    private int insert(Annotation annotation) {
+        if (annotation == null) {
+            throw new IllegalArgumentException("Cannot add a null " + Annotation.class.getSimpleName());
+        }
+        final GeoPoint point = annotation.getPoint();
+        final int position = insert(point.getLatitudeE6(), point.getLongitudeE6(), getMarkerType(annotation.getMarker()), 0);
+        mObjects[position] = annotation;
+        return position;
+    }
+
+    /**
+     * Insert the annotations of a store.
+     * 
+     * @param annotations The annotations to insert
+     * @param skippedIds A sorted array of identifiers of annotations that must
+     *            not be inserted. May be null.
+     * @param skippedCount The number of values in skippedIds
+     * @param invalidate Whether to invalidate the inserted annotations
+     */
+    private void insert(AnnotationStore annotations, int[] skippedIds, int skippedCount, boolean invalidate) {
+        // Map the marker types of the store to the marker types of this
+        // overlay
+        final int markerTypeCount = annotations.getMarkerTypeCount();
+        final int[] markerTypes = new int[markerTypeCount];
+        for (int i = 0; i < markerTypeCount; i++) {
+            markerTypes[i] = getMarkerType(annotations.getMarker(i));
+        }
+
+        final TextProvider textProvider = annotations.getTextProvider();
+        final int count = annotations.size();
+        ensureCapacity(mCount + count);
+        for (int i = 0; i < count; i++) {
+            final int id = annotations.getId(i);
+            if (skippedIds != null && binarySearch(skippedIds, skippedCount, id) >= 0) {
+                continue;
+            }
+            //@formatter:off
+            final int position = insert(
+                    annotations.getLatitude(i),
+                    annotations.getLongitude(i),
+                    markerTypes[annotations.getMarkerType(i)],
+                    id);
+            //@formatter:on
+            mTextProviders[position] = textProvider;
+            if (invalidate) {
+                invalidateAnnotation(position);
+            }
+        }
+    }
+
+    private int insert(int latitude, int longitude, int markerType, int id) {
+        ensureCapacity(mCount + 1);
+        final int position = mCount++;
+        mLatitudes[position] = latitude;
+        mLongitudes[position] = longitude;
+        mMarkerTypes[position] = markerType;
+        mIds[position] = id;
+        mObjects[position] = null;
+        mTextProviders[position] = null;
+
+        mIndex.insert(position, latitude, longitude);
+        if (mClusterer != null) {
+            mClusterer.setPoint(position, latitude, longitude);
+        }
+        if (mHeatmap != null) {
+            mHeatmap.add(latitude, longitude);
+        }
+        onAnnotationsChanged();
+        return position;
+    }
+
+    /**
+     * Equivalent to Arrays.binarySearch(int[], int, int, int) which is not
+     * available prior Gingerbread.
+     */
+    private static int binarySearch(int[] array, int count, int value) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int middleValue = array[middle];
+            if (middleValue < value) {
+                low = middle + 1;
+            } else if (middleValue > value) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private int getMarkerType(Drawable marker) {
+        if (marker == null) {
+            return DEFAULT_MARKER;
+        }
+        final Integer markerType = mMarkerTypesByMarker.get(marker);
+        if (markerType != null) {
+            return markerType;
+        }
+        mMarkers.add(marker);
+        mMarkersBounds.union(marker.getBounds());
+        final int newMarkerType = mMarkers.size() - 1;
+        mMarkerTypesByMarker.put(marker, newMarkerType);
+        return newMarkerType;
+    }
+
+    private Annotation createAnnotation(int position) {
+        final TextProvider textProvider = mTextProviders[position];
+        final int id = mIds[position];
+        final int markerType = mMarkerTypes[position];
+        //@formatter:off
+        return new Annotation(
+                new GeoPoint(mLatitudes[position], mLongitudes[position]),
+                textProvider != null ? textProvider.getTitle(id) : null,
+                textProvider != null ? textProvider.getSnippet(id) : null,
+                markerType != DEFAULT_MARKER ? mMarkers.get(markerType) : null);
+        //@formatter:on
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        if (minCapacity > mLatitudes.length) {
+            final int capacity = Math.max(minCapacity, mLatitudes.length * 2);
+            mLatitudes = grow(mLatitudes, capacity);
+            mLongitudes = grow(mLongitudes, capacity);
+            mMarkerTypes = grow(mMarkerTypes, capacity);
+            mIds = grow(mIds, capacity);
+
+            final Annotation[] objects = new Annotation[capacity];
+            System.arraycopy(mObjects, 0, objects, 0, mCount);
+            mObjects = objects;
+
+            final TextProvider[] textProviders = new TextProvider[capacity];
+            System.arraycopy(mTextProviders, 0, textProviders, 0, mCount);
+            mTextProviders = textProviders;
+        }
+    }
+
+    private int[] grow(int[] array, int capacity) {
+        final int[] newArray = new int[capacity];
+        System.arraycopy(array, 0, newArray, 0, mCount);
+        return newArray;
+    }
+
+    /**
+     * Remove the "holes" left by removed annotations. This is done in a single
+     * pass over the annotations and doesn't require any sort.
+     */
+    private void compact() {
+        final int count = mCount;
+        final int[] mapping = new int[count];
+
+        int newPosition = 0;
+        for (int i = 0; i < count; i++) {
+            if (mMarkerTypes[i] != REMOVED) {
+                mLatitudes[newPosition] = mLatitudes[i];
+                mLongitudes[newPosition] = mLongitudes[i];
+                mMarkerTypes[newPosition] = mMarkerTypes[i];
+                mIds[newPosition] = mIds[i];
+                mObjects[newPosition] = mObjects[i];
+                mTextProviders[newPosition] = mTextProviders[i];
+                mapping[i] = newPosition++;
+            } else {
+                mapping[i] = INVALID_POSITION;
+            }
+        }
+        // Release the references held by the now unused slots
+        Arrays.fill(mObjects, newPosition, count, null);
+        Arrays.fill(mTextProviders, newPosition, count, null);
+        mCount = newPosition;
+
+        mIndex.renumber(mapping);
+        mAnimator.renumber(mapping);
+        if (mClusterer != null) {
+            mClusterer.renumber(mapping);
+        }
+        if (mLabels != null) {
+            mLabels.renumber(mapping);
+        }
+        if (mSelectedAnnotation != INVALID_POSITION) {
+            mSelectedAnnotation = mapping[mSelectedAnnotation];
+        }
+        if (mMaterializedPosition != INVALID_POSITION) {
+            mMaterializedPosition = mapping[mMaterializedPosition];
+        }
+        mRemovedCount = 0;
+        onAnnotationsChanged();
+        mCallback.onAnnotationsRenumbered(mapping);
+    }
+
+    /**
+     * Called when annotations have been added or removed. Positions of the
+     * annotations may not be valid anymore. Labels are not placed again:
+     * labels of the removed annotations are dropped when the annotations are
+     * renumbered and new annotations are labeled once the region change is
+     * confirmed.
+     */
+    private void onAnnotationsChanged() {
+        mGeneration++;
+        mClustersDirty = true;
+        mLevelOfDetailDirty = true;
+        mDensityDirty = true;
+    }
+
+    /**
+     * Compute the area of the map covered by the visible annotations, shadows
+     * included. This is typically used to invalidate only the part of the map
+     * that changes when this overlay is added or removed.
+     * 
+     * @param mapView The MapView the annotations are drawn on
+     * @param outBounds The area (in pixels, relatively to the MapView) covered
+     *            by the annotations
+     */
+    public void computeDrawingBounds(MapView mapView, Rect outBounds) {
+        outBounds.setEmpty();
+        if (!mProjector.update(mapView) || !computeVisibleRegion(mapView, mTempRegion)) {
+            return;
+        }
+
+        final int width = mapView.getWidth();
+        final int height = mapView.getHeight();
+        if (mClusterer != null || mIsLevelOfDetailEnabled || mHeatmap != null) {
+            // Clusters, density cells and the heatmap may be drawn anywhere
+            outBounds.set(0, 0, width, height);
+            return;
+        }
+
+        final IntArray visible = mVisibleAnnotations;
+        visible.clear();
+        mIndex.query(mTempRegion, visible);
+
+        final Rect bounds = getDrawingBounds();
+        final int count = visible.size();
+        projectAnnotations(visible.values(), count);
+        final int[] xs = mProjectedXs;
+        final int[] ys = mProjectedYs;
+        for (int i = 0; i < count; i++) {
+            outBounds.union(xs[i] + bounds.left, ys[i] + bounds.top, xs[i] + bounds.right, ys[i] + bounds.bottom);
+        }
+        if (!outBounds.intersect(0, 0, width, height)) {
+            outBounds.setEmpty();
+        }
+    }
+
+    /**
+     * Project the given annotations into {@link #mProjectedXs} and
+     * {@link #mProjectedYs}. The projector must be up to date.
+     */
+    private void projectAnnotations(int[] positions, int count) {
+        if (mProjectedXs.length < count) {
+            final int capacity = Math.max(count, mProjectedXs.length * 2);
+            mProjectedXs = new int[capacity];
+            mProjectedYs = new int[capacity];
+        }
+        mProjector.toPixels(mLatitudes, mLongitudes, positions, count, mProjectedXs, mProjectedYs);
+    }
+
+    /**
+     * Append to <code>out</code> the annotations whose marker (or shadow) may
+     * intersect the given area of the screen. The projector must be up to
+     * date.
+     */
+    private void queryScreenArea(Rect area, IntArray out) {
+        final Rect bounds = getDrawingBounds();
+        // An extra pixel on each side accounts for rounding errors
+        final long minX = mProjector.unprojectX(area.left - bounds.right - 1);
+        final long maxX = mProjector.unprojectX(area.right - bounds.left + 1);
+        final long minY = mProjector.unprojectY(area.top - bounds.bottom - 1);
+        final long maxY = mProjector.unprojectY(area.bottom - bounds.top + 1);
+
+        final long worldSize = Mercator.MAX_WORLD_SIZE;
+        final int minLongitude;
+        final int maxLongitude;
+        if (maxX - minX >= worldSize) {
+            minLongitude = AnnotationIndex.MIN_LONGITUDE;
+            maxLongitude = AnnotationIndex.MAX_LONGITUDE;
+        } else {
+            // The longitudes may be out of the [-180, 180] degrees range when
+            // the area crosses the antimeridian. The index handles it.
+            minLongitude = (int) Math.floor(((double) minX / worldSize - 0.5) * 360e6);
+            maxLongitude = (int) Math.ceil(((double) maxX / worldSize - 0.5) * 360e6);
+        }
+        // Latitudes increase northwards while Mercator coordinates increase
+        // southwards. Annotations beyond the Mercator limits are drawn on the
+        // edges of the world.
+        final int minLatitude = maxY >= worldSize - 1 ? AnnotationIndex.MIN_LATITUDE : Mercator.yToLatitude((int) Math.max(0, maxY));
+        final int maxLatitude = minY <= 0 ? AnnotationIndex.MAX_LATITUDE : Mercator.yToLatitude((int) Math.min(worldSize - 1, minY));
+
+        mIndex.query(minLatitude, minLongitude, maxLatitude, maxLongitude, out);
+    }
+
+    /**
+     * Return the union of the bounds of all markers, their shadows and their
+     * labels, relatively to the marker anchor.
+     */
+    private Rect getDrawingBounds() {
+        final Rect bounds = getMarkersDrawingBounds();
+        if (mLabels != null) {
+            final Rect labelBounds = mTempRect;
+            mLabels.getLabelBounds(mMarkersBounds, labelBounds);
+            bounds.union(labelBounds);
+        }
+        return bounds;
+    }
+
+    /**
+     * Return the union of the bounds of all markers and their shadows,
+     * relatively to the marker anchor.
+     */
+    private Rect getMarkersDrawingBounds() {
+        final Rect bounds = mDrawingBounds;
+        MarkerAtlas.getShadowBounds(mMarkersBounds, SHADOW_X_SKEW, SHADOW_Y_SCALE, bounds);
+        bounds.union(mMarkersBounds);
+        return bounds;
+    }
+
+    /**
+     * Invalidate the cached tiles the given annotation may be drawn in.
+     */
+    private void invalidateTiles(int position) {
+        if (mTileCache != null) {
+            //@formatter:off
+            mTileCache.invalidate(
+                    Mercator.longitudeToX(mLongitudes[position]),
+                    Mercator.latitudeToY(mLatitudes[position]),
+                    getMarkersDrawingBounds());
+            //@formatter:on
+        }
+    }
+
+    private void invalidateAnnotation(int position) {
+        // The dirty area includes the shadow of the marker
+        final Rect markerBounds = getMarker(position).getBounds();
+        final Rect bounds = mTempRect;
+        MarkerAtlas.getShadowBounds(markerBounds, SHADOW_X_SKEW, SHADOW_Y_SCALE, bounds);
+        bounds.union(markerBounds);
+
+        if (mTileCache != null) {
+            //@formatter:off
+            mTileCache.invalidate(
+                    Mercator.longitudeToX(mLongitudes[position]),
+                    Mercator.latitudeToY(mLatitudes[position]),
+                    bounds);
+            //@formatter:on
+        }
+
+        if (mClusterer != null || mLabels != null || mLevelOfDetail != LOD_MARKERS) {
+            // Changing an annotation may change the clusters, the labels or
+            // the density cells anywhere on screen
+            mCallback.invalidateAnnotations();
+            return;
+        }
+
+        // The projector matches the last drawn frame. If the map moved since
+        // then, the whole MapView is redrawn anyway.
+        final MapViewProjector projector = mProjector;
+        if (!projector.isUpdated()) {
+            mCallback.invalidateAnnotations();
+            return;
+        }
+        bounds.offset(projector.toPixelX(mLongitudes[position]), projector.toPixelY(mLatitudes[position]));
+        mCallback.invalidateMarker(bounds);
+    }
+
+    private long getDrawOrderKey(int position) {
+        final long northToSouth = AnnotationIndex.MAX_LATITUDE - mLatitudes[position];
+        return (northToSouth << 32) | position;
+    }
+
+    private long getClusterDrawOrderKey(int cluster) {
+        final long northToSouth = AnnotationIndex.MAX_LATITUDE - mClusters.getLatitude(cluster);
+        return (northToSouth << 32) | cluster;
+    }
+
+    private int getClusterPosition(int cluster) {
+        return mClusterer.getItem(mClusters.getStart(cluster));
+    }
+
+    private float getClusterRadius(int digitCount) {
+        return mClusterRadius * (1.0f + 0.25f * (digitCount - 1));
+    }
+
+    private static int getDigitCount(int value) {
+        int count = 1;
+        while (value >= 10) {
+            value /= 10;
+            count++;
+        }
+        return count;
+    }
+
+    private void initClusterPaints() {
+        final Resources res = mContext.getResources();
+        mClusterRadius = res.getDimension(R.dimen.polaris__cluster_radius);
+
+        mClusterPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mClusterPaint.setColor(res.getColor(R.color.polaris__cluster));
+
+        mClusterStrokePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mClusterStrokePaint.setStyle(Paint.Style.STROKE);
+        mClusterStrokePaint.setStrokeWidth(res.getDimension(R.dimen.polaris__cluster_stroke_width));
+        mClusterStrokePaint.setColor(res.getColor(R.color.polaris__cluster_stroke));
+
+        mClusterTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mClusterTextPaint.setTextAlign(Paint.Align.CENTER);
+        mClusterTextPaint.setTextSize(res.getDimension(R.dimen.polaris__font_size_small));
+        mClusterTextPaint.setColor(res.getColor(R.color.polaris__cluster_text));
+        mClusterTextPaint.setFakeBoldText(true);
+
+        // Vertically center the text on the cluster
+        final Paint.FontMetrics metrics = mClusterTextPaint.getFontMetrics();
+        mClusterTextOffset = -(metrics.ascent + metrics.descent) / 2;
+    }
+
+    /**
+     * Make sure the clusters reflect the current set of annotations and the
+     * current zoom level. Panning doesn't re-compute the clusters: they are
+     * updated in {@link #onRegionChangeConfirmed(MapView)}.
+     */
+    private void ensureClusters(MapView mapView) {
+        if (mClustersDirty || mClustersZoom != mapView.getZoomLevel()) {
+            updateClusters(mapView);
+        }
+    }
+
+    private int ensureLevelOfDetail(MapView mapView) {
+        if (mIsLevelOfDetailEnabled && (mLevelOfDetailDirty || mLevelOfDetailZoom != mapView.getZoomLevel())) {
+            updateLevelOfDetail(mapView);
+        }
+        return mLevelOfDetail;
+    }
+
+    /**
+     * Choose how annotations are drawn according to the zoom level and the
+     * number of annotations in the visible region. Counting the visible
+     * annotations doesn't require to collect them: it is cheap even when
+     * the entire world is visible.
+     */
+    private void updateLevelOfDetail(MapView mapView) {
+        mLevelOfDetailDirty = false;
+        final int zoom = mapView.getZoomLevel();
+        mLevelOfDetailZoom = zoom;
+
+        if (zoom >= LOD_MARKERS_MIN_ZOOM) {
+            mLevelOfDetail = LOD_MARKERS;
+            return;
+        }
+
+        final CoordinateRegion region = mTempRegion;
+        final int visibleCount = computeVisibleRegion(mapView, region) ? mIndex.count(region) : 0;
+        if (visibleCount <= LOD_MAX_MARKERS) {
+            mLevelOfDetail = LOD_MARKERS;
+        } else if (zoom >= LOD_DOTS_MIN_ZOOM || visibleCount <= LOD_MAX_DOTS) {
+            mLevelOfDetail = LOD_DOTS;
+        } else {
+            mLevelOfDetail = LOD_DENSITY;
+        }
+    }
+
+    private void ensureDensity(MapView mapView) {
+        if (mDensityGrid == null || mDensityDirty || mDensityZoom != mapView.getZoomLevel()) {
+            updateDensity(mapView);
+        }
+    }
+
+    /**
+     * Count the annotations in the density cells. Just like clusters, cells
+     * are computed for the visible region extended by one screen in every
+     * direction. The projector must be up to date.
+     */
+    private void updateDensity(MapView mapView) {
+        mDensityDirty = false;
+        final int zoom = mapView.getZoomLevel();
+        mDensityZoom = zoom;
+        if (mDensityGrid == null) {
+            mDensityGrid = new DensityGrid();
+        }
+
+        // MapView zoom levels start at 1 while Mercator zoom levels start at 0
+        final int shift = Mercator.MAX_ZOOM - Math.max(0, Math.min(Mercator.MAX_ZOOM, zoom - 1));
+        final int cellSize = (int) Math.min(Mercator.MAX_WORLD_SIZE, (long) mDensityCellSize << shift);
+        final int width = mapView.getWidth();
+        final int height = mapView.getHeight();
+        final int firstColumn = (int) floorDiv(mProjector.unprojectX(-width), cellSize);
+        final int lastColumn = (int) floorDiv(mProjector.unprojectX(2 * width), cellSize);
+        final int firstRow = (int) Math.max(0, floorDiv(mProjector.unprojectY(-height), cellSize));
+        final int lastRow = (int) Math.min((Mercator.MAX_WORLD_SIZE - 1) / cellSize, floorDiv(mProjector.unprojectY(2 * height), cellSize));
+        mDensityGrid.reset(cellSize, firstColumn, firstRow, lastColumn - firstColumn + 1, lastRow - firstRow + 1);
+
+        final CoordinateRegion region = mTempRegion;
+        if (!computeVisibleRegion(mapView, region)) {
+            return;
+        }
+        region.inset(-region.latitudeSpan, -region.longitudeSpan);
+        final IntArray annotations = mVisibleAnnotations;
+        annotations.clear();
+        mIndex.query(region, annotations);
+
+        final int[] positions = annotations.values();
+        final int count = annotations.size();
+        for (int i = 0; i < count; i++) {
+            final int position = positions[i];
+            mDensityGrid.add(Mercator.longitudeToX(mLongitudes[position]), Mercator.latitudeToY(mLatitudes[position]));
+        }
+    }
+
+    private void initLevelOfDetailPaints() {
+        final Resources res = mContext.getResources();
+
+        mDotPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mDotPaint.setColor(res.getColor(R.color.polaris__dot));
+        mDotPaint.setStrokeWidth(res.getDimension(R.dimen.polaris__dot_size));
+        mDotPaint.setStrokeCap(Paint.Cap.ROUND);
+        mDotHitRadius = res.getDimension(R.dimen.polaris__dot_hit_radius);
+
+        mDensityPaint = new Paint();
+        mDensityPaint.setColor(res.getColor(R.color.polaris__density));
+        // A power of two divides the world size: cells wrap seamlessly around
+        // the antimeridian
+        mDensityCellSize = Integer.highestOneBit(Math.max(1, res.getDimensionPixelSize(R.dimen.polaris__density_cell_size)));
+    }
+
+    private void updateClusters(MapView mapView) {
+        // The clusterer is already up to date: the changed annotations are
+        // merged with the sorted ones when getting the clusters.
+        mClustersDirty = false;
+
+        // MapView zoom levels start at 1 (the world is 256 pixels wide) while
+        // Mercator zoom levels start at 0.
+        final int zoom = mapView.getZoomLevel();
+        final Clusters clusters = mClusterer.getClusters(zoom - 1);
+        mClusters = clusters;
+        mClustersZoom = zoom;
+
+        mVisibleClusters.clear();
+        final CoordinateRegion region = mTempRegion;
+        if (clusters != null && computeVisibleRegion(mapView, region)) {
+            // Extend the region by one screen in every direction so that
+            // panning doesn't reveal empty areas until the region change is
+            // confirmed.
+            region.inset(-region.latitudeSpan, -region.longitudeSpan);
+            clusters.query(region.getMinLatitude(), region.getMinLongitude(), region.getMaxLatitude(), region.getMaxLongitude(),
+                    mVisibleClusters);
+        }
+    }
+
+    /**
+     * Place the labels of the visible annotations. The projector must be up to
+     * date.
+     */
+    private void updateLabels(MapView mapView) {
+        mLabelsDirty = false;
+
+        final AnnotationLabels labels = mLabels;
+        final int width = mapView.getWidth();
+        final int height = mapView.getHeight();
+        labels.beginPlacement(width, height);
+
+        final IntArray candidates = mLabelCandidates;
+        candidates.clear();
+        if (!computeVisibleRegion(mapView, mTempRegion)) {
+            return;
+        }
+        mIndex.query(mTempRegion, candidates);
+
+        // Labels never overlap markers
+        final int[] positions = candidates.values();
+        final int count = candidates.size();
+        projectAnnotations(positions, count);
+        final int[] xs = mProjectedXs;
+        final int[] ys = mProjectedYs;
+        for (int i = 0; i < count; i++) {
+            final Rect bounds = getMarker(positions[i]).getBounds();
+            labels.addObstacle(xs[i] + bounds.left, ys[i] + bounds.top, xs[i] + bounds.right, ys[i] + bounds.bottom);
+        }
+
+        // Annotations are labeled in order: the first annotations have
+        // precedence over the last ones
+        Arrays.sort(positions, 0, count);
+        final int labeledCount = Math.min(count, MAX_LABELED_ANNOTATIONS);
+        for (int i = 0; i < labeledCount; i++) {
+            final int position = positions[i];
+            final int x = mProjector.toPixelX(mLongitudes[position]);
+            final int y = mProjector.toPixelY(mLatitudes[position]);
+            labels.place(position, getTitle(position), x, y, getMarker(position).getBounds());
+        }
+    }
+
+    private String getTitle(int position) {
+        final Annotation annotation = mObjects[position];
+        if (annotation != null) {
+            return annotation.getTitle();
+        }
+        final TextProvider textProvider = mTextProviders[position];
+        return textProvider != null ? textProvider.getTitle(mIds[position]) : null;
+    }
+
+    /**
+     * Compute the region in which an annotation must be to be (at least
+     * partially) visible on screen.
+     * 
+     * @param mapView The MapView the region is computed for
+     * @param outRegion The computed region
+     * @return false if nothing is visible, true otherwise.
+     */
+    private boolean computeVisibleRegion(MapView mapView, CoordinateRegion outRegion) {
+        final int width = mapView.getWidth();
+        final int height = mapView.getHeight();
+        if (width <= 0 || height <= 0) {
+            return false;
+        }
+
+        final GeoPoint center = mapView.getMapCenter();
+        final int latSpan = mapView.getLatitudeSpan();
+        final int lonSpan = mapView.getLongitudeSpan();
+        outRegion.set(center.getLatitudeE6(), center.getLongitudeE6(), latSpan, lonSpan);
+
+        // A marker is visible as long as its bounds intersect the screen. The
+        // region is hence extended by the largest extent of all markers.
+        final Rect bounds = mMarkersBounds;
+        final int guardX = Math.max(Math.abs(bounds.left), Math.abs(bounds.right)) * GUARD_BAND_FACTOR;
+        final int guardY = Math.max(Math.abs(bounds.top), Math.abs(bounds.bottom)) * GUARD_BAND_FACTOR;
+        mGuardLatitude = (int) ((long) guardY * latSpan / height) + 1;
+        mGuardLongitude = (int) ((long) guardX * lonSpan / width) + 1;
+        outRegion.inset(-mGuardLatitude, -mGuardLongitude);
+
+        return true;
     }
 
 }
@@ -59,4 +59,19 @@ public class Config {
      */
     public static final boolean ERROR_LOGS_ENABLED = WARNING_LOGS_ENABLED || (LOG_LEVEL == LOG_LEVEL_ERROR);
 
+    // /////////////////////////////////////////////////////////////
+    //
+    // Metrics
+    //
+    // /////////////////////////////////////////////////////////////
+
+    /**
+     * Indicates whether the library is instrumented. When enabled, metrics
+     * are only measured once a PolarisMetrics has been set on the
+     * PolarisMapView (the overhead is then a single test per measured code
+     * path). Set this flag to false to remove all instrumentation code at
+     * compile time.
+     */
+    public static final boolean METRICS_ENABLED = true;
+
 }
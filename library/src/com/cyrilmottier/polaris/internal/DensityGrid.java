@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.internal;
+
+import java.util.Arrays;
+
+/**
+ * Counts points in the square cells of a part of the Mercator world. Cells
+ * are aligned on the Mercator grid so that they don't move relatively to the
+ * map when it is panned: only the cells entering the screen need to be
+ * computed again.
+ * <p>
+ * Columns are absolute indexes in the world and wrap around the antimeridian.
+ * Looking a column up in a copy of the world hence returns the count of the
+ * matching column in the grid.
+ * </p>
+ * <p>
+ * This class has no dependency on the Android framework.
+ * </p>
+ * 
+ * @author Cyril Mottier
+ */
+class DensityGrid {
+
+    private int mCellSize;
+    private int mWorldColumnCount;
+    private int mFirstColumn;
+    private int mFirstRow;
+    private int mColumnCount;
+    private int mRowCount;
+    private int mMaxCount;
+    private int[] mCounts = new int[0];
+
+    /**
+     * Empty this grid and set the area it covers.
+     * 
+     * @param cellSize The size of the cells at {@link Mercator#MAX_ZOOM}
+     * @param firstColumn The first (western-most) column. It may be outside
+     *            of the world.
+     * @param firstRow The first (northern-most) row
+     * @param columnCount The number of columns
+     * @param rowCount The number of rows
+     */
+    public void reset(int cellSize, int firstColumn, int firstRow, int columnCount, int rowCount) {
+        mCellSize = cellSize;
+        mWorldColumnCount = (int) ((Mercator.MAX_WORLD_SIZE + (long) cellSize - 1) / cellSize);
+        mFirstColumn = firstColumn;
+        mFirstRow = firstRow;
+        // Columns beyond a full world would be duplicates
+        mColumnCount = Math.max(0, Math.min(columnCount, mWorldColumnCount));
+        mRowCount = Math.max(0, rowCount);
+        mMaxCount = 0;
+
+        final int size = mColumnCount * mRowCount;
+        if (mCounts.length < size) {
+            mCounts = new int[size];
+        } else {
+            Arrays.fill(mCounts, 0, size, 0);
+        }
+    }
+
+    /**
+     * Count a point. Points outside of the grid are ignored.
+     * 
+     * @param x The horizontal Mercator coordinate at {@link Mercator#MAX_ZOOM}
+     * @param y The vertical Mercator coordinate at {@link Mercator#MAX_ZOOM}
+     */
+    public void add(int x, int y) {
+        final int index = getIndex(x / mCellSize, y / mCellSize);
+        if (index != -1) {
+            final int count = ++mCounts[index];
+            if (count > mMaxCount) {
+                mMaxCount = count;
+            }
+        }
+    }
+
+    /**
+     * Return the number of points in the given cell.
+     * 
+     * @param column The column of the cell. It may be in any copy of the
+     *            world.
+     * @param row The row of the cell
+     * @return The number of points or 0 if the cell is not in the grid
+     */
+    public int getCount(int column, int row) {
+        final int index = getIndex(column, row);
+        return index != -1 ? mCounts[index] : 0;
+    }
+
+    /**
+     * @return The number of points in the densest cell
+     */
+    public int getMaxCount() {
+        return mMaxCount;
+    }
+
+    /**
+     * @return The size of the cells at {@link Mercator#MAX_ZOOM}
+     */
+    public int getCellSize() {
+        return mCellSize;
+    }
+
+    private int getIndex(int column, int row) {
+        final int r = row - mFirstRow;
+        if (r < 0 || r >= mRowCount) {
+            return -1;
+        }
+        int c = (column - mFirstColumn) % mWorldColumnCount;
+        if (c < 0) {
+            c += mWorldColumnCount;
+        }
+        if (c >= mColumnCount) {
+            return -1;
+        }
+        return r * mColumnCount + c;
+    }
+
+}
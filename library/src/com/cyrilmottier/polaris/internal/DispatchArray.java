@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.internal;
+
+import java.util.ArrayList;
+
+/**
+ * An ordered list of items meant to be iterated over much more often than it
+ * is modified. The list is made of a fixed number of pinned slots (always
+ * placed first, in slot order, when not empty) followed by regular items.
+ * <p>
+ * All items are flattened into a single array that is rebuilt on each
+ * modification only. Iterating over {@link #getArray()} hence requires no
+ * allocation, no virtual call and no index remapping. The returned array is
+ * never modified afterwards: it can safely be iterated over while the list is
+ * modified (by an item removing itself from the list during a dispatch for
+ * instance).
+ * </p>
+ * <p>
+ * Items may also be filtered by flags (see {@link #getFlags(Object)}). An
+ * array of the items having a given flag is precomputed for each flag so that
+ * a dispatch can be restricted to the interested items only.
+ * </p>
+ * 
+ * @author Cyril Mottier
+ */
+public abstract class DispatchArray<E> {
+
+    private final E[] mPinned;
+    private final ArrayList<E> mItems = new ArrayList<E>();
+    private E[] mArray;
+    private final E[][] mFilteredArrays;
+
+    /**
+     * Create a new {@link DispatchArray} with no flag.
+     * 
+     * @param pinnedCount The number of pinned slots
+     */
+    public DispatchArray(int pinnedCount) {
+        this(pinnedCount, 0);
+    }
+
+    /**
+     * Create a new {@link DispatchArray}
+     * 
+     * @param pinnedCount The number of pinned slots
+     * @param flagCount The number of flags items can be filtered by. Flags
+     *            are the bits 0 to flagCount - 1.
+     */
+    @SuppressWarnings("unchecked")
+    public DispatchArray(int pinnedCount, int flagCount) {
+        mPinned = newArray(pinnedCount);
+        mArray = newArray(0);
+        mFilteredArrays = (E[][]) new Object[flagCount][];
+        for (int i = 0; i < flagCount; i++) {
+            mFilteredArrays[i] = mArray;
+        }
+    }
+
+    /**
+     * Create an array of the given size. Implementations usually simply return
+     * <code>new E[size]</code>.
+     * 
+     * @param size The size of the array
+     * @return A new array
+     */
+    protected abstract E[] newArray(int size);
+
+    /**
+     * Return the flags of the given item. Flags are read each time the list
+     * is modified. The default implementation returns all flags.
+     * 
+     * @param item The item
+     * @return The flags of the item
+     */
+    protected int getFlags(E item) {
+        return ~0;
+    }
+
+    /**
+     * Return the flattened items: the non-empty pinned slots followed by the
+     * regular items. The array is exactly sized and must not be modified.
+     * 
+     * @return The flattened items
+     */
+    public E[] getArray() {
+        return mArray;
+    }
+
+    /**
+     * Return the flattened items having the given flag, in the same order as
+     * in {@link #getArray()}. The array is exactly sized and must not be
+     * modified.
+     * 
+     * @param flag A single flag
+     * @return The flattened items having the flag
+     */
+    public E[] getArray(int flag) {
+        return mFilteredArrays[Integer.numberOfTrailingZeros(flag)];
+    }
+
+    /**
+     * Set the item of a pinned slot.
+     * 
+     * @param slot The slot to set
+     * @param item The item of the slot (may be null to empty the slot)
+     */
+    public void setPinned(int slot, E item) {
+        if (mPinned[slot] != item) {
+            mPinned[slot] = item;
+            rebuild();
+        }
+    }
+
+    public void add(E item) {
+        mItems.add(item);
+        rebuild();
+    }
+
+    public void add(int index, E item) {
+        mItems.add(index, item);
+        rebuild();
+    }
+
+    public boolean remove(E item) {
+        if (mItems.remove(item)) {
+            rebuild();
+            return true;
+        }
+        return false;
+    }
+
+    public E remove(int index) {
+        final E item = mItems.remove(index);
+        rebuild();
+        return item;
+    }
+
+    /**
+     * Remove all regular items. Pinned slots are left untouched.
+     */
+    public void clear() {
+        if (!mItems.isEmpty()) {
+            mItems.clear();
+            rebuild();
+        }
+    }
+
+    /**
+     * Return the index of the first occurrence of the given item among the
+     * regular items.
+     * 
+     * @param item The item to look for
+     * @return The index of the item or -1 if not found
+     */
+    public int indexOf(E item) {
+        return mItems.indexOf(item);
+    }
+
+    private void rebuild() {
+        final E[] pinned = mPinned;
+        int pinnedCount = 0;
+        for (int i = 0; i < pinned.length; i++) {
+            if (pinned[i] != null) {
+                pinnedCount++;
+            }
+        }
+
+        final E[] array = newArray(pinnedCount + mItems.size());
+        int index = 0;
+        for (int i = 0; i < pinned.length; i++) {
+            if (pinned[i] != null) {
+                array[index++] = pinned[i];
+            }
+        }
+        final int itemCount = mItems.size();
+        for (int i = 0; i < itemCount; i++) {
+            array[index++] = mItems.get(i);
+        }
+        mArray = array;
+
+        final E[][] filteredArrays = mFilteredArrays;
+        if (filteredArrays.length == 0) {
+            return;
+        }
+        final int count = array.length;
+        final int[] flags = new int[count];
+        for (int i = 0; i < count; i++) {
+            flags[i] = getFlags(array[i]);
+        }
+        for (int flag = 0; flag < filteredArrays.length; flag++) {
+            final int mask = 1 << flag;
+            int filteredCount = 0;
+            for (int i = 0; i < count; i++) {
+                if ((flags[i] & mask) != 0) {
+                    filteredCount++;
+                }
+            }
+            if (filteredCount == count) {
+                filteredArrays[flag] = array;
+                continue;
+            }
+            final E[] filteredArray = newArray(filteredCount);
+            int filteredIndex = 0;
+            for (int i = 0; i < count; i++) {
+                if ((flags[i] & mask) != 0) {
+                    filteredArray[filteredIndex++] = array[i];
+                }
+            }
+            filteredArrays[flag] = filteredArray;
+        }
+    }
+
+}
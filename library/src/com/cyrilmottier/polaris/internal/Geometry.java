@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.internal;
+
+import android.view.Gravity;
+
+/**
+ * The layout computations of markers and callouts. All methods work on
+ * primitive values only.
+ * <p>
+ * This class only references compile-time constants of the Android
+ * framework. It can hence be used (and benchmarked) on a regular JVM.
+ * </p>
+ * 
+ * @author Cyril Mottier
+ */
+public final class Geometry {
+
+    private Geometry() {
+    }
+
+    /**
+     * Compute the offset to apply to a segment so that it is contained by
+     * another segment. When the inner segment is larger than the outer
+     * segment, the start edges are aligned.
+     * 
+     * @param innerStart The start of the segment to move
+     * @param innerEnd The end of the segment to move
+     * @param outerStart The start of the containing segment
+     * @param outerEnd The end of the containing segment
+     * @return The offset to apply to the inner segment
+     */
+    public static int getContainOffset(int innerStart, int innerEnd, int outerStart, int outerEnd) {
+        final int offsetStart = Math.min(0, innerStart - outerStart);
+        final int offsetEnd = Math.max(0, innerEnd - outerEnd);
+        return offsetStart != 0 ? offsetStart : offsetEnd;
+    }
+
+    /**
+     * Compute the horizontal position of a callout whose arrow points at the
+     * given anchor. The callout is centered in the available width and moved
+     * to the left or right when the arrow cannot reach the anchor.
+     * 
+     * @param anchorX The horizontal position the arrow must point at
+     * @param availableWidth The width in which the callout is centered
+     * @param calloutWidth The width of the callout
+     * @param leftMargin The minimum distance between the arrow and the left
+     *            edge of the callout
+     * @param rightMargin The minimum distance between the arrow and the right
+     *            edge of the callout
+     * @return The left edge of the callout
+     */
+    public static int getCalloutLeft(int anchorX, int availableWidth, int calloutWidth, int leftMargin, int rightMargin) {
+        final int calloutX = (int) ((availableWidth - calloutWidth) / 2.0f + 0.5f);
+
+        // What's the farthest to the left and right that we could point to,
+        // given our background image constraints?
+        final int minX = calloutX + leftMargin;
+        final int maxX = calloutX + calloutWidth - rightMargin;
+
+        // we may need to scoot over to the left or right to point at the
+        // correct spot
+        int adjustX = 0;
+        if (anchorX < minX) {
+            adjustX = anchorX - minX;
+        }
+        if (anchorX > maxX) {
+            adjustX = anchorX - maxX;
+        }
+
+        return calloutX + adjustX;
+    }
+
+    /**
+     * Return the left edge of a marker relatively to its anchor.
+     * 
+     * @param gravity The gravity of the anchor (see {@link Gravity})
+     * @param width The width of the marker
+     * @return The left edge of the marker
+     */
+    public static int getMarkerLeft(int gravity, int width) {
+        switch (gravity & Gravity.HORIZONTAL_GRAVITY_MASK) {
+            case Gravity.LEFT:
+                return 0;
+            case Gravity.RIGHT:
+                return -width;
+            case Gravity.CENTER_HORIZONTAL:
+            default:
+                return -width / 2;
+        }
+    }
+
+    /**
+     * Return the top edge of a marker relatively to its anchor.
+     * 
+     * @param gravity The gravity of the anchor (see {@link Gravity})
+     * @param height The height of the marker
+     * @return The top edge of the marker
+     */
+    public static int getMarkerTop(int gravity, int height) {
+        switch (gravity & Gravity.VERTICAL_GRAVITY_MASK) {
+            case Gravity.TOP:
+                return 0;
+            case Gravity.CENTER_VERTICAL:
+                return -height / 2;
+            case Gravity.BOTTOM:
+            default:
+                return -height;
+        }
+    }
+
+}
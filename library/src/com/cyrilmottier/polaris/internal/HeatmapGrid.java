@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.internal;
+
+import java.util.Arrays;
+
+/**
+ * Accumulates the kernel density of points in the square cells of a part of
+ * the Mercator world and colorizes it through a gradient.
+ * <p>
+ * Each point adds a kernel (a quartic falloff over {@link #getRadius()}
+ * cells) to the intensities of the cells around it. Kernel weights are
+ * integers so that removing a point exactly cancels its addition: the grid
+ * can be updated incrementally as points are added and removed. The cells
+ * modified since the last call to {@link #colorize(int[], int[])} are
+ * tracked by blocks of 16 x 16 cells so that only them are colorized
+ * again, even when the modifications are scattered all over the grid.
+ * </p>
+ * <p>
+ * Just like {@link DensityGrid}, cells are aligned on the Mercator grid and
+ * columns wrap around the antimeridian.
+ * </p>
+ * <p>
+ * This class has no dependency on the Android framework.
+ * </p>
+ * 
+ * @author Cyril Mottier
+ */
+public class HeatmapGrid {
+
+    /**
+     * The weight of the kernel at its center
+     */
+    private static final int KERNEL_PEAK = 1 << 10;
+
+    /**
+     * The size (in cells) of the blocks the dirty cells are tracked by
+     */
+    private static final int BLOCK_SIZE = 1 << 4;
+    private static final int BLOCK_SHIFT = 4;
+
+    private final int mRadius;
+    private final int mKernelSize;
+    private final int[] mKernel;
+
+    private int mCellSize;
+    private int mWorldColumnCount;
+    private int mFirstColumn;
+    private int mFirstRow;
+    private int mColumnCount;
+    private int mRowCount;
+    private int[] mIntensities = new int[0];
+
+    private int mBlockColumnCount;
+    private boolean[] mDirtyBlocks = new boolean[0];
+
+    /**
+     * The intensity mapped to the last color of the gradient
+     */
+    private int mMaxIntensity = KERNEL_PEAK;
+
+    /*
+     * The bounds of the cells modified since the last colorization
+     * (relatively to the first column and row). The area is empty when left
+     * > right.
+     */
+    private int mDirtyLeft;
+    private int mDirtyTop;
+    private int mDirtyRight;
+    private int mDirtyBottom;
+
+    /**
+     * Create a new {@link HeatmapGrid}.
+     * 
+     * @param radius The radius of the kernel in cells
+     */
+    public HeatmapGrid(int radius) {
+        mRadius = Math.max(0, radius);
+        mKernelSize = 2 * mRadius + 1;
+        mKernel = new int[mKernelSize * mKernelSize];
+        final double squaredRadius = (double) (mRadius + 1) * (mRadius + 1);
+        for (int dy = -mRadius; dy <= mRadius; dy++) {
+            for (int dx = -mRadius; dx <= mRadius; dx++) {
+                final double t = 1 - (dx * dx + dy * dy) / squaredRadius;
+                mKernel[(dy + mRadius) * mKernelSize + dx + mRadius] = t > 0 ? (int) Math.round(KERNEL_PEAK * t * t) : 0;
+            }
+        }
+        clearDirty();
+    }
+
+    /**
+     * Empty this grid and set the area it covers. The whole grid is marked as
+     * dirty.
+     * 
+     * @param cellSize The size of the cells at {@link Mercator#MAX_ZOOM}
+     * @param firstColumn The first (western-most) column. It may be outside
+     *            of the world.
+     * @param firstRow The first (northern-most) row
+     * @param columnCount The number of columns
+     * @param rowCount The number of rows
+     */
+    public void reset(int cellSize, int firstColumn, int firstRow, int columnCount, int rowCount) {
+        mCellSize = cellSize;
+        mWorldColumnCount = (int) ((Mercator.MAX_WORLD_SIZE + (long) cellSize - 1) / cellSize);
+        mFirstColumn = firstColumn;
+        mFirstRow = firstRow;
+        // Columns beyond a full world would be duplicates
+        mColumnCount = Math.max(0, Math.min(columnCount, mWorldColumnCount));
+        mRowCount = Math.max(0, rowCount);
+        mMaxIntensity = KERNEL_PEAK;
+
+        final int size = mColumnCount * mRowCount;
+        if (mIntensities.length < size) {
+            mIntensities = new int[size];
+        } else {
+            Arrays.fill(mIntensities, 0, size, 0);
+        }
+        mBlockColumnCount = (mColumnCount + BLOCK_SIZE - 1) >> BLOCK_SHIFT;
+        final int blockCount = mBlockColumnCount * ((mRowCount + BLOCK_SIZE - 1) >> BLOCK_SHIFT);
+        if (mDirtyBlocks.length < blockCount) {
+            mDirtyBlocks = new boolean[blockCount];
+        }
+        Arrays.fill(mDirtyBlocks, 0, blockCount, true);
+        mDirtyLeft = 0;
+        mDirtyTop = 0;
+        mDirtyRight = mColumnCount - 1;
+        mDirtyBottom = mRowCount - 1;
+    }
+
+    /**
+     * Add the kernel of a point to the grid. Cells outside of the grid are
+     * ignored.
+     * 
+     * @param x The horizontal Mercator coordinate at {@link Mercator#MAX_ZOOM}
+     * @param y The vertical Mercator coordinate at {@link Mercator#MAX_ZOOM}
+     */
+    public void add(int x, int y) {
+        splat(x, y, 1);
+    }
+
+    /**
+     * Remove the kernel of a point previously added with
+     * {@link #add(int, int)}.
+     * 
+     * @param x The horizontal Mercator coordinate at {@link Mercator#MAX_ZOOM}
+     * @param y The vertical Mercator coordinate at {@link Mercator#MAX_ZOOM}
+     */
+    public void remove(int x, int y) {
+        splat(x, y, -1);
+    }
+
+    private void splat(int x, int y, int sign) {
+        if (mColumnCount == 0) {
+            return;
+        }
+        final int radius = mRadius;
+        final int row = y / mCellSize - mFirstRow;
+        if (row + radius < 0 || row - radius >= mRowCount) {
+            return;
+        }
+        int column = (x / mCellSize - mFirstColumn) % mWorldColumnCount;
+        if (column < 0) {
+            column += mWorldColumnCount;
+        }
+        // The kernel may overlap the grid from the other side of the
+        // antimeridian
+        if (column - radius >= mColumnCount && column + radius < mWorldColumnCount) {
+            return;
+        }
+
+        final int[] intensities = mIntensities;
+        final int[] kernel = mKernel;
+        final boolean[] dirtyBlocks = mDirtyBlocks;
+        final int blockColumnCount = mBlockColumnCount;
+        final int columnCount = mColumnCount;
+        final int worldColumnCount = mWorldColumnCount;
+        final int firstRow = Math.max(0, row - radius);
+        final int lastRow = Math.min(mRowCount - 1, row + radius);
+        for (int r = firstRow; r <= lastRow; r++) {
+            final int kernelOffset = (r - row + radius) * mKernelSize + radius;
+            final int rowOffset = r * columnCount;
+            final int blockRowOffset = (r >> BLOCK_SHIFT) * blockColumnCount;
+            for (int dx = -radius; dx <= radius; dx++) {
+                int c = column + dx;
+                if (c < 0) {
+                    c += worldColumnCount;
+                } else if (c >= worldColumnCount) {
+                    c -= worldColumnCount;
+                }
+                if (c >= columnCount) {
+                    continue;
+                }
+                intensities[rowOffset + c] += sign * kernel[kernelOffset + dx];
+                dirtyBlocks[blockRowOffset + (c >> BLOCK_SHIFT)] = true;
+                if (c < mDirtyLeft) {
+                    mDirtyLeft = c;
+                }
+                if (c > mDirtyRight) {
+                    mDirtyRight = c;
+                }
+            }
+        }
+        if (firstRow < mDirtyTop) {
+            mDirtyTop = firstRow;
+        }
+        if (lastRow > mDirtyBottom) {
+            mDirtyBottom = lastRow;
+        }
+    }
+
+    /**
+     * Map the intensity of the densest cell to the last color of the
+     * gradient. This is usually done once all points have been added after a
+     * {@link #reset(int, int, int, int, int)}. The mapping is left untouched
+     * by incremental updates so that unmodified cells don't need to be
+     * colorized again.
+     */
+    public void normalize() {
+        int max = KERNEL_PEAK;
+        final int[] intensities = mIntensities;
+        final int size = mColumnCount * mRowCount;
+        for (int i = 0; i < size; i++) {
+            if (intensities[i] > max) {
+                max = intensities[i];
+            }
+        }
+        mMaxIntensity = max;
+    }
+
+    /**
+     * Colorize the dirty cells and mark them as clean. The color of a cell
+     * grows with the square root of its intensity so that sparse areas remain
+     * visible. The cells of the dirty area that haven't been modified are
+     * left untouched in <code>outPixels</code>.
+     * 
+     * @param gradient The colors, from the lowest intensity (the first color
+     *            is used for empty cells) to the highest one.
+     * @param outPixels The colors of the cells, row by row. It must contain
+     *            at least {@link #getColumnCount()} * {@link #getRowCount()}
+     *            values.
+     */
+    public void colorize(int[] gradient, int[] outPixels) {
+        if (isDirty()) {
+            final int[] intensities = mIntensities;
+            final int columnCount = mColumnCount;
+            final int lastColor = gradient.length - 1;
+            final double scale = (double) lastColor * lastColor / mMaxIntensity;
+            final boolean[] dirtyBlocks = mDirtyBlocks;
+            final int blockColumnCount = mBlockColumnCount;
+            final int lastBlockRow = mDirtyBottom >> BLOCK_SHIFT;
+            final int lastBlockColumn = mDirtyRight >> BLOCK_SHIFT;
+            for (int blockRow = mDirtyTop >> BLOCK_SHIFT; blockRow <= lastBlockRow; blockRow++) {
+                final int firstRow = blockRow << BLOCK_SHIFT;
+                final int rowEnd = Math.min(mRowCount, firstRow + BLOCK_SIZE);
+                for (int blockColumn = mDirtyLeft >> BLOCK_SHIFT; blockColumn <= lastBlockColumn; blockColumn++) {
+                    final int block = blockRow * blockColumnCount + blockColumn;
+                    if (!dirtyBlocks[block]) {
+                        continue;
+                    }
+                    dirtyBlocks[block] = false;
+                    final int firstColumn = blockColumn << BLOCK_SHIFT;
+                    final int columnEnd = Math.min(columnCount, firstColumn + BLOCK_SIZE);
+                    for (int row = firstRow; row < rowEnd; row++) {
+                        final int end = row * columnCount + columnEnd;
+                        for (int i = row * columnCount + firstColumn; i < end; i++) {
+                            final int intensity = intensities[i];
+                            // sqrt(intensity / max) * lastColor
+                            outPixels[i] = intensity <= 0 ? gradient[0] : gradient[Math.min(lastColor, 1 + (int) Math.sqrt(intensity * scale))];
+                        }
+                    }
+                }
+            }
+        }
+        clearDirty();
+    }
+
+    /**
+     * @return true if cells have been modified since the last colorization
+     */
+    public boolean isDirty() {
+        return mDirtyLeft <= mDirtyRight && mDirtyTop <= mDirtyBottom;
+    }
+
+    public int getDirtyLeft() {
+        return mDirtyLeft;
+    }
+
+    public int getDirtyTop() {
+        return mDirtyTop;
+    }
+
+    /**
+     * @return The last dirty column (inclusive)
+     */
+    public int getDirtyRight() {
+        return mDirtyRight;
+    }
+
+    /**
+     * @return The last dirty row (inclusive)
+     */
+    public int getDirtyBottom() {
+        return mDirtyBottom;
+    }
+
+    private void clearDirty() {
+        mDirtyLeft = Integer.MAX_VALUE;
+        mDirtyTop = Integer.MAX_VALUE;
+        mDirtyRight = Integer.MIN_VALUE;
+        mDirtyBottom = Integer.MIN_VALUE;
+    }
+
+    /**
+     * @return The radius of the kernel in cells
+     */
+    public int getRadius() {
+        return mRadius;
+    }
+
+    /**
+     * @return The size of the cells at {@link Mercator#MAX_ZOOM}
+     */
+    public int getCellSize() {
+        return mCellSize;
+    }
+
+    public int getFirstColumn() {
+        return mFirstColumn;
+    }
+
+    public int getFirstRow() {
+        return mFirstRow;
+    }
+
+    public int getColumnCount() {
+        return mColumnCount;
+    }
+
+    public int getRowCount() {
+        return mRowCount;
+    }
+
+}
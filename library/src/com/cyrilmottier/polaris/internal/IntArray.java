@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.internal;
+
+/**
+ * A growable array of primitive ints. Contrary to a List&lt;Integer&gt;, an
+ * {@link IntArray} never boxes its values and can be reused from one frame to
+ * the other without generating any garbage.
+ * 
+ * @author Cyril Mottier
+ */
+public class IntArray {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private int[] mValues;
+    private int mSize;
+
+    public IntArray() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public IntArray(int initialCapacity) {
+        mValues = new int[Math.max(1, initialCapacity)];
+    }
+
+    public void add(int value) {
+        if (mSize == mValues.length) {
+            ensureCapacity(mSize + 1);
+        }
+        mValues[mSize++] = value;
+    }
+
+    public int get(int index) {
+        if (index >= mSize) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        return mValues[index];
+    }
+
+    public void set(int index, int value) {
+        if (index >= mSize) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        mValues[index] = value;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    public void ensureCapacity(int minCapacity) {
+        if (minCapacity > mValues.length) {
+            final int[] values = new int[Math.max(minCapacity, mValues.length * 2)];
+            System.arraycopy(mValues, 0, values, 0, mSize);
+            mValues = values;
+        }
+    }
+
+    /**
+     * Return the backing array. Only the first {@link #size()} values are
+     * meaningful. This method is mainly intended to be used in tight loops in
+     * order to avoid the bounds check done in {@link #get(int)}.
+     * 
+     * @return The backing array
+     */
+    public int[] values() {
+        return mValues;
+    }
+
+}
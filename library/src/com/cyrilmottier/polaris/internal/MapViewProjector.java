@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.internal;
+
+import android.graphics.Point;
+
+import com.google.android.maps.GeoPoint;
+import com.google.android.maps.MapView;
+import com.google.android.maps.Projection;
+
+/**
+ * A {@link MercatorProjector} matching the current rendering of a
+ * {@link MapView}.
+ * 
+ * @author Cyril Mottier
+ */
+public class MapViewProjector extends MercatorProjector {
+
+    private final Point mTempPoint = new Point();
+    private boolean mIsUpdated;
+
+    /**
+     * Update this projector so that it matches the given {@link MapView}. The
+     * scale of the map is measured using the MapView's {@link Projection} once
+     * per call rather than deduced from the zoom level so that the projector
+     * always matches the MapView rendering (while zooming for instance).
+     * 
+     * @param mapView The MapView to project on
+     * @return false if nothing is visible, true otherwise.
+     */
+    public boolean update(MapView mapView) {
+        final int width = mapView.getWidth();
+        if (width <= 0 || mapView.getHeight() <= 0) {
+            return false;
+        }
+
+        final Projection projection = mapView.getProjection();
+        final GeoPoint center = mapView.getMapCenter();
+        final Point point = mTempPoint;
+        projection.toPixels(center, point);
+        final int centerPixelX = point.x;
+        final int centerPixelY = point.y;
+
+        // Measure the scale using a point located about half a screen away
+        // from the center. This keeps rounding errors below a pixel on screen.
+        final int centerX = Mercator.longitudeToX(center.getLongitudeE6());
+        final long nominalDelta = (long) (width / 2) << (Mercator.MAX_ZOOM - (mapView.getZoomLevel() - 1));
+        final int delta = (int) Math.max(1, Math.min(Mercator.MAX_WORLD_SIZE / 4, nominalDelta));
+        final int longitude = Mercator.xToLongitude((centerX + delta) % Mercator.MAX_WORLD_SIZE);
+        projection.toPixels(new GeoPoint(center.getLatitudeE6(), longitude), point);
+
+        int actualDelta = Mercator.longitudeToX(longitude) - centerX;
+        if (actualDelta < 0) {
+            actualDelta += Mercator.MAX_WORLD_SIZE;
+        }
+        final double scale = actualDelta > 0 && point.x > centerPixelX ? (double) (point.x - centerPixelX) / actualDelta
+                : (double) (width / 2) / delta;
+
+        set(center.getLatitudeE6(), center.getLongitudeE6(), centerPixelX, centerPixelY, scale);
+        mIsUpdated = true;
+        return true;
+    }
+
+    /**
+     * @return true if this projector has already been successfully updated
+     *         (see {@link #update(MapView)}), false otherwise.
+     */
+    public boolean isUpdated() {
+        return mIsUpdated;
+    }
+
+}
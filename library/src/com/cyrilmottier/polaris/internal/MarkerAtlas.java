@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.internal;
+
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffColorFilter;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+
+import com.google.android.maps.OverlayItem;
+
+/**
+ * A single Bitmap containing a rasterized version of a set of markers and of
+ * their shadows. Drawing a marker from the atlas is a simple bitmap copy
+ * (using a source rectangle) rather than a full Drawable draw which may
+ * involve a NinePatch, a state change and, for the shadow, a skewed canvas
+ * and a color filter. All markers being drawn from the same Bitmap, the
+ * rendering pipeline can batch them.
+ * <p>
+ * Markers are rasterized in their default (non-focused) state. The atlas is
+ * limited to {@link #MAX_SIZE} x {@link #MAX_SIZE} pixels. Markers that don't
+ * fit in the atlas are not rasterized and must be drawn the regular way.
+ * </p>
+ * 
+ * @author Cyril Mottier
+ */
+class MarkerAtlas {
+
+    /**
+     * The maximum size of the atlas. 1024 pixels is a safe texture size on
+     * all devices.
+     */
+    private static final int MAX_SIZE = 1024;
+
+    /**
+     * Space between two images in the atlas
+     */
+    private static final int PADDING = 1;
+
+    private static final int SHADOW_COLOR = 0x4C000000;
+
+    private final float mShadowSkew;
+    private final float mShadowScale;
+    private final ColorFilter mShadowColorFilter = new PorterDuffColorFilter(SHADOW_COLOR, PorterDuff.Mode.SRC_IN);
+    private final Paint mPaint = new Paint();
+
+    private Bitmap mBitmap;
+    private int mMarkerCount;
+
+    /**
+     * For a given marker type t, index 2t is the marker and index 2t + 1 is
+     * its shadow. Sources are the location in the atlas (null when the image
+     * is not in the atlas) while bounds are relative to the marker anchor.
+     */
+    private Rect[] mSources = new Rect[0];
+    private Rect[] mBounds = new Rect[0];
+
+    private final Rect mTempRect = new Rect();
+
+    /**
+     * Create a new {@link MarkerAtlas}.
+     * 
+     * @param shadowSkew The horizontal skew applied to shadows
+     * @param shadowScale The vertical scale applied to shadows
+     */
+    public MarkerAtlas(float shadowSkew, float shadowScale) {
+        mShadowSkew = shadowSkew;
+        mShadowScale = shadowScale;
+    }
+
+    /**
+     * Compute the bounds of the shadow of a marker.
+     * 
+     * @param bounds The bounds of the marker, relative to its anchor
+     * @param shadowSkew The horizontal skew applied to shadows
+     * @param shadowScale The vertical scale applied to shadows
+     * @param outBounds The bounds of the shadow, relative to the anchor
+     */
+    public static void getShadowBounds(Rect bounds, float shadowSkew, float shadowScale, Rect outBounds) {
+        // The shadow is scaled vertically and then skewed horizontally
+        final float top = bounds.top * shadowScale;
+        final float bottom = bounds.bottom * shadowScale;
+        final float skewTop = shadowSkew * top;
+        final float skewBottom = shadowSkew * bottom;
+        //@formatter:off
+        outBounds.set(
+                (int) Math.floor(bounds.left + Math.min(skewTop, skewBottom)),
+                (int) Math.floor(Math.min(top, bottom)),
+                (int) Math.ceil(bounds.right + Math.max(skewTop, skewBottom)),
+                (int) Math.ceil(Math.max(top, bottom)));
+        //@formatter:on
+    }
+
+    /**
+     * Make sure the atlas contains the given markers. Markers are identified
+     * by their index in the list. The list is expected to only grow: the atlas
+     * is only rebuilt when new markers are added.
+     * 
+     * @param markers The markers to rasterize
+     */
+    public void update(List<Drawable> markers) {
+        if (markers.size() != mMarkerCount) {
+            rebuild(markers);
+        }
+    }
+
+    /**
+     * Draw the marker of the given type (or its shadow).
+     * 
+     * @return false if the marker is not in the atlas, true otherwise
+     */
+    public boolean draw(Canvas canvas, int markerType, int x, int y, boolean shadow) {
+        final int index = 2 * markerType + (shadow ? 1 : 0);
+        if (index >= mSources.length) {
+            return false;
+        }
+        final Rect source = mSources[index];
+        if (source == null) {
+            return false;
+        }
+        final Rect bounds = mBounds[index];
+        final Rect destination = mTempRect;
+        destination.set(x + bounds.left, y + bounds.top, x + bounds.right, y + bounds.bottom);
+        canvas.drawBitmap(mBitmap, source, destination, mPaint);
+        return true;
+    }
+
+    private void rebuild(List<Drawable> markers) {
+        final int count = markers.size();
+        final Rect[] sources = new Rect[2 * count];
+        final Rect[] bounds = new Rect[2 * count];
+
+        // Simple shelf packing: images are laid out from left to right on
+        // rows whose height is the height of the tallest image of the row.
+        int x = 0;
+        int y = 0;
+        int rowHeight = 0;
+        int width = 0;
+        for (int i = 0; i < 2 * count; i++) {
+            final Rect markerBounds = markers.get(i / 2).getBounds();
+            final Rect imageBounds = new Rect();
+            if (i % 2 == 0) {
+                imageBounds.set(markerBounds);
+            } else {
+                getShadowBounds(markerBounds, mShadowSkew, mShadowScale, imageBounds);
+            }
+            bounds[i] = imageBounds;
+
+            final int imageWidth = imageBounds.width();
+            final int imageHeight = imageBounds.height();
+            if (imageWidth <= 0 || imageHeight <= 0 || imageWidth > MAX_SIZE) {
+                continue;
+            }
+            if (x + imageWidth > MAX_SIZE) {
+                x = 0;
+                y += rowHeight + PADDING;
+                rowHeight = 0;
+            }
+            if (y + imageHeight > MAX_SIZE) {
+                // The atlas is full
+                continue;
+            }
+            sources[i] = new Rect(x, y, x + imageWidth, y + imageHeight);
+            width = Math.max(width, x + imageWidth);
+            x += imageWidth + PADDING;
+            rowHeight = Math.max(rowHeight, imageHeight);
+        }
+        final int height = y + rowHeight;
+
+        if (mBitmap != null) {
+            mBitmap.recycle();
+            mBitmap = null;
+        }
+
+        if (width > 0 && height > 0) {
+            final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            final Canvas canvas = new Canvas(bitmap);
+            for (int i = 0; i < 2 * count; i++) {
+                final Rect source = sources[i];
+                if (source == null) {
+                    continue;
+                }
+                final Drawable marker = markers.get(i / 2);
+                final Rect imageBounds = bounds[i];
+                OverlayItem.setState(marker, 0);
+
+                canvas.save();
+                canvas.translate(source.left - imageBounds.left, source.top - imageBounds.top);
+                if (i % 2 == 0) {
+                    marker.draw(canvas);
+                } else {
+                    canvas.skew(mShadowSkew, 0);
+                    canvas.scale(1, mShadowScale);
+                    marker.setColorFilter(mShadowColorFilter);
+                    marker.draw(canvas);
+                    marker.setColorFilter(null);
+                }
+                canvas.restore();
+            }
+            mBitmap = bitmap;
+        } else {
+            // Nothing fits in the atlas
+            for (int i = 0; i < sources.length; i++) {
+                sources[i] = null;
+            }
+        }
+
+        mSources = sources;
+        mBounds = bounds;
+        mMarkerCount = count;
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.internal;
+
+/**
+ * Some utility methods to convert E6 coordinates to pixels in the spherical
+ * (Web) Mercator projection used by Google Maps and vice versa. All pixel
+ * coordinates are expressed in the "world" space at {@link #MAX_ZOOM} i.e.
+ * (0, 0) is the north-west corner of the map and ({@link #MAX_WORLD_SIZE},
+ * {@link #MAX_WORLD_SIZE}) is the south-east corner.
+ * <p>
+ * This class has no dependency on the Android framework and can be used on
+ * any thread.
+ * </p>
+ * 
+ * @author Cyril Mottier
+ */
+public final class Mercator {
+
+    /**
+     * Size (in pixels) of a map tile.
+     */
+    public static final int TILE_SIZE = 256;
+
+    /**
+     * The maximum zoom level supported by the projection.
+     */
+    public static final int MAX_ZOOM = 22;
+
+    /**
+     * The size of the world (in pixels) at {@link #MAX_ZOOM}.
+     */
+    public static final int MAX_WORLD_SIZE = TILE_SIZE << MAX_ZOOM;
+
+    /**
+     * The maximum latitude the projection can represent. Points beyond this
+     * latitude are clamped.
+     */
+    public static final int MAX_LATITUDE_E6 = 85051128;
+
+    private Mercator() {
+    }
+
+    /**
+     * Return the size of the world (in pixels) at the given zoom level.
+     * 
+     * @param zoom The zoom level
+     * @return The size of the world in pixels
+     */
+    public static int getWorldSize(int zoom) {
+        return TILE_SIZE << zoom;
+    }
+
+    /**
+     * Convert a longitude to an horizontal pixel coordinate.
+     * 
+     * @param lonE6 The longitude in microdegrees
+     * @return The x coordinate at {@link #MAX_ZOOM}
+     */
+    public static int longitudeToX(int lonE6) {
+        final double x = (lonE6 / 360e6 + 0.5) * MAX_WORLD_SIZE;
+        return clamp((long) x);
+    }
+
+    /**
+     * Convert a latitude to a vertical pixel coordinate.
+     * 
+     * @param latE6 The latitude in microdegrees
+     * @return The y coordinate at {@link #MAX_ZOOM}
+     */
+    public static int latitudeToY(int latE6) {
+        latE6 = Math.max(-MAX_LATITUDE_E6, Math.min(MAX_LATITUDE_E6, latE6));
+        final double sinLat = Math.sin(Math.toRadians(latE6 / 1e6));
+        final double y = (0.5 - Math.log((1 + sinLat) / (1 - sinLat)) / (4 * Math.PI)) * MAX_WORLD_SIZE;
+        return clamp((long) y);
+    }
+
+    /**
+     * Convert an horizontal pixel coordinate to a longitude.
+     * 
+     * @param x The x coordinate at {@link #MAX_ZOOM}
+     * @return The longitude in microdegrees
+     */
+    public static int xToLongitude(int x) {
+        return (int) Math.round(((double) x / MAX_WORLD_SIZE - 0.5) * 360e6);
+    }
+
+    /**
+     * Convert a vertical pixel coordinate to a latitude.
+     * 
+     * @param y The y coordinate at {@link #MAX_ZOOM}
+     * @return The latitude in microdegrees
+     */
+    public static int yToLatitude(int y) {
+        final double n = Math.PI * (1 - 2.0 * y / MAX_WORLD_SIZE);
+        return (int) Math.round(Math.toDegrees(Math.atan(Math.sinh(n))) * 1e6);
+    }
+
+    private static int clamp(long value) {
+        return (int) Math.max(0, Math.min(MAX_WORLD_SIZE - 1, value));
+    }
+
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.internal;
+
+/**
+ * Converts E6 coordinates to screen pixels without creating any GeoPoint. A
+ * {@link MercatorProjector} is defined by the position of the map center on
+ * screen and the scale of the map (number of screen pixels per Mercator pixel
+ * at {@link Mercator#MAX_ZOOM}).
+ * <p>
+ * Whole arrays of coordinates can be projected at once into caller-provided
+ * buffers. Latitudes are converted using a precomputed table rather than
+ * evaluating the (expensive) Mercator formula for each point. The table is
+ * immutable and shared: a {@link MercatorProjector} holds no other state than
+ * its own parameters and can be used on any thread, as long as each thread
+ * uses its own instance.
+ * </p>
+ * <p>
+ * This class has no dependency on the Android framework.
+ * </p>
+ * 
+ * @author Cyril Mottier
+ */
+public class MercatorProjector {
+
+    private static final long WORLD_SIZE = Mercator.MAX_WORLD_SIZE;
+
+    private static final double X_PER_LONGITUDE_E6 = WORLD_SIZE / 360e6;
+
+    /*
+     * The vertical Mercator coordinate (and its derivative) of latitudes
+     * sampled every 2^LATITUDE_STEP_SHIFT microdegrees (about 0.07 degrees)
+     * from -LATITUDE_TABLE_OFFSET. Latitudes in between are interpolated with
+     * a cubic Hermite spline: the error is below a tenth of a Mercator pixel
+     * at Mercator.MAX_ZOOM.
+     */
+    private static final int LATITUDE_STEP_SHIFT = 16;
+    private static final int LATITUDE_STEP = 1 << LATITUDE_STEP_SHIFT;
+    private static final int LATITUDE_TABLE_OFFSET = ((Mercator.MAX_LATITUDE_E6 >> LATITUDE_STEP_SHIFT) + 1) << LATITUDE_STEP_SHIFT;
+    private static final double[] LATITUDE_YS;
+    private static final double[] LATITUDE_SLOPES;
+
+    static {
+        final int count = (2 * LATITUDE_TABLE_OFFSET >> LATITUDE_STEP_SHIFT) + 1;
+        LATITUDE_YS = new double[count];
+        LATITUDE_SLOPES = new double[count];
+        for (int i = 0; i < count; i++) {
+            final double latitude = Math.toRadians(((i << LATITUDE_STEP_SHIFT) - LATITUDE_TABLE_OFFSET) / 1e6);
+            final double sinLat = Math.sin(latitude);
+            LATITUDE_YS[i] = (0.5 - Math.log((1 + sinLat) / (1 - sinLat)) / (4 * Math.PI)) * WORLD_SIZE;
+            // dy/dlat = -WORLD_SIZE / (2 * PI * cos(lat)), per table step
+            LATITUDE_SLOPES[i] = -WORLD_SIZE / (2 * Math.PI * Math.cos(latitude)) * Math.toRadians(LATITUDE_STEP / 1e6);
+        }
+    }
+
+    private int mCenterX;
+    private int mCenterY;
+    private int mCenterPixelX;
+    private int mCenterPixelY;
+    private double mScale;
+
+    /**
+     * Set the parameters of this projector.
+     * 
+     * @param centerLatitudeE6 The latitude of the center of the map
+     * @param centerLongitudeE6 The longitude of the center of the map
+     * @param centerPixelX The horizontal position of the center on screen
+     * @param centerPixelY The vertical position of the center on screen
+     * @param scale The number of screen pixels per Mercator pixel at
+     *            {@link Mercator#MAX_ZOOM}
+     */
+    public void set(int centerLatitudeE6, int centerLongitudeE6, int centerPixelX, int centerPixelY, double scale) {
+        mCenterX = Mercator.longitudeToX(centerLongitudeE6);
+        mCenterY = Mercator.latitudeToY(centerLatitudeE6);
+        mCenterPixelX = centerPixelX;
+        mCenterPixelY = centerPixelY;
+        mScale = scale;
+    }
+
+    public double getScale() {
+        return mScale;
+    }
+
+    /**
+     * Convert a longitude to an horizontal screen position. When the world is
+     * smaller than the screen, the copy of the point the closest to the center
+     * of the map is used.
+     * 
+     * @param longitudeE6 The longitude to convert
+     * @return The horizontal position on screen
+     */
+    public int toPixelX(int longitudeE6) {
+        final long dx = wrap((long) Mercator.longitudeToX(longitudeE6) - mCenterX);
+        return mCenterPixelX + (int) Math.round(dx * mScale);
+    }
+
+    /**
+     * Convert an horizontal Mercator coordinate to an horizontal screen
+     * position. Contrary to {@link #toPixelX(int)}, the coordinate is not
+     * wrapped: coordinates outside of the world are valid and represent a
+     * copy of the world.
+     * 
+     * @param x The horizontal coordinate at {@link Mercator#MAX_ZOOM}
+     * @return The horizontal position on screen
+     */
+    public int projectX(long x) {
+        return mCenterPixelX + (int) Math.round((x - mCenterX) * mScale);
+    }
+
+    /**
+     * Convert a vertical Mercator coordinate to a vertical screen position.
+     * 
+     * @param y The vertical coordinate at {@link Mercator#MAX_ZOOM}
+     * @return The vertical position on screen
+     */
+    public int projectY(long y) {
+        return mCenterPixelY + (int) Math.round((y - mCenterY) * mScale);
+    }
+
+    /**
+     * Convert an horizontal screen position to a Mercator coordinate. This is
+     * the inverse of {@link #projectX(long)}: the returned value is not
+     * wrapped.
+     * 
+     * @param pixelX The horizontal position on screen
+     * @return The horizontal coordinate at {@link Mercator#MAX_ZOOM}
+     */
+    public long unprojectX(int pixelX) {
+        return mCenterX + (long) Math.floor((pixelX - mCenterPixelX) / mScale);
+    }
+
+    /**
+     * Convert a vertical screen position to a Mercator coordinate.
+     * 
+     * @param pixelY The vertical position on screen
+     * @return The vertical coordinate at {@link Mercator#MAX_ZOOM}
+     */
+    public long unprojectY(int pixelY) {
+        return mCenterY + (long) Math.floor((pixelY - mCenterPixelY) / mScale);
+    }
+
+    /**
+     * Convert a latitude to a vertical screen position.
+     * 
+     * @param latitudeE6 The latitude to convert
+     * @return The vertical position on screen
+     */
+    public int toPixelY(int latitudeE6) {
+        return mCenterPixelY + (int) Math.round((latitudeToY(latitudeE6) - mCenterY) * mScale);
+    }
+
+    /**
+     * Convert arrays of E6 coordinates to screen positions. This is
+     * equivalent to calling {@link #toPixelX(int)} and {@link #toPixelY(int)}
+     * for each point.
+     * 
+     * @param latitudesE6 The latitudes to convert
+     * @param longitudesE6 The longitudes to convert
+     * @param count The number of points to convert
+     * @param outXs The horizontal positions on screen. It must contain at
+     *            least <code>count</code> values.
+     * @param outYs The vertical positions on screen. It must contain at least
+     *            <code>count</code> values.
+     */
+    public void toPixels(int[] latitudesE6, int[] longitudesE6, int count, int[] outXs, int[] outYs) {
+        final long centerX = mCenterX;
+        final double centerY = mCenterY;
+        final int centerPixelX = mCenterPixelX;
+        final int centerPixelY = mCenterPixelY;
+        final double scale = mScale;
+        for (int i = 0; i < count; i++) {
+            outXs[i] = centerPixelX + (int) Math.round(wrap(longitudeToX(longitudesE6[i]) - centerX) * scale);
+            outYs[i] = centerPixelY + (int) Math.round((latitudeToY(latitudesE6[i]) - centerY) * scale);
+        }
+    }
+
+    /**
+     * Convert some points of arrays of E6 coordinates to screen positions.
+     * This is typically used to project the annotations returned by a query
+     * on an {@link AnnotationIndex}.
+     * 
+     * @param latitudesE6 The latitudes of all points
+     * @param longitudesE6 The longitudes of all points
+     * @param positions The index of the points to convert
+     * @param count The number of points to convert
+     * @param outXs The horizontal positions on screen, in the same order as
+     *            <code>positions</code>. It must contain at least
+     *            <code>count</code> values.
+     * @param outYs The vertical positions on screen. It must contain at least
+     *            <code>count</code> values.
+     */
+    public void toPixels(int[] latitudesE6, int[] longitudesE6, int[] positions, int count, int[] outXs, int[] outYs) {
+        final long centerX = mCenterX;
+        final double centerY = mCenterY;
+        final int centerPixelX = mCenterPixelX;
+        final int centerPixelY = mCenterPixelY;
+        final double scale = mScale;
+        for (int i = 0; i < count; i++) {
+            final int position = positions[i];
+            outXs[i] = centerPixelX + (int) Math.round(wrap(longitudeToX(longitudesE6[position]) - centerX) * scale);
+            outYs[i] = centerPixelY + (int) Math.round((latitudeToY(latitudesE6[position]) - centerY) * scale);
+        }
+    }
+
+    /**
+     * Equivalent to {@link Mercator#longitudeToX(int)}.
+     */
+    private static long longitudeToX(int longitudeE6) {
+        return Math.max(0, Math.min(WORLD_SIZE - 1, (long) (longitudeE6 * X_PER_LONGITUDE_E6 + WORLD_SIZE / 2)));
+    }
+
+    /**
+     * Equivalent to {@link Mercator#latitudeToY(int)} but interpolated from
+     * the latitude table and not rounded.
+     */
+    private static double latitudeToY(int latitudeE6) {
+        final int latitude = Math.max(-Mercator.MAX_LATITUDE_E6, Math.min(Mercator.MAX_LATITUDE_E6, latitudeE6)) + LATITUDE_TABLE_OFFSET;
+        final int index = latitude >> LATITUDE_STEP_SHIFT;
+        final double t = (latitude & (LATITUDE_STEP - 1)) * (1.0 / LATITUDE_STEP);
+        final double t2 = t * t;
+        final double t3 = t2 * t;
+        //@formatter:off
+        return (2 * t3 - 3 * t2 + 1) * LATITUDE_YS[index]
+                + (t3 - 2 * t2 + t) * LATITUDE_SLOPES[index]
+                + (3 * t2 - 2 * t3) * LATITUDE_YS[index + 1]
+                + (t3 - t2) * LATITUDE_SLOPES[index + 1];
+        //@formatter:on
+    }
+
+    /**
+     * Wrap an horizontal distance so that the copy of a point the closest to
+     * the center is used.
+     */
+    private static long wrap(long dx) {
+        if (dx >= WORLD_SIZE / 2) {
+            return dx - WORLD_SIZE;
+        } else if (dx < -WORLD_SIZE / 2) {
+            return dx + WORLD_SIZE;
+        }
+        return dx;
+    }
+
+}
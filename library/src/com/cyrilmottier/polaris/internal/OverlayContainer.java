@@ -15,16 +15,18 @@
  */
 package com.cyrilmottier.polaris.internal;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import android.content.Context;
 import android.graphics.Canvas;
+import android.graphics.Rect;
 import android.view.GestureDetector;
 import android.view.GestureDetector.SimpleOnGestureListener;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
 
+import com.cyrilmottier.polaris.BoundedOverlay;
+import com.cyrilmottier.polaris.OverlayCapabilities;
+import com.cyrilmottier.polaris.PolarisMetrics;
+import com.cyrilmottier.polaris.PolygonOverlay;
 import com.google.android.maps.GeoPoint;
 import com.google.android.maps.MapView;
 import com.google.android.maps.MyLocationOverlay;
@@ -46,59 +48,52 @@ public class OverlayContainer extends Overlay {
         void onLongPress(MotionEvent e);
     }
 
-    @SuppressWarnings("serial")
-    private final ArrayList<Overlay> mOverlays = new ArrayList<Overlay>() {
-        @Override
-        public Overlay get(int index) {
-            boolean hasLocationOverlay = mLocationOverlay != null;
-            boolean hasAnnotationsOverlay = mAnnotationsOverlay != null;
-
-            switch (index) {
-                case 0:
-                    if (hasLocationOverlay) {
-                        return mLocationOverlay;
-                    } else if (hasAnnotationsOverlay) {
-                        return mAnnotationsOverlay;
-                    }
-                    break;
-
-                case 1:
-                    if (hasLocationOverlay && hasAnnotationsOverlay) {
-                        return mAnnotationsOverlay;
-                    }
-                    break;
-            }
+    /**
+     * Pinned slot of the polygons overlay. Polygons are drawn below everything
+     * else.
+     */
+    private static final int SLOT_POLYGONS = 0;
 
-            int reindex = index;
-            if (hasLocationOverlay) {
-                reindex--;
-            }
-            if (hasAnnotationsOverlay) {
-                reindex--;
-            }
+    /**
+     * Pinned slot of the user location overlay
+     */
+    private static final int SLOT_LOCATION = 1;
+
+    /**
+     * Pinned slot of the annotations overlay
+     */
+    private static final int SLOT_ANNOTATIONS = 2;
 
-            return super.get(reindex);
+    private static final int SLOT_COUNT = 3;
+
+    /**
+     * Number of flags of {@link OverlayCapabilities}
+     */
+    private static final int CAPABILITY_COUNT = 6;
+
+    private final DispatchArray<Overlay> mOverlays = new DispatchArray<Overlay>(SLOT_COUNT, CAPABILITY_COUNT) {
+        @Override
+        protected Overlay[] newArray(int size) {
+            return new Overlay[size];
         }
 
         @Override
-        public int size() {
-            int size = super.size();
-            if (mLocationOverlay != null) {
-                size++;
-            }
-            if (mAnnotationsOverlay != null) {
-                size++;
+        protected int getFlags(Overlay overlay) {
+            if (overlay instanceof OverlayCapabilities) {
+                return ((OverlayCapabilities) overlay).getCapabilities();
             }
-            return size;
+            return OverlayCapabilities.CAPABILITY_ALL;
         }
     };
 
     private final GestureDetector mGestureDetector;
     private final MagnetoCallback mCallback;
 
-    private AnnotationsOverlay mAnnotationsOverlay;
-    private MyLocationOverlay mLocationOverlay;
     private boolean mIsTapConsumedPerChildren;
+    private PolarisMetrics mMetrics;
+
+    private final Rect mClipBounds = new Rect();
+    private final Rect mTempRect = new Rect();
 
     public OverlayContainer(Context context, MagnetoCallback callback) {
         if (callback == null) {
@@ -109,32 +104,106 @@ public class OverlayContainer extends Overlay {
         mGestureDetector.setOnDoubleTapListener(mOnGestureListener);
     }
 
+    public void setMetrics(PolarisMetrics metrics) {
+        mMetrics = metrics;
+    }
+
     @Override
     public void draw(Canvas canvas, MapView mapView, boolean shadow) {
-        final List<Overlay> overlays = mOverlays;
-        final int count = overlays.size();
+        if (Config.METRICS_ENABLED && mMetrics != null) {
+            drawWithMetrics(canvas, mapView, shadow, 0, false);
+            return;
+        }
+        final Overlay[] overlays = getDrawnOverlays(shadow);
+        final int count = overlays.length;
+        final boolean isPartial = updateClipBounds(canvas, mapView);
         for (int i = 0; i < count; i++) {
-            overlays.get(i).draw(canvas, mapView, shadow);
+            final Overlay overlay = overlays[i];
+            if (!isPartial || !isOutOfClipBounds(overlay, mapView, shadow)) {
+                overlay.draw(canvas, mapView, shadow);
+            }
         }
     }
 
     public boolean draw(Canvas canvas, MapView mapView, boolean shadow, long when) {
+        if (mOverlays.getArray(OverlayCapabilities.CAPABILITY_ANIMATION).length == 0) {
+            // No overlay is animated: none of them can request a new frame
+            draw(canvas, mapView, shadow);
+            return false;
+        }
+        if (Config.METRICS_ENABLED && mMetrics != null) {
+            return drawWithMetrics(canvas, mapView, shadow, when, true);
+        }
+        boolean result = false;
+        final Overlay[] overlays = getDrawnOverlays(shadow);
+        final int count = overlays.length;
+        final boolean isPartial = updateClipBounds(canvas, mapView);
+        for (int i = 0; i < count; i++) {
+            final Overlay overlay = overlays[i];
+            if (!isPartial || !isOutOfClipBounds(overlay, mapView, shadow)) {
+                result |= overlay.draw(canvas, mapView, shadow, when);
+            }
+        }
+        return result;
+    }
+
+    private boolean drawWithMetrics(Canvas canvas, MapView mapView, boolean shadow, long when, boolean animated) {
+        final PolarisMetrics metrics = mMetrics;
+        final long start = System.nanoTime();
         boolean result = false;
-        final List<Overlay> overlays = mOverlays;
-        final int count = overlays.size();
+        final Overlay[] overlays = getDrawnOverlays(shadow);
+        final int count = overlays.length;
+        final boolean isPartial = updateClipBounds(canvas, mapView);
         for (int i = 0; i < count; i++) {
-            result |= overlays.get(i).draw(canvas, mapView, shadow, when);
+            final Overlay overlay = overlays[i];
+            if (isPartial && isOutOfClipBounds(overlay, mapView, shadow)) {
+                continue;
+            }
+            final long overlayStart = System.nanoTime();
+            if (animated) {
+                result |= overlay.draw(canvas, mapView, shadow, when);
+            } else {
+                overlay.draw(canvas, mapView, shadow);
+            }
+            metrics.onOverlayDrawn(overlay, shadow, System.nanoTime() - overlayStart);
         }
+        metrics.onOverlaysDrawn(shadow, System.nanoTime() - start);
         return result;
     }
 
+    private Overlay[] getDrawnOverlays(boolean shadow) {
+        return shadow ? mOverlays.getArray(OverlayCapabilities.CAPABILITY_SHADOW) : mOverlays.getArray();
+    }
+
+    /**
+     * Retrieve the area of the map being redrawn.
+     * 
+     * @return true if only part of the map is being redrawn
+     */
+    private boolean updateClipBounds(Canvas canvas, MapView mapView) {
+        final Rect clipBounds = mClipBounds;
+        if (!canvas.getClipBounds(clipBounds)) {
+            clipBounds.setEmpty();
+            return true;
+        }
+        return !clipBounds.contains(0, 0, mapView.getWidth(), mapView.getHeight());
+    }
+
+    private boolean isOutOfClipBounds(Overlay overlay, MapView mapView, boolean shadow) {
+        if (!(overlay instanceof BoundedOverlay)) {
+            return false;
+        }
+        final Rect bounds = mTempRect;
+        return ((BoundedOverlay) overlay).getDrawingBounds(mapView, shadow, bounds) && !Rect.intersects(mClipBounds, bounds);
+    }
+
     public boolean onKeyDown(int keyCode, KeyEvent event, MapView mapView) {
         boolean result = false;
 
-        final List<Overlay> overlays = mOverlays;
-        final int count = overlays.size();
+        final Overlay[] overlays = mOverlays.getArray(OverlayCapabilities.CAPABILITY_KEYS);
+        final int count = overlays.length;
         for (int i = count - 1; i >= 0; i--) {
-            result |= overlays.get(i).onKeyDown(keyCode, event, mapView);
+            result |= overlays[i].onKeyDown(keyCode, event, mapView);
         }
 
         return result;
@@ -142,10 +211,10 @@ public class OverlayContainer extends Overlay {
 
     public boolean onKeyUp(int keyCode, KeyEvent event, MapView mapView) {
         boolean result = false;
-        final List<Overlay> overlays = mOverlays;
-        final int count = overlays.size();
+        final Overlay[] overlays = mOverlays.getArray(OverlayCapabilities.CAPABILITY_KEYS);
+        final int count = overlays.length;
         for (int i = count - 1; i >= 0; i--) {
-            result |= overlays.get(i).onKeyUp(keyCode, event, mapView);
+            result |= overlays[i].onKeyUp(keyCode, event, mapView);
         }
         return result;
     }
@@ -153,10 +222,10 @@ public class OverlayContainer extends Overlay {
     public boolean onTap(GeoPoint p, MapView mapView) {
         mIsTapConsumedPerChildren = false;
 
-        final List<Overlay> overlays = mOverlays;
-        final int count = overlays.size();
+        final Overlay[] overlays = mOverlays.getArray(OverlayCapabilities.CAPABILITY_TAP);
+        final int count = overlays.length;
         for (int i = count - 1; i >= 0; i--) {
-            if (overlays.get(i).onTap(p, mapView)) {
+            if (overlays[i].onTap(p, mapView)) {
                 mIsTapConsumedPerChildren = true;
                 return true;
             }
@@ -168,10 +237,10 @@ public class OverlayContainer extends Overlay {
     @Override
     public boolean onTouchEvent(MotionEvent event, MapView mapView) {
         boolean result = false;
-        final List<Overlay> overlays = mOverlays;
-        final int count = overlays.size();
+        final Overlay[] overlays = mOverlays.getArray(OverlayCapabilities.CAPABILITY_TOUCH);
+        final int count = overlays.length;
         for (int i = count - 1; i >= 0; i--) {
-            result |= overlays.get(i).onTouchEvent(event, mapView);
+            result |= overlays[i].onTouchEvent(event, mapView);
         }
 
         // Let us the time to listen to some gestures on the MapView
@@ -182,20 +251,24 @@ public class OverlayContainer extends Overlay {
 
     public boolean onTrackballEvent(MotionEvent event, MapView mapView) {
         boolean result = false;
-        final List<Overlay> overlays = mOverlays;
-        final int count = overlays.size();
+        final Overlay[] overlays = mOverlays.getArray(OverlayCapabilities.CAPABILITY_TRACKBALL);
+        final int count = overlays.length;
         for (int i = count - 1; i >= 0; i--) {
-            result |= overlays.get(i).onTrackballEvent(event, mapView);
+            result |= overlays[i].onTrackballEvent(event, mapView);
         }
         return result;
     }
 
+    public void setPolygonOverlay(PolygonOverlay overlay) {
+        mOverlays.setPinned(SLOT_POLYGONS, overlay);
+    }
+
     public void setUserLocationOverlay(MyLocationOverlay overlay) {
-        mLocationOverlay = overlay;
+        mOverlays.setPinned(SLOT_LOCATION, overlay);
     }
 
     public void setAnnotationsOverlay(AnnotationsOverlay overlay) {
-        mAnnotationsOverlay = overlay;
+        mOverlays.setPinned(SLOT_ANNOTATIONS, overlay);
     }
 
     public void addOverlay(Overlay overlay) {
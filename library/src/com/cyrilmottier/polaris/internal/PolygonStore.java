@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.internal;
+
+/**
+ * Stores polygons (each made of an outline and optional holes) as Mercator
+ * coordinates at {@link Mercator#MAX_ZOOM} in flat primitive arrays.
+ * <p>
+ * Polygons are numbered in insertion order. The rings of a polygon (its
+ * outline first, then its holes) are numbered consecutively, as are the
+ * vertices of a ring. The bounding box of each polygon is computed once so
+ * that finding the polygons intersecting a region only requires comparing a
+ * few integers per polygon.
+ * </p>
+ * <p>
+ * This class has no dependency on the Android framework.
+ * </p>
+ * 
+ * @author Cyril Mottier
+ */
+public class PolygonStore {
+
+    private static final int WORLD_SIZE = Mercator.MAX_WORLD_SIZE;
+
+    /**
+     * Mercator coordinates of the vertices. Horizontal coordinates are
+     * unwrapped per polygon: a polygon crossing the antimeridian is
+     * continuous and may extend beyond the edges of the world.
+     */
+    private final IntArray mXs = new IntArray();
+    private final IntArray mYs = new IntArray();
+
+    /**
+     * The (exclusive) index of the last vertex of each ring
+     */
+    private final IntArray mRingEnds = new IntArray();
+
+    /**
+     * The (exclusive) index of the last ring of each polygon
+     */
+    private final IntArray mPolygonEnds = new IntArray();
+
+    private final IntArray mMinXs = new IntArray();
+    private final IntArray mMinYs = new IntArray();
+    private final IntArray mMaxXs = new IntArray();
+    private final IntArray mMaxYs = new IntArray();
+
+    /**
+     * Add a polygon.
+     * 
+     * @param latitudes The latitudes of the vertices of each ring. The first
+     *            ring is the outline of the polygon, the other ones are its
+     *            holes.
+     * @param longitudes The longitudes of the vertices of each ring
+     * @return The index of the polygon
+     */
+    public int add(int[][] latitudes, int[][] longitudes) {
+        if (latitudes == null || longitudes == null) {
+            throw new IllegalArgumentException("The given coordinates cannot be null");
+        }
+        if (latitudes.length != longitudes.length) {
+            throw new IllegalArgumentException("The given coordinates don't have the same number of rings");
+        }
+
+        final IntArray xs = mXs;
+        final IntArray ys = mYs;
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+
+        // Crossing the antimeridian shifts the following vertices by a world
+        // so that each edge takes the shortest way. Holes are unwrapped
+        // relatively to the outline.
+        long offset = 0;
+        int previousX = Integer.MIN_VALUE;
+        final int ringCount = latitudes.length;
+        for (int ring = 0; ring < ringCount; ring++) {
+            final int[] ringLatitudes = latitudes[ring];
+            final int[] ringLongitudes = longitudes[ring];
+            if (ringLatitudes == null || ringLongitudes == null || ringLatitudes.length != ringLongitudes.length) {
+                throw new IllegalArgumentException("The given ring " + ring + " doesn't have as many latitudes as longitudes");
+            }
+            final int count = ringLatitudes.length;
+            xs.ensureCapacity(xs.size() + count);
+            ys.ensureCapacity(ys.size() + count);
+            for (int i = 0; i < count; i++) {
+                final int x = Mercator.longitudeToX(ringLongitudes[i]);
+                if (previousX != Integer.MIN_VALUE) {
+                    if (x - previousX > WORLD_SIZE / 2) {
+                        offset -= WORLD_SIZE;
+                    } else if (previousX - x > WORLD_SIZE / 2) {
+                        offset += WORLD_SIZE;
+                    }
+                }
+                previousX = x;
+
+                final int unwrappedX = (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, x + offset));
+                final int y = Mercator.latitudeToY(ringLatitudes[i]);
+                xs.add(unwrappedX);
+                ys.add(y);
+                minX = Math.min(minX, unwrappedX);
+                minY = Math.min(minY, y);
+                maxX = Math.max(maxX, unwrappedX);
+                maxY = Math.max(maxY, y);
+            }
+            mRingEnds.add(xs.size());
+        }
+
+        if (minX > maxX) {
+            // An empty polygon never intersects anything
+            minX = minY = Integer.MAX_VALUE;
+            maxX = maxY = Integer.MIN_VALUE;
+        }
+        mPolygonEnds.add(mRingEnds.size());
+        mMinXs.add(minX);
+        mMinYs.add(minY);
+        mMaxXs.add(maxX);
+        mMaxYs.add(maxY);
+        return mPolygonEnds.size() - 1;
+    }
+
+    /**
+     * Remove all polygons.
+     */
+    public void clear() {
+        mXs.clear();
+        mYs.clear();
+        mRingEnds.clear();
+        mPolygonEnds.clear();
+        mMinXs.clear();
+        mMinYs.clear();
+        mMaxXs.clear();
+        mMaxYs.clear();
+    }
+
+    /**
+     * @return The number of polygons
+     */
+    public int size() {
+        return mPolygonEnds.size();
+    }
+
+    /**
+     * @return The horizontal Mercator coordinates of the vertices at
+     *         {@link Mercator#MAX_ZOOM}. The returned array must not be
+     *         modified.
+     */
+    public int[] getXs() {
+        return mXs.values();
+    }
+
+    /**
+     * @return The vertical Mercator coordinates of the vertices at
+     *         {@link Mercator#MAX_ZOOM}. The returned array must not be
+     *         modified.
+     */
+    public int[] getYs() {
+        return mYs.values();
+    }
+
+    /**
+     * @param polygon The index of a polygon
+     * @return The index of the first ring (the outline) of the polygon
+     */
+    public int getFirstRing(int polygon) {
+        return polygon == 0 ? 0 : mPolygonEnds.get(polygon - 1);
+    }
+
+    /**
+     * @param polygon The index of a polygon
+     * @return The index following the last ring of the polygon
+     */
+    public int getRingEnd(int polygon) {
+        return mPolygonEnds.get(polygon);
+    }
+
+    /**
+     * @param ring The index of a ring
+     * @return The index of the first vertex of the ring
+     */
+    public int getFirstVertex(int ring) {
+        return ring == 0 ? 0 : mRingEnds.get(ring - 1);
+    }
+
+    /**
+     * @param ring The index of a ring
+     * @return The index following the last vertex of the ring
+     */
+    public int getVertexEnd(int ring) {
+        return mRingEnds.get(ring);
+    }
+
+    public int getMinX(int polygon) {
+        return mMinXs.get(polygon);
+    }
+
+    public int getMinY(int polygon) {
+        return mMinYs.get(polygon);
+    }
+
+    public int getMaxX(int polygon) {
+        return mMaxXs.get(polygon);
+    }
+
+    public int getMaxY(int polygon) {
+        return mMaxYs.get(polygon);
+    }
+
+    /**
+     * Return the offset (a multiple of the world size) to apply to a polygon
+     * so that it lies in the copy of the world the closest to the given
+     * horizontal coordinate.
+     * 
+     * @param polygon The index of a polygon
+     * @param x An horizontal Mercator coordinate at {@link Mercator#MAX_ZOOM}
+     * @return The offset to apply to the horizontal coordinates of the
+     *         polygon
+     */
+    public long getWorldOffset(int polygon, long x) {
+        final long delta = x - ((long) mMinXs.get(polygon) + mMaxXs.get(polygon)) / 2;
+        return Math.round((double) delta / WORLD_SIZE) * WORLD_SIZE;
+    }
+
+    /**
+     * Append to <code>outPolygons</code> the index of the polygons whose
+     * bounding box intersects the given bounds (edges are inclusive). Each
+     * polygon is tested in the copy of the world the closest to the center
+     * of the bounds (see {@link #getWorldOffset(int, long)}).
+     * 
+     * @param minX The western edge, in Mercator units at
+     *            {@link Mercator#MAX_ZOOM}
+     * @param minY The northern edge
+     * @param maxX The eastern edge
+     * @param maxY The southern edge
+     * @param outPolygons The array the polygons are appended to
+     */
+    public void query(long minX, long minY, long maxX, long maxY, IntArray outPolygons) {
+        final int count = size();
+        final int[] minXs = mMinXs.values();
+        final int[] minYs = mMinYs.values();
+        final int[] maxXs = mMaxXs.values();
+        final int[] maxYs = mMaxYs.values();
+        final long centerX = (minX + maxX) / 2;
+        for (int i = 0; i < count; i++) {
+            if (minYs[i] > maxY || maxYs[i] < minY) {
+                continue;
+            }
+            final long polygonMinX = minXs[i];
+            final long polygonMaxX = maxXs[i];
+            final long offset = Math.round((double) (centerX - (polygonMinX + polygonMaxX) / 2) / WORLD_SIZE) * WORLD_SIZE;
+            if (polygonMinX + offset <= maxX && polygonMaxX + offset >= minX) {
+                outPolygons.add(i);
+            }
+        }
+    }
+
+}
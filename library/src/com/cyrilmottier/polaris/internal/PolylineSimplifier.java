@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.internal;
+
+/**
+ * Simplifies a polyline for each zoom level using the Douglas-Peucker
+ * algorithm.
+ * <p>
+ * Vertices are projected once to Mercator coordinates at
+ * {@link Mercator#MAX_ZOOM}. The Douglas-Peucker recursion is then run a
+ * single time: each vertex is given an importance, the largest tolerance for
+ * which it is kept. The importance of a vertex is bounded by the importance of
+ * the vertices splitting the segments it belongs to. As a consequence,
+ * keeping the vertices whose importance is greater than a tolerance gives the
+ * exact result of the Douglas-Peucker algorithm run with this tolerance. The
+ * simplified polyline of a zoom level is extracted lazily with a linear scan
+ * and cached.
+ * </p>
+ * <p>
+ * The vertices of a simplified polyline are grouped in chunks of
+ * {@link #CHUNK_SIZE} segments whose bounds are computed. Clipping a
+ * polyline to a region only tests the bounds of the chunks.
+ * </p>
+ * <p>
+ * This class has no dependency on the Android framework.
+ * </p>
+ * 
+ * @author Cyril Mottier
+ */
+public class PolylineSimplifier {
+
+    /**
+     * Number of segments per chunk
+     */
+    public static final int CHUNK_SIZE = 64;
+
+    private static final int WORLD_SIZE = Mercator.MAX_WORLD_SIZE;
+
+    private final int mCount;
+
+    /**
+     * Mercator coordinates of the vertices. Horizontal coordinates are
+     * unwrapped: a polyline crossing the antimeridian is continuous and may
+     * extend beyond the edges of the world.
+     */
+    private final int[] mXs;
+    private final int[] mYs;
+    private final float[] mImportances;
+
+    private int mMinX;
+    private int mMinY;
+    private int mMaxX;
+    private int mMaxY;
+
+    private final float mTolerance;
+    private final Level[] mLevels = new Level[Mercator.MAX_ZOOM + 1];
+
+    /**
+     * Create a new {@link PolylineSimplifier}. Simplifying a polyline is
+     * linearithmic in the number of vertices in the usual case: very long
+     * polylines are best simplified on a background thread.
+     * 
+     * @param latitudes The latitudes of the vertices
+     * @param longitudes The longitudes of the vertices
+     * @param count The number of vertices
+     * @param tolerance The maximum distance (in pixels) between the
+     *            simplified polyline and the original one
+     */
+    public PolylineSimplifier(int[] latitudes, int[] longitudes, int count, float tolerance) {
+        if (count < 0 || count > latitudes.length || count > longitudes.length) {
+            throw new IllegalArgumentException("The given count doesn't match the given coordinates");
+        }
+        mCount = count;
+        mTolerance = tolerance;
+        mXs = new int[count];
+        mYs = new int[count];
+        mImportances = new float[count];
+
+        project(latitudes, longitudes);
+        computeImportances();
+    }
+
+    /**
+     * @return The number of vertices of the original polyline
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * @return The horizontal Mercator coordinates of the vertices at
+     *         {@link Mercator#MAX_ZOOM}. The returned array must not be
+     *         modified.
+     */
+    public int[] getXs() {
+        return mXs;
+    }
+
+    /**
+     * @return The vertical Mercator coordinates of the vertices at
+     *         {@link Mercator#MAX_ZOOM}. The returned array must not be
+     *         modified.
+     */
+    public int[] getYs() {
+        return mYs;
+    }
+
+    public int getMinX() {
+        return mMinX;
+    }
+
+    public int getMinY() {
+        return mMinY;
+    }
+
+    public int getMaxX() {
+        return mMaxX;
+    }
+
+    public int getMaxY() {
+        return mMaxY;
+    }
+
+    /**
+     * Return the importance of a vertex i.e. the largest tolerance (in
+     * Mercator units at {@link Mercator#MAX_ZOOM}) for which the vertex is
+     * kept.
+     * 
+     * @param index The index of the vertex
+     * @return The importance of the vertex
+     */
+    public float getImportance(int index) {
+        return mImportances[index];
+    }
+
+    /**
+     * Return the number of vertices of the polyline simplified for the given
+     * zoom level.
+     * 
+     * @param zoom The Mercator zoom level
+     * @return The number of vertices
+     */
+    public int getVertexCount(int zoom) {
+        return getLevel(zoom).count;
+    }
+
+    /**
+     * Return the vertices of the polyline simplified for the given zoom level.
+     * 
+     * @param zoom The Mercator zoom level
+     * @return The indexes of the kept vertices. Only the first
+     *         {@link #getVertexCount(int)} values are valid. The returned
+     *         array must not be modified.
+     */
+    public int[] getVertices(int zoom) {
+        return getLevel(zoom).vertices;
+    }
+
+    /**
+     * Append to <code>outRuns</code> the runs of the simplified polyline that
+     * may intersect the given bounds (edges are inclusive). A run is appended
+     * as two values: the index of its first vertex and the index of its last
+     * vertex in the array returned by {@link #getVertices(int)}. Consecutive
+     * runs never share a vertex.
+     * 
+     * @param zoom The Mercator zoom level
+     * @param minX The western edge, in Mercator units at
+     *            {@link Mercator#MAX_ZOOM}
+     * @param minY The northern edge
+     * @param maxX The eastern edge
+     * @param maxY The southern edge
+     * @param outRuns The array the runs are appended to
+     */
+    public void clip(int zoom, long minX, long minY, long maxX, long maxY, IntArray outRuns) {
+        if (mCount == 0 || minX > mMaxX || maxX < mMinX || minY > mMaxY || maxY < mMinY) {
+            return;
+        }
+
+        final Level level = getLevel(zoom);
+        final int chunkCount = level.chunkCount;
+        int runStart = -1;
+        int runEnd = -1;
+        for (int i = 0; i < chunkCount; i++) {
+            //@formatter:off
+            final boolean intersects = level.chunkMinXs[i] <= maxX
+                    && level.chunkMaxXs[i] >= minX
+                    && level.chunkMinYs[i] <= maxY
+                    && level.chunkMaxYs[i] >= minY;
+            //@formatter:on
+            if (!intersects) {
+                continue;
+            }
+            final int start = i * CHUNK_SIZE;
+            final int end = Math.min(start + CHUNK_SIZE, level.count - 1);
+            if (runStart != -1 && start == runEnd) {
+                // Chunks share their boundary vertex: merge them
+                runEnd = end;
+            } else {
+                if (runStart != -1) {
+                    outRuns.add(runStart);
+                    outRuns.add(runEnd);
+                }
+                runStart = start;
+                runEnd = end;
+            }
+        }
+        if (runStart != -1) {
+            outRuns.add(runStart);
+            outRuns.add(runEnd);
+        }
+    }
+
+    private void project(int[] latitudes, int[] longitudes) {
+        final int count = mCount;
+        if (count == 0) {
+            return;
+        }
+        final int[] xs = mXs;
+        final int[] ys = mYs;
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+
+        // Crossing the antimeridian shifts the following vertices by a world
+        // so that each segment takes the shortest way
+        long offset = 0;
+        int previousX = Mercator.longitudeToX(longitudes[0]);
+        for (int i = 0; i < count; i++) {
+            final int x = Mercator.longitudeToX(longitudes[i]);
+            if (x - previousX > WORLD_SIZE / 2) {
+                offset -= WORLD_SIZE;
+            } else if (previousX - x > WORLD_SIZE / 2) {
+                offset += WORLD_SIZE;
+            }
+            previousX = x;
+
+            final int unwrappedX = (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, x + offset));
+            final int y = Mercator.latitudeToY(latitudes[i]);
+            xs[i] = unwrappedX;
+            ys[i] = y;
+            minX = Math.min(minX, unwrappedX);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, unwrappedX);
+            maxY = Math.max(maxY, y);
+        }
+        mMinX = minX;
+        mMinY = minY;
+        mMaxX = maxX;
+        mMaxY = maxY;
+    }
+
+    /**
+     * Run the Douglas-Peucker algorithm once, recording the importance of
+     * each vertex. The recursion is replaced by an explicit stack so that
+     * degenerate polylines can't overflow the thread stack.
+     */
+    private void computeImportances() {
+        final int count = mCount;
+        if (count == 0) {
+            return;
+        }
+        final float[] importances = mImportances;
+        importances[0] = Float.POSITIVE_INFINITY;
+        importances[count - 1] = Float.POSITIVE_INFINITY;
+        if (count < 3) {
+            return;
+        }
+
+        final int[] xs = mXs;
+        final int[] ys = mYs;
+        // Pairs of (first, last) vertices of the segments to split
+        int[] stack = new int[64];
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+        stack[stackSize++] = count - 1;
+        while (stackSize > 0) {
+            final int last = stack[--stackSize];
+            final int first = stack[--stackSize];
+
+            final double ax = xs[first];
+            final double ay = ys[first];
+            final double dx = xs[last] - ax;
+            final double dy = ys[last] - ay;
+            final double lengthSquared = dx * dx + dy * dy;
+
+            int farthest = -1;
+            double farthestDistanceSquared = -1;
+            for (int i = first + 1; i < last; i++) {
+                double px = xs[i] - ax;
+                double py = ys[i] - ay;
+                if (lengthSquared > 0) {
+                    // Distance to the segment (rather than to the line)
+                    final double t = Math.max(0, Math.min(1, (px * dx + py * dy) / lengthSquared));
+                    px -= t * dx;
+                    py -= t * dy;
+                }
+                final double distanceSquared = px * px + py * py;
+                if (distanceSquared > farthestDistanceSquared) {
+                    farthestDistanceSquared = distanceSquared;
+                    farthest = i;
+                }
+            }
+
+            // A vertex can't be more important than the vertices bounding
+            // its segment
+            final float bound = Math.min(importances[first], importances[last]);
+            importances[farthest] = Math.min(bound, (float) Math.sqrt(farthestDistanceSquared));
+
+            if (stackSize + 4 > stack.length) {
+                final int[] newStack = new int[stack.length * 2];
+                System.arraycopy(stack, 0, newStack, 0, stackSize);
+                stack = newStack;
+            }
+            if (farthest - first >= 2) {
+                stack[stackSize++] = first;
+                stack[stackSize++] = farthest;
+            }
+            if (last - farthest >= 2) {
+                stack[stackSize++] = farthest;
+                stack[stackSize++] = last;
+            }
+        }
+    }
+
+    private Level getLevel(int zoom) {
+        zoom = Math.max(0, Math.min(Mercator.MAX_ZOOM, zoom));
+        Level level = mLevels[zoom];
+        if (level == null) {
+            level = createLevel(mTolerance * (1 << (Mercator.MAX_ZOOM - zoom)));
+            mLevels[zoom] = level;
+        }
+        return level;
+    }
+
+    private Level createLevel(float tolerance) {
+        final int count = mCount;
+        final float[] importances = mImportances;
+        int vertexCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (importances[i] > tolerance) {
+                vertexCount++;
+            }
+        }
+
+        final Level level = new Level(vertexCount);
+        final int[] vertices = level.vertices;
+        int index = 0;
+        for (int i = 0; i < count; i++) {
+            if (importances[i] > tolerance) {
+                vertices[index++] = i;
+            }
+        }
+
+        // Each chunk includes the first vertex of the next chunk so that the
+        // segment joining them is part of a chunk
+        final int[] xs = mXs;
+        final int[] ys = mYs;
+        for (int chunk = 0; chunk < level.chunkCount; chunk++) {
+            final int start = chunk * CHUNK_SIZE;
+            final int end = Math.min(start + CHUNK_SIZE, vertexCount - 1);
+            int minX = Integer.MAX_VALUE;
+            int minY = Integer.MAX_VALUE;
+            int maxX = Integer.MIN_VALUE;
+            int maxY = Integer.MIN_VALUE;
+            for (int i = start; i <= end; i++) {
+                final int vertex = vertices[i];
+                minX = Math.min(minX, xs[vertex]);
+                minY = Math.min(minY, ys[vertex]);
+                maxX = Math.max(maxX, xs[vertex]);
+                maxY = Math.max(maxY, ys[vertex]);
+            }
+            level.chunkMinXs[chunk] = minX;
+            level.chunkMinYs[chunk] = minY;
+            level.chunkMaxXs[chunk] = maxX;
+            level.chunkMaxYs[chunk] = maxY;
+        }
+        return level;
+    }
+
+    /**
+     * The polyline simplified for a zoom level
+     */
+    private static final class Level {
+
+        final int count;
+        final int[] vertices;
+
+        final int chunkCount;
+        final int[] chunkMinXs;
+        final int[] chunkMinYs;
+        final int[] chunkMaxXs;
+        final int[] chunkMaxYs;
+
+        Level(int count) {
+            this.count = count;
+            vertices = new int[count];
+            // A single vertex still makes a (degenerate) chunk
+            chunkCount = count > 1 ? (count - 2) / CHUNK_SIZE + 1 : count;
+            chunkMinXs = new int[chunkCount];
+            chunkMinYs = new int[chunkCount];
+            chunkMaxXs = new int[chunkCount];
+            chunkMaxYs = new int[chunkCount];
+        }
+    }
+
+}
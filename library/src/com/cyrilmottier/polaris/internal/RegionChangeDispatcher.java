@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2012 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cyrilmottier.polaris.internal;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.SystemClock;
+import android.view.Choreographer;
+import android.view.View;
+
+import com.cyrilmottier.polaris.CoordinateRegion;
+import com.cyrilmottier.polaris.PolarisMetrics;
+
+/**
+ * Turns the (very frequent) region samples of a map into two streams of
+ * events:
+ * <ul>
+ * <li>region changes: coalesced, throttled and delivered at the beginning of
+ * a frame,</li>
+ * <li>confirmed region changes: debounced i.e. delivered once the region has
+ * not changed for a given amount of time and no gesture is in progress.</li>
+ * </ul>
+ * Both streams ignore changes smaller than a minimum delta. Each event reports
+ * the region at the time of the previous event of the same stream and the
+ * current region.
+ * 
+ * @author Cyril Mottier
+ */
+public class RegionChangeDispatcher {
+
+    /**
+     * @author Cyril Mottier
+     */
+    public interface StormCallback {
+        void getCoordinateRegion(CoordinateRegion outRegion);
+
+        void onRegionChanged(CoordinateRegion oldRegion, CoordinateRegion newRegion);
+
+        void onRegionChangeConfirmed(CoordinateRegion oldRegion, CoordinateRegion newRegion);
+    }
+
+    /**
+     * Amount of time to display about 10 frames at 60Hz
+     */
+    public static final long DEFAULT_CONFIRMED_DELAY = 1000L / 60L * 10L;
+
+    private static final long FRAME_DELAY = 1000L / 60L;
+
+    private final View mView;
+    private final StormCallback mCallback;
+    private final FrameScheduler mFrameScheduler;
+
+    private long mThrottle;
+    private long mConfirmedDelay = DEFAULT_CONFIRMED_DELAY;
+    private float mMinimumDelta;
+
+    private final CoordinateRegion mCurrentRegion = new CoordinateRegion();
+    private final CoordinateRegion mLastChangedRegion = new CoordinateRegion();
+    private final CoordinateRegion mLastConfirmedRegion = new CoordinateRegion();
+    private final CoordinateRegion mTempRegion = new CoordinateRegion();
+
+    /*
+     * Regions given to the callback. They are distinct from the regions used
+     * internally so that the callback can't modify the state of the
+     * dispatcher.
+     */
+    private final CoordinateRegion mOldRegion = new CoordinateRegion();
+    private final CoordinateRegion mNewRegion = new CoordinateRegion();
+
+    private boolean mIsChangeScheduled;
+    private long mLastChangeTime;
+    private boolean mIsInGesture;
+
+    private PolarisMetrics mMetrics;
+    private long mChangeSampleTime;
+    private long mLastSampleTime;
+
+    public RegionChangeDispatcher(View view, StormCallback callback) {
+        if (callback == null) {
+            throw new IllegalArgumentException("The given " + StormCallback.class.getSimpleName() + " cannot be null");
+        }
+        mView = view;
+        mCallback = callback;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            mFrameScheduler = new ChoreographerFrameScheduler();
+        } else {
+            mFrameScheduler = new HandlerFrameScheduler();
+        }
+    }
+
+    public void setMetrics(PolarisMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Set the minimum amount of time between two region changes.
+     * 
+     * @param throttle The minimum amount of time in milliseconds. 0 means
+     *            region changes are delivered at most once per frame.
+     */
+    public void setThrottle(long throttle) {
+        mThrottle = Math.max(0, throttle);
+    }
+
+    public long getThrottle() {
+        return mThrottle;
+    }
+
+    /**
+     * Set the amount of time the region must be stable before a change is
+     * confirmed.
+     * 
+     * @param delay The delay in milliseconds
+     */
+    public void setConfirmedDelay(long delay) {
+        mConfirmedDelay = Math.max(0, delay);
+    }
+
+    public long getConfirmedDelay() {
+        return mConfirmedDelay;
+    }
+
+    /**
+     * Set the minimum change required to notify a region change. Zoom changes
+     * (i.e. span changes) are always notified. Otherwise, the center must have
+     * moved by at least the given fraction of the span on one of the axis.
+     * 
+     * @param minimumDelta The minimum change as a fraction of the span
+     */
+    public void setMinimumDelta(float minimumDelta) {
+        mMinimumDelta = Math.max(0, minimumDelta);
+    }
+
+    public float getMinimumDelta() {
+        return mMinimumDelta;
+    }
+
+    /**
+     * Sample the current region. This method is meant to be called very
+     * frequently (on each layout pass for instance) and does nothing when the
+     * region hasn't changed since the last sample.
+     */
+    public void sample() {
+        final CoordinateRegion region = mTempRegion;
+        mCallback.getCoordinateRegion(region);
+        if (region.equals(mCurrentRegion)) {
+            return;
+        }
+        mCurrentRegion.set(region);
+        if (Config.METRICS_ENABLED && mMetrics != null) {
+            mLastSampleTime = System.nanoTime();
+            if (!mIsChangeScheduled) {
+                mChangeSampleTime = mLastSampleTime;
+            }
+        }
+        scheduleChange();
+        scheduleConfirmed();
+    }
+
+    /**
+     * Notify a gesture started. Changes are never confirmed during a gesture.
+     */
+    public void onGestureStarted() {
+        mIsInGesture = true;
+        mView.removeCallbacks(mConfirmedRunnable);
+    }
+
+    /**
+     * Notify the current gesture ended.
+     */
+    public void onGestureEnded() {
+        mIsInGesture = false;
+        scheduleConfirmed();
+    }
+
+    /**
+     * Cancel all pending events.
+     */
+    public void cancel() {
+        mView.removeCallbacks(mConfirmedRunnable);
+        mView.removeCallbacks(mThrottleRunnable);
+        mFrameScheduler.cancel();
+        mIsChangeScheduled = false;
+    }
+
+    private void scheduleChange() {
+        if (mIsChangeScheduled) {
+            // The pending event will report the latest region
+            return;
+        }
+        mIsChangeScheduled = true;
+        final long delay = mLastChangeTime + mThrottle - SystemClock.uptimeMillis();
+        if (delay > 0) {
+            mView.postDelayed(mThrottleRunnable, delay);
+        } else {
+            mFrameScheduler.schedule();
+        }
+    }
+
+    private void scheduleConfirmed() {
+        if (!mIsInGesture) {
+            mView.removeCallbacks(mConfirmedRunnable);
+            mView.postDelayed(mConfirmedRunnable, mConfirmedDelay);
+        }
+    }
+
+    private void dispatchChange() {
+        mIsChangeScheduled = false;
+        if (!isSignificant(mLastChangedRegion, mCurrentRegion)) {
+            return;
+        }
+        mOldRegion.set(mLastChangedRegion);
+        mNewRegion.set(mCurrentRegion);
+        mLastChangedRegion.set(mCurrentRegion);
+        mLastChangeTime = SystemClock.uptimeMillis();
+        if (Config.METRICS_ENABLED && mMetrics != null) {
+            final long start = System.nanoTime();
+            mCallback.onRegionChanged(mOldRegion, mNewRegion);
+            mMetrics.onRegionChangeDispatched(false, start - mChangeSampleTime, System.nanoTime() - start);
+        } else {
+            mCallback.onRegionChanged(mOldRegion, mNewRegion);
+        }
+    }
+
+    private void dispatchConfirmed() {
+        // Deliver the pending change (if any) first so that a confirmed change
+        // is never notified before the change itself.
+        if (mIsChangeScheduled) {
+            cancel();
+            dispatchChange();
+        }
+        if (!isSignificant(mLastConfirmedRegion, mCurrentRegion)) {
+            return;
+        }
+        mOldRegion.set(mLastConfirmedRegion);
+        mNewRegion.set(mCurrentRegion);
+        mLastConfirmedRegion.set(mCurrentRegion);
+        if (Config.METRICS_ENABLED && mMetrics != null) {
+            final long start = System.nanoTime();
+            mCallback.onRegionChangeConfirmed(mOldRegion, mNewRegion);
+            mMetrics.onRegionChangeDispatched(true, start - mLastSampleTime, System.nanoTime() - start);
+        } else {
+            mCallback.onRegionChangeConfirmed(mOldRegion, mNewRegion);
+        }
+    }
+
+    private boolean isSignificant(CoordinateRegion oldRegion, CoordinateRegion newRegion) {
+        if (oldRegion.equals(newRegion)) {
+            return false;
+        }
+        if (oldRegion.isEmpty() || oldRegion.latitudeSpan != newRegion.latitudeSpan || oldRegion.longitudeSpan != newRegion.longitudeSpan) {
+            return true;
+        }
+        final float minimumDelta = mMinimumDelta;
+        //@formatter:off
+        return Math.abs((long) newRegion.latitude - oldRegion.latitude) >= minimumDelta * newRegion.latitudeSpan
+                || Math.abs((long) newRegion.longitude - oldRegion.longitude) >= minimumDelta * newRegion.longitudeSpan;
+        //@formatter:on
+    }
+
+    private final Runnable mThrottleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mFrameScheduler.schedule();
+        }
+    };
+
+    private final Runnable mConfirmedRunnable = new Runnable() {
+        @Override
+        public void run() {
+            dispatchConfirmed();
+        }
+    };
+
+    /**
+     * Delivers region changes at the beginning of the next frame.
+     */
+    private interface FrameScheduler {
+        void schedule();
+
+        void cancel();
+    }
+
+    @TargetApi(16)
+    private class ChoreographerFrameScheduler implements FrameScheduler, Choreographer.FrameCallback {
+        @Override
+        public void schedule() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        @Override
+        public void cancel() {
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            dispatchChange();
+        }
+    }
+
+    /**
+     * Prior Jelly Bean, there is no way to be notified of a new frame. Frames
+     * are approximated with a 60Hz clock.
+     */
+    private class HandlerFrameScheduler implements FrameScheduler, Runnable {
+        @Override
+        public void schedule() {
+            mView.postDelayed(this, FRAME_DELAY);
+        }
+
+        @Override
+        public void cancel() {
+            mView.removeCallbacks(this);
+        }
+
+        @Override
+        public void run() {
+            dispatchChange();
+        }
+    }
+
+}
@@ -27,6 +27,7 @@ import android.widget.Toast;
 
 import com.cyrilmottier.android.polarissample.util.Config;
 import com.cyrilmottier.polaris.Annotation;
+import com.cyrilmottier.polaris.MapCalloutAdapter;
 import com.cyrilmottier.polaris.MapCalloutView;
 import com.cyrilmottier.polaris.MapViewUtils;
 import com.cyrilmottier.polaris.PolarisMapView;
@@ -87,6 +88,32 @@ public class MainActivity extends MapActivity implements OnRegionChangedListener
 
     private PolarisMapView mMapView;
 
+    private final MapCalloutAdapter mMapCalloutAdapter = new MapCalloutAdapter() {
+
+        private static final int VIEW_TYPE_TITLE = 0;
+        private static final int VIEW_TYPE_SNIPPET = 1;
+
+        @Override
+        public int getViewTypeCount() {
+            return 2;
+        }
+
+        @Override
+        public int getViewType(int position, Annotation annotation) {
+            return TextUtils.isEmpty(annotation.getSnippet()) ? VIEW_TYPE_TITLE : VIEW_TYPE_SNIPPET;
+        }
+
+        @Override
+        public void bindMapCallout(MapCalloutView calloutView, int position, Annotation annotation) {
+            calloutView.setDisclosureEnabled(true);
+            calloutView.setClickable(true);
+            // The accessory is inflated only once per callout
+            if (getViewType(position, annotation) == VIEW_TYPE_SNIPPET && calloutView.getLeftAccessoryView() == null) {
+                calloutView.setLeftAccessoryView(getLayoutInflater().inflate(R.layout.accessory, calloutView, false));
+            }
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -97,6 +124,7 @@ public class MainActivity extends MapActivity implements OnRegionChangedListener
         mMapView.setUserTrackingButtonEnabled(true);
         mMapView.setOnRegionChangedListenerListener(this);
         mMapView.setOnAnnotationSelectionChangedListener(this);
+        mMapView.setMapCalloutAdapter(mMapCalloutAdapter);
 
         // Prepare an alternate pin Drawable
         final Drawable altMarker = MapViewUtils.boundMarkerCenterBottom(getResources().getDrawable(R.drawable.map_pin_holed_violet));
@@ -154,13 +182,6 @@ public class MainActivity extends MapActivity implements OnRegionChangedListener
         if (Config.INFO_LOGS_ENABLED) {
             Log.i(LOG_TAG, "onAnnotationSelected");
         }
-        calloutView.setDisclosureEnabled(true);
-        calloutView.setClickable(true);
-        if (!TextUtils.isEmpty(annotation.getSnippet())) {
-            calloutView.setLeftAccessoryView(getLayoutInflater().inflate(R.layout.accessory, calloutView, false));
-        } else {
-            calloutView.setLeftAccessoryView(null);
-        }
     }
 
     @Override